@@ -25,6 +25,10 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.transform.Result;
 import javax.xml.transform.Templates;
@@ -54,6 +58,7 @@ import org.apache.cocoon.components.ContextHelper;
 import org.apache.cocoon.components.xslt.TraxErrorListener;
 import org.apache.cocoon.environment.Request;
 import org.apache.commons.lang.BooleanUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceException;
 import org.apache.excalibur.source.SourceResolver;
@@ -71,7 +76,13 @@ import org.ametys.runtime.config.Config;
 
 /**
  * Adaptation of Excalibur's XSLTProcessor implementation to allow for better error reporting. This implementation is also threadsafe.<br>
- * It also handles a {@link Templates} cache, for performance purpose.
+ * It also handles a {@link Templates} cache, for performance purpose. The cache is read without locking, and a given stylesheet is only compiled by one thread at a time.<br>
+ * The following parameters are supported, in addition to Excalibur's ones:
+ * <ul>
+ * <li>check-interval: the minimum time in milliseconds between two checks of the last modification dates of a cached stylesheet and its included stylesheets.
+ * 0 (default) checks them each time the stylesheet is used, a negative value never checks them.</li>
+ * <li>precompile: a comma-separated list of stylesheet URIs to compile in the background at startup.</li>
+ * </ul>
  */
 public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTProcessor, Serviceable, Initializable, Disposable, Parameterizable, URIResolver, Contextualizable
 {
@@ -99,7 +110,17 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
     private boolean _dontUseCache;
     
     // the XSLT cache
-    private Map<String, TemplatesCache> _templatesCache = new HashMap<>();
+    private Map<String, TemplatesCache> _templatesCache = new ConcurrentHashMap<>();
+    
+    /** The minimum time in milliseconds between two checks of the last modification dates of a stylesheet */
+    private long _checkInterval;
+    
+    /** The stylesheets to compile at startup */
+    private String[] _precompiledStylesheets;
+    
+    private final AtomicLong _cacheHits = new AtomicLong();
+    private final AtomicLong _compilations = new AtomicLong();
+    private final AtomicLong _compilationTime = new AtomicLong();
     
     @Override
     public void contextualize(Context context) throws ContextException
@@ -130,6 +151,42 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
             // not in safe mode
             _dontUseCache = false;
         }
+        
+        if (_precompiledStylesheets.length > 0 && !_dontUseCache)
+        {
+            Thread precompileThread = new Thread(this::_precompile, "ametys-xslt-precompile");
+            precompileThread.setDaemon(true);
+            precompileThread.start();
+        }
+    }
+    
+    private void _precompile()
+    {
+        for (String uri : _precompiledStylesheets)
+        {
+            Source stylesheet = null;
+            try
+            {
+                stylesheet = _resolver.resolveURI(uri);
+                _getTemplates(stylesheet, null);
+            }
+            catch (Exception e)
+            {
+                getLogger().warn("Unable to precompile the stylesheet " + uri + ", it will be compiled on first use", e);
+            }
+            finally
+            {
+                if (stylesheet != null && _resolver != null)
+                {
+                    _resolver.release(stylesheet);
+                }
+            }
+        }
+        
+        if (getLogger().isInfoEnabled())
+        {
+            getLogger().info(_precompiledStylesheets.length + " stylesheets precompiled in " + _compilationTime.get() + " ms");
+        }
     }
 
     /**
@@ -146,6 +203,11 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
         _xmlizer = null;
         _resolver = null;
         _templatesCache.clear();
+        
+        if (getLogger().isInfoEnabled())
+        {
+            getLogger().info("Templates cache: " + _cacheHits.get() + " hits, " + _compilations.get() + " compilations in " + _compilationTime.get() + " ms");
+        }
     }
 
     /**
@@ -155,6 +217,35 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
     {
         _incrementalProcessing = params.getParameterAsBoolean("incremental-processing", this._incrementalProcessing);
         _transformerFactory = params.getParameter("transformer-factory", null);
+        _checkInterval = params.getParameterAsLong("check-interval", 0);
+        _precompiledStylesheets = StringUtils.split(params.getParameter("precompile", ""), ", \n\t");
+    }
+    
+    /**
+     * Gets the number of times a cached {@link Templates} was used
+     * @return the number of cache hits
+     */
+    public long getCacheHits()
+    {
+        return _cacheHits.get();
+    }
+    
+    /**
+     * Gets the number of stylesheet compilations
+     * @return the number of compilations
+     */
+    public long getCompilations()
+    {
+        return _compilations.get();
+    }
+    
+    /**
+     * Gets the total time spent compiling stylesheets
+     * @return the compilation time in milliseconds
+     */
+    public long getCompilationTime()
+    {
+        return _compilationTime.get();
     }
 
     public void setTransformerFactory(final String classname)
@@ -225,37 +316,40 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
     
     private Templates _getTemplates(Source stylesheet, XMLFilter filter) throws XSLTProcessorException, IOException
     {
-        String uri = stylesheet.getURI().intern();
+        String uri = stylesheet.getURI();
         
-        // synchronize on XSL name to avoid concurrent write access to the cache for a given stylesheet
-        synchronized (uri)
+        if (_dontUseCache)
         {
-            TemplatesCache cachedTemplates = _templatesCache.get(uri);
-            
-            if (!_dontUseCache)
+            return _createTemplates(stylesheet, filter).getTemplates();
+        }
+        
+        // Lock-free lookup in the cache
+        TemplatesCache cachedTemplates = _templatesCache.get(uri);
+        if (cachedTemplates != null)
+        {
+            CachedTemplates templates = _getCachedTemplates(cachedTemplates, stylesheet);
+            if (templates != null)
             {
-                if (cachedTemplates != null && cachedTemplates.getLastModified() == stylesheet.getLastModified())
-                {
-                    CachedTemplates templates = _getCachedTemplates(cachedTemplates.getCollection());
-                    
-                    if (templates != null)
-                    {
-                        if (getLogger().isDebugEnabled())
-                        {
-                            getLogger().debug("Found Templates in cache for stylesheet : " + uri);
-                        }
-                        
-                        return templates.getTemplates();
-                    }
-                }
-                else
-                {
-                    cachedTemplates = new TemplatesCache(stylesheet.getLastModified());
-                    _templatesCache.put(uri, cachedTemplates);
-                }
+                return _hit(uri, templates);
+            }
+        }
+        else
+        {
+            long lastModified = stylesheet.getLastModified();
+            cachedTemplates = _templatesCache.computeIfAbsent(uri, k -> new TemplatesCache(lastModified));
+        }
+        
+        // synchronize on the stylesheet cache so that concurrent requests do not compile the same stylesheet again
+        synchronized (cachedTemplates)
+        {
+            // another thread may have compiled it while waiting for the lock
+            CachedTemplates templates = _getCachedTemplates(cachedTemplates, stylesheet);
+            if (templates != null)
+            {
+                return _hit(uri, templates);
             }
             
-            CachedTemplates templates = _createTemplates(stylesheet, filter);
+            templates = _createTemplates(stylesheet, filter);
             
             if (getLogger().isDebugEnabled())
             {
@@ -276,17 +370,58 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
                 getLogger().debug(sb.toString());
             }
             
-            if (!_dontUseCache)
+            cachedTemplates.getCollection().add(templates);
+            
+            return templates.getTemplates();
+        }
+    }
+    
+    private Templates _hit(String uri, CachedTemplates templates)
+    {
+        _cacheHits.incrementAndGet();
+        
+        if (getLogger().isDebugEnabled())
+        {
+            getLogger().debug("Found Templates in cache for stylesheet : " + uri);
+        }
+        
+        return templates.getTemplates();
+    }
+    
+    private CachedTemplates _getCachedTemplates(TemplatesCache cachedTemplates, Source stylesheet) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        
+        if (_needsCheck(cachedTemplates.getLastChecked(), now))
+        {
+            long lastModified = stylesheet.getLastModified();
+            if (cachedTemplates.getLastModified() != lastModified)
             {
-                cachedTemplates.getCollection().add(templates);
+                // the stylesheet itself was modified, none of its Templates is valid anymore
+                // (reset while holding the lock, so that a Templates being compiled is not lost)
+                synchronized (cachedTemplates)
+                {
+                    if (cachedTemplates.getLastModified() != lastModified)
+                    {
+                        cachedTemplates.reset(lastModified);
+                    }
+                }
+                return null;
             }
             
-            return templates.getTemplates();
+            cachedTemplates.setLastChecked(now);
         }
+        
+        return _getCachedTemplates(cachedTemplates.getCollection(), now);
+    }
+    
+    private boolean _needsCheck(long lastChecked, long now)
+    {
+        return _checkInterval >= 0 && now - lastChecked >= _checkInterval;
     }
     
     @SuppressWarnings("unchecked")
-    private CachedTemplates _getCachedTemplates(Collection<CachedTemplates> cachedTemplates) throws IOException
+    private CachedTemplates _getCachedTemplates(Collection<CachedTemplates> cachedTemplates, long now) throws IOException
     {
         CachedTemplates outOfDateTemplates = null;
         
@@ -323,9 +458,14 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
         {
             CachedTemplates templates = it.next();
             
-            int validity = _isValid(templates, resolutionCache);
+            boolean checkTimestamps = _needsCheck(templates.getLastChecked(), now);
+            int validity = _isValid(templates, resolutionCache, checkTimestamps);
             if (validity == 1)
             {
+                if (checkTimestamps)
+                {
+                    templates.setLastChecked(now);
+                }
                 return templates;
             }
             
@@ -343,9 +483,10 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
         return null;
     }
     
-    private int _isValid(CachedTemplates templates, Map<UnresolvedURI, ResolvedURI> resolutionCache) throws IOException
+    private int _isValid(CachedTemplates templates, Map<UnresolvedURI, ResolvedURI> resolutionCache, boolean checkTimestamps) throws IOException
     {
         // the current Templates object is valid if and only if the resolution of raw URIs correspond to stored resolved URIs
+        // the timestamps are only compared when the check interval is elapsed
         String[] rawURIs = templates.getRawURIs();
         String[] baseURIs = templates.getBaseURIs();
         String[] resolvedURIs = templates.getResolvedURIs();
@@ -379,7 +520,7 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
                 return -1;
             }
             
-            if (lastModified == 0 || timestamps[i] == 0 || lastModified != timestamps[i])
+            if (checkTimestamps && (lastModified == 0 || timestamps[i] == 0 || lastModified != timestamps[i]))
             {
                 isOutOfDate = true;
             }
@@ -392,6 +533,7 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
     private CachedTemplates _createTemplates(Source stylesheet, XMLFilter filter) throws XSLTProcessorException
     {
         String id = stylesheet.getURI();
+        long start = System.nanoTime();
 
         // Do not reuse the global SAXTransformerFactory, as we set a different URIResolver and ErrorListener
         TraxErrorListener errorListener = new TraxErrorListener(getLogger(), id);
@@ -450,6 +592,15 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
             
             cachedTemplates.setTemplates(template);
             
+            long compilationTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            _compilations.incrementAndGet();
+            _compilationTime.addAndGet(compilationTime);
+            
+            if (getLogger().isDebugEnabled())
+            {
+                getLogger().debug("Templates for " + id + " compiled in " + compilationTime + " ms");
+            }
+            
             return cachedTemplates;
         }
         catch (Exception e)
@@ -763,6 +914,9 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
         // resulting templates
         private Templates _templates;
         
+        // last time the timestamps were checked
+        private volatile long _lastChecked = System.currentTimeMillis();
+        
         CachedTemplates()
         {
             // empty
@@ -803,6 +957,16 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
         {
             _templates = templates;
         }
+        
+        long getLastChecked()
+        {
+            return _lastChecked;
+        }
+        
+        void setLastChecked(long lastChecked)
+        {
+            _lastChecked = lastChecked;
+        }
     }
     
     private static class UnresolvedURI
@@ -889,7 +1053,8 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
     private static class TemplatesCache
     {
         private Collection<CachedTemplates> _templatesCache;
-        private long _lastModified;
+        private volatile long _lastModified;
+        private volatile long _lastChecked;
         
         /**
          * Build a cache
@@ -897,8 +1062,9 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
          */
         public TemplatesCache(long lastModified)
         {
-            _templatesCache = new ArrayList<>();
+            _templatesCache = new CopyOnWriteArrayList<>();
             _lastModified = lastModified;
+            _lastChecked = System.currentTimeMillis();
         }
         
         /**
@@ -918,5 +1084,34 @@ public class ThreadSafeTraxProcessor extends AbstractLogEnabled implements XSLTP
         {
             return _lastModified;
         }
+        
+        /**
+         * Get the last time the last modified date was checked
+         * @return the last check date
+         */
+        public long getLastChecked()
+        {
+            return _lastChecked;
+        }
+        
+        /**
+         * Set the last time the last modified date was checked
+         * @param lastChecked the last check date
+         */
+        public void setLastChecked(long lastChecked)
+        {
+            _lastChecked = lastChecked;
+        }
+        
+        /**
+         * Empty the cache, as the stylesheet was modified
+         * @param lastModified The new last modified date
+         */
+        public void reset(long lastModified)
+        {
+            _templatesCache.clear();
+            _lastModified = lastModified;
+            _lastChecked = System.currentTimeMillis();
+        }
     }
 }
@@ -16,9 +16,15 @@
 package org.ametys.runtime.config;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.xml.parsers.SAXParserFactory;
 
@@ -33,6 +39,8 @@ import org.ametys.runtime.util.MapHandler;
 /**
  * Config bean <br>
  * Reads/Write config file. <br>
+ * The values are held in an immutable snapshot, where the values of the declared parameters are already typed.
+ * The snapshot is replaced as a whole when the config file changes, and the {@link ConfigChangeListener}s are then notified.
  */
 public final class Config
 {
@@ -54,8 +62,20 @@ public final class Config
     // The last modification date
     private static long __lastModified = -1;
     
-    // Typed value (filled after read)
-    private Map<String, String> _values;
+    // The minimum delay between two checks of the config file modification, in milliseconds
+    private static final long __CHECK_DELAY = 1000;
+    
+    // The next time the config file modification will be checked
+    private static volatile long __nextCheck;
+    
+    // The types of the declared parameters, set by the ConfigManager
+    private static volatile Map<String, ParameterType> __types = Collections.emptyMap();
+    
+    // The listeners notified when the values change
+    private static final List<ConfigChangeListener> __LISTENERS = new CopyOnWriteArrayList<>();
+    
+    // The current values, replaced as a whole on reload
+    private volatile ConfigValues _values;
 
     private Config() throws Exception
     {
@@ -64,7 +84,7 @@ public final class Config
             _logger.info("Loading configuration values from file");
         }
         
-        _values = read();
+        _values = new ConfigValues(read());
     }
 
     /**
@@ -94,31 +114,116 @@ public final class Config
                 return null;
             }
         }
-        else if (__fileExists && new File(__filename).exists() && __lastModified < new File(__filename).lastModified())
+        else if (System.currentTimeMillis() >= __nextCheck)
         {
-            try
+            // The file is checked at most once per __CHECK_DELAY, as the config is read very often
+            __nextCheck = System.currentTimeMillis() + __CHECK_DELAY;
+            
+            File configFile = new File(__filename);
+            if (__fileExists && __lastModified < configFile.lastModified())
             {
-                _logger.info("The config file has changed. Let's reload."); 
-                __config._values = read();
+                __config._reload();
             }
-            catch (Exception e)
+        }
+        
+        return __config;
+    }
+    
+    private synchronized void _reload()
+    {
+        if (__lastModified >= new File(__filename).lastModified())
+        {
+            // Already reloaded by another thread
+            return;
+        }
+        
+        ConfigValues oldValues = _values;
+        try
+        {
+            _logger.info("The config file has changed. Let's reload."); 
+            _values = new ConfigValues(read());
+        }
+        catch (Exception e)
+        {
+            // __lastModified was changed, so we will not fail several times
+            // _values was not modified
+            // __fileExists is still true
+            _logger.error("The config file '" + __filename + "' was modified but could not be reloaded due to an exception", e);
+            return;
+        }
+        
+        Set<String> changedIds = new HashSet<>();
+        for (String id : oldValues._untypedValues.keySet())
+        {
+            if (!Objects.equals(oldValues._untypedValues.get(id), _values._untypedValues.get(id)))
             {
-                // __lastModified was changed, so we will not fail several times
-                // _values was not modified
-                // __fileExists is still true
-                _logger.error("The config file '" + __filename + "' was modified but could not be reloaded due to an exception", e);
+                changedIds.add(id);
+            }
+        }
+        for (String id : _values._untypedValues.keySet())
+        {
+            if (!oldValues._untypedValues.containsKey(id))
+            {
+                changedIds.add(id);
             }
         }
         
-        return __config;
+        if (!changedIds.isEmpty())
+        {
+            Set<String> ids = Collections.unmodifiableSet(changedIds);
+            for (ConfigChangeListener listener : __LISTENERS)
+            {
+                try
+                {
+                    listener.configChanged(ids);
+                }
+                catch (Exception e)
+                {
+                    _logger.error("The config change listener " + listener + " failed", e);
+                }
+            }
+        }
     }
     
     /**
-     * Dispose this Config instance
+     * Dispose this Config instance.<br>
+     * The change listeners are removed too, as the components which registered them are about to be disposed.<br>
+     * The configuration is not available anymore until it is initialized again.
      */
     public static void dispose()
     {
+        _initialized = false;
         __config = null;
+        __LISTENERS.clear();
+    }
+    
+    /**
+     * Set the types of the declared parameters, used to type the values once when they are read.
+     * Only used by the {@link ConfigManager}. The current values are dropped, to be typed again with the new types.
+     * @param types The types of the parameters, by id
+     */
+    static void setParameterTypes(Map<String, ParameterType> types)
+    {
+        __types = Collections.unmodifiableMap(new HashMap<>(types));
+        __config = null;
+    }
+    
+    /**
+     * Registers a listener, notified each time the config file is reloaded with different values
+     * @param listener The listener
+     */
+    public static void addChangeListener(ConfigChangeListener listener)
+    {
+        __LISTENERS.add(listener);
+    }
+    
+    /**
+     * Unregisters a listener
+     * @param listener The listener
+     */
+    public static void removeChangeListener(ConfigChangeListener listener)
+    {
+        __LISTENERS.remove(listener);
     }
 
     /**
@@ -156,7 +261,7 @@ public final class Config
      */
     public String getValueAsString(String id)
     {
-        return _values.get(id);
+        return _values._untypedValues.get(id);
     }
 
     /**
@@ -166,9 +271,10 @@ public final class Config
      */
     public Date getValueAsDate(String id)
     {
-        String value = _values.get(id);
+        Date value = _values.getTypedValue(id, ParameterType.DATE, Date.class);
         
-        return (Date) ParameterHelper.castValue(value, ParameterType.DATE);
+        // Dates are mutable, the snapshot value is not shared
+        return value != null ? new Date(value.getTime()) : null;
     }
 
     /**
@@ -178,9 +284,19 @@ public final class Config
      */
     public Long getValueAsLong(String id)
     {
-        String value = _values.get(id);
-        
-        return (Long) ParameterHelper.castValue(value, ParameterType.LONG);
+        return _values.getTypedValue(id, ParameterType.LONG, Long.class);
+    }
+    
+    /**
+     * Return the typed value as a primitive long
+     * @param id Id of the parameter to get
+     * @param defaultValue The value to return if the parameter is not valued
+     * @return the typed value as long
+     */
+    public long getValueAsLong(String id, long defaultValue)
+    {
+        Long value = getValueAsLong(id);
+        return value != null ? value : defaultValue;
     }
 
     /**
@@ -190,9 +306,19 @@ public final class Config
      */
     public Boolean getValueAsBoolean(String id)
     {
-        String value = _values.get(id);
-        
-        return (Boolean) ParameterHelper.castValue(value, ParameterType.BOOLEAN);
+        return _values.getTypedValue(id, ParameterType.BOOLEAN, Boolean.class);
+    }
+    
+    /**
+     * Return the typed value as a primitive boolean
+     * @param id Id of the parameter to get
+     * @param defaultValue The value to return if the parameter is not valued
+     * @return the typed value as boolean
+     */
+    public boolean getValueAsBoolean(String id, boolean defaultValue)
+    {
+        Boolean value = getValueAsBoolean(id);
+        return value != null ? value : defaultValue;
     }
 
     /**
@@ -202,9 +328,19 @@ public final class Config
      */
     public Double getValueAsDouble(String id)
     {
-        String value = _values.get(id);
-        
-        return (Double) ParameterHelper.castValue(value, ParameterType.DOUBLE);
+        return _values.getTypedValue(id, ParameterType.DOUBLE, Double.class);
+    }
+    
+    /**
+     * Return the typed value as a primitive double
+     * @param id Id of the parameter to get
+     * @param defaultValue The value to return if the parameter is not valued
+     * @return the typed value as double
+     */
+    public double getValueAsDouble(String id, double defaultValue)
+    {
+        Double value = getValueAsDouble(id);
+        return value != null ? value : defaultValue;
     }
     
     /**
@@ -232,4 +368,42 @@ public final class Config
 
         return configValues;
     }
+    
+    /**
+     * Immutable snapshot of the config values
+     */
+    private static final class ConfigValues
+    {
+        final Map<String, String> _untypedValues;
+        final Map<String, Object> _typedValues;
+        
+        ConfigValues(Map<String, String> untypedValues)
+        {
+            _untypedValues = Collections.unmodifiableMap(untypedValues);
+            
+            // Cast once the values of the declared parameters
+            Map<String, Object> typedValues = new HashMap<>();
+            for (Map.Entry<String, ParameterType> type : __types.entrySet())
+            {
+                Object value = ParameterHelper.castValue(untypedValues.get(type.getKey()), type.getValue());
+                if (value != null)
+                {
+                    typedValues.put(type.getKey(), value);
+                }
+            }
+            _typedValues = typedValues;
+        }
+        
+        <T> T getTypedValue(String id, ParameterType type, Class<T> clazz)
+        {
+            Object value = _typedValues.get(id);
+            if (clazz.isInstance(value))
+            {
+                return clazz.cast(value);
+            }
+            
+            // Not declared with this type, or not valued: cast the value for each call, as before
+            return clazz.cast(ParameterHelper.castValue(_untypedValues.get(id), type));
+        }
+    }
 }
@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.config;
+
+import java.util.Set;
+
+/**
+ * Listener notified when the configuration values are reloaded.<br>
+ * Components computing values from the configuration can keep them, and only compute them again when this listener is called.
+ * Listeners are registered with {@link Config#addChangeListener(ConfigChangeListener)}.
+ */
+@FunctionalInterface
+public interface ConfigChangeListener
+{
+    /**
+     * Called after the configuration values changed. The new values are already available from {@link Config#getInstance()}.
+     * @param changedIds The ids of the parameters whose value was added, modified or removed
+     */
+    public void configChanged(Set<String> changedIds);
+}
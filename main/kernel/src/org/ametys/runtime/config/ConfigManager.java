@@ -444,6 +444,14 @@ public final class ConfigManager implements Contextualizable, Serviceable, Initi
         }
         
         _validateParameters(untypedValues);
+        
+        // The values will be typed once, when they are read
+        Map<String, ParameterType> types = new HashMap<>();
+        for (ConfigParameter parameter : _params.values())
+        {
+            types.put(parameter.getId(), parameter.getType());
+        }
+        Config.setParameterTypes(types);
 
         _declaredParams.clear();
         _usedParamsName.clear();
@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Fixed-capacity buffer keeping the most recent objects, without any lock.<br>
+ * When the buffer is full, the oldest objects are overwritten. Objects are also dropped when they are older than the time to live,
+ * or when the estimated size of all the objects exceeds the maximum size.<br>
+ * The objects are expected to be put nearly in time order, so that a range of time can be found by a binary search on the sequences.
+ * @param <T> The type of object managed by the buffer
+ */
+public class ExpiringRingBuffer<T>
+{
+    /** The maximum time, in milliseconds, between an object being timed and being put in the buffer by a concurrent writer */
+    private static final long __TIME_DISORDER = 1000;
+    
+    private final AtomicReferenceArray<Slot<T>> _slots;
+    private final int _mask;
+    private final long _timeToLiveMillis;
+    private final long _maxSize;
+    private final ToLongFunction<T> _timeFunction;
+    private final ToIntFunction<T> _sizeFunction;
+    
+    /** Sequence of the next object to write */
+    private final AtomicLong _head = new AtomicLong();
+    /** Sequence of the oldest object which may still be in the buffer */
+    private final AtomicLong _tail = new AtomicLong();
+    /** Estimated size of the objects in the buffer */
+    private final AtomicLong _size = new AtomicLong();
+    
+    /**
+     * Build a buffer
+     * @param capacity The maximum number of objects. Rounded up to the next power of two.
+     * @param expiringTime The time limit, in milliseconds, that the objects are kept in the buffer.
+     * @param maxSize The maximum estimated size of all the objects, in bytes.
+     * @param timeFunction Gets the time of an object
+     * @param sizeFunction Gets the estimated size of an object, in bytes
+     */
+    public ExpiringRingBuffer(int capacity, long expiringTime, long maxSize, ToLongFunction<T> timeFunction, ToIntFunction<T> sizeFunction)
+    {
+        int roundedCapacity = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        _slots = new AtomicReferenceArray<>(roundedCapacity);
+        _mask = roundedCapacity - 1;
+        _timeToLiveMillis = expiringTime > 0 ? expiringTime : 0;
+        _maxSize = maxSize;
+        _timeFunction = timeFunction;
+        _sizeFunction = sizeFunction;
+    }
+    
+    /**
+     * Get the capacity of the buffer
+     * @return The maximum number of objects
+     */
+    public int getCapacity()
+    {
+        return _slots.length();
+    }
+    
+    /**
+     * Get the estimated size of the objects currently in the buffer
+     * @return The size in bytes
+     */
+    public long getSize()
+    {
+        return _size.get();
+    }
+    
+    /**
+     * Put an object in the buffer
+     * @param object The object
+     */
+    public void put(T object)
+    {
+        long sequence = _head.getAndIncrement();
+        Slot<T> slot = new Slot<>(sequence, object, _sizeFunction.applyAsInt(object));
+        
+        _size.addAndGet(slot._size);
+        Slot<T> overwrittenSlot = _slots.getAndSet(_index(sequence), slot);
+        if (overwrittenSlot != null)
+        {
+            _size.addAndGet(-overwrittenSlot._size);
+        }
+        
+        while (_size.get() > _maxSize && _evictOldest(sequence))
+        {
+            // evict until the size is below the maximum
+        }
+    }
+    
+    /**
+     * Get the objects whose time is in the given range, in the order they were put (i.e. nearly ordered by time)
+     * @param from low endpoint (inclusive) of the time range
+     * @param to high endpoint (exclusive) of the time range
+     * @return The objects
+     */
+    public List<T> getRange(long from, long to)
+    {
+        long expirationTime = System.currentTimeMillis() - _timeToLiveMillis;
+        
+        // Release expired objects
+        Slot<T> oldestSlot;
+        long tail;
+        while ((oldestSlot = _slots.get(_index(tail = _tail.get()))) != null
+                && oldestSlot._sequence == tail
+                && _timeFunction.applyAsLong(oldestSlot._object) < expirationTime
+                && _evictOldest(_head.get() - 1))
+        {
+            // evict until the oldest object is not expired
+        }
+        
+        long head = _head.get();
+        long first = Math.max(_tail.get(), head - _slots.length());
+        
+        // Start a little before the first object in the range, as concurrent writers may have put the objects slightly out of order
+        first = _search(first, head, Math.max(from, expirationTime) - __TIME_DISORDER);
+        
+        List<T> objects = new ArrayList<>();
+        for (long sequence = first; sequence < head; sequence++)
+        {
+            Slot<T> slot = _slots.get(_index(sequence));
+            
+            // The slot may have been overwritten or not written yet
+            if (slot != null && slot._sequence == sequence)
+            {
+                long time = _timeFunction.applyAsLong(slot._object);
+                if (time >= from && time < to && time >= expirationTime)
+                {
+                    objects.add(slot._object);
+                }
+            }
+        }
+        
+        return objects;
+    }
+    
+    /**
+     * Search the first sequence whose object is not older than a time, by dichotomy
+     * @param first The oldest sequence to consider
+     * @param head The sequence of the next object to write
+     * @param time The time
+     * @return The sequence, head if all the objects are older
+     */
+    private long _search(long first, long head, long time)
+    {
+        long low = first;
+        long high = head;
+        while (low < high)
+        {
+            long middle = (low + high) >>> 1;
+            Slot<T> slot = _slots.get(_index(middle));
+            if (slot == null || slot._sequence < middle)
+            {
+                // Not written yet, so among the most recent objects
+                high = middle;
+            }
+            else if (slot._sequence > middle || _timeFunction.applyAsLong(slot._object) < time)
+            {
+                // Already overwritten by a more recent object, or older than the time
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Clear the content of the buffer
+     */
+    public void clear()
+    {
+        long head = _head.get() - 1;
+        while (_evictOldest(head))
+        {
+            // evict everything
+        }
+    }
+    
+    /**
+     * Evict the oldest object of the buffer
+     * @param head The sequence of the most recent object to consider
+     * @return false if the buffer was already empty
+     */
+    private boolean _evictOldest(long head)
+    {
+        long tail = _tail.get();
+        
+        // The objects older than head - capacity were already overwritten
+        long oldest = Math.max(tail, head - _slots.length() + 1);
+        if (oldest > head)
+        {
+            return false;
+        }
+        
+        if (_tail.compareAndSet(tail, oldest + 1))
+        {
+            int index = _index(oldest);
+            Slot<T> slot = _slots.get(index);
+            if (slot != null && slot._sequence == oldest && _slots.compareAndSet(index, slot, null))
+            {
+                _size.addAndGet(-slot._size);
+            }
+        }
+        
+        return true;
+    }
+    
+    private int _index(long sequence)
+    {
+        return (int) (sequence & _mask);
+    }
+    
+    private static final class Slot<T>
+    {
+        final long _sequence;
+        final T _object;
+        final int _size;
+        
+        Slot(long sequence, T object, int size)
+        {
+            _sequence = sequence;
+            _object = object;
+            _size = size;
+        }
+    }
+}
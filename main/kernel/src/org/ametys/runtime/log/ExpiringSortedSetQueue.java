@@ -30,7 +30,9 @@ import java.util.TreeSet;
  * When accessing a specific key, the expiration timer is checked.
  * When using operations accessing the whole queue, it is fully checked for expiration.
  * @param <T> The type of object managed by the queue
+ * @deprecated The {@link MemoryAppender} now uses an {@link ExpiringRingBuffer}, which does not lock on each insertion. This class will be removed in a future version.
  */
+@Deprecated
 public class ExpiringSortedSetQueue<T>
 {
     private long _timeToLiveMillis;
@@ -15,45 +15,109 @@
  */
 package org.ametys.runtime.log;
 
-import java.util.Comparator;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.log4j.lf5.LogLevel;
 import org.apache.log4j.lf5.LogLevelFormatException;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LocationInfo;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.ThrowableInformation;
 
 /**
- * Log appender that stores a pile of logs in memory.
+ * Log appender that stores a pile of logs in memory.<br>
+ * The logs are kept in a bounded buffer, in number (capacity), in time (timeToLive, in milliseconds) and in estimated size (maxSize, in bytes).
+ * These properties can be set in the log4j configuration.
  */
 public class MemoryAppender extends org.apache.log4j.AppenderSkeleton
 {
-    private ExpiringSortedSetQueue<MemoryLogRecord> _logsPile;
+    private int _capacity = 8192;
+    private long _timeToLive = 5 * 60 * 1000;
+    private long _maxSize = 16 * 1024 * 1024;
+    
+    private volatile ExpiringRingBuffer<MemoryLogRecord> _logsPile;
 
     /**
      * Default constructor for the memory appender
      */
     public MemoryAppender()
     {
-        Comparator<MemoryLogRecord> comparator = new Comparator<MemoryLogRecord> ()
+        activateOptions();
+    }
+    
+    @Override
+    public void activateOptions()
+    {
+        _logsPile = new ExpiringRingBuffer<>(_capacity, _timeToLive, _maxSize, MemoryLogRecord::getMillis, MemoryAppender::_estimateSize);
+    }
+    
+    /**
+     * Set the maximum number of logs kept in memory
+     * @param capacity The maximum number of logs
+     */
+    public void setCapacity(int capacity)
+    {
+        _capacity = capacity;
+    }
+    
+    /**
+     * Set the time the logs are kept in memory
+     * @param timeToLive The time in milliseconds
+     */
+    public void setTimeToLive(long timeToLive)
+    {
+        _timeToLive = timeToLive;
+    }
+    
+    /**
+     * Set the maximum estimated size of the logs kept in memory
+     * @param maxSize The size in bytes
+     */
+    public void setMaxSize(long maxSize)
+    {
+        _maxSize = maxSize;
+    }
+    
+    private static int _estimateSize(MemoryLogRecord record)
+    {
+        // 2 bytes per char, plus the record itself
+        return 2 * (_length(record.getCategory()) + _length(record.getMessage()) + _length(record.getLocation()) 
+                + _length(record.getThrownStackTrace()) + _length(record.getUser()) + _length(record.getRequestURI())) + 200;
+    }
+    
+    private static int _length(String value)
+    {
+        return value != null ? value.length() : 0;
+    }
+
+    @Override
+    public void doAppend(LoggingEvent event)
+    {
+        // Same checks as AppenderSkeleton#doAppend, without its lock: the buffer is thread-safe
+        if (closed || !isAsSevereAsThreshold(event.getLevel()))
         {
-            public int compare(MemoryLogRecord record, MemoryLogRecord compareTo)
+            return;
+        }
+        
+        Filter filter = getFirstFilter();
+        while (filter != null)
+        {
+            int decision = filter.decide(event);
+            if (decision == Filter.DENY)
             {
-                long recordTime = record.getMillis();
-                long compareToTime = compareTo.getMillis();
-                if (recordTime == compareToTime)
-                {
-                    return record.getSequenceNumber() > compareTo.getSequenceNumber() ? -1 : record.getSequenceNumber() < compareTo.getSequenceNumber() ? 1 : 0;
-                }
-                return recordTime > compareToTime ? 1 : -1;
+                return;
             }
-        };
-
-        _logsPile = new ExpiringSortedSetQueue<>(5 * 60 * 1000, comparator);
+            else if (decision == Filter.ACCEPT)
+            {
+                break;
+            }
+            filter = filter.getNext();
+        }
+        
+        append(event);
     }
-
+    
     @Override
     protected void append(LoggingEvent event)
     {
@@ -99,22 +163,18 @@ public class MemoryAppender extends org.apache.log4j.AppenderSkeleton
     /**
      * Retrieve a list of events that are more recent than the timestamp parameter
      * @param timestamp The time delimiter.
-     * @return a list of events.
+     * @return a list of events, in the order they were logged.
      */
-    public SortedSet<MemoryLogRecord> getRecentEvents(long timestamp)
+    public List<MemoryLogRecord> getRecentEvents(long timestamp)
     {
         // New events can occur at current time, retrieve only the fixed logs list: 1ms before now.
         long now = System.currentTimeMillis() - 1;
         if (now < timestamp)
         {
-            return new TreeSet<>();
+            return Collections.emptyList();
         }
         
-        MemoryLogRecord fromEvent = new MemoryLogRecord();
-        fromEvent.setMillis(timestamp);
-        MemoryLogRecord toEvent = new MemoryLogRecord();
-        toEvent.setMillis(now);
-        return this._logsPile.subSet(fromEvent, toEvent);
+        return _logsPile.getRange(timestamp, now);
     }
     
     @Override
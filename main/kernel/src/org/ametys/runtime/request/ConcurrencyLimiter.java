@@ -0,0 +1,243 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.request;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests processed at the same time, with a limit adapting to the processing time.<br>
+ * As long as the requests are processed faster than the latency threshold, the limit grows by one each time as many requests as the limit are processed, up to the maximum.
+ * When the 90th percentile of the processing times of the last 100 requests is above the threshold, the server is considered overloaded
+ * and the limit is decreased by 10%, down to the minimum. A few slow requests (large uploads, streaming...) are not enough to decrease it.
+ * The requests over the limit wait for a slot for a short time, then are rejected.
+ */
+public class ConcurrencyLimiter
+{
+    /** The number of last processing times considered */
+    private static final int __WINDOW_SIZE = 100;
+    /** The minimum number of processing times to consider the server overloaded */
+    private static final int __MIN_SAMPLES = 20;
+    /** The percentile of the processing times compared to the threshold */
+    private static final int __PERCENTILE = 90;
+    
+    private final String _name;
+    private final int _minLimit;
+    private final int _maxLimit;
+    private final long _latencyThreshold;
+    private final int _maxWaiting;
+    
+    private int _limit;
+    private int _inFlight;
+    private int _waiting;
+    private int _successes;
+    private long _lastDecrease;
+    
+    private final long[] _latencies = new long[__WINDOW_SIZE];
+    private int _latenciesCount;
+    private int _latenciesIndex;
+    
+    private final AtomicLong _admitted = new AtomicLong();
+    private final AtomicLong _queued = new AtomicLong();
+    private final AtomicLong _rejected = new AtomicLong();
+    
+    /**
+     * Creates a limiter
+     * @param name The name of the limiter, for monitoring
+     * @param minLimit The minimum number of concurrent requests
+     * @param maxLimit The maximum number of concurrent requests, which is also the initial limit
+     * @param latencyThreshold The processing time in milliseconds above which the limit is decreased
+     * @param maxWaiting The maximum number of requests waiting for a slot. The next ones are rejected immediately.
+     */
+    public ConcurrencyLimiter(String name, int minLimit, int maxLimit, long latencyThreshold, int maxWaiting)
+    {
+        _name = name;
+        _minLimit = Math.max(1, Math.min(minLimit, maxLimit));
+        _maxLimit = Math.max(_minLimit, maxLimit);
+        _latencyThreshold = latencyThreshold;
+        _maxWaiting = maxWaiting;
+        _limit = _maxLimit;
+    }
+    
+    /**
+     * Try to start processing a request. If true is returned, {@link #release(long)} must be called once the request is processed.
+     * @param timeout The maximum time to wait for a slot, in milliseconds
+     * @return true if the request can be processed, false if it must be rejected
+     */
+    public synchronized boolean acquire(long timeout)
+    {
+        if (_inFlight < _limit)
+        {
+            _inFlight++;
+            _admitted.incrementAndGet();
+            return true;
+        }
+        
+        if (timeout <= 0 || _waiting >= _maxWaiting)
+        {
+            _rejected.incrementAndGet();
+            return false;
+        }
+        
+        _queued.incrementAndGet();
+        _waiting++;
+        try
+        {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (_inFlight >= _limit)
+            {
+                if (remaining <= 0)
+                {
+                    _rejected.incrementAndGet();
+                    return false;
+                }
+                
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            
+            _inFlight++;
+            _admitted.incrementAndGet();
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            _rejected.incrementAndGet();
+            return false;
+        }
+        finally
+        {
+            _waiting--;
+        }
+    }
+    
+    /**
+     * Ends the processing of an admitted request, and adapts the limit to its processing time
+     * @param time The processing time of the request, in milliseconds
+     */
+    public synchronized void release(long time)
+    {
+        _inFlight--;
+        
+        _latencies[_latenciesIndex] = time;
+        _latenciesIndex = (_latenciesIndex + 1) % __WINDOW_SIZE;
+        _latenciesCount = Math.min(_latenciesCount + 1, __WINDOW_SIZE);
+        
+        if (time > _latencyThreshold)
+        {
+            // The requests running during the previous decrease may also be slow: do not decrease again for them
+            long now = System.currentTimeMillis();
+            if (now - _lastDecrease > _latencyThreshold && _getLatencyPercentile() > _latencyThreshold)
+            {
+                _lastDecrease = now;
+                
+                int limit = Math.max(_minLimit, _limit * 9 / 10);
+                if (limit < _limit)
+                {
+                    // A few slow requests do not prevent the limit from growing again, only an actual decrease does
+                    _limit = limit;
+                    _successes = 0;
+                }
+            }
+        }
+        else if (++_successes >= _limit && _limit < _maxLimit)
+        {
+            _successes = 0;
+            _limit++;
+        }
+        
+        // The waiting requests check the limit again, none of them must miss the released slot
+        notifyAll();
+    }
+    
+    /**
+     * Computes the percentile of the last processing times
+     * @return the processing time in milliseconds, or 0 if there are not enough processing times
+     */
+    private long _getLatencyPercentile()
+    {
+        if (_latenciesCount < __MIN_SAMPLES)
+        {
+            return 0;
+        }
+        
+        long[] latencies = Arrays.copyOf(_latencies, _latenciesCount);
+        Arrays.sort(latencies);
+        return latencies[(_latenciesCount * __PERCENTILE - 1) / 100];
+    }
+    
+    /**
+     * Gets the name of the limiter
+     * @return the name
+     */
+    public String getName()
+    {
+        return _name;
+    }
+    
+    /**
+     * Gets the current limit
+     * @return the maximum number of concurrent requests, currently
+     */
+    public synchronized int getLimit()
+    {
+        return _limit;
+    }
+    
+    /**
+     * Gets the number of requests being processed
+     * @return the number of requests
+     */
+    public synchronized int getInFlight()
+    {
+        return _inFlight;
+    }
+    
+    /**
+     * Gets the number of admitted requests since startup, including those which waited
+     * @return the number of requests
+     */
+    public long getAdmitted()
+    {
+        return _admitted.get();
+    }
+    
+    /**
+     * Gets the number of requests which waited for a slot since startup, whether they were finally admitted or rejected
+     * @return the number of requests
+     */
+    public long getQueued()
+    {
+        return _queued.get();
+    }
+    
+    /**
+     * Gets the number of rejected requests since startup
+     * @return the number of requests
+     */
+    public long getRejected()
+    {
+        return _rejected.get();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return _name + ": limit=" + getLimit() + ", inFlight=" + getInFlight() + ", admitted=" + getAdmitted() + ", queued=" + getQueued() + ", rejected=" + getRejected();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.request;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in milliseconds, with a bounded relative error.<br>
+ * Each power of two is divided in 8 buckets, so a percentile is known with a precision of 12.5%, whatever the duration.
+ * Recording a value in the histogram is lock-free and does not allocate, so it can be done for each request.
+ */
+public class LatencyHistogram
+{
+    /** The number of buckets by power of two, as a power of two */
+    private static final int __SUB_BUCKET_BITS = 3;
+    private static final int __SUB_BUCKETS = 1 << __SUB_BUCKET_BITS;
+    
+    /** The highest recorded power of two. Longer durations (more than 4 hours) are recorded in the last bucket. */
+    private static final int __MAX_EXPONENT = 23;
+    
+    /** The number of buckets */
+    public static final int BUCKET_COUNT = __SUB_BUCKETS + (__MAX_EXPONENT - __SUB_BUCKET_BITS + 1) * __SUB_BUCKETS;
+    
+    private final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _totalTime = new AtomicLong();
+    private final AtomicLong _maxTime = new AtomicLong();
+    
+    /**
+     * Records a duration
+     * @param time The duration in milliseconds
+     */
+    public void record(long time)
+    {
+        long value = Math.max(time, 0);
+        
+        _buckets.incrementAndGet(_getBucket(value));
+        _count.incrementAndGet();
+        _totalTime.addAndGet(value);
+        _maxTime.accumulateAndGet(value, Math::max);
+    }
+    
+    /**
+     * Gets the number of recorded durations
+     * @return the number of durations
+     */
+    public long getCount()
+    {
+        return _count.get();
+    }
+    
+    /**
+     * Gets the sum of the recorded durations
+     * @return the total time in milliseconds
+     */
+    public long getTotalTime()
+    {
+        return _totalTime.get();
+    }
+    
+    /**
+     * Gets the average recorded duration
+     * @return the average time in milliseconds
+     */
+    public long getAverageTime()
+    {
+        long count = _count.get();
+        return count > 0 ? _totalTime.get() / count : 0;
+    }
+    
+    /**
+     * Gets the maximum recorded duration
+     * @return the maximum time in milliseconds
+     */
+    public long getMaxTime()
+    {
+        return _maxTime.get();
+    }
+    
+    /**
+     * Gets the duration under which the given percentage of the recorded durations are
+     * @param percentile The percentile, between 0 and 100
+     * @return the percentile in milliseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        long value = getPercentile(getBucketCounts(), percentile);
+        if (value == _getHighestValue(BUCKET_COUNT - 1))
+        {
+            // The last bucket has no upper bound
+            return getMaxTime();
+        }
+        
+        // The highest value of a bucket may be above the actual maximum
+        return Math.min(value, getMaxTime());
+    }
+    
+    /**
+     * Gets a copy of the number of durations of each bucket.<br>
+     * The difference between two copies allows to compute the percentiles over a period.
+     * @return the counts, by bucket
+     */
+    public long[] getBucketCounts()
+    {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            counts[i] = _buckets.get(i);
+        }
+        return counts;
+    }
+    
+    /**
+     * Gets a percentile from bucket counts.<br>
+     * As the last bucket has no upper bound, the longer durations are counted as 2<sup>24</sup> - 1 ms (about 4.6 hours).
+     * @param counts The counts, by bucket, as returned by {@link #getBucketCounts()}
+     * @param percentile The percentile, between 0 and 100
+     * @return the percentile in milliseconds, 0 if there is no duration
+     */
+    public static long getPercentile(long[] counts, double percentile)
+    {
+        long total = 0;
+        for (long count : counts)
+        {
+            total += count;
+        }
+        
+        if (total == 0)
+        {
+            return 0;
+        }
+        
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+            {
+                return _getHighestValue(i);
+            }
+        }
+        
+        return _getHighestValue(counts.length - 1);
+    }
+    
+    private static int _getBucket(long value)
+    {
+        if (value < __SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), __MAX_EXPONENT);
+        if (exponent == __MAX_EXPONENT && value >= 1L << (__MAX_EXPONENT + 1))
+        {
+            return BUCKET_COUNT - 1;
+        }
+        
+        int shift = exponent - __SUB_BUCKET_BITS;
+        int subBucket = (int) (value >> shift) & (__SUB_BUCKETS - 1);
+        return __SUB_BUCKETS + shift * __SUB_BUCKETS + subBucket;
+    }
+    
+    private static long _getHighestValue(int bucket)
+    {
+        if (bucket < __SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        
+        int shift = (bucket - __SUB_BUCKETS) / __SUB_BUCKETS;
+        int subBucket = (bucket - __SUB_BUCKETS) % __SUB_BUCKETS;
+        long lowestValue = (long) (__SUB_BUCKETS + subBucket) << shift;
+        return lowestValue + (1L << shift) - 1;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount() + ", avg=" + getAverageTime() + "ms, p50=" + getPercentile(50) + "ms, p95=" + getPercentile(95) + "ms, p99=" + getPercentile(99) + "ms, max=" + getMaxTime() + "ms";
+    }
+}
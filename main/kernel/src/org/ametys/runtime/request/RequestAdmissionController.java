@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.request;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletConfig;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+/**
+ * Decides whether the requests handled by the RuntimeServlet are processed or rejected, to protect the server when it is overloaded.<br>
+ * The requests are divided in classes (administration, plugin resources, others), each one having its own {@link ConcurrencyLimiter},
+ * so that a flood of requests of one class does not prevent the others from being processed.<br>
+ * It is configured by the servlet init parameters:
+ * <ul>
+ * <li><code>admission-control</code>: true to enable it. Defaults to false.</li>
+ * <li><code>admission-control.queue-timeout</code>: the maximum time in milliseconds a request waits for a slot before being rejected. Defaults to 1000.</li>
+ * <li><code>admission-control.retry-after</code>: the delay in seconds sent to the rejected clients. Defaults to 5.</li>
+ * <li><code>admission-control.&lt;class&gt;.min</code>, <code>.max</code>, <code>.latency</code> and <code>.queue</code>: the minimum and maximum number of concurrent requests,
+ * the processing time in milliseconds above which the limit is decreased and the maximum number of waiting requests, for the classes <code>admin</code>, <code>resources</code> and <code>default</code>.</li>
+ * </ul>
+ */
+public final class RequestAdmissionController
+{
+    /** The init parameter enabling the admission control */
+    public static final String ENABLED_PARAMETER = "admission-control";
+    
+    /** The class of the administration requests */
+    public static final String ADMIN_CLASS = "admin";
+    /** The class of the plugin resources requests */
+    public static final String RESOURCES_CLASS = "resources";
+    /** The class of the other requests */
+    public static final String DEFAULT_CLASS = "default";
+    
+    private static final Pattern __ADMIN_PATTERN = Pattern.compile("_admin($|/.*)");
+    private static final Pattern __RESOURCES_PATTERN = Pattern.compile("(.*/)?_?plugins/[^/]+/resources/.*");
+    
+    private static volatile boolean __enabled;
+    private static volatile long __queueTimeout = 1000;
+    private static volatile int __retryAfter = 5;
+    private static volatile Map<String, ConcurrencyLimiter> __limiters = new LinkedHashMap<>();
+    
+    private RequestAdmissionController()
+    {
+        // empty
+    }
+    
+    /**
+     * Reads the configuration from the servlet init parameters
+     * @param config The servlet configuration
+     */
+    public static void configure(ServletConfig config)
+    {
+        __queueTimeout = NumberUtils.toLong(config.getInitParameter(ENABLED_PARAMETER + ".queue-timeout"), 1000);
+        __retryAfter = NumberUtils.toInt(config.getInitParameter(ENABLED_PARAMETER + ".retry-after"), 5);
+        
+        Map<String, ConcurrencyLimiter> limiters = new LinkedHashMap<>();
+        limiters.put(ADMIN_CLASS, _createLimiter(config, ADMIN_CLASS, 5, 20, 10000));
+        limiters.put(RESOURCES_CLASS, _createLimiter(config, RESOURCES_CLASS, 20, 100, 2000));
+        limiters.put(DEFAULT_CLASS, _createLimiter(config, DEFAULT_CLASS, 20, 100, 5000));
+        __limiters = limiters;
+        
+        __enabled = Boolean.parseBoolean(StringUtils.trim(config.getInitParameter(ENABLED_PARAMETER)));
+    }
+    
+    private static ConcurrencyLimiter _createLimiter(ServletConfig config, String requestClass, int defaultMin, int defaultMax, long defaultLatency)
+    {
+        String prefix = ENABLED_PARAMETER + "." + requestClass;
+        int min = NumberUtils.toInt(config.getInitParameter(prefix + ".min"), defaultMin);
+        int max = NumberUtils.toInt(config.getInitParameter(prefix + ".max"), defaultMax);
+        long latency = NumberUtils.toLong(config.getInitParameter(prefix + ".latency"), defaultLatency);
+        int queue = NumberUtils.toInt(config.getInitParameter(prefix + ".queue"), max);
+        
+        return new ConcurrencyLimiter(requestClass, min, max, latency, queue);
+    }
+    
+    /**
+     * Determines if the admission control is enabled
+     * @return true if the requests may be rejected
+     */
+    public static boolean isEnabled()
+    {
+        return __enabled;
+    }
+    
+    /**
+     * Gets the limiter of a request
+     * @param uri The URI of the request, relative to the context path
+     * @return the limiter of the class of the request
+     */
+    public static ConcurrencyLimiter getLimiter(String uri)
+    {
+        Map<String, ConcurrencyLimiter> limiters = __limiters;
+        if (__ADMIN_PATTERN.matcher(uri).matches())
+        {
+            return limiters.get(ADMIN_CLASS);
+        }
+        else if (__RESOURCES_PATTERN.matcher(uri).matches())
+        {
+            return limiters.get(RESOURCES_CLASS);
+        }
+        
+        return limiters.get(DEFAULT_CLASS);
+    }
+    
+    /**
+     * Gets the maximum time a request waits for a slot
+     * @return the timeout in milliseconds
+     */
+    public static long getQueueTimeout()
+    {
+        return __queueTimeout;
+    }
+    
+    /**
+     * Gets the delay after which a rejected client should retry
+     * @return the delay in seconds
+     */
+    public static int getRetryAfter()
+    {
+        return __retryAfter;
+    }
+    
+    /**
+     * Gets the limiters of all the request classes
+     * @return the limiters
+     */
+    public static Collection<ConcurrencyLimiter> getLimiters()
+    {
+        return new ArrayList<>(__limiters.values());
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.request;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Records the processing time of the requests handled by the RuntimeServlet, since startup.<br>
+ * The durations are recorded in a {@link LatencyHistogram} for each URI pattern, plugin and status code class,
+ * and in a global histogram. The URI pattern is the URI where the variable parts (those containing digits) are replaced by <code>*</code>,
+ * and truncated after 4 segments.<br>
+ * Recording a request computes its URI pattern, so it allocates a few short-lived strings, but it never locks.
+ */
+public final class RequestLatencyRecorder
+{
+    /** The status recorded for the requests aborted by the client, recorded apart from the other status codes */
+    public static final int SC_CLIENT_CLOSED_REQUEST = 499;
+    
+    /** The status code class of the requests aborted by the client */
+    private static final String __ABORTED_CLASS = "aborted";
+    
+    /** The maximum number of kept segments of an URI */
+    private static final int __MAX_SEGMENTS = 4;
+    
+    /** The maximum number of recorded URI patterns. The next ones are recorded together. */
+    private static final int __MAX_PATTERNS = 500;
+    
+    /** The pattern for the requests recorded once the maximum number of patterns is reached */
+    private static final String __OTHER_PATTERN = "**";
+    
+    private static final LatencyHistogram __GLOBAL = new LatencyHistogram();
+    
+    private static final Map<String, RequestLatency> __LATENCIES = new ConcurrentHashMap<>();
+    
+    private RequestLatencyRecorder()
+    {
+        // empty
+    }
+    
+    /**
+     * Records the processing time of a request
+     * @param uri The URI of the request, relative to the context path
+     * @param status The status code of the response, or {@link #SC_CLIENT_CLOSED_REQUEST} if the client aborted the request
+     * @param time The processing time in milliseconds
+     */
+    public static void record(String uri, int status, long time)
+    {
+        __GLOBAL.record(time);
+        
+        String[] segments = StringUtils.split(uri, '/');
+        String plugin = _getPlugin(segments);
+        String statusClass = status == SC_CLIENT_CLOSED_REQUEST ? __ABORTED_CLASS : status / 100 + "xx";
+        String pattern = _getPattern(segments);
+        
+        String key = plugin + ' ' + statusClass + ' ' + pattern;
+        RequestLatency latency = __LATENCIES.get(key);
+        if (latency == null)
+        {
+            if (__LATENCIES.size() >= __MAX_PATTERNS)
+            {
+                // Do not let unexpected URIs fill the memory
+                pattern = __OTHER_PATTERN;
+                key = plugin + ' ' + statusClass + ' ' + pattern;
+            }
+            
+            String finalPattern = pattern;
+            latency = __LATENCIES.computeIfAbsent(key, k -> new RequestLatency(finalPattern, plugin, statusClass));
+        }
+        
+        latency.getHistogram().record(time);
+    }
+    
+    /**
+     * Gets the histogram of all the requests
+     * @return the global histogram
+     */
+    public static LatencyHistogram getGlobalHistogram()
+    {
+        return __GLOBAL;
+    }
+    
+    /**
+     * Gets the histograms by URI pattern, plugin and status code class
+     * @return the recorded latencies
+     */
+    public static Collection<RequestLatency> getRequestLatencies()
+    {
+        return new ArrayList<>(__LATENCIES.values());
+    }
+    
+    private static String _getPlugin(String[] segments)
+    {
+        // Plugin resources are served under plugins/<name>/ or _plugins/<name>/, possibly after a prefix (e.g. a site name)
+        for (int i = 0; i < segments.length - 1 && i < __MAX_SEGMENTS; i++)
+        {
+            if ("plugins".equals(segments[i]) || "_plugins".equals(segments[i]))
+            {
+                return segments[i + 1];
+            }
+        }
+        
+        return "-";
+    }
+    
+    private static String _getPattern(String[] segments)
+    {
+        if (segments.length == 0)
+        {
+            return "/";
+        }
+        
+        StringBuilder pattern = new StringBuilder();
+        for (int i = 0; i < segments.length && i < __MAX_SEGMENTS; i++)
+        {
+            pattern.append('/').append(_isVariable(segments[i]) ? "*" + _getExtension(segments[i]) : segments[i]);
+        }
+        
+        if (segments.length > __MAX_SEGMENTS)
+        {
+            pattern.append("/**").append(_getExtension(segments[segments.length - 1]));
+        }
+        
+        return pattern.toString();
+    }
+    
+    private static boolean _isVariable(String segment)
+    {
+        if (segment.length() > 32)
+        {
+            return true;
+        }
+        
+        for (int i = 0; i < segment.length(); i++)
+        {
+            if (Character.isDigit(segment.charAt(i)))
+            {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private static String _getExtension(String segment)
+    {
+        int index = segment.lastIndexOf('.');
+        if (index < 0 || segment.length() - index > 6 || _isVariable(segment.substring(index)))
+        {
+            return "";
+        }
+        
+        return segment.substring(index);
+    }
+    
+    /**
+     * The latencies of the requests of an URI pattern, for a plugin and a status code class
+     */
+    public static final class RequestLatency
+    {
+        private final String _pattern;
+        private final String _plugin;
+        private final String _statusClass;
+        private final LatencyHistogram _histogram = new LatencyHistogram();
+        
+        RequestLatency(String pattern, String plugin, String statusClass)
+        {
+            _pattern = pattern;
+            _plugin = plugin;
+            _statusClass = statusClass;
+        }
+        
+        /**
+         * Gets the URI pattern
+         * @return the pattern, such as <code>/plugins/core/*.xml</code>
+         */
+        public String getPattern()
+        {
+            return _pattern;
+        }
+        
+        /**
+         * Gets the plugin of the URI
+         * @return the plugin name, or <code>-</code> if the URI is not a plugin URI
+         */
+        public String getPlugin()
+        {
+            return _plugin;
+        }
+        
+        /**
+         * Gets the class of the status codes
+         * @return the status code class, such as <code>2xx</code>, or <code>aborted</code> for the requests aborted by the client
+         */
+        public String getStatusClass()
+        {
+            return _statusClass;
+        }
+        
+        /**
+         * Gets the histogram of the processing times
+         * @return the histogram
+         */
+        public LatencyHistogram getHistogram()
+        {
+            return _histogram;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return _plugin + " " + _statusClass + " " + _pattern + ": " + _histogram;
+        }
+    }
+}
@@ -86,6 +86,9 @@ import org.ametys.runtime.plugin.InitExtensionPoint;
 import org.ametys.runtime.plugin.PluginsManager;
 import org.ametys.runtime.plugin.PluginsManager.Status;
 import org.ametys.runtime.plugin.component.PluginsComponentManager;
+import org.ametys.runtime.request.ConcurrencyLimiter;
+import org.ametys.runtime.request.RequestAdmissionController;
+import org.ametys.runtime.request.RequestLatencyRecorder;
 import org.ametys.runtime.request.RequestListener;
 import org.ametys.runtime.request.RequestListenerManager;
 import org.ametys.runtime.util.AmetysHomeHelper;
@@ -204,6 +207,9 @@ public class RuntimeServlet extends HttpServlet
             // Init logger
             _initLogger();
             
+            // Overload protection
+            RequestAdmissionController.configure(getServletConfig());
+            
             _initAmetys();
         }
         catch (Throwable t)
@@ -523,8 +529,21 @@ public class RuntimeServlet extends HttpServlet
         // else
         // {
         
+        // Load shedding: reject the request rather than slowing down all the others
+        ConcurrencyLimiter limiter = RequestAdmissionController.isEnabled() ? RequestAdmissionController.getLimiter(uri) : null;
+        if (limiter != null && !limiter.acquire(RequestAdmissionController.getQueueTimeout()))
+        {
+            _logger.debug("'{}' rejected, too many concurrent requests ({}).", uri, limiter);
+            res.setHeader("Retry-After", String.valueOf(RequestAdmissionController.getRetryAfter()));
+            res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        
         StopWatch stopWatch = new StopWatch();
         HttpServletRequest request = null;
+        
+        // The error page may fail, or be rendered once the response is committed: the status of the response cannot be trusted on error
+        int errorStatus = 0;
         try 
         {
             // used for timing the processing
@@ -544,23 +563,39 @@ public class RuntimeServlet extends HttpServlet
                 // We reach this when there is nothing in the processing change that matches
                 // the request. For example, no matcher matches.
                 _logger.error("The Cocoon engine failed to process the request.");
+                errorStatus = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
                 _renderError(request, res, null, "Cocoon engine failed to process the request");
             }
         } 
-        catch (ResourceNotFoundException | ConnectionResetException | IOException e) 
+        catch (ConnectionResetException e) 
         {
+            // The client aborted the request, this is not a server error
             _logger.warn(e.toString());
+            errorStatus = RequestLatencyRecorder.SC_CLIENT_CLOSED_REQUEST;
+            _renderError(request, res, e, e.getMessage());
+        } 
+        catch (ResourceNotFoundException | IOException e) 
+        {
+            _logger.warn(e.toString());
+            errorStatus = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
             _renderError(request, res, e, e.getMessage());
         } 
         catch (Exception e) 
         {
             _logger.error("Internal Cocoon Problem", e);
+            errorStatus = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
             _renderError(request, res, e, "Internal Cocoon Problem");
         }
         finally 
         {
             stopWatch.stop();
             _logger.info("'{}' processed in {} ms.", uri, stopWatch.getTime());
+            RequestLatencyRecorder.record(uri, errorStatus != 0 ? errorStatus : res.getStatus(), stopWatch.getTime());
+            
+            if (limiter != null)
+            {
+                limiter.release(stopWatch.getTime());
+            }
             
             try
             {
@@ -112,8 +112,16 @@
 	             <span id="activeRequest">-</span>
 	             <br/>
 	             
+	             <div class="label help" id="handle-request-time-help-img"><i18n:text i18n:key="PLUGINS_ADMIN_STATUS_TAB_GENERAL_HANDLE_REQUEST_TIME"/></div>
+	             <span id="requestTime">-</span>
+	             <br/>
+	             
 	             <div class="label help" id="handle-thread-help-img"><i18n:text i18n:key="PLUGINS_ADMIN_STATUS_TAB_GENERAL_HANDLE_THREAD"/></div>
 	             <span id="activeThread">-</span>&#160;<span id="deadlockThread"></span>
+	             <br/>
+	             
+	             <div class="label help" id="handle-sql-help-img"><i18n:text i18n:key="PLUGINS_ADMIN_STATUS_TAB_GENERAL_HANDLE_SQL"/></div>
+	             <span id="sqlConnection">-</span>
 	         </div>
 	     </div>
     </xsl:template>
@@ -233,6 +233,14 @@ Ext.define('Ametys.plugins.admin.jvmstatus.JVMStatusTool', {
 	        target: 'handle-thread-help-img',
 	        html: "{{i18n PLUGINS_ADMIN_STATUS_TAB_GENERAL_HANDLE_THREAD_HELP}}"
 	    });
+	    Ext.create ('Ext.ToolTip', {
+	        target: 'handle-request-time-help-img',
+	        html: "{{i18n PLUGINS_ADMIN_STATUS_TAB_GENERAL_HANDLE_REQUEST_TIME_HELP}}"
+	    });
+	    Ext.create ('Ext.ToolTip', {
+	        target: 'handle-sql-help-img',
+	        html: "{{i18n PLUGINS_ADMIN_STATUS_TAB_GENERAL_HANDLE_SQL_HELP}}"
+	    });
 		
 		// Refresh used memory
 		this.refreshData();
@@ -312,6 +320,14 @@ Ext.define('Ametys.plugins.admin.jvmstatus.JVMStatusTool', {
 	    else
 	        document.getElementById("activeRequest").innerHTML = requests;
 
+	    // REQUEST TIME
+	    var slowest = Ext.Array.map(response.slowestRequests, function (latency) {
+	        return latency.p95 + " ms - " + latency.pattern + " (" + latency.status + ", " + latency.count + ")";
+	    });
+	    var requestTime = document.getElementById("requestTime");
+	    requestTime.innerHTML = response.requestTimeP50 + " / " + response.requestTimeP95 + " / " + response.requestTimeP99 + " ms";
+	    requestTime.title = slowest.length > 0 ? "{{i18n PLUGINS_ADMIN_STATUS_TAB_GENERAL_HANDLE_REQUEST_TIME_SLOWEST}}\n" + slowest.join("\n") : "";
+
 	    // ACTIVE THREAD
 	    document.getElementById("activeThread").innerHTML = response.activeThreads;
 	    var locked = response.deadlockThreads;
@@ -320,6 +336,14 @@ Ext.define('Ametys.plugins.admin.jvmstatus.JVMStatusTool', {
 	        document.getElementById("deadlockThread").innerHTML = "(<a href='#' title='{{i18n PLUGINS_ADMIN_STATUS_THREADS_ERROR_LOCK_HINT}}' style='color: red; font-weight: bold' onclick='Ametys.plugins.admin.jvmstatus.JVMStatusTool.deadLock()'>" + locked + " {{i18n PLUGINS_ADMIN_STATUS_THREADS_LOCK}}</a>)";
 		}
 	    
+	    // SQL CONNECTIONS
+	    var sqlConnections = response.sqlActiveConnections + " (" + response.sqlIdleConnections + " {{i18n PLUGINS_ADMIN_STATUS_TAB_GENERAL_HANDLE_SQL_IDLE}})";
+	    if (response.sqlWaiters > 0)
+	    {
+	        sqlConnections += " <span style='color: red; font-weight: bold'>" + response.sqlWaiters + " {{i18n PLUGINS_ADMIN_STATUS_TAB_GENERAL_HANDLE_SQL_WAITERS}}</span>";
+	    }
+	    document.getElementById("sqlConnection").innerHTML = sqlConnections;
+	    
 	    // TIME
 	    document.getElementById("startTime").innerHTML = Ext.Date.format(Ext.Date.parse(response.startTime, Ext.Date.patterns.ISO8601DateTime), Ext.Date.patterns.FullDateTime);
 	    document.getElementById("osTime").innerHTML = Ext.Date.format(Ext.Date.parse(response.osTime, Ext.Date.patterns.ISO8601DateTime), Ext.Date.patterns.FullDateTime); 
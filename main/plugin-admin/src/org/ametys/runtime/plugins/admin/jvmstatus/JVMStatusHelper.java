@@ -23,12 +23,14 @@ import java.lang.management.RuntimeMXBean;
 import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.apache.avalon.framework.activity.Initializable;
 import org.apache.avalon.framework.component.Component;
@@ -40,6 +42,8 @@ import org.apache.commons.io.FileUtils;
 import org.rrd4j.core.Archive;
 import org.rrd4j.core.RrdDb;
 
+import org.ametys.core.datasource.SQLDataSourceManager;
+import org.ametys.core.datasource.SQLDataSourceManager.PoolStatus;
 import org.ametys.core.ui.Callable;
 import org.ametys.core.util.I18nUtils;
 import org.ametys.runtime.parameter.ParameterHelper;
@@ -48,6 +52,9 @@ import org.ametys.runtime.plugins.admin.jvmstatus.monitoring.MonitoringExtension
 import org.ametys.runtime.plugins.admin.jvmstatus.monitoring.SampleManager;
 import org.ametys.runtime.plugins.admin.jvmstatus.monitoring.alerts.AlertSampleManager;
 import org.ametys.runtime.plugins.admin.jvmstatus.monitoring.alerts.AlertSampleManager.Threshold;
+import org.ametys.runtime.request.LatencyHistogram;
+import org.ametys.runtime.request.RequestLatencyRecorder;
+import org.ametys.runtime.request.RequestLatencyRecorder.RequestLatency;
 import org.ametys.runtime.servlet.RuntimeConfig;
 
 /**
@@ -55,11 +62,20 @@ import org.ametys.runtime.servlet.RuntimeConfig;
  */
 public class JVMStatusHelper extends AbstractLogEnabled implements Component, Serviceable, Initializable, MonitoringConstants
 {
+    /** The number of slowest URI patterns of the general status */
+    private static final int __SLOWEST_REQUESTS_COUNT = 5;
+    
+    /** The minimum number of requests of an URI pattern to be among the slowest ones, so that a single slow request is not enough */
+    private static final int __SLOWEST_REQUESTS_MIN_COUNT = 10;
+    
     /** The monitoring extension point */
     private MonitoringExtensionPoint _monitoringExtensionPoint;
     
     /** Component containing i18n utilitary methods */
     private I18nUtils _i18nUtils;
+    
+    /** The manager of the SQL data sources */
+    private SQLDataSourceManager _sqlDataSourceManager;
 
     private String _rrdStoragePath;
     
@@ -68,6 +84,7 @@ public class JVMStatusHelper extends AbstractLogEnabled implements Component, Se
     {
         _monitoringExtensionPoint = (MonitoringExtensionPoint) manager.lookup(MonitoringExtensionPoint.ROLE);
         _i18nUtils = (I18nUtils) manager.lookup(I18nUtils.ROLE);
+        _sqlDataSourceManager = (SQLDataSourceManager) manager.lookup(SQLDataSourceManager.ROLE);
     }
     
     public void initialize() throws Exception
@@ -134,11 +151,66 @@ public class JVMStatusHelper extends AbstractLogEnabled implements Component, Se
         result.put("heap-memory-used", mBean.getHeapMemoryUsage().getUsed());
         result.put("heap-memory-commited", mBean.getHeapMemoryUsage().getCommitted());
         
+        int sqlActiveConnections = 0;
+        int sqlIdleConnections = 0;
+        int sqlWaiters = 0;
+        for (PoolStatus poolStatus : _sqlDataSourceManager.getPoolsStatus().values())
+        {
+            sqlActiveConnections += poolStatus.getActive();
+            sqlIdleConnections += poolStatus.getIdle();
+            sqlWaiters += poolStatus.getWaiters();
+        }
+        result.put("sqlActiveConnections", sqlActiveConnections);
+        result.put("sqlIdleConnections", sqlIdleConnections);
+        result.put("sqlWaiters", sqlWaiters);
+        
+        LatencyHistogram requestTimes = RequestLatencyRecorder.getGlobalHistogram();
+        result.put("requestTimeP50", requestTimes.getPercentile(50));
+        result.put("requestTimeP95", requestTimes.getPercentile(95));
+        result.put("requestTimeP99", requestTimes.getPercentile(99));
+        result.put("slowestRequests", RequestLatencyRecorder.getRequestLatencies().stream()
+                .filter(latency -> latency.getHistogram().getCount() >= __SLOWEST_REQUESTS_MIN_COUNT)
+                .sorted(Comparator.comparingLong((RequestLatency latency) -> latency.getHistogram().getPercentile(95)).reversed())
+                .limit(__SLOWEST_REQUESTS_COUNT)
+                .map(this::_requestLatency2Json)
+                .collect(Collectors.toList()));
+        
         result.put("startTime", ParameterHelper.valueToString(new Date(rBean.getStartTime())));
         
         return result;
     }
     
+    /**
+     * Retrieves the processing times of the requests since startup, by URI pattern, plugin and status code class.
+     * The URI patterns taking the most time overall come first.
+     * @return the processing times, in milliseconds
+     */
+    @Callable
+    public List<Map<String, Object>> getRequestLatencies()
+    {
+        return RequestLatencyRecorder.getRequestLatencies().stream()
+                .sorted(Comparator.comparingLong((RequestLatency latency) -> latency.getHistogram().getTotalTime()).reversed())
+                .map(this::_requestLatency2Json)
+                .collect(Collectors.toList());
+    }
+    
+    private Map<String, Object> _requestLatency2Json(RequestLatency latency)
+    {
+        LatencyHistogram histogram = latency.getHistogram();
+        
+        Map<String, Object> json = new HashMap<>();
+        json.put("pattern", latency.getPattern());
+        json.put("plugin", latency.getPlugin());
+        json.put("status", latency.getStatusClass());
+        json.put("count", histogram.getCount());
+        json.put("average", histogram.getAverageTime());
+        json.put("p50", histogram.getPercentile(50));
+        json.put("p95", histogram.getPercentile(95));
+        json.put("p99", histogram.getPercentile(99));
+        json.put("max", histogram.getMaxTime());
+        return json;
+    }
+    
     /**
      * Retrieves the monitoring data 
      * @return a map containing the monitoring data
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.plugins.admin.jvmstatus.monitoring.sample;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+import org.rrd4j.core.RrdDef;
+import org.rrd4j.core.Sample;
+import org.rrd4j.graph.RrdGraphDef;
+
+import org.ametys.runtime.plugins.admin.jvmstatus.monitoring.SampleManager;
+import org.ametys.runtime.request.ConcurrencyLimiter;
+import org.ametys.runtime.request.RequestAdmissionController;
+
+/**
+ * {@link SampleManager} for collecting the HTTP requests which had to wait before being processed,
+ * and those which were rejected because the server was overloaded.
+ */
+public class HttpAdmissionSampleManager extends AbstractSampleManager
+{
+    private long _lastQueued;
+    private long _lastRejected;
+    
+    @Override
+    protected void _configureDatasources(RrdDef rrdDef)
+    {
+        _registerDatasources(rrdDef, "queued", DsType.GAUGE, 0, Double.NaN);
+        _registerDatasources(rrdDef, "rejected", DsType.GAUGE, 0, Double.NaN);
+        _registerDatasources(rrdDef, "inFlight", DsType.GAUGE, 0, Double.NaN);
+    }
+    
+    @Override
+    protected Map<String, Object> _internalCollect(Sample sample) throws IOException
+    {
+        long queued = 0;
+        long rejected = 0;
+        int inFlight = 0;
+        
+        for (ConcurrencyLimiter limiter : RequestAdmissionController.getLimiters())
+        {
+            queued += limiter.getQueued();
+            rejected += limiter.getRejected();
+            inFlight += limiter.getInFlight();
+        }
+        
+        Map<String, Object> result = new HashMap<>();
+        
+        sample.setValue("queued", queued - _lastQueued);
+        result.put("queued", queued - _lastQueued);
+        _lastQueued = queued;
+        
+        sample.setValue("rejected", rejected - _lastRejected);
+        result.put("rejected", rejected - _lastRejected);
+        _lastRejected = rejected;
+        
+        sample.setValue("inFlight", inFlight);
+        result.put("inFlight", inFlight);
+        
+        return result;
+    }
+    
+    @Override
+    protected String _getGraphTitle()
+    {
+        return "HTTP admission";
+    }
+    
+    @Override
+    protected void _populateGraphDefinition(RrdGraphDef graphDef, String rrdFilePath)
+    {
+        graphDef.datasource("queued", rrdFilePath, "queued", ConsolFun.AVERAGE);
+        graphDef.datasource("rejected", rrdFilePath, "rejected", ConsolFun.AVERAGE);
+        graphDef.datasource("inFlight", rrdFilePath, "inFlight", ConsolFun.AVERAGE);
+        
+        graphDef.area("queued", new Color(229, 229, 229), "HTTP request queued");
+        graphDef.line("rejected", new Color(148, 30, 109), "HTTP request rejected", 2);
+        graphDef.line("inFlight", new Color(28, 76, 128), "HTTP request in progress", 1);
+        
+        graphDef.gprint("queued", ConsolFun.MAX, "Max queued: %.0f");
+        graphDef.gprint("rejected", ConsolFun.LAST, "Cur rejected: %.0f");
+        graphDef.gprint("rejected", ConsolFun.MAX, "Max rejected: %.0f");
+        graphDef.gprint("inFlight", ConsolFun.MAX, "Max in progress: %.0f");
+        
+        // Do not scale units
+        graphDef.setUnitsExponent(0);
+        graphDef.setVerticalLabel("request count");
+    }
+}
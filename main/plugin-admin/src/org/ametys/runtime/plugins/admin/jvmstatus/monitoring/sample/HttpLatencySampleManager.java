@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.plugins.admin.jvmstatus.monitoring.sample;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+import org.rrd4j.core.RrdDef;
+import org.rrd4j.core.Sample;
+import org.rrd4j.graph.RrdGraphDef;
+
+import org.ametys.runtime.plugins.admin.jvmstatus.monitoring.SampleManager;
+import org.ametys.runtime.request.LatencyHistogram;
+import org.ametys.runtime.request.RequestLatencyRecorder;
+
+/**
+ * {@link SampleManager} for collecting the percentiles of the processing time
+ * of the HTTP requests, over each sample of time.
+ */
+public class HttpLatencySampleManager extends AbstractSampleManager
+{
+    private long[] _lastCounts = new long[LatencyHistogram.BUCKET_COUNT];
+    
+    @Override
+    protected void _configureDatasources(RrdDef rrdDef)
+    {
+        _registerDatasources(rrdDef, "p50", DsType.GAUGE, 0, Double.NaN);
+        _registerDatasources(rrdDef, "p95", DsType.GAUGE, 0, Double.NaN);
+        _registerDatasources(rrdDef, "p99", DsType.GAUGE, 0, Double.NaN);
+    }
+    
+    @Override
+    protected Map<String, Object> _internalCollect(Sample sample) throws IOException
+    {
+        // Only the requests processed since the last sample
+        long[] counts = RequestLatencyRecorder.getGlobalHistogram().getBucketCounts();
+        long[] sampleCounts = new long[counts.length];
+        for (int i = 0; i < counts.length; i++)
+        {
+            sampleCounts[i] = counts[i] - _lastCounts[i];
+        }
+        _lastCounts = counts;
+        
+        Map<String, Object> result = new HashMap<>();
+        
+        long p50 = LatencyHistogram.getPercentile(sampleCounts, 50);
+        sample.setValue("p50", p50);
+        result.put("p50", p50);
+        
+        long p95 = LatencyHistogram.getPercentile(sampleCounts, 95);
+        sample.setValue("p95", p95);
+        result.put("p95", p95);
+        
+        long p99 = LatencyHistogram.getPercentile(sampleCounts, 99);
+        sample.setValue("p99", p99);
+        result.put("p99", p99);
+        
+        return result;
+    }
+    
+    @Override
+    protected String _getGraphTitle()
+    {
+        return "HTTP request time";
+    }
+    
+    @Override
+    protected void _populateGraphDefinition(RrdGraphDef graphDef, String rrdFilePath)
+    {
+        graphDef.datasource("p50", rrdFilePath, "p50", ConsolFun.AVERAGE);
+        graphDef.datasource("p95", rrdFilePath, "p95", ConsolFun.AVERAGE);
+        graphDef.datasource("p99", rrdFilePath, "p99", ConsolFun.AVERAGE);
+        
+        graphDef.area("p99", new Color(229, 229, 229), "99% of requests");
+        graphDef.area("p95", new Color(148, 30, 109), "95% of requests");
+        graphDef.line("p50", new Color(28, 76, 128), "50% of requests", 2);
+        
+        graphDef.gprint("p50", ConsolFun.LAST, "Cur median: %.0f ms");
+        graphDef.gprint("p95", ConsolFun.LAST, "Cur 95%%: %.0f ms");
+        graphDef.gprint("p99", ConsolFun.MAX, "Max 99%%: %.0f ms");
+        
+        // Do not scale units
+        graphDef.setUnitsExponent(0);
+        graphDef.setVerticalLabel("milliseconds");
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.plugins.admin.jvmstatus.monitoring.sample;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.avalon.framework.service.ServiceException;
+import org.apache.avalon.framework.service.ServiceManager;
+import org.apache.avalon.framework.service.Serviceable;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+import org.rrd4j.core.RrdDef;
+import org.rrd4j.core.Sample;
+import org.rrd4j.graph.RrdGraphDef;
+
+import org.ametys.core.datasource.SQLDataSourceManager;
+import org.ametys.core.datasource.SQLDataSourceManager.PoolStatus;
+import org.ametys.runtime.plugins.admin.jvmstatus.monitoring.SampleManager;
+
+/**
+ * {@link SampleManager} for collecting the state of the SQL connection pools, summed over all the data sources.
+ */
+public class SQLPoolSampleManager extends AbstractSampleManager implements Serviceable
+{
+    private SQLDataSourceManager _sqlDataSourceManager;
+    
+    @Override
+    public void service(ServiceManager manager) throws ServiceException
+    {
+        _sqlDataSourceManager = (SQLDataSourceManager) manager.lookup(SQLDataSourceManager.ROLE);
+    }
+    
+    @Override
+    protected void _configureDatasources(RrdDef rrdDef)
+    {
+        _registerDatasources(rrdDef, "active", DsType.GAUGE, 0, Double.NaN);
+        _registerDatasources(rrdDef, "idle", DsType.GAUGE, 0, Double.NaN);
+        _registerDatasources(rrdDef, "waiters", DsType.GAUGE, 0, Double.NaN);
+        _registerDatasources(rrdDef, "borrowWait", DsType.GAUGE, 0, Double.NaN);
+    }
+    
+    @Override
+    protected Map<String, Object> _internalCollect(Sample sample) throws IOException
+    {
+        int active = 0;
+        int idle = 0;
+        int waiters = 0;
+        long borrowWait = 0;
+        
+        for (PoolStatus status : _sqlDataSourceManager.getPoolsStatus().values())
+        {
+            active += status.getActive();
+            idle += status.getIdle();
+            waiters += status.getWaiters();
+            borrowWait = Math.max(borrowWait, status.getMeanBorrowWaitTime());
+        }
+        
+        Map<String, Object> result = new HashMap<>();
+        
+        sample.setValue("active", active);
+        result.put("active", active);
+        
+        sample.setValue("idle", idle);
+        result.put("idle", idle);
+        
+        sample.setValue("waiters", waiters);
+        result.put("waiters", waiters);
+        
+        sample.setValue("borrowWait", borrowWait);
+        result.put("borrowWait", borrowWait);
+        
+        return result;
+    }
+    
+    @Override
+    protected String _getGraphTitle()
+    {
+        return "SQL connections";
+    }
+    
+    @Override
+    protected void _populateGraphDefinition(RrdGraphDef graphDef, String rrdFilePath)
+    {
+        graphDef.datasource("active", rrdFilePath, "active", ConsolFun.AVERAGE);
+        graphDef.datasource("idle", rrdFilePath, "idle", ConsolFun.AVERAGE);
+        graphDef.datasource("waiters", rrdFilePath, "waiters", ConsolFun.AVERAGE);
+        graphDef.datasource("borrowWait", rrdFilePath, "borrowWait", ConsolFun.AVERAGE);
+        
+        graphDef.area("active", new Color(148, 30, 109), "Active connections");
+        graphDef.stack("idle", new Color(229, 229, 229), "Idle connections");
+        graphDef.line("waiters", new Color(28, 76, 128), "Waiting threads", 2);
+        
+        graphDef.gprint("active", ConsolFun.LAST, "Cur active: %.0f");
+        graphDef.gprint("active", ConsolFun.MAX, "Max active: %.0f");
+        graphDef.gprint("waiters", ConsolFun.MAX, "Max waiting: %.0f");
+        graphDef.gprint("borrowWait", ConsolFun.MAX, "Max mean borrow time: %.0f ms");
+        
+        // Do not scale units
+        graphDef.setUnitsExponent(0);
+        graphDef.setVerticalLabel("connection count");
+    }
+}
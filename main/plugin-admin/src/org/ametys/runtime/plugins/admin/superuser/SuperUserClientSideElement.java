@@ -23,6 +23,9 @@ import java.util.Map;
 import org.apache.avalon.framework.service.ServiceException;
 import org.apache.avalon.framework.service.ServiceManager;
 
+import org.ametys.core.ObservationConstants;
+import org.ametys.core.observation.Event;
+import org.ametys.core.observation.ObservationManager;
 import org.ametys.core.right.Profile;
 import org.ametys.core.right.ProfileAssignmentStorageExtensionPoint;
 import org.ametys.core.right.RightAssignmentContext;
@@ -31,6 +34,7 @@ import org.ametys.core.right.RightProfilesDAO;
 import org.ametys.core.right.RightsExtensionPoint;
 import org.ametys.core.ui.Callable;
 import org.ametys.core.ui.StaticClientSideElement;
+import org.ametys.core.user.CurrentUserProvider;
 import org.ametys.core.user.UserIdentity;
 import org.ametys.runtime.workspace.WorkspaceMatcher;
 
@@ -49,6 +53,10 @@ public class SuperUserClientSideElement extends StaticClientSideElement
     protected ProfileAssignmentStorageExtensionPoint _profileAssignmentStorageEP;
     /** The extension point for right contexts */
     protected RightAssignmentContextExtensionPoint _rightCtxEP;
+    /** The observation manager */
+    protected ObservationManager _observationManager;
+    /** The current user provider */
+    protected CurrentUserProvider _currentUserProvider;
     
     @Override
     public void service(ServiceManager smanager) throws ServiceException
@@ -76,6 +84,14 @@ public class SuperUserClientSideElement extends StaticClientSideElement
             {
                 _rightCtxEP = (RightAssignmentContextExtensionPoint) _sManager.lookup(RightAssignmentContextExtensionPoint.ROLE);
             }
+            if (_observationManager == null)
+            {
+                _observationManager = (ObservationManager) _sManager.lookup(ObservationManager.ROLE);
+            }
+            if (_currentUserProvider == null)
+            {
+                _currentUserProvider = (CurrentUserProvider) _sManager.lookup(CurrentUserProvider.ROLE);
+            }
         }
         catch (ServiceException e)
         {
@@ -96,6 +112,11 @@ public class SuperUserClientSideElement extends StaticClientSideElement
         {
             _profileAssignmentStorageEP.removeDeniedProfileFromUser(userIdentity, profileId, rootContext);
             _profileAssignmentStorageEP.allowProfileToUser(userIdentity, profileId, rootContext);
+            
+            // The right results are cached by the RightManager
+            Map<String, Object> eventParams = new HashMap<>();
+            eventParams.put(ObservationConstants.ARGS_ACL_CONTEXT, rootContext);
+            _observationManager.notify(new Event(ObservationConstants.EVENT_ACL_UPDATED, _currentUserProvider.getUser(), eventParams));
         }
     }
     
@@ -15,12 +15,14 @@
  */
 package org.ametys.plugins.core.impl.group.directory.jdbc;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -50,6 +52,7 @@ import org.ametys.core.observation.ObservationManager;
 import org.ametys.core.script.SQLScriptHelper;
 import org.ametys.core.user.CurrentUserProvider;
 import org.ametys.core.user.UserIdentity;
+import org.ametys.core.util.ResultPage;
 import org.ametys.runtime.i18n.I18nizableText;
 import org.ametys.runtime.plugin.component.AbstractLogEnabled;
 
@@ -71,6 +74,9 @@ public class JdbcGroupDirectory extends AbstractLogEnabled implements Modifiable
     private static final String __GROUPS_COMPOSITION_COLUMN_LOGIN = "Login";
     private static final String __GROUPS_COMPOSITION_COLUMN_POPULATIONID = "UserPopulation_Id";
     
+    /** The escape character of the LIKE patterns. Not a backslash, which is also an escape character of the string literals for some databases */
+    private static final char __LIKE_ESCAPE_CHAR = '!';
+    
     /** The observation manager */
     protected ObservationManager _observationManager;
     /** The current user provider */
@@ -431,6 +437,134 @@ public class JdbcGroupDirectory extends AbstractLogEnabled implements Modifiable
         return groups;
     }
 
+    @Override
+    public ResultPage<Map<String, Object>> groups2JSONPage(int count, String continuationToken, Map parameters)
+    {
+        List<Map<String, Object>> groups = new ArrayList<>();
+        
+        String pattern = (String) parameters.get("pattern");
+        
+        // The token holds the id and label of the last group of the previous page: the groups are sorted by label (null labels first) and id,
+        // and the next page starts after it. A group without label has a token without ':'
+        Integer afterId = null;
+        String afterLabel = null;
+        if (continuationToken != null)
+        {
+            String token = new String(Base64.getUrlDecoder().decode(continuationToken), StandardCharsets.UTF_8);
+            afterId = Integer.valueOf(StringUtils.substringBefore(token, ":"));
+            afterLabel = token.contains(":") ? StringUtils.substringAfter(token, ":") : null;
+        }
+        
+        Connection connection = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        
+        try
+        {
+            connection = getSQLConnection();
+            
+            StringBuilder sql = new StringBuilder("SELECT ").append(__GROUPS_LIST_COLUMN_ID).append(", ").append(__GROUPS_LIST_COLUMN_LABEL)
+                    .append(" FROM ").append(_groupsListTableName);
+            
+            List<String> conditions = new ArrayList<>();
+            if (afterLabel != null)
+            {
+                // The groups without label were in the previous pages
+                conditions.add("(" + __GROUPS_LIST_COLUMN_LABEL + " > ? OR (" + __GROUPS_LIST_COLUMN_LABEL + " = ? AND " + __GROUPS_LIST_COLUMN_ID + " > ?))");
+            }
+            else if (afterId != null)
+            {
+                conditions.add("((" + __GROUPS_LIST_COLUMN_LABEL + " IS NULL AND " + __GROUPS_LIST_COLUMN_ID + " > ?) OR " + __GROUPS_LIST_COLUMN_LABEL + " IS NOT NULL)");
+            }
+            if (StringUtils.isNotEmpty(pattern))
+            {
+                conditions.add("LOWER(" + __GROUPS_LIST_COLUMN_LABEL + ") LIKE ? ESCAPE '" + __LIKE_ESCAPE_CHAR + "'");
+            }
+            if (!conditions.isEmpty())
+            {
+                sql.append(" WHERE ").append(StringUtils.join(conditions, " AND "));
+            }
+            // The position of the NULL values in the order depends on the database: put them first explicitly
+            sql.append(" ORDER BY CASE WHEN ").append(__GROUPS_LIST_COLUMN_LABEL).append(" IS NULL THEN 0 ELSE 1 END, ")
+                .append(__GROUPS_LIST_COLUMN_LABEL).append(", ").append(__GROUPS_LIST_COLUMN_ID);
+            
+            String limitedSql = ConnectionHelper.limitQuery(sql.toString(), count, ConnectionHelper.getDatabaseType(connection));
+            if (getLogger().isDebugEnabled())
+            {
+                getLogger().debug(limitedSql);
+            }
+            
+            stmt = connection.prepareStatement(limitedSql);
+            
+            // The limit is not in the query if the database type is unknown
+            stmt.setMaxRows(count);
+            
+            int i = 1;
+            if (afterLabel != null)
+            {
+                stmt.setString(i++, afterLabel);
+                stmt.setString(i++, afterLabel);
+                stmt.setInt(i++, afterId);
+            }
+            else if (afterId != null)
+            {
+                stmt.setInt(i++, afterId);
+            }
+            if (StringUtils.isNotEmpty(pattern))
+            {
+                stmt.setString(i++, "%" + _escapeLikePattern(pattern.toLowerCase()) + "%");
+            }
+            
+            rs = stmt.executeQuery();
+            
+            String lastToken = null;
+            while (groups.size() < count && rs.next())
+            {
+                String groupID = rs.getString(__GROUPS_LIST_COLUMN_ID);
+                String label = rs.getString(__GROUPS_LIST_COLUMN_LABEL);
+                Group group = new Group(new GroupIdentity(groupID, getId()), label, this);
+                
+                _fillGroup(group, connection);
+                
+                groups.add(_group2JSON(group, true));
+                lastToken = label != null ? groupID + ":" + label : groupID;
+            }
+            
+            String nextToken = lastToken != null && groups.size() >= count ? Base64.getUrlEncoder().encodeToString(lastToken.getBytes(StandardCharsets.UTF_8)) : null;
+            return new ResultPage<>(groups, nextToken);
+        }
+        catch (SQLException e)
+        {
+            getLogger().error("Error communication with database", e);
+            return new ResultPage<>(Collections.emptyList(), null);
+        }
+        finally
+        {
+            ConnectionHelper.cleanup(rs);       
+            ConnectionHelper.cleanup(stmt);       
+            ConnectionHelper.cleanup(connection);       
+        }
+    }
+    
+    /**
+     * Escapes the wildcards of a LIKE pattern, so that the pattern is searched as is
+     * @param pattern The pattern
+     * @return the escaped pattern, to be used with an ESCAPE clause
+     */
+    private static String _escapeLikePattern(String pattern)
+    {
+        StringBuilder escapedPattern = new StringBuilder(pattern.length());
+        for (char c : pattern.toCharArray())
+        {
+            if (c == '%' || c == '_' || c == __LIKE_ESCAPE_CHAR)
+            {
+                escapedPattern.append(__LIKE_ESCAPE_CHAR);
+            }
+            escapedPattern.append(c);
+        }
+        return escapedPattern.toString();
+    }
+
     @Override
     public Map<String, Object> group2JSON(String id)
     {
@@ -15,6 +15,12 @@
  */
 package org.ametys.plugins.core.impl.right;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -38,7 +44,7 @@ public abstract class AbstractHierarchicalAccessController<T> implements AccessC
 {
     /** The extension point for the profile assignement storages */
     protected ProfileAssignmentStorageExtensionPoint _profileAssignmentStorageEP;
-
+    
     @Override
     public void service(ServiceManager manager) throws ServiceException
     {
@@ -52,29 +58,80 @@ public abstract class AbstractHierarchicalAccessController<T> implements AccessC
      */
     protected abstract T _getParent(T object);
     
+    @Override
+    public boolean isCacheable()
+    {
+        // The permissions only depend on the profile assignment storages
+        return true;
+    }
+    
     @Override
     public Map<String, AccessResultContext> getPermissions(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds, Object object)
     {
-        // Get the permission by profiles on current object
-        Map<String, AccessResultContext> permissions = _profileAssignmentStorageEP.getPermissions(user, userGroups, profileIds, object);
+        return getPermissionsByObject(user, userGroups, profileIds, Collections.singleton(object)).get(object);
+    }
+    
+    @Override
+    public Map<Object, Map<String, AccessResultContext>> getPermissionsByObject(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds, Collection<?> objects)
+    {
+        // Get the objects and all their ancestors
+        Map<Object, List<Object>> hierarchies = new HashMap<>();
+        Set<Object> allObjects = new LinkedHashSet<>();
+        for (Object object : objects)
+        {
+            List<Object> hierarchy = _getHierarchy(object);
+            hierarchies.put(object, hierarchy);
+            allObjects.addAll(hierarchy);
+        }
         
-        // Extract the profiles with UNKNOWN access 
-        Set<String> unknownProfiles = permissions.entrySet().stream()
-                .filter(entry -> AccessResult.UNKNOWN.equals(entry.getValue().getResult()))
-                .map(Entry::getKey)
-                .collect(Collectors.toSet());
+        // Get the permissions by profiles on the whole hierarchies at once
+        Map<Object, Map<String, AccessResultContext>> permissionsByObject = _profileAssignmentStorageEP.getPermissionsByObject(user, userGroups, profileIds, allObjects);
         
-        if (unknownProfiles.size() > 0)
+        Map<Object, Map<String, AccessResultContext>> permissions = new HashMap<>();
+        for (Object object : objects)
         {
-            @SuppressWarnings("unchecked")
-            T parent = _getParent((T) object);
-            if (parent != null)
+            permissions.put(object, _getPermissions(hierarchies.get(object), permissionsByObject));
+        }
+        return permissions;
+    }
+    
+    private List<Object> _getHierarchy(Object object)
+    {
+        List<Object> hierarchy = new ArrayList<>();
+        @SuppressWarnings("unchecked")
+        T current = (T) object;
+        while (current != null)
+        {
+            hierarchy.add(current);
+            current = _getParent(current);
+        }
+        return hierarchy;
+    }
+        
+    private Map<String, AccessResultContext> _getPermissions(List<Object> hierarchy, Map<Object, Map<String, AccessResultContext>> permissionsByObject)
+    {
+        Map<String, AccessResultContext> permissions = new HashMap<>(permissionsByObject.get(hierarchy.get(0)));
+        for (Object ancestor : hierarchy.subList(1, hierarchy.size()))
+        {
+            // Extract the profiles with UNKNOWN access 
+            Set<String> unknownProfiles = permissions.entrySet().stream()
+                    .filter(entry -> AccessResult.UNKNOWN.equals(entry.getValue().getResult()))
+                    .map(Entry::getKey)
+                    .collect(Collectors.toSet());
+            
+            if (unknownProfiles.isEmpty())
+            {
+                break;
+            }
+            
+            // For each profile with UNKNOWN access, get the permission on parent context
+            Map<String, AccessResultContext> ancestorPermissions = permissionsByObject.get(ancestor);
+            for (String profileId : unknownProfiles)
             {
-                // For each profile with UNKNOWN access, get the permission on parent context
-                permissions.putAll(getPermissions(user, userGroups, unknownProfiles, parent));
+                permissions.put(profileId, ancestorPermissions.get(profileId));
             }
         }
-
+        
         return permissions;
     }
     
@@ -83,7 +140,7 @@ public abstract class AbstractHierarchicalAccessController<T> implements AccessC
     {
         // Get permissions on object itself
         Map<String, AccessResult> permissionsByProfile = _profileAssignmentStorageEP.getPermissionsByProfile(user, userGroups, object);
-
+        
         // Add recursively the permission given by parent context
         @SuppressWarnings("unchecked")
         T parent = _getParent((T) object);
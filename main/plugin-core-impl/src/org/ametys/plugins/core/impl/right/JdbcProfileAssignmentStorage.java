@@ -15,7 +15,10 @@
  */
 package org.ametys.plugins.core.impl.right;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -27,8 +30,12 @@ import org.apache.avalon.framework.configuration.Configuration;
 import org.apache.avalon.framework.configuration.ConfigurationException;
 import org.apache.ibatis.session.SqlSession;
 
+import com.google.common.collect.Lists;
+
 import org.ametys.core.datasource.AbstractMyBatisDAO;
 import org.ametys.core.group.GroupIdentity;
+import org.ametys.core.right.AccessController.AccessResultContext;
+import org.ametys.core.right.ContextProfileAssignments;
 import org.ametys.core.right.ModifiableProfileAssignmentStorage;
 import org.ametys.core.right.ProfileAssignmentStorage;
 import org.ametys.core.user.UserIdentity;
@@ -39,6 +46,26 @@ import org.ametys.core.user.UserIdentity;
  */
 public class JdbcProfileAssignmentStorage extends AbstractMyBatisDAO implements ModifiableProfileAssignmentStorage
 {
+    /** Assignment type of the rows returned by ProfilesAssignment.getAssignments for allowed profiles for anonymous */
+    protected static final String ASSIGNMENT_ANONYMOUS_ALLOWED = "AA";
+    /** Assignment type of the rows returned by ProfilesAssignment.getAssignments for denied profiles for anonymous */
+    protected static final String ASSIGNMENT_ANONYMOUS_DENIED = "AD";
+    /** Assignment type of the rows returned by ProfilesAssignment.getAssignments for allowed profiles for any connected user */
+    protected static final String ASSIGNMENT_ANY_CONNECTED_ALLOWED = "CA";
+    /** Assignment type of the rows returned by ProfilesAssignment.getAssignments for denied profiles for any connected user */
+    protected static final String ASSIGNMENT_ANY_CONNECTED_DENIED = "CD";
+    /** Assignment type of the rows returned by ProfilesAssignment.getAssignments for allowed profiles for the user */
+    protected static final String ASSIGNMENT_USER_ALLOWED = "UA";
+    /** Assignment type of the rows returned by ProfilesAssignment.getAssignments for denied profiles for the user */
+    protected static final String ASSIGNMENT_USER_DENIED = "UD";
+    /** Assignment type of the rows returned by ProfilesAssignment.getAssignments for allowed profiles for one of the groups */
+    protected static final String ASSIGNMENT_GROUP_ALLOWED = "GA";
+    /** Assignment type of the rows returned by ProfilesAssignment.getAssignments for denied profiles for one of the groups */
+    protected static final String ASSIGNMENT_GROUP_DENIED = "GD";
+    
+    /** The maximum number of contexts in a single IN clause (Oracle does not support more than 1000 expressions) */
+    private static final int __MAX_CONTEXTS_PER_QUERY = 500;
+    
     /** The handled context */
     protected String _supportedContext;
     
@@ -61,64 +88,176 @@ public class JdbcProfileAssignmentStorage extends AbstractMyBatisDAO implements
             return false;
         }
         
-        String prefix = getPrefix();
+        // Retrieve in a single query the kinds of assignment existing for the user, its groups, any connected user and anonymous
+        Set<String> assignmentTypes;
+        try (SqlSession session = getSession())
+        {
+            Map<String, Object> parameters = _getAssignmentsParameters(user, userGroups, profileIds);
+            String prefix = getPrefix();
+            if (prefix != null)
+            {
+                parameters.put("contextPrefix", prefix);
+            }
+            
+            List<String> types = session.selectList("ProfilesAssignment.getAssignmentTypes", parameters);
+            assignmentTypes = types.stream().map(String::trim).collect(Collectors.toSet());
+        }
         
-        // 1.1) Search at least one profile in "allowed-anonymous-profiles", if found return true
-        if (_hasAnonymousAllowedProfile(profileIds, prefix))
+        return _hasPermission(assignmentTypes);
+    }
+    
+    /**
+     * Determines the permission given the kinds of assignment existing for the user, its groups, any connected user and anonymous
+     * @param assignmentTypes The kinds of assignment, among the ASSIGNMENT_* constants
+     * @return true if the user has the permission
+     */
+    protected boolean _hasPermission(Set<String> assignmentTypes)
+    {
+        // 1) At least one profile in "allowed-anonymous-profiles": return true
+        if (assignmentTypes.contains(ASSIGNMENT_ANONYMOUS_ALLOWED))
         {
             return true;
         }
-        
-        // 2.1) Search at least one profile in "denied-profiles" for user, if found return false
-        if (_hasDeniedProfile(user, profileIds, prefix))
+        // 2) At least one profile in "denied-profiles" for user: return false, then in "allowed-profiles" for user: return true
+        if (assignmentTypes.contains(ASSIGNMENT_USER_DENIED))
         {
             return false;
         }
-        
-        // 2.2) Search at least one profile in "allowed-profiles" for user, if found return true
-        if (_hasAllowedProfile(user, profileIds, prefix))
+        if (assignmentTypes.contains(ASSIGNMENT_USER_ALLOWED))
         {
             return true;
         }
+        // 3) At least one profile in "denied-profiles" for groups: return false, then in "allowed-profiles" for groups: return true
+        if (assignmentTypes.contains(ASSIGNMENT_GROUP_DENIED))
+        {
+            return false;
+        }
+        if (assignmentTypes.contains(ASSIGNMENT_GROUP_ALLOWED))
+        {
+            return true;
+        }
+        // 4) At least one profile in "denied-any-connected-profiles": return false, then in "allowed-any-connected-profiles": return true
+        if (assignmentTypes.contains(ASSIGNMENT_ANY_CONNECTED_DENIED))
+        {
+            return false;
+        }
+        
+        // 5) Otherwise, the permission depends on the "allowed-any-connected-profiles" only
+        return assignmentTypes.contains(ASSIGNMENT_ANY_CONNECTED_ALLOWED);
+    }
+    
+    /* ----------- */
+    /* PERMISSIONS */
+    /* ----------- */
+    
+    @Override
+    public Map<String, AccessResultContext> getPermissions(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds, Object object)
+    {
+        return getPermissionsByObject(user, userGroups, profileIds, Collections.singleton(object)).get(object);
+    }
+    
+    @Override
+    public Map<Object, Map<String, AccessResultContext>> getPermissionsByObject(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds, Collection<?> objects)
+    {
+        // Prefixed context (as stored in database) => object
+        Map<String, Object> objectsByContext = new HashMap<>();
+        for (Object object : objects)
+        {
+            objectsByContext.put((String) getObjectWithPrefix(object), object);
+        }
         
-        // 3.1) Search at least one profile in "denied-profiles" for groups, if found return false
-        for (GroupIdentity group : userGroups)
+        Map<String, ContextProfileAssignments> assignmentsByContext = new HashMap<>();
+        for (String context : objectsByContext.keySet())
         {
-            if (_hasDeniedProfile(group, profileIds, prefix))
-            {
-                return false;
-            }
+            assignmentsByContext.put(context, new ContextProfileAssignments());
         }
         
-        // 3.2) Search at least one profile in "allowed-profiles" for groups, if found return true
-        for (GroupIdentity group : userGroups)
+        if (!profileIds.isEmpty())
         {
-            if (_hasAllowedProfile(group, profileIds, prefix))
+            try (SqlSession session = getSession())
             {
-                return true;
+                // Retrieve all the assignments of all the contexts with one query (per chunk of contexts)
+                for (List<String> contexts : Lists.partition(new ArrayList<>(objectsByContext.keySet()), __MAX_CONTEXTS_PER_QUERY))
+                {
+                    Map<String, Object> parameters = _getAssignmentsParameters(user, userGroups, profileIds);
+                    parameters.put("contexts", contexts);
+                    
+                    List<Map<String, String>> assignments = session.selectList("ProfilesAssignment.getAssignments", parameters);
+                    for (Map<String, String> assignment : assignments)
+                    {
+                        _addAssignment(assignmentsByContext.get(assignment.get("context")), user, assignment);
+                    }
+                }
             }
         }
         
-        // 4.1) Search at least one profile in "denied-any-connected-profiles", if found return false
-        if (_hasAnyConnectedDeniedProfile(profileIds, prefix))
+        // Then apply the precedence rules in memory
+        Map<Object, Map<String, AccessResultContext>> permissions = new HashMap<>();
+        for (Map.Entry<String, Object> entry : objectsByContext.entrySet())
         {
-            return false;
+            permissions.put(entry.getValue(), assignmentsByContext.get(entry.getKey()).getPermissions(user, userGroups, profileIds));
         }
-            
-        // 4.2) Search at least one profile in "allowed-any-connected-profiles", if found return true
-        if (_hasAnyConnectedAllowedProfile(profileIds, prefix))
+        return permissions;
+    }
+    
+    private Map<String, Object> _getAssignmentsParameters(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds)
+    {
+        Map<String, Object> parameters = new HashMap<>();
+        if (user != null)
         {
-            return true;
+            parameters.put("login", user.getLogin());
+            parameters.put("population", user.getPopulationId());
         }
-        
-        // 5.1) Search at least one profile in "denied-any-connected-profiles", if found return false
-        if (_hasAnonymousDeniedProfile(profileIds, prefix))
+        parameters.put("groups", userGroups);
+        parameters.put("profileIds", profileIds);
+        return parameters;
+    }
+    
+    /**
+     * Adds an assignment row returned by ProfilesAssignment.getAssignments or ProfilesAssignment.getAllAssignments to the assignments of its context
+     * @param assignments The assignments of the context. Can be null if the context was not asked for.
+     * @param user The user of the user assignments
+     * @param assignment The assignment row
+     */
+    protected void _addAssignment(ContextProfileAssignments assignments, UserIdentity user, Map<String, String> assignment)
+    {
+        if (assignments == null)
         {
-            return false;
+            // Context not asked for
+            return;
         }
         
-        // 5) Not found, return false
-        return false;
+        Set<String> profileIds = Collections.singleton(assignment.get("profileId"));
+        switch (assignment.get("type").trim())
+        {
+            case ASSIGNMENT_ANONYMOUS_ALLOWED:
+                assignments.addAllowedProfilesForAnonymous(profileIds);
+                break;
+            case ASSIGNMENT_ANONYMOUS_DENIED:
+                assignments.addDeniedProfilesForAnonymous(profileIds);
+                break;
+            case ASSIGNMENT_ANY_CONNECTED_ALLOWED:
+                assignments.addAllowedProfilesForAnyConnectedUser(profileIds);
+                break;
+            case ASSIGNMENT_ANY_CONNECTED_DENIED:
+                assignments.addDeniedProfilesForAnyConnectedUser(profileIds);
+                break;
+            case ASSIGNMENT_USER_ALLOWED:
+                assignments.addAllowedProfilesForUser(user, profileIds);
+                break;
+            case ASSIGNMENT_USER_DENIED:
+                assignments.addDeniedProfilesForUser(user, profileIds);
+                break;
+            case ASSIGNMENT_GROUP_ALLOWED:
+                assignments.addAllowedProfilesForGroup(new GroupIdentity(assignment.get("groupId"), assignment.get("groupDirectory")), profileIds);
+                break;
+            case ASSIGNMENT_GROUP_DENIED:
+                assignments.addDeniedProfilesForGroup(new GroupIdentity(assignment.get("groupId"), assignment.get("groupDirectory")), profileIds);
+                break;
+            default:
+                getLogger().warn("Unknown assignment type '{}'", assignment.get("type"));
+                break;
+        }
     }
     
     /**
@@ -1475,13 +1614,13 @@ public class JdbcProfileAssignmentStorage extends AbstractMyBatisDAO implements
     /* ------------------------------ */
     /* SUPPORT OF OBJECT AND PRIORITY */
     /* ------------------------------ */
-
+    
     @Override
     public boolean isSupported(Object object)
     {
         return object instanceof String && _supportedContext.equals(object);
     }
-
+    
     @Override
     public int getPriority()
     {
@@ -0,0 +1,647 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.plugins.core.impl.right;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.avalon.framework.activity.Initializable;
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
+import org.apache.avalon.framework.service.ServiceException;
+import org.apache.avalon.framework.service.ServiceManager;
+import org.apache.ibatis.session.SqlSession;
+
+import org.ametys.core.group.GroupIdentity;
+import org.ametys.core.right.AccessController.AccessResultContext;
+import org.ametys.core.right.ContextProfileAssignments;
+import org.ametys.core.right.ModifiableProfileAssignmentStorage;
+import org.ametys.core.right.RightManager;
+import org.ametys.core.user.UserIdentity;
+
+/**
+ * {@link JdbcProfileAssignmentStorage} keeping all the assignments in memory, indexed by context.<br>
+ * To be used instead of {@link JdbcProfileAssignmentStorage} (with the same configuration) when the assignment tables fit in memory: reads never query the database.<br>
+ * Writes through the {@link ModifiableProfileAssignmentStorage} methods are done in database, then the modified contexts are reloaded
+ * and the caches of the {@link RightManager} are invalidated if they actually changed.<br>
+ * If the database can be modified by other means (e.g. by other nodes of a cluster), a refresh interval in seconds can be configured with
+ * <code>&lt;refresh-interval&gt;</code>: the snapshot is then fully reloaded on first access after this delay, by the reading thread,
+ * while the other readers keep using the previous snapshot.
+ */
+public class SnapshotJdbcProfileAssignmentStorage extends JdbcProfileAssignmentStorage implements Initializable
+{
+    /** The service manager */
+    protected ServiceManager _smanager;
+    
+    /** The right manager, lazily retrieved to avoid circular dependencies */
+    private RightManager _rightManager;
+    
+    /** The assignments by (prefixed) context. The {@link ContextProfileAssignments} are never modified once put in this map. */
+    private volatile Map<String, ContextProfileAssignments> _snapshot = new ConcurrentHashMap<>();
+    
+    /** The interval in milliseconds between two full reloads. 0 to never reload */
+    private long _refreshInterval;
+    
+    /** The time of the last full reload */
+    private volatile long _lastLoad;
+    
+    /** True while a reader is reloading an outdated snapshot */
+    private final AtomicBoolean _refreshing = new AtomicBoolean();
+    
+    @Override
+    public void service(ServiceManager manager) throws ServiceException
+    {
+        super.service(manager);
+        _smanager = manager;
+    }
+    
+    @Override
+    public void configure(Configuration configuration) throws ConfigurationException
+    {
+        super.configure(configuration);
+        _refreshInterval = configuration.getChild("refresh-interval").getValueAsLong(0) * 1000;
+    }
+    
+    @Override
+    public void initialize() throws Exception
+    {
+        _load();
+    }
+    
+    /**
+     * Fully reloads the assignments from the database
+     */
+    public synchronized void refresh()
+    {
+        Map<String, ContextProfileAssignments> previousSnapshot = _snapshot;
+        
+        _load();
+        
+        if (!previousSnapshot.equals(_snapshot))
+        {
+            _clearRightManagerCaches();
+        }
+    }
+    
+    private synchronized void _load()
+    {
+        Map<String, ContextProfileAssignments> snapshot = new ConcurrentHashMap<>();
+        
+        try (SqlSession session = getSession())
+        {
+            Map<String, Object> parameters = new HashMap<>();
+            String prefix = getPrefix();
+            if (prefix != null)
+            {
+                parameters.put("contextPrefix", prefix);
+            }
+            
+            List<Map<String, String>> assignments = session.selectList("ProfilesAssignment.getAllAssignments", parameters);
+            for (Map<String, String> assignment : assignments)
+            {
+                ContextProfileAssignments contextAssignments = snapshot.computeIfAbsent(assignment.get("context"), c -> new ContextProfileAssignments());
+                _addAssignment(contextAssignments, new UserIdentity(assignment.get("login"), assignment.get("population")), assignment);
+            }
+        }
+        
+        _snapshot = snapshot;
+        _lastLoad = System.currentTimeMillis();
+        
+        getLogger().debug("{} contexts of profile assignments loaded in memory", snapshot.size());
+    }
+    
+    /**
+     * Reloads the assignments of a context from the database
+     * @param object The context object
+     */
+    private synchronized void _refresh(Object object)
+    {
+        if (object == null)
+        {
+            // The assignments of all the contexts may have been modified
+            refresh();
+        }
+        else
+        {
+            String context = (String) getObjectWithPrefix(object);
+            ContextProfileAssignments previousAssignments = _snapshot.get(context);
+            
+            try (SqlSession session = getSession())
+            {
+                Map<String, Object> parameters = new HashMap<>();
+                parameters.put("contexts", Collections.singletonList(context));
+                
+                ContextProfileAssignments contextAssignments = new ContextProfileAssignments();
+                List<Map<String, String>> assignments = session.selectList("ProfilesAssignment.getAllAssignments", parameters);
+                for (Map<String, String> assignment : assignments)
+                {
+                    _addAssignment(contextAssignments, new UserIdentity(assignment.get("login"), assignment.get("population")), assignment);
+                }
+                
+                if (contextAssignments.isEmpty())
+                {
+                    _snapshot.remove(context);
+                    contextAssignments = null;
+                }
+                else
+                {
+                    _snapshot.put(context, contextAssignments);
+                }
+            }
+            
+            if (!Objects.equals(previousAssignments, contextAssignments))
+            {
+                // The results on the descendants of the context may also have changed
+                _clearRightManagerCaches();
+            }
+        }
+    }
+    
+    /**
+     * Applies a modification to the assignments of all the contexts
+     * @param modification The modification
+     */
+    private synchronized void _modifyAll(Consumer<ContextProfileAssignments> modification)
+    {
+        for (Map.Entry<String, ContextProfileAssignments> entry : _snapshot.entrySet())
+        {
+            // Copy on write, as the assignments may be read concurrently
+            ContextProfileAssignments contextAssignments = new ContextProfileAssignments(entry.getValue());
+            modification.accept(contextAssignments);
+            
+            if (contextAssignments.isEmpty())
+            {
+                _snapshot.remove(entry.getKey());
+            }
+            else
+            {
+                _snapshot.put(entry.getKey(), contextAssignments);
+            }
+        }
+    }
+    
+    private void _clearRightManagerCaches()
+    {
+        RightManager rightManager = _getRightManager();
+        if (rightManager != null)
+        {
+            rightManager.clearCaches();
+        }
+    }
+    
+    private RightManager _getRightManager()
+    {
+        if (_rightManager == null)
+        {
+            try
+            {
+                _rightManager = (RightManager) _smanager.lookup(RightManager.ROLE);
+            }
+            catch (ServiceException e)
+            {
+                getLogger().warn("Unable to retrieve the right manager, its caches will not be invalidated", e);
+            }
+        }
+        return _rightManager;
+    }
+    
+    private Map<String, ContextProfileAssignments> _getSnapshot()
+    {
+        // Only one reader reloads the outdated snapshot, the others do not wait for it
+        if (_isOutdated() && _refreshing.compareAndSet(false, true))
+        {
+            try
+            {
+                // Check again, the snapshot may have been reloaded since the first check
+                if (_isOutdated())
+                {
+                    refresh();
+                }
+            }
+            finally
+            {
+                _refreshing.set(false);
+            }
+        }
+        return _snapshot;
+    }
+    
+    private boolean _isOutdated()
+    {
+        return _refreshInterval > 0 && System.currentTimeMillis() - _lastLoad > _refreshInterval;
+    }
+    
+    /**
+     * Gets the assignments of a context, or of all the contexts if the object is null
+     * @param object The context object. Can be null.
+     * @return the assignments
+     */
+    private Stream<ContextProfileAssignments> _getAssignments(Object object)
+    {
+        Map<String, ContextProfileAssignments> snapshot = _getSnapshot();
+        if (object == null)
+        {
+            return snapshot.values().stream();
+        }
+        
+        ContextProfileAssignments contextAssignments = snapshot.get(getObjectWithPrefix(object));
+        return contextAssignments != null ? Stream.of(contextAssignments) : Stream.empty();
+    }
+    
+    private Set<String> _getProfiles(Object object, Function<ContextProfileAssignments, Set<String>> profiles)
+    {
+        return _getAssignments(object).flatMap(a -> profiles.apply(a).stream()).collect(Collectors.toSet());
+    }
+    
+    private <T> Map<T, Set<String>> _getProfilesByKey(Object object, Function<ContextProfileAssignments, Map<T, Set<String>>> profilesByKey)
+    {
+        Map<T, Set<String>> result = new HashMap<>();
+        _getAssignments(object).forEach(a ->
+        {
+            for (Map.Entry<T, Set<String>> entry : profilesByKey.apply(a).entrySet())
+            {
+                result.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).addAll(entry.getValue());
+            }
+        });
+        return result;
+    }
+    
+    private <T> Set<T> _getKeys(Object object, String profileId, Function<ContextProfileAssignments, Map<T, Set<String>>> profilesByKey)
+    {
+        return _getAssignments(object)
+                .flatMap(a -> profilesByKey.apply(a).entrySet().stream())
+                .filter(entry -> entry.getValue().contains(profileId))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+    
+    /* -------------- */
+    /* HAS PERMISSION */
+    /* -------------- */
+    
+    @Override
+    public boolean hasPermission(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds)
+    {
+        if (profileIds.isEmpty())
+        {
+            return false;
+        }
+        
+        Set<String> assignmentTypes = new HashSet<>();
+        for (ContextProfileAssignments contextAssignments : _getSnapshot().values())
+        {
+            _addIfAny(assignmentTypes, ASSIGNMENT_ANONYMOUS_ALLOWED, contextAssignments.getAllowedProfilesForAnonymous(), profileIds);
+            _addIfAny(assignmentTypes, ASSIGNMENT_ANONYMOUS_DENIED, contextAssignments.getDeniedProfilesForAnonymous(), profileIds);
+            _addIfAny(assignmentTypes, ASSIGNMENT_ANY_CONNECTED_ALLOWED, contextAssignments.getAllowedProfilesForAnyConnectedUser(), profileIds);
+            _addIfAny(assignmentTypes, ASSIGNMENT_ANY_CONNECTED_DENIED, contextAssignments.getDeniedProfilesForAnyConnectedUser(), profileIds);
+            if (user != null)
+            {
+                _addIfAny(assignmentTypes, ASSIGNMENT_USER_ALLOWED, contextAssignments.getAllowedProfilesForUsers().get(user), profileIds);
+                _addIfAny(assignmentTypes, ASSIGNMENT_USER_DENIED, contextAssignments.getDeniedProfilesForUsers().get(user), profileIds);
+            }
+            if (userGroups != null)
+            {
+                for (GroupIdentity group : userGroups)
+                {
+                    _addIfAny(assignmentTypes, ASSIGNMENT_GROUP_ALLOWED, contextAssignments.getAllowedProfilesForGroups().get(group), profileIds);
+                    _addIfAny(assignmentTypes, ASSIGNMENT_GROUP_DENIED, contextAssignments.getDeniedProfilesForGroups().get(group), profileIds);
+                }
+            }
+        }
+        
+        return _hasPermission(assignmentTypes);
+    }
+    
+    private void _addIfAny(Set<String> assignmentTypes, String assignmentType, Set<String> assignedProfiles, Set<String> profileIds)
+    {
+        if (assignedProfiles != null && !assignmentTypes.contains(assignmentType) && !Collections.disjoint(assignedProfiles, profileIds))
+        {
+            assignmentTypes.add(assignmentType);
+        }
+    }
+    
+    /* ----------- */
+    /* PERMISSIONS */
+    /* ----------- */
+    
+    @Override
+    public Map<Object, Map<String, AccessResultContext>> getPermissionsByObject(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds, Collection<?> objects)
+    {
+        Map<String, ContextProfileAssignments> snapshot = _getSnapshot();
+        ContextProfileAssignments noAssignments = new ContextProfileAssignments();
+        
+        Map<Object, Map<String, AccessResultContext>> permissions = new HashMap<>();
+        for (Object object : objects)
+        {
+            ContextProfileAssignments contextAssignments = snapshot.getOrDefault(getObjectWithPrefix(object), noAssignments);
+            permissions.put(object, contextAssignments.getPermissions(user, userGroups, profileIds));
+        }
+        return permissions;
+    }
+    
+    /* ------- */
+    /* GETTERS */
+    /* ------- */
+    
+    @Override
+    public boolean isAnyConnectedUserAllowed(Object object, String profileId)
+    {
+        return _getAssignments(object).anyMatch(a -> a.getAllowedProfilesForAnyConnectedUser().contains(profileId));
+    }
+    
+    @Override
+    public boolean isAnyConnectedUserDenied(Object object, String profileId)
+    {
+        return _getAssignments(object).anyMatch(a -> a.getDeniedProfilesForAnyConnectedUser().contains(profileId));
+    }
+    
+    @Override
+    public boolean isAnonymousAllowed(Object object, String profileId)
+    {
+        return _getAssignments(object).anyMatch(a -> a.getAllowedProfilesForAnonymous().contains(profileId));
+    }
+    
+    @Override
+    public boolean isAnonymousDenied(Object object, String profileId)
+    {
+        return _getAssignments(object).anyMatch(a -> a.getDeniedProfilesForAnonymous().contains(profileId));
+    }
+    
+    @Override
+    public Set<String> getAllowedProfilesForAnyConnectedUser(Object object)
+    {
+        return _getProfiles(object, ContextProfileAssignments::getAllowedProfilesForAnyConnectedUser);
+    }
+    
+    @Override
+    public Set<String> getDeniedProfilesForAnyConnectedUser(Object object)
+    {
+        return _getProfiles(object, ContextProfileAssignments::getDeniedProfilesForAnyConnectedUser);
+    }
+    
+    @Override
+    public Set<String> getAllowedProfilesForAnonymous(Object object)
+    {
+        return _getProfiles(object, ContextProfileAssignments::getAllowedProfilesForAnonymous);
+    }
+    
+    @Override
+    public Set<String> getDeniedProfilesForAnonymous(Object object)
+    {
+        return _getProfiles(object, ContextProfileAssignments::getDeniedProfilesForAnonymous);
+    }
+    
+    @Override
+    public Set<String> getAllowedProfilesForUser(UserIdentity user, Object object)
+    {
+        return _getProfiles(object, a -> a.getAllowedProfilesForUsers().getOrDefault(user, Collections.emptySet()));
+    }
+    
+    @Override
+    public Map<UserIdentity, Set<String>> getAllowedProfilesForUsers(Object object)
+    {
+        return _getProfilesByKey(object, ContextProfileAssignments::getAllowedProfilesForUsers);
+    }
+    
+    @Override
+    public Set<UserIdentity> getAllowedUsers(Object object, String profileId)
+    {
+        return _getKeys(object, profileId, ContextProfileAssignments::getAllowedProfilesForUsers);
+    }
+    
+    @Override
+    public Map<GroupIdentity, Set<String>> getAllowedProfilesForGroups(Object object)
+    {
+        return _getProfilesByKey(object, ContextProfileAssignments::getAllowedProfilesForGroups);
+    }
+    
+    @Override
+    public Set<GroupIdentity> getAllowedGroups(Object object, String profileId)
+    {
+        return _getKeys(object, profileId, ContextProfileAssignments::getAllowedProfilesForGroups);
+    }
+    
+    @Override
+    public Set<String> getDeniedProfilesForUser(UserIdentity user, Object object)
+    {
+        return _getProfiles(object, a -> a.getDeniedProfilesForUsers().getOrDefault(user, Collections.emptySet()));
+    }
+    
+    @Override
+    public Map<UserIdentity, Set<String>> getDeniedProfilesForUsers(Object object)
+    {
+        return _getProfilesByKey(object, ContextProfileAssignments::getDeniedProfilesForUsers);
+    }
+    
+    @Override
+    public Set<UserIdentity> getDeniedUsers(Object object, String profileId)
+    {
+        return _getKeys(object, profileId, ContextProfileAssignments::getDeniedProfilesForUsers);
+    }
+    
+    @Override
+    public Map<GroupIdentity, Set<String>> getDeniedProfilesForGroups(Object object)
+    {
+        return _getProfilesByKey(object, ContextProfileAssignments::getDeniedProfilesForGroups);
+    }
+    
+    @Override
+    public Set<GroupIdentity> getDeniedGroups(Object object, String profileId)
+    {
+        return _getKeys(object, profileId, ContextProfileAssignments::getDeniedProfilesForGroups);
+    }
+    
+    /* ------- */
+    /* WRITERS */
+    /* ------- */
+    
+    @Override
+    public void addAllowedProfilesForAnyConnectedUser(Object object, Set<String> profileIds)
+    {
+        super.addAllowedProfilesForAnyConnectedUser(object, profileIds);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeAllowedProfilesForAnyConnectedUser(Object object, Set<String> profileIds)
+    {
+        super.removeAllowedProfilesForAnyConnectedUser(object, profileIds);
+        _refresh(object);
+    }
+    
+    @Override
+    public void addDeniedProfilesForAnyConnectedUser(Object object, Set<String> profileIds)
+    {
+        super.addDeniedProfilesForAnyConnectedUser(object, profileIds);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeDeniedProfilesForAnyConnectedUser(Object object, Set<String> profileIds)
+    {
+        super.removeDeniedProfilesForAnyConnectedUser(object, profileIds);
+        _refresh(object);
+    }
+    
+    @Override
+    public void addAllowedProfilesForAnonymous(Object object, Set<String> profileIds)
+    {
+        super.addAllowedProfilesForAnonymous(object, profileIds);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeAllowedProfilesForAnonymous(Object object, Set<String> profileIds)
+    {
+        super.removeAllowedProfilesForAnonymous(object, profileIds);
+        _refresh(object);
+    }
+    
+    @Override
+    public void addDeniedProfilesForAnonymous(Object object, Set<String> profileIds)
+    {
+        super.addDeniedProfilesForAnonymous(object, profileIds);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeDeniedProfilesForAnonymous(Object object, Set<String> profileIds)
+    {
+        super.removeDeniedProfilesForAnonymous(object, profileIds);
+        _refresh(object);
+    }
+    
+    @Override
+    public void addAllowedUsers(Set<UserIdentity> users, Object object, String profileId)
+    {
+        super.addAllowedUsers(users, object, profileId);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeAllowedUsers(Set<UserIdentity> users, Object object, String profileId)
+    {
+        super.removeAllowedUsers(users, object, profileId);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeAllowedUsers(Set<UserIdentity> users, Object object)
+    {
+        super.removeAllowedUsers(users, object);
+        _refresh(object);
+    }
+    
+    @Override
+    public void addAllowedGroups(Set<GroupIdentity> groups, Object object, String profileId)
+    {
+        super.addAllowedGroups(groups, object, profileId);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeAllowedGroups(Set<GroupIdentity> groups, Object object, String profileId)
+    {
+        super.removeAllowedGroups(groups, object, profileId);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeAllowedGroups(Set<GroupIdentity> groups, Object object)
+    {
+        super.removeAllowedGroups(groups, object);
+        _refresh(object);
+    }
+    
+    @Override
+    public void addDeniedUsers(Set<UserIdentity> users, Object object, String profileId)
+    {
+        super.addDeniedUsers(users, object, profileId);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeDeniedUsers(Set<UserIdentity> users, Object object, String profileId)
+    {
+        super.removeDeniedUsers(users, object, profileId);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeDeniedUsers(Set<UserIdentity> users, Object object)
+    {
+        super.removeDeniedUsers(users, object);
+        _refresh(object);
+    }
+    
+    @Override
+    public void addDeniedGroups(Set<GroupIdentity> groups, Object object, String profileId)
+    {
+        super.addDeniedGroups(groups, object, profileId);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeDeniedGroups(Set<GroupIdentity> groups, Object object, String profileId)
+    {
+        super.removeDeniedGroups(groups, object, profileId);
+        _refresh(object);
+    }
+    
+    @Override
+    public void removeDeniedGroups(Set<GroupIdentity> groups, Object object)
+    {
+        super.removeDeniedGroups(groups, object);
+        _refresh(object);
+    }
+    
+    /* ------ */
+    /* REMOVE */
+    /* ------ */
+    
+    @Override
+    public void removeProfile(String profileId)
+    {
+        super.removeProfile(profileId);
+        _modifyAll(a -> a.removeProfile(profileId));
+    }
+    
+    @Override
+    public void removeUser(UserIdentity user)
+    {
+        super.removeUser(user);
+        _modifyAll(a -> a.removeUser(user));
+    }
+    
+    @Override
+    public void removeGroup(GroupIdentity group)
+    {
+        super.removeGroup(group);
+        _modifyAll(a -> a.removeGroup(group));
+    }
+}
@@ -15,12 +15,14 @@
  */
 package org.ametys.plugins.core.impl.user.directory;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -55,6 +57,7 @@ import org.ametys.core.user.User;
 import org.ametys.core.user.UserIdentity;
 import org.ametys.core.user.directory.ModifiableUserDirectory;
 import org.ametys.core.util.CachingComponent;
+import org.ametys.core.util.ResultPage;
 import org.ametys.plugins.core.impl.user.jdbc.JdbcParameter;
 import org.ametys.runtime.i18n.I18nizableText;
 import org.ametys.runtime.parameter.AbstractParameterParser;
@@ -80,6 +83,9 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
     
     static final String[] __COLUMNS = new String[] {"login", "password", "firstname", "lastname", "email"};
     
+    /** The selected columns, separated by commas */
+    private static final String __SELECT_CLAUSE = StringUtils.join(__COLUMNS, ", ");
+    
     /** Name of the parameter holding the datasource id */
     private static final String __DATASOURCE_PARAM_NAME = "runtime.users.jdbc.datasource";
     /** Name of the parameter holding the table users' name */
@@ -97,6 +103,11 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
     /** The name of users' SQL table */
     protected String _userTableName;
     
+    /** The query selecting all the users, built once for the table */
+    protected String _selectUsersSql;
+    /** The query selecting a user by login, built once for the table */
+    protected String _selectUserSql;
+    
     /** Model */
     protected Map<String, JdbcParameter> _model;
     
@@ -181,6 +192,9 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
         _userTableName = (String) paramValues.get(__USERS_TABLE_PARAM_NAME);
         _dataSourceId = (String) paramValues.get(__DATASOURCE_PARAM_NAME);
         
+        _selectUsersSql = "SELECT " + __SELECT_CLAUSE + " FROM " + _userTableName;
+        _selectUserSql = _selectUsersSql + " WHERE " + __COLUMN_LOGIN + " = ?";
+        
         configureModelParameters();
     }
     
@@ -300,16 +314,46 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
         
         return queryExecutor.run();
     }
+    
+    @Override
+    public ResultPage<User> getUsersPage(int count, String continuationToken, Map<String, Object> parameters)
+    {
+        String pattern = StringUtils.defaultIfEmpty((String) parameters.get("pattern"), null);
+        
+        // The token is the last login of the previous page: the users are sorted by login and the next page starts after it
+        String afterLogin = continuationToken != null ? new String(Base64.getUrlDecoder().decode(continuationToken), StandardCharsets.UTF_8) : null;
+        
+        SelectUsersJdbcQueryExecutor<List<User>> queryExecutor = new SelectUsersJdbcQueryExecutor<List<User>>(pattern, count, afterLogin) 
+        {
+            @Override
+            protected List<User> processResultSet(ResultSet rs) throws SQLException
+            {
+                return _getUsersProcessResultSet(rs);
+            }
+        };
+        
+        List<User> users = queryExecutor.run();
+        
+        String nextToken = null;
+        if (!users.isEmpty() && users.size() >= count)
+        {
+            String lastLogin = users.get(users.size() - 1).getIdentity().getLogin();
+            nextToken = Base64.getUrlEncoder().encodeToString(lastLogin.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        return new ResultPage<>(users, nextToken);
+    }
 
     @Override
     public User getUser(String login)
     {
         if (isCacheEnabled())
         {
-            User user = getObjectFromCache(login);
-            if (user != null)
+            // The cached user is null if the login is unknown
+            CacheEntry<User> entry = getEntryFromCache(login);
+            if (entry != null)
             {
-                return user;
+                return entry.getObject();
             }
         }
         
@@ -447,6 +491,12 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
                 throw new InvalidModificationException("Error no user inserted");
             }
 
+            if (isCacheEnabled())
+            {
+                // The login may have been cached as unknown
+                removeObjectFromCache(login);
+            }
+
             if (getObservationManager() != null)
             {
                 // Observation manager can be null in safe mode
@@ -1057,6 +1107,11 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
         else
         {
             // no user with this login in the database
+            if (isCacheEnabled())
+            {
+                addObjectInCache(login, null);
+            }
+            
             return null;
         }
     }
@@ -1195,22 +1250,7 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
         @Override
         protected String getSqlQuery(Connection connection)
         {
-            // Build SQL request
-            StringBuilder selectClause = new StringBuilder();
-            for (String id : __COLUMNS)
-            {
-                if (selectClause.length() > 0)
-                {
-                    selectClause.append(", ");
-                }
-                selectClause.append(id);
-            }
-
-            StringBuilder sql = new StringBuilder("SELECT ");
-            sql.append(selectClause).append(" FROM ").append(_userTableName);
-            sql.append(" WHERE login = ?");
-
-            return sql.toString();
+            return _selectUserSql;
         }
 
         @Override
@@ -1235,6 +1275,10 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
         protected int _length;
         /** The offset to start with, first is 0 */
         protected int _offset;
+        /** True to sort the users by login and start after {@link #_afterLogin} instead of using an offset */
+        protected boolean _keyset;
+        /** The login after which the users are selected, when using keyset pagination. Null to start with the first user. */
+        protected String _afterLogin;
 
         /** The mandatory predicate to use when querying users by pattern */
         protected JdbcPredicate _mandatoryPredicate;
@@ -1253,23 +1297,28 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
             _length = length;
             _offset = offset;
         }
+        
+        /** 
+         * The constructor for keyset pagination: the users are sorted by login.
+         * @param pattern The pattern to match (none if null).
+         * @param length The maximum number of users to select.
+         * @param afterLogin The login after which the users are selected, null to start with the first user.
+         */
+        protected SelectUsersJdbcQueryExecutor(String pattern, int length, String afterLogin)
+        {
+            _pattern = pattern;
+            _length = length;
+            _keyset = true;
+            _afterLogin = afterLogin;
+        }
 
         @Override
         protected String getSqlQuery(Connection connection)
         {
+            String dbType = ConnectionHelper.getDatabaseType(connection);
+            
             // Build SQL request
-            StringBuilder selectClause = new StringBuilder();
-            for (String column : __COLUMNS)
-            {
-                if (selectClause.length() > 0)
-                {
-                    selectClause.append(", ");
-                }
-                selectClause.append(column);
-            }
-
-            StringBuilder sql = new StringBuilder("SELECT ");
-            sql.append(selectClause).append(" FROM ").append(_userTableName);
+            StringBuilder sql = new StringBuilder(_selectUsersSql);
 
             // Add the pattern
             _mandatoryPredicate = _getMandatoryPredicate(_pattern);
@@ -1281,36 +1330,51 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
             _patternToMatch = _getPatternToMatch(_pattern);
             if (_patternToMatch != null)
             {
-                if (ConnectionHelper.getDatabaseType(connection) == ConnectionHelper.DATABASE_DERBY)
+                if (ConnectionHelper.DATABASE_DERBY.equals(dbType))
                 {
                     // The LIKE operator in Derby is case sensitive
-                    sql.append(_mandatoryPredicate != null ? " AND (" : " WHERE ")
+                    sql.append(_mandatoryPredicate != null ? " AND (" : " WHERE (")
                     .append("UPPER(").append(__COLUMN_LOGIN).append(") LIKE UPPER(?) OR ")
                     .append("UPPER(").append(__COLUMN_LASTNAME).append(") LIKE UPPER(?) OR ")
                     .append("UPPER(").append(__COLUMN_FIRSTNAME).append(") LIKE UPPER(?)");
                 }
                 else
                 {
-                    sql.append(_mandatoryPredicate != null ? " AND (" : " WHERE ")
+                    sql.append(_mandatoryPredicate != null ? " AND (" : " WHERE (")
                     .append(__COLUMN_LOGIN).append(" LIKE ? OR ")
                     .append(__COLUMN_LASTNAME).append(" LIKE ? OR ")
                     .append(__COLUMN_FIRSTNAME).append(" LIKE ?");
                 }
 
-                if (_mandatoryPredicate != null)
+                sql.append(')');
+            }
+            
+            if (_keyset)
+            {
+                if (_afterLogin != null)
                 {
-                    sql.append(')');
+                    sql.append(_mandatoryPredicate != null || _patternToMatch != null ? " AND " : " WHERE ").append(__COLUMN_LOGIN).append(" > ?");
                 }
+                sql.append(" ORDER BY ").append(__COLUMN_LOGIN);
+                
+                // No offset: the cost of a page does not depend on its position
+                return ConnectionHelper.limitQuery(sql.toString(), _length, dbType);
             }
 
+            if (_length != Integer.MAX_VALUE || _offset != 0)
+            {
+                // The pages must not overlap
+                sql.append(" ORDER BY ").append(__COLUMN_LOGIN);
+            }
+            
             // Add length filters
-            sql = _addQuerySize(_length, _offset, connection, selectClause, sql);
+            sql = _addQuerySize(_length, _offset, dbType, sql);
 
             return sql.toString();
         }
 
         @SuppressWarnings("synthetic-access")
-        private StringBuilder _addQuerySize(int length, int offset, Connection con, StringBuilder selectClause, StringBuilder sql)
+        private StringBuilder _addQuerySize(int length, int offset, String dbType, StringBuilder sql)
         {
             // Do not add anything if not necessary
             if (length == Integer.MAX_VALUE && offset == 0)
@@ -1318,8 +1382,6 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
                 return sql;
             }
 
-            String dbType = ConnectionHelper.getDatabaseType(con);
-
             if (ConnectionHelper.DATABASE_MYSQL.equals(dbType) || ConnectionHelper.DATABASE_POSTGRES.equals(dbType) || ConnectionHelper.DATABASE_HSQLDB.equals(dbType))
             {
                 sql.append(" LIMIT " + length + " OFFSET " + offset);
@@ -1327,15 +1389,14 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
             }
             else if (ConnectionHelper.DATABASE_ORACLE.equals(dbType))
             {
-                return new StringBuilder("select " + selectClause.toString() + " from (select rownum r, " + selectClause.toString() + " from (" + sql.toString()
+                return new StringBuilder("select " + __SELECT_CLAUSE + " from (select rownum r, " + __SELECT_CLAUSE + " from (" + sql.toString()
                         + ")) where r BETWEEN " + (offset + 1) + " AND " + (offset + length));
             }
             else if (ConnectionHelper.DATABASE_DERBY.equals(dbType))
             {
-                return new StringBuilder("select ").append(selectClause)
-                        .append(" from (select ROW_NUMBER() OVER () AS ROWNUM, ").append(selectClause.toString())
-                        .append(" from (").append(sql.toString()).append(") AS TR ) AS TRR where ROWNUM BETWEEN ")
-                        .append(offset + 1).append(" AND ").append(offset + length);
+                // Derby does not accept an ORDER BY in a subquery
+                sql.append(" OFFSET " + offset + " ROWS FETCH NEXT " + length + " ROWS ONLY");
+                return sql;
             }
             else if (getLogger().isWarnEnabled())
             {
@@ -1371,6 +1432,17 @@ public class JdbcUserDirectory extends CachingComponent<User> implements Modifia
                 stmt.setString(i++, _patternToMatch);
                 //}
             }
+            
+            if (_keyset && _afterLogin != null)
+            {
+                stmt.setString(i++, _afterLogin);
+            }
+            
+            if (_keyset)
+            {
+                // The limit is not in the query if the database type is unknown
+                stmt.setMaxRows(_length);
+            }
 
             return stmt;
         }
@@ -47,6 +47,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.ametys.core.user.User;
 import org.ametys.core.user.UserIdentity;
 import org.ametys.core.user.directory.UserDirectory;
+import org.ametys.core.util.ResultPage;
 import org.ametys.core.util.ldap.AbstractLDAPConnector;
 import org.ametys.core.util.ldap.ScopeEnumerator;
 
@@ -217,16 +218,44 @@ public class LdapUserDirectory extends AbstractLDAPConnector implements UserDire
         }
         return new ArrayList<>();
     }
+    
+    @Override
+    public ResultPage<User> getUsersPage(int count, String continuationToken, Map<String, Object> parameters)
+    {
+        if (!isPagingSupported())
+        {
+            return UserDirectory.super.getUsersPage(count, continuationToken, parameters);
+        }
+        
+        String pattern = StringUtils.defaultIfEmpty((String) parameters.get("pattern"), null);
+        Map<String, Object> filter = _getPatternFilter(pattern);
+        
+        ResultPage<SearchResult> results = _searchPage(count, continuationToken, _usersRelativeDN, (String) filter.get("filter"), (Object[]) filter.get("params"), 
+                                                       _getSearchConstraint(0), _serverSideSorting ? _getSortControls() : new Control[0]);
+        
+        List<User> users = new ArrayList<>();
+        for (SearchResult result : results.getResults())
+        {
+            Map<String, Object> attributes = _getAttributes(result);
+            if (attributes != null)
+            {
+                users.add(_entry2User(attributes));
+            }
+        }
+        
+        return new ResultPage<>(users, results.getContinuationToken());
+    }
 
     @Override
     public User getUser(String login)
     {
         if (isCacheEnabled())
         {
-            User user = (User) getObjectFromCache(login);
-            if (user != null)
+            // The cached user is null if the login is unknown
+            CacheEntry<Object> entry = getEntryFromCache(login);
+            if (entry != null)
             {
-                return user;
+                return (User) entry.getObject();
             }
         }
         
@@ -563,7 +592,8 @@ public class LdapUserDirectory extends AbstractLDAPConnector implements UserDire
     {
         try
         {
-            SortControl sortControl = new SortControl(new String[] {_usersLastnameAttribute, _usersFirstnameAttribute}, Control.NONCRITICAL);
+            // The login makes the order stable for users with the same name, so that the pages do not overlap
+            SortControl sortControl = new SortControl(new String[] {_usersLastnameAttribute, _usersFirstnameAttribute, _usersLoginAttribute}, Control.NONCRITICAL);
             return new Control[] {sortControl};
         }
         catch (IOException e)
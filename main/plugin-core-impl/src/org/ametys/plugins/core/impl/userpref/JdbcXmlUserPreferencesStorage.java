@@ -15,19 +15,28 @@
  */
 package org.ametys.plugins.core.impl.userpref;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.transform.Result;
 import javax.xml.transform.TransformerException;
@@ -36,6 +45,8 @@ import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 
+import org.apache.avalon.framework.activity.Disposable;
+import org.apache.avalon.framework.activity.Initializable;
 import org.apache.avalon.framework.configuration.Configurable;
 import org.apache.avalon.framework.configuration.Configuration;
 import org.apache.avalon.framework.configuration.ConfigurationException;
@@ -48,14 +59,18 @@ import org.apache.cocoon.xml.AttributesImpl;
 import org.apache.cocoon.xml.XMLUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.excalibur.xml.sax.SAXParser;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import org.ametys.core.datasource.ConnectionHelper;
 import org.ametys.core.user.UserIdentity;
 import org.ametys.core.userpref.DefaultUserPreferencesStorage;
 import org.ametys.core.userpref.UserPreferencesException;
+import org.ametys.core.userpref.UserPreferencesManager;
 import org.ametys.core.userpref.UserPrefsHandler;
 import org.ametys.runtime.config.Config;
 import org.ametys.runtime.parameter.ParameterHelper;
@@ -63,10 +78,27 @@ import org.ametys.runtime.parameter.ParameterHelper.ParameterType;
 
 /**
  * The JDBC implementation of {@link DefaultUserPreferencesStorage}.
- * This implementation stores preferences in a database, as an XML file.
+ * This implementation stores preferences in a database, as an XML file or in a compact binary format.<br>
+ * Both formats can be read whatever the configured format is, so that stored preferences are converted when they are next written,
+ * or all at once by {@link #migrateData()}.
  */
-public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements DefaultUserPreferencesStorage, ThreadSafe, Configurable, Serviceable
+public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements DefaultUserPreferencesStorage, ThreadSafe, Configurable, Serviceable, Initializable, Disposable
 {
+    /** The XML format */
+    public static final String FORMAT_XML = "xml";
+    
+    /** The binary format: a header, the number of preferences and the length-prefixed UTF-8 ids and values */
+    public static final String FORMAT_BINARY = "binary";
+    
+    /** The header of the binary format. It cannot start an XML document. */
+    private static final byte[] __BINARY_HEADER = new byte[] {(byte) 0xAC, 'U', 'P', 1};
+    
+    /** The time in seconds to wait for the end of the interrupted migration on dispose */
+    private static final long __MIGRATION_STOP_TIMEOUT = 10;
+    
+    /** The service manager. */
+    protected ServiceManager _smanager;
+    
     /** A SAX parser. */
     protected SAXParser _saxParser;
     
@@ -76,6 +108,26 @@ public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements
     /** The database table in which the preferences are stored. */
     protected String _databaseTable;
     
+    /** The format used to write the preferences. */
+    protected String _format;
+    
+    /** The query selecting the preferences of a user in a context. */
+    protected String _selectQuery;
+    /** The query counting the preferences of a user in a context. */
+    protected String _countQuery;
+    /** The query removing the preferences of a user in a context. */
+    protected String _deleteQuery;
+    /** The query updating the preferences of a user in a context. */
+    protected String _updateQuery;
+    /** The query inserting the preferences of a user in a context. */
+    protected String _insertQuery;
+    
+    /** True to convert all the stored preferences to the configured format at startup. */
+    protected boolean _migrate;
+    
+    /** The executor running the migration in background, null if there is no migration */
+    private ExecutorService _migrationExecutor;
+    
     @Override
     public void configure(Configuration configuration) throws ConfigurationException
     {
@@ -99,11 +151,74 @@ public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements
         }
         
         _databaseTable = configuration.getChild("table").getValue();
+        
+        // The queries only depend on the table, they are built once
+        String where = " WHERE login = ? AND population = ? AND context = ?";
+        _selectQuery = "SELECT * FROM " + _databaseTable + where;
+        _countQuery = "SELECT count(*) FROM " + _databaseTable + where;
+        _deleteQuery = "DELETE FROM " + _databaseTable + where;
+        _updateQuery = "UPDATE " + _databaseTable + " SET data = ?" + where;
+        _insertQuery = "INSERT INTO " + _databaseTable + "(login, population, context, data) VALUES(?, ?, ?, ?)";
+        
+        Configuration formatConf = configuration.getChild("format");
+        _format = formatConf.getValue(FORMAT_XML);
+        if (!FORMAT_XML.equals(_format) && !FORMAT_BINARY.equals(_format))
+        {
+            throw new ConfigurationException("Unknown user preferences format '" + _format + "'", formatConf);
+        }
+        _migrate = formatConf.getAttributeAsBoolean("migrate", false);
+    }
+    
+    @Override
+    public void initialize() throws Exception
+    {
+        if (_migrate)
+        {
+            // The preferences stay readable during the migration, so it does not delay the startup
+            _migrationExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("ametys-userpref-migration").setDaemon(true).build());
+            _migrationExecutor.execute(() -> 
+            {
+                try
+                {
+                    migrateData();
+                }
+                catch (UserPreferencesException e)
+                {
+                    getLogger().error("Unable to convert the user preferences to the " + _format + " format", e);
+                }
+            });
+            
+            // No other task, the thread ends with the migration
+            _migrationExecutor.shutdown();
+        }
+    }
+    
+    @Override
+    public void dispose()
+    {
+        if (_migrationExecutor != null)
+        {
+            // Stop the migration between two rows: the rows not converted yet keep their format
+            _migrationExecutor.shutdownNow();
+            try
+            {
+                if (!_migrationExecutor.awaitTermination(__MIGRATION_STOP_TIMEOUT, TimeUnit.SECONDS))
+                {
+                    getLogger().warn("The migration of the user preferences did not stop within " + __MIGRATION_STOP_TIMEOUT + " seconds");
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            _migrationExecutor = null;
+        }
     }
     
     @Override
     public void service(ServiceManager manager) throws ServiceException
     {
+        _smanager = manager;
         _saxParser = (SAXParser) manager.lookup(SAXParser.ROLE);
     }
     
@@ -122,7 +237,7 @@ public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements
             connection = ConnectionHelper.getConnection(_dataSourceId);
             String dbType = ConnectionHelper.getDatabaseType(connection);
             
-            stmt = connection.prepareStatement("SELECT * FROM " + _databaseTable + " WHERE login = ? AND population = ? AND context = ?");
+            stmt = connection.prepareStatement(_selectQuery);
             
             stmt.setString(1, user.getLogin());
             stmt.setString(2, user.getPopulationId());
@@ -132,19 +247,11 @@ public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements
             
             if (rs.next())
             {
-                if (ConnectionHelper.DATABASE_POSTGRES.equals(dbType))
-                {
-                    dataIs = rs.getBinaryStream("data");
-                }
-                else
+                dataIs = _getData(rs, dbType);
+                if (dataIs != null)
                 {
-                    Blob data = rs.getBlob("data");
-                    dataIs = data.getBinaryStream();
+                    _readPreferences(dataIs, prefs);
                 }
-                
-                // Create the handler and fill the Map by parsing the configuration.
-                UserPrefsHandler handler = new UserPrefsHandler(prefs);
-                _saxParser.parse(new InputSource(dataIs), handler);
             }
             
             return prefs;
@@ -180,7 +287,7 @@ public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements
         {
             connection = ConnectionHelper.getConnection(_dataSourceId);
             
-            stmt = connection.prepareStatement("DELETE FROM " + _databaseTable + " WHERE login = ? AND population = ? AND context = ?");
+            stmt = connection.prepareStatement(_deleteQuery);
             stmt.setString(1, user.getLogin());
             stmt.setString(2, user.getPopulationId());
             stmt.setString(3, storageContext);
@@ -203,7 +310,7 @@ public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements
     @Override
     public void setUserPreferences(UserIdentity user, String storageContext, Map<String, String> contextVars, Map<String, String> preferences) throws UserPreferencesException
     {
-        byte[] prefBytes = _getPreferencesXmlBytes(preferences);
+        byte[] prefBytes = _getPreferencesBytes(preferences);
         Connection connection = null;
         
         try (InputStream dataIs = new ByteArrayInputStream(prefBytes);)
@@ -215,7 +322,7 @@ public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements
             
             // Test if the preferences already exist.
             boolean dataExists;
-            try (PreparedStatement stmt = connection.prepareStatement("SELECT count(*) FROM " + _databaseTable + " WHERE login = ? AND population = ? AND context = ?"))
+            try (PreparedStatement stmt = connection.prepareStatement(_countQuery))
             {
                 stmt.setString(1, user.getLogin());
                 stmt.setString(2, user.getPopulationId());
@@ -231,7 +338,7 @@ public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements
             if (dataExists)
             {
                 // If there's already a record, update it with the new data.
-                try (PreparedStatement stmt = connection.prepareStatement("UPDATE " + _databaseTable + " SET data = ? WHERE login = ? AND population = ? AND context = ?"))
+                try (PreparedStatement stmt = connection.prepareStatement(_updateQuery))
                 {
                     if (ConnectionHelper.DATABASE_POSTGRES.equals(dbType) || ConnectionHelper.DATABASE_ORACLE.equals(dbType))
                     {
@@ -252,7 +359,7 @@ public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements
             else
             {
                 // If not, insert the data.
-                try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO " + _databaseTable + "(login, population, context, data) VALUES(?, ?, ?, ?)"))
+                try (PreparedStatement stmt = connection.prepareStatement(_insertQuery))
                 {
                     stmt.setString(1, user.getLogin());
                     stmt.setString(2, user.getPopulationId());
@@ -354,6 +461,375 @@ public class JdbcXmlUserPreferencesStorage extends AbstractLogEnabled implements
         return value;
     }
     
+    @Override
+    public boolean isCacheable()
+    {
+        // The preferences table is only modified through this storage
+        return true;
+    }
+    
+    /**
+     * Convert all the stored preferences which are not in the configured format.<br>
+     * Each row is converted independently in a transaction locking it, so the preferences can still be read and written during the migration,
+     * and a concurrent save is never overwritten by the conversion of the previous data.
+     * @return the number of converted rows
+     * @throws UserPreferencesException if an error occurred
+     */
+    public int migrateData() throws UserPreferencesException
+    {
+        List<Pair<UserIdentity, String>> rowsToConvert = new ArrayList<>();
+        
+        Connection connection = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        
+        try
+        {
+            connection = ConnectionHelper.getConnection(_dataSourceId);
+            String dbType = ConnectionHelper.getDatabaseType(connection);
+            
+            stmt = connection.prepareStatement("SELECT login, population, context, data FROM " + _databaseTable);
+            rs = stmt.executeQuery();
+            
+            while (rs.next())
+            {
+                InputStream data = _getData(rs, dbType);
+                if (data != null)
+                {
+                    try (InputStream dataIs = new BufferedInputStream(data))
+                    {
+                        if (FORMAT_BINARY.equals(_format) != _isBinary(dataIs))
+                        {
+                            rowsToConvert.add(Pair.of(new UserIdentity(rs.getString("login"), rs.getString("population")), rs.getString("context")));
+                        }
+                    }
+                }
+            }
+        }
+        catch (SQLException | IOException e)
+        {
+            String message = "Database error trying to convert the preferences to the " + _format + " format.";
+            getLogger().error(message, e);
+            throw new UserPreferencesException(message, e);
+        }
+        finally
+        {
+            ConnectionHelper.cleanup(rs);
+            ConnectionHelper.cleanup(stmt);
+            ConnectionHelper.cleanup(connection);
+        }
+        
+        // The rows are converted once the cursor is closed, so that it does not hold locks on them
+        int count = 0;
+        for (Pair<UserIdentity, String> row : rowsToConvert)
+        {
+            if (Thread.currentThread().isInterrupted())
+            {
+                getLogger().warn("The conversion of the user preferences to the " + _format + " format was interrupted, the remaining rows are left unchanged");
+                break;
+            }
+            
+            UserIdentity user = row.getLeft();
+            String storageContext = row.getRight();
+            try
+            {
+                if (_convert(user, storageContext))
+                {
+                    count++;
+                }
+            }
+            catch (UserPreferencesException e)
+            {
+                getLogger().error("Unable to convert the preferences of user '" + user + "' in context '" + storageContext + "', they are left unchanged.", e);
+            }
+        }
+        
+        if (count > 0)
+        {
+            _clearManagerCache();
+        }
+        
+        getLogger().info(count + " user preferences converted to the " + _format + " format");
+        return count;
+    }
+    
+    /**
+     * Convert the preferences of a user in a context, if they are still not in the configured format.
+     * @param user the user.
+     * @param storageContext the preferences context.
+     * @return true if the preferences were converted.
+     * @throws UserPreferencesException if an error occurred
+     */
+    private boolean _convert(UserIdentity user, String storageContext) throws UserPreferencesException
+    {
+        Connection connection = null;
+        
+        try
+        {
+            connection = ConnectionHelper.getConnection(_dataSourceId);
+            String dbType = ConnectionHelper.getDatabaseType(connection);
+            
+            // Start transaction.
+            connection.setAutoCommit(false);
+            
+            // The row is locked until the end of the transaction: a concurrent save waits for the conversion, then writes its own data
+            Map<String, String> prefs = new HashMap<>();
+            try (PreparedStatement stmt = connection.prepareStatement(_selectQuery + " FOR UPDATE"))
+            {
+                stmt.setString(1, user.getLogin());
+                stmt.setString(2, user.getPopulationId());
+                stmt.setString(3, storageContext);
+                
+                try (ResultSet rs = stmt.executeQuery())
+                {
+                    InputStream data = rs.next() ? _getData(rs, dbType) : null;
+                    if (data == null)
+                    {
+                        // Removed meanwhile
+                        connection.rollback();
+                        return false;
+                    }
+                    
+                    try (InputStream dataIs = new BufferedInputStream(data))
+                    {
+                        if (FORMAT_BINARY.equals(_format) == _isBinary(dataIs))
+                        {
+                            // Converted by a save meanwhile
+                            connection.rollback();
+                            return false;
+                        }
+                        
+                        _readPreferences(dataIs, prefs);
+                    }
+                }
+            }
+            
+            byte[] prefBytes = _getPreferencesBytes(prefs);
+            try (PreparedStatement stmt = connection.prepareStatement(_updateQuery); InputStream dataIs = new ByteArrayInputStream(prefBytes))
+            {
+                if (ConnectionHelper.DATABASE_POSTGRES.equals(dbType) || ConnectionHelper.DATABASE_ORACLE.equals(dbType))
+                {
+                    stmt.setBinaryStream(1, dataIs, prefBytes.length);
+                }
+                else
+                {
+                    stmt.setBlob(1, dataIs, prefBytes.length);
+                }
+                
+                stmt.setString(2, user.getLogin());
+                stmt.setString(3, user.getPopulationId());
+                stmt.setString(4, storageContext);
+                
+                stmt.executeUpdate();
+            }
+            
+            // Commit transaction.
+            connection.commit();
+            return true;
+        }
+        catch (UserPreferencesException e)
+        {
+            _rollback(connection);
+            throw e;
+        }
+        catch (SQLException | SAXException | IOException e)
+        {
+            _rollback(connection);
+            throw new UserPreferencesException("Database error trying to convert the preferences of user '" + user + "' in context '" + storageContext + "'.", e);
+        }
+        finally
+        {
+            ConnectionHelper.cleanup(connection);
+        }
+    }
+    
+    private void _rollback(Connection connection)
+    {
+        if (connection != null)
+        {
+            try
+            {
+                connection.rollback();
+            }
+            catch (SQLException e)
+            {
+                getLogger().error("Unable to rollback the conversion of user preferences", e);
+            }
+        }
+    }
+    
+    /**
+     * The converted preferences have the same values, but the manager may cache them: it is cleared to only serve what the database holds.
+     */
+    private void _clearManagerCache()
+    {
+        try
+        {
+            UserPreferencesManager userPreferencesManager = (UserPreferencesManager) _smanager.lookup(UserPreferencesManager.ROLE);
+            userPreferencesManager.clearCache();
+        }
+        catch (ServiceException e)
+        {
+            getLogger().warn("Unable to clear the cache of the user preferences manager after the conversion", e);
+        }
+    }
+    
+    /**
+     * Get the stored preferences of the current row.
+     * @param rs the result set, positioned on a row.
+     * @param dbType the database type.
+     * @return the stored data, or null if there is none.
+     * @throws SQLException if an error occurred
+     */
+    private InputStream _getData(ResultSet rs, String dbType) throws SQLException
+    {
+        if (ConnectionHelper.DATABASE_POSTGRES.equals(dbType))
+        {
+            return rs.getBinaryStream("data");
+        }
+        
+        Blob data = rs.getBlob("data");
+        return data != null ? data.getBinaryStream() : null;
+    }
+    
+    /**
+     * Read preferences stored in any of the supported formats.
+     * @param dataIs the stored data.
+     * @param prefs the Map to fill with the preferences.
+     * @throws SAXException if the XML data cannot be parsed
+     * @throws IOException if the data cannot be read
+     */
+    protected void _readPreferences(InputStream dataIs, Map<String, String> prefs) throws SAXException, IOException
+    {
+        InputStream is = dataIs.markSupported() ? dataIs : new BufferedInputStream(dataIs);
+        
+        if (_isBinary(is))
+        {
+            _readBinaryPreferences(is, prefs);
+        }
+        else
+        {
+            // Create the handler and fill the Map by parsing the configuration.
+            UserPrefsHandler handler = new UserPrefsHandler(prefs);
+            _saxParser.parse(new InputSource(is), handler);
+        }
+    }
+    
+    /**
+     * Test if stored preferences are in the binary format, without consuming the data.
+     * @param dataIs the stored data. Must support mark.
+     * @return true if the data starts with the binary header
+     * @throws IOException if the data cannot be read
+     */
+    private boolean _isBinary(InputStream dataIs) throws IOException
+    {
+        dataIs.mark(__BINARY_HEADER.length);
+        try
+        {
+            for (byte b : __BINARY_HEADER)
+            {
+                if (dataIs.read() != (b & 0xFF))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            dataIs.reset();
+        }
+    }
+    
+    /**
+     * Read preferences stored in the binary format.
+     * @param dataIs the stored data, positioned at the header.
+     * @param prefs the Map to fill with the preferences.
+     * @throws IOException if the data cannot be read
+     */
+    protected void _readBinaryPreferences(InputStream dataIs, Map<String, String> prefs) throws IOException
+    {
+        DataInputStream dis = new DataInputStream(dataIs);
+        dis.skipBytes(__BINARY_HEADER.length);
+        
+        int count = dis.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            String id = _readString(dis);
+            String value = _readString(dis);
+            prefs.put(id, value);
+        }
+    }
+    
+    private String _readString(DataInputStream dis) throws IOException
+    {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Write a Map of preferences in the configured format.
+     * @param preferences the preferences Map.
+     * @return the preferences bytes.
+     * @throws UserPreferencesException if an error occurred
+     */
+    protected byte[] _getPreferencesBytes(Map<String, String> preferences) throws UserPreferencesException
+    {
+        return FORMAT_BINARY.equals(_format) ? _getPreferencesBinaryBytes(preferences) : _getPreferencesXmlBytes(preferences);
+    }
+    
+    /**
+     * Write a Map of preferences in the binary format.
+     * @param preferences the preferences Map.
+     * @return the preferences bytes.
+     * @throws UserPreferencesException if an error occurred
+     */
+    protected byte[] _getPreferencesBinaryBytes(Map<String, String> preferences) throws UserPreferencesException
+    {
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            
+            dos.write(__BINARY_HEADER);
+            
+            int count = 0;
+            for (String value : preferences.values())
+            {
+                if (value != null)
+                {
+                    count++;
+                }
+            }
+            dos.writeInt(count);
+            
+            for (Entry<String, String> preference : preferences.entrySet())
+            {
+                String value = preference.getValue();
+                if (value != null)
+                {
+                    _writeString(dos, preference.getKey());
+                    _writeString(dos, value);
+                }
+            }
+            
+            dos.flush();
+            return bos.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new UserPreferencesException("Error writing the preferences as binary.", e);
+        }
+    }
+    
+    private void _writeString(DataOutputStream dos, String str) throws IOException
+    {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+    
     /**
      * Write a Map of preferences as XML and return an InputStream on this XML.
      * @param preferences the preferences Map.
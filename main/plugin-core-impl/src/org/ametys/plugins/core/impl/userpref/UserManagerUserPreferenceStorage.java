@@ -97,6 +97,13 @@ public class UserManagerUserPreferenceStorage extends AbstractLogEnabled impleme
         }
     }
     
+    @Override
+    public boolean isCacheable()
+    {
+        // The user informations can be modified directly in the user directory
+        return false;
+    }
+    
     private boolean _hasChanges (User user, Map<String, String> preferences)
     {
         return (preferences.containsKey("firstname") && !preferences.get("firstname").equals(user.getFirstName()))
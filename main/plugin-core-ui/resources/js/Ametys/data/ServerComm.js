@@ -213,6 +213,8 @@ Ext.define(
 		 * 
 		 * @param {String} [message.responseType=xml] Can be "xml" (default) to have a xml response, "text" to have a single text node response or "xml2text" to have a single text node response where xml prologue as text is removed
 		 *
+		 * @param {Boolean} [message.independent=false] Set to true if the message does not depend on the other messages sent with it: the server may then process it concurrently with the other independent messages.
+		 *
          * @param {Boolean/String/Object} [message.waitMessage=false] Display a Ext.LoadMask while the request is running. Set to true to display a default loading message. Set to a string to display your message. Set to a Ext.LoadMask configuration object to do more accurate stuffs (such as covering only a component - since by default all the ui is grayed), but if no target is specified, this will use the Ametys.mask.GlobalMask and so will ignore most properties. Not available for #PRIORITY_SYNCHRONOUS requests.
 		 * 
 		 * @param {Boolean/String/Object} [message.errorMessage=false] When the request is a failure display a message to the user (using #handleBadResponse). 
@@ -280,6 +282,7 @@ Ext.define(
 					
 					m.pluginOrWorkspace = this.pluginOrWorkspace || '_' + Ametys.WORKSPACE_NAME;
 					m.responseType = this.responseType;
+					m.independent = this.independent === true;
 					m.url = this.url;
 					m.parameters = this.parameters;
 					
@@ -0,0 +1,297 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.core.ui;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.avalon.framework.activity.Disposable;
+import org.apache.avalon.framework.component.Component;
+import org.apache.avalon.framework.logger.AbstractLogEnabled;
+import org.apache.avalon.framework.thread.ThreadSafe;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.reflect.MethodUtils;
+
+/**
+ * Registry of the methods annotated with {@link Callable}, used by the {@link ExecuteClientCallsAction}.<br>
+ * The callable methods of a class are collected on the first call to this class, and each signature called by the clients
+ * is resolved once to a {@link MethodHandle}. The registry also keeps the number of calls and their duration, by callable method.
+ */
+public class CallableMethodsRegistry extends AbstractLogEnabled implements Component, ThreadSafe, Disposable
+{
+    /** Avalon role */
+    public static final String ROLE = CallableMethodsRegistry.class.getName();
+    
+    /** The generic type of the invokers: (Object, Object[])Object */
+    private static final MethodType __INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+    
+    /** The names of the callable methods, by class */
+    private final Map<Class<?>, Set<String>> _callableMethodNames = new ConcurrentHashMap<>();
+    
+    /** The resolved callable methods, by class, name and parameter types */
+    private final Map<List<Object>, CallableMethod> _callableMethods = new ConcurrentHashMap<>();
+    
+    /** The metrics, by callable method */
+    private final Map<String, CallableMethodMetrics> _metrics = new ConcurrentHashMap<>();
+    
+    /**
+     * Get the callable method to call for the given parameters
+     * @param clazz The class of the object to call
+     * @param methodName The name of the method
+     * @param parameterTypes The types of the parameters. A type can be null for a null parameter.
+     * @return The callable method
+     * @throws IllegalArgumentException if there is no such method, or if it is not callable
+     */
+    public CallableMethod getCallableMethod(Class<?> clazz, String methodName, Class<?>[] parameterTypes)
+    {
+        List<Object> key = Arrays.asList(clazz, methodName, Arrays.asList(parameterTypes));
+        
+        CallableMethod callableMethod = _callableMethods.get(key);
+        if (callableMethod == null)
+        {
+            // Only the callable methods are kept, so the clients cannot fill the registry with arbitrary names
+            if (!_getCallableMethodNames(clazz).contains(methodName))
+            {
+                Method method = _checkMethod(clazz, methodName, parameterTypes);
+                throw new IllegalArgumentException("Trying to call a non-callable method: " + method.toGenericString() + ".");
+            }
+            
+            callableMethod = _callableMethods.computeIfAbsent(key, k -> _resolve(clazz, methodName, parameterTypes));
+        }
+        
+        return callableMethod;
+    }
+    
+    /**
+     * Get the metrics of the callable methods
+     * @return the metrics, by class and method name
+     */
+    public Map<String, CallableMethodMetrics> getMetrics()
+    {
+        return Collections.unmodifiableMap(_metrics);
+    }
+    
+    private Set<String> _getCallableMethodNames(Class<?> clazz)
+    {
+        return _callableMethodNames.computeIfAbsent(clazz, c ->
+        {
+            Set<String> methodNames = new HashSet<>();
+            for (Method method : c.getMethods())
+            {
+                if (method.isAnnotationPresent(Callable.class))
+                {
+                    methodNames.add(method.getName());
+                }
+            }
+            
+            if (getLogger().isDebugEnabled())
+            {
+                getLogger().debug("Callable methods of class " + c.getName() + ": " + methodNames);
+            }
+            
+            return methodNames;
+        });
+    }
+    
+    private Method _checkMethod(Class<?> clazz, String methodName, Class<?>[] parameterTypes)
+    {
+        Method method = MethodUtils.getMatchingAccessibleMethod(clazz, methodName, parameterTypes);
+        
+        if (method == null)
+        {
+            throw new IllegalArgumentException("No method with signature " + methodName + "(" + StringUtils.join(parameterTypes, ", ").replaceAll("class ", "") + ") present in class " + clazz.getName() + ".");
+        }
+        
+        return method;
+    }
+    
+    private CallableMethod _resolve(Class<?> clazz, String methodName, Class<?>[] parameterTypes)
+    {
+        Method method = _checkMethod(clazz, methodName, parameterTypes);
+        
+        if (!method.isAnnotationPresent(Callable.class))
+        {
+            throw new IllegalArgumentException("Trying to call a non-callable method: " + method.toGenericString() + ".");
+        }
+        
+        MethodHandle handle;
+        try
+        {
+            // The parameters are spread from an array and converted (unboxed, widened) by the handle itself
+            handle = MethodHandles.publicLookup().unreflect(method)
+                    .asFixedArity()
+                    .asSpreader(Object[].class, method.getParameterCount())
+                    .asType(__INVOKER_TYPE);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalArgumentException("The method " + method.toGenericString() + " is not accessible.", e);
+        }
+        
+        CallableMethodMetrics metrics = _metrics.computeIfAbsent(clazz.getName() + "#" + methodName, k -> new CallableMethodMetrics());
+        
+        if (getLogger().isDebugEnabled())
+        {
+            getLogger().debug("Resolved callable method " + method.toGenericString() + " for class " + clazz.getName() + " and parameters " + Arrays.toString(parameterTypes));
+        }
+        
+        return new CallableMethod(method, handle, metrics);
+    }
+    
+    @Override
+    public void dispose()
+    {
+        if (getLogger().isInfoEnabled() && !_metrics.isEmpty())
+        {
+            getLogger().info("Callable methods metrics: " + _metrics);
+        }
+        
+        _callableMethodNames.clear();
+        _callableMethods.clear();
+    }
+    
+    /**
+     * A callable method, resolved for a signature
+     */
+    public static final class CallableMethod
+    {
+        private final Method _method;
+        private final MethodHandle _handle;
+        private final CallableMethodMetrics _metrics;
+        
+        CallableMethod(Method method, MethodHandle handle, CallableMethodMetrics metrics)
+        {
+            _method = method;
+            _handle = handle;
+            _metrics = metrics;
+        }
+        
+        /**
+         * Get the method
+         * @return the method
+         */
+        public Method getMethod()
+        {
+            return _method;
+        }
+        
+        /**
+         * Call the method
+         * @param object The object to call
+         * @param parameters The parameters, in the order of the method signature
+         * @return The result of the method. null for a void method.
+         * @throws Exception if the method failed
+         */
+        public Object invoke(Object object, Object[] parameters) throws Exception
+        {
+            long start = System.currentTimeMillis();
+            boolean success = false;
+            try
+            {
+                Object result = (Object) _handle.invokeExact(object, parameters);
+                success = true;
+                return result;
+            }
+            catch (Exception | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable t)
+            {
+                throw new IllegalStateException("Error while calling " + _method.toGenericString(), t);
+            }
+            finally
+            {
+                _metrics.ended(System.currentTimeMillis() - start, success);
+            }
+        }
+    }
+    
+    /**
+     * Metrics of a callable method
+     */
+    public static class CallableMethodMetrics
+    {
+        private final AtomicLong _calls = new AtomicLong();
+        private final AtomicLong _failed = new AtomicLong();
+        private final AtomicLong _totalTime = new AtomicLong();
+        private final AtomicLong _maxTime = new AtomicLong();
+        
+        void ended(long time, boolean success)
+        {
+            _calls.incrementAndGet();
+            if (!success)
+            {
+                _failed.incrementAndGet();
+            }
+            _totalTime.addAndGet(time);
+            _maxTime.accumulateAndGet(time, Math::max);
+        }
+        
+        /**
+         * Gets the number of calls, including failures
+         * @return the number of calls
+         */
+        public long getCalls()
+        {
+            return _calls.get();
+        }
+        
+        /**
+         * Gets the number of failed calls
+         * @return the number of failures
+         */
+        public long getFailed()
+        {
+            return _failed.get();
+        }
+        
+        /**
+         * Gets the average time of a call
+         * @return the average time in milliseconds
+         */
+        public long getAverageTime()
+        {
+            long calls = _calls.get();
+            return calls > 0 ? _totalTime.get() / calls : 0;
+        }
+        
+        /**
+         * Gets the maximum time of a call
+         * @return the maximum time in milliseconds
+         */
+        public long getMaxTime()
+        {
+            return _maxTime.get();
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "calls=" + getCalls() + ", failed=" + getFailed() + ", avg=" + getAverageTime() + "ms, max=" + getMaxTime() + "ms";
+        }
+    }
+}
@@ -15,11 +15,12 @@
  */
 package org.ametys.core.ui;
 
-import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.avalon.framework.parameters.Parameters;
+import org.apache.avalon.framework.service.ServiceException;
+import org.apache.avalon.framework.service.ServiceManager;
 import org.apache.avalon.framework.thread.ThreadSafe;
 import org.apache.cocoon.acting.ServiceableAction;
 import org.apache.cocoon.environment.ObjectModelHelper;
@@ -27,10 +28,9 @@ import org.apache.cocoon.environment.Redirector;
 import org.apache.cocoon.environment.Request;
 import org.apache.cocoon.environment.SourceResolver;
 import org.apache.commons.lang3.ClassUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.reflect.MethodUtils;
 
 import org.ametys.core.cocoon.JSonReader;
+import org.ametys.core.ui.CallableMethodsRegistry.CallableMethod;
 import org.ametys.runtime.plugin.ExtensionPoint;
 
 /**
@@ -39,6 +39,15 @@ import org.ametys.runtime.plugin.ExtensionPoint;
  */
 public class ExecuteClientCallsAction extends ServiceableAction implements ThreadSafe
 {
+    private CallableMethodsRegistry _callableMethodsRegistry;
+    
+    @Override
+    public void service(ServiceManager smanager) throws ServiceException
+    {
+        super.service(smanager);
+        _callableMethodsRegistry = (CallableMethodsRegistry) smanager.lookup(CallableMethodsRegistry.ROLE);
+    }
+    
     @SuppressWarnings("unchecked")
     @Override
     public Map act(Redirector redirector, SourceResolver resolver, Map objectModel, String source, Parameters parameters) throws Exception
@@ -109,34 +118,13 @@ public class ExecuteClientCallsAction extends ServiceableAction implements Threa
             paramClass = ClassUtils.toClass(paramValues);
         }
         
-        Class<? extends Object> clazz = object.getClass();
-        Method method = MethodUtils.getMatchingAccessibleMethod(clazz, methodName, paramClass);
+        CallableMethod method = _callableMethodsRegistry.getCallableMethod(object.getClass(), methodName, paramClass);
         
-        if (method == null)
-        {
-            throw new IllegalArgumentException("No method with signature " + methodName + "(" + StringUtils.join(paramClass, ", ").replaceAll("class ", "") + ") present in class " + clazz.getName() + ".");
-        }
-        
-        Object result = _executeMethod(method, object, paramValues);
+        Object result = method.invoke(object, paramValues);
         
         Request request = ObjectModelHelper.getRequest(objectModel);
         request.setAttribute(JSonReader.OBJECT_TO_READ, result);
         
         return EMPTY_MAP;
     }
-    
-    private Object _executeMethod(Method method, Object object, Object[] paramValues) throws Exception
-    {
-        Object result = null;
-        if (method.isAnnotationPresent(Callable.class))
-        {
-            result = method.invoke(object, paramValues);
-        }
-        else
-        {
-            throw new IllegalArgumentException("Trying to call a non-callable method: " + method.toGenericString() + ".");
-        }
-        
-        return result;
-    }
 }
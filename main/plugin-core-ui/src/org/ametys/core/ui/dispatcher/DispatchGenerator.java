@@ -18,6 +18,7 @@ package org.ametys.core.ui.dispatcher;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -25,16 +26,35 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.avalon.framework.component.WrapperComponentManager;
+import org.apache.avalon.framework.configuration.Configurable;
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
 import org.apache.avalon.framework.service.ServiceException;
 import org.apache.avalon.framework.service.ServiceManager;
 import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.Processor;
 import org.apache.cocoon.ResourceNotFoundException;
+import org.apache.cocoon.components.CocoonComponentManager;
+import org.apache.cocoon.environment.AbstractEnvironment;
+import org.apache.cocoon.environment.Environment;
 import org.apache.cocoon.environment.ObjectModelHelper;
 import org.apache.cocoon.environment.Request;
+import org.apache.cocoon.environment.wrapper.AbstractRequestWrapper;
 import org.apache.cocoon.generation.ServiceableGenerator;
 import org.apache.cocoon.util.location.LocatedException;
 import org.apache.cocoon.xml.AttributesImpl;
+import org.apache.cocoon.xml.SAXBuffer;
 import org.apache.cocoon.xml.XMLUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
@@ -47,16 +67,31 @@ import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
 import org.ametys.core.util.IgnoreRootHandler;
 import org.ametys.core.util.JSONUtils;
 
 /**
  * This generator read the request incoming from the client org.ametys.servercomm.ServerComm component,
  * then dispatch it to given url
- * and aggregate the result 
+ * and aggregate the result.<br>
+ * The messages flagged as <code>independent</code> by the client are dispatched concurrently, after the other ones,
+ * when the <code>&lt;parallel-threads&gt;</code> configuration is greater than 0 (it is 0 by default).
+ * Each of them is dispatched in its own environment, with its own copy of the request attributes, so they do not see the attributes set by each other.
+ * Their responses are written in completion order.
  */
-public class DispatchGenerator extends ServiceableGenerator
+public class DispatchGenerator extends ServiceableGenerator implements Configurable
 {
+    /** The executor shared by all the dispatch generators, created by the first one configured with parallel threads and shut down with the last one */
+    private static ThreadPoolExecutor __executor;
+    
+    /** The number of dispatch generators using the executor */
+    private static int __executorUsers;
+    
+    private int _parallelThreads;
+    
     private SourceResolver _resolver;
     private SAXParser _saxParser;
     private DispatchProcessExtensionPoint _dispatchProcessExtensionPoint;
@@ -73,6 +108,62 @@ public class DispatchGenerator extends ServiceableGenerator
         _jsonUtils = (JSONUtils) manager.lookup(JSONUtils.ROLE);
     }
     
+    @Override
+    public void configure(Configuration configuration) throws ConfigurationException
+    {
+        _parallelThreads = configuration.getChild("parallel-threads").getValueAsInteger(0);
+        if (_parallelThreads > 0)
+        {
+            _acquireExecutor(_parallelThreads);
+        }
+    }
+    
+    @Override
+    public void dispose()
+    {
+        if (_parallelThreads > 0)
+        {
+            _releaseExecutor();
+            _parallelThreads = 0;
+        }
+        
+        super.dispose();
+    }
+    
+    private static synchronized void _acquireExecutor(int threads)
+    {
+        if (__executor == null)
+        {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 
+                                                                 new ThreadFactoryBuilder().setNameFormat("DispatchGenerator-%d").setDaemon(true).build());
+            executor.allowCoreThreadTimeOut(true);
+            __executor = executor;
+        }
+        else if (threads > __executor.getMaximumPoolSize())
+        {
+            // The generators may be configured differently: the largest configuration wins
+            __executor.setMaximumPoolSize(threads);
+            __executor.setCorePoolSize(threads);
+        }
+        
+        __executorUsers++;
+    }
+    
+    private static synchronized void _releaseExecutor()
+    {
+        if (--__executorUsers == 0)
+        {
+            // The running messages are completed
+            __executor.shutdown();
+            __executor = null;
+        }
+    }
+    
+    private static synchronized ExecutorService _getExecutor()
+    {
+        return __executor;
+    }
+    
     @Override
     public void generate() throws IOException, SAXException, ProcessingException
     {
@@ -106,107 +197,268 @@ public class DispatchGenerator extends ServiceableGenerator
     {
         Map<String, Object> attributes = _saveRequestAttributes();
         
+        List<String> independentParameterKeys = new ArrayList<>();
+        if (_parallelThreads > 0)
+        {
+            for (String parameterKey : parametersAsMap.keySet())
+            {
+                Map<String, Object> parameterObject = (Map<String, Object>) parametersAsMap.get(parameterKey);
+                if (Boolean.TRUE.equals(parameterObject.get("independent")))
+                {
+                    independentParameterKeys.add(parameterKey);
+                }
+            }
+            
+            if (independentParameterKeys.size() < 2)
+            {
+                // Nothing to parallelize
+                independentParameterKeys.clear();
+            }
+        }
+        
         for (String parameterKey : parametersAsMap.keySet())
         {
-            for (String extension : _dispatchProcessExtensionPoint.getExtensionsIds())
+            if (independentParameterKeys.contains(parameterKey))
             {
-                DispatchRequestProcess processor = _dispatchProcessExtensionPoint.getExtension(extension);
-                processor.preProcess(ObjectModelHelper.getRequest(objectModel));
+                continue;
             }
+            
+            Request request = ObjectModelHelper.getRequest(objectModel);
+            
+            _preProcess(request);
 
-            _setContextInRequestAttributes(contextAsMap);
+            _setContextInRequestAttributes(request, contextAsMap);
 
             Map<String, Object> parameterObject = (Map<String, Object>) parametersAsMap.get(parameterKey);
-
-            String pluginOrWorkspace = (String) parameterObject.get("pluginOrWorkspace");
-            String relativeUrl = (String) parameterObject.get("url");
-            String responseType = (String) parameterObject.get("responseType");
-            
-            Map<String, Object> requestParameters = (Map<String, Object>) parameterObject.get("parameters");
             
-            Source response = null;
-
-            ResponseHandler responseHandler = null;
             try
             {
-                String url = _createUrl(pluginOrWorkspace, relativeUrl, requestParameters != null ? requestParameters : new HashMap<String, Object>());
+                _dispatch(parameterKey, parameterObject, contentHandler, _saxParser);
+            }
+            finally
+            {
+                _postProcess(request);
                 
-                if (getLogger().isInfoEnabled())
+                _restoreRequestAttributes(attributes);
+            }
+        }
+        
+        if (!independentParameterKeys.isEmpty())
+        {
+            _parallelDispatching(independentParameterKeys, parametersAsMap, contextAsMap, attributes);
+        }
+    }
+    
+    /**
+     * Dispatch the independent messages concurrently, and write their responses in completion order
+     * @param parameterKeys The ids of the independent messages
+     * @param parametersAsMap The messages
+     * @param contextAsMap The context of the messages
+     * @param attributes The original request attributes
+     * @throws SAXException if an error occurred while writing the responses
+     */
+    @SuppressWarnings("unchecked")
+    private void _parallelDispatching(List<String> parameterKeys, Map<String, Object> parametersAsMap, Map<String, Object> contextAsMap, Map<String, Object> attributes) throws SAXException
+    {
+        // The sub-requests are processed in an environment derived from the one of the current request
+        Environment environment = CocoonComponentManager.getCurrentEnvironment();
+        Processor processor = CocoonComponentManager.getCurrentProcessor();
+        Request parentRequest = ObjectModelHelper.getRequest(objectModel);
+        
+        BlockingQueue<Future<SAXBuffer>> completedResponses = new LinkedBlockingQueue<>();
+        CompletionService<SAXBuffer> completionService = new ExecutorCompletionService<>(_getExecutor(), completedResponses);
+        for (String parameterKey : parameterKeys)
+        {
+            Map<String, Object> parameterObject = (Map<String, Object>) parametersAsMap.get(parameterKey);
+            
+            // Each message has its own copy of the attributes, as the sequential messages
+            Request request = new DispatchRequest(parentRequest, attributes);
+            _setContextInRequestAttributes(request, contextAsMap);
+            
+            completionService.submit(() -> _dispatchInEnvironment(parameterKey, parameterObject, request, environment, processor));
+        }
+        
+        SAXException exception = null;
+        
+        // Wait for all the messages, even on error: the environment must not be left while they are running
+        for (int i = 0; i < parameterKeys.size(); i++)
+        {
+            try
+            {
+                SAXBuffer response = Uninterruptibles.getUninterruptibly(Uninterruptibles.takeUninterruptibly(completedResponses));
+                if (exception == null)
                 {
-                    getLogger().info("Dispatching url '" + url + "'");
+                    response.toSAX(contentHandler);
                 }
-
-                response = _resolver.resolveURI(url, null, requestParameters);
-
-                responseHandler = new ResponseHandler(contentHandler, parameterKey, "200");
-                
-                try (InputStream is = response.getInputStream())
+            }
+            catch (ExecutionException e)
+            {
+                if (exception == null)
                 {
-                    if ("xml".equalsIgnoreCase(responseType))
-                    {
-                        // DO NOT USE SitemapSource.toSAX in this case
-                        _saxParser.parse(new InputSource(is), responseHandler);
-                    }
-                    else 
-                    {
-                        responseHandler.startDocument();
-                        
-                        String data = IOUtils.toString(is, "UTF-8");
-                        if ("xml2text".equalsIgnoreCase(responseType))
-                        {
-                            // removing xml prolog and surrounding 'text' tag
-                            data = data.substring(data.indexOf(">", data.indexOf("?>") + 2) + 1, data.lastIndexOf("<"));
-                        }
-                        XMLUtils.data(responseHandler, data);
-                        
-                        responseHandler.endDocument();
-                    }
+                    Throwable cause = e.getCause();
+                    exception = new SAXException("Can not dispatch requests " + parameterKeys, cause instanceof Exception ? (Exception) cause : e);
                 }
             }
-            catch (Throwable e)
+            catch (SAXException e)
             {
-                String message = String.format("Can not dispatch request '%s' : '%s' '%s' '%s'",  parameterKey , pluginOrWorkspace,  relativeUrl,  requestParameters);
-                
-                // Ensure SAXException are unrolled the right way
-                getLogger().error(message, new LocatedException(message, e));
-                
-                // Makes the output xml ok 
-                if (responseHandler != null)
+                exception = e;
+            }
+        }
+        
+        if (exception != null)
+        {
+            throw exception;
+        }
+    }
+    
+    private SAXBuffer _dispatchInEnvironment(String parameterKey, Map<String, Object> parameterObject, Request request, Environment parentEnvironment, Processor processor) throws Exception
+    {
+        DispatchEnvironment environment = new DispatchEnvironment(parentEnvironment, request);
+        environment.enableLogging(getLogger());
+        
+        Object processingKey = CocoonComponentManager.startProcessing(environment);
+        int environmentDepth = CocoonComponentManager.markEnvironment();
+        CocoonComponentManager.enterEnvironment(environment, new WrapperComponentManager(manager), processor);
+        
+        SAXParser saxParser = null;
+        try
+        {
+            // A parser per thread
+            saxParser = (SAXParser) manager.lookup(SAXParser.ROLE);
+            
+            _preProcess(request);
+            
+            SAXBuffer response = new SAXBuffer();
+            try
+            {
+                _dispatch(parameterKey, parameterObject, response, saxParser);
+            }
+            finally
+            {
+                _postProcess(request);
+            }
+            
+            return response;
+        }
+        finally
+        {
+            manager.release(saxParser);
+            
+            CocoonComponentManager.leaveEnvironment();
+            CocoonComponentManager.endProcessing(environment, processingKey);
+            CocoonComponentManager.checkEnvironment(environmentDepth, getLogger());
+        }
+    }
+    
+    private void _preProcess(Request request)
+    {
+        for (String extension : _dispatchProcessExtensionPoint.getExtensionsIds())
+        {
+            DispatchRequestProcess processor = _dispatchProcessExtensionPoint.getExtension(extension);
+            processor.preProcess(request);
+        }
+    }
+    
+    private void _postProcess(Request request)
+    {
+        for (String extension : _dispatchProcessExtensionPoint.getExtensionsIds())
+        {
+            DispatchRequestProcess processor = _dispatchProcessExtensionPoint.getExtension(extension);
+            processor.postProcess(request);
+        }
+    }
+    
+    /**
+     * Dispatch a message and write its response
+     * @param parameterKey The id of the message
+     * @param parameterObject The message
+     * @param handler The handler to write the response to
+     * @param saxParser The parser for the xml responses
+     * @throws SAXException if an error occurred while writing the response
+     */
+    @SuppressWarnings("unchecked")
+    private void _dispatch(String parameterKey, Map<String, Object> parameterObject, ContentHandler handler, SAXParser saxParser) throws SAXException
+    {
+        String pluginOrWorkspace = (String) parameterObject.get("pluginOrWorkspace");
+        String relativeUrl = (String) parameterObject.get("url");
+        String responseType = (String) parameterObject.get("responseType");
+        
+        Map<String, Object> requestParameters = (Map<String, Object>) parameterObject.get("parameters");
+        
+        Source response = null;
+
+        ResponseHandler responseHandler = null;
+        try
+        {
+            String url = _createUrl(pluginOrWorkspace, relativeUrl, requestParameters != null ? requestParameters : new HashMap<String, Object>());
+            
+            if (getLogger().isInfoEnabled())
+            {
+                getLogger().info("Dispatching url '" + url + "'");
+            }
+
+            response = _resolver.resolveURI(url, null, requestParameters);
+
+            responseHandler = new ResponseHandler(handler, parameterKey, "200");
+            
+            try (InputStream is = response.getInputStream())
+            {
+                if ("xml".equalsIgnoreCase(responseType))
                 {
-                    responseHandler.exceptionFinish();
+                    // DO NOT USE SitemapSource.toSAX in this case
+                    saxParser.parse(new InputSource(is), responseHandler);
                 }
-                
-                Throwable t = _unroll(e);
-                
-                String code = "500";
-                if (t instanceof ResourceNotFoundException || t.toString().startsWith("org.apache.cocoon.ResourceNotFoundException:"))
+                else 
                 {
-                    code = "404";
+                    responseHandler.startDocument();
+                    
+                    String data = IOUtils.toString(is, "UTF-8");
+                    if ("xml2text".equalsIgnoreCase(responseType))
+                    {
+                        // removing xml prolog and surrounding 'text' tag
+                        data = data.substring(data.indexOf(">", data.indexOf("?>") + 2) + 1, data.lastIndexOf("<"));
+                    }
+                    XMLUtils.data(responseHandler, data);
+                    
+                    responseHandler.endDocument();
                 }
-                
-                AttributesImpl attrs = new AttributesImpl();
-                attrs.addCDATAAttribute("id", parameterKey);
-                attrs.addCDATAAttribute("code", code);
-                
-                String exceptionMessage = t.getMessage();
-
-                XMLUtils.startElement(contentHandler, "response", attrs);
-                XMLUtils.createElement(contentHandler, "message", _escape(exceptionMessage != null ? exceptionMessage : ""));
-                XMLUtils.createElement(contentHandler, "stacktrace", _escape(ExceptionUtils.getFullStackTrace(t)));
-                XMLUtils.endElement(contentHandler, "response");
             }
-            finally
+        }
+        catch (Throwable e)
+        {
+            String message = String.format("Can not dispatch request '%s' : '%s' '%s' '%s'",  parameterKey , pluginOrWorkspace,  relativeUrl,  requestParameters);
+            
+            // Ensure SAXException are unrolled the right way
+            getLogger().error(message, new LocatedException(message, e));
+            
+            // Makes the output xml ok 
+            if (responseHandler != null)
             {
-                _resolver.release(response);
-                
-                for (String extension : _dispatchProcessExtensionPoint.getExtensionsIds())
-                {
-                    DispatchRequestProcess processor = _dispatchProcessExtensionPoint.getExtension(extension);
-                    processor.postProcess(ObjectModelHelper.getRequest(objectModel));
-                }
-                
-                _restoreRequestAttributes(attributes);
+                responseHandler.exceptionFinish();
+            }
+            
+            Throwable t = _unroll(e);
+            
+            String code = "500";
+            if (t instanceof ResourceNotFoundException || t.toString().startsWith("org.apache.cocoon.ResourceNotFoundException:"))
+            {
+                code = "404";
             }
+            
+            AttributesImpl attrs = new AttributesImpl();
+            attrs.addCDATAAttribute("id", parameterKey);
+            attrs.addCDATAAttribute("code", code);
+            
+            String exceptionMessage = t.getMessage();
+
+            XMLUtils.startElement(handler, "response", attrs);
+            XMLUtils.createElement(handler, "message", _escape(exceptionMessage != null ? exceptionMessage : ""));
+            XMLUtils.createElement(handler, "stacktrace", _escape(ExceptionUtils.getFullStackTrace(t)));
+            XMLUtils.endElement(handler, "response");
+        }
+        finally
+        {
+            _resolver.release(response);
         }
     }
     
@@ -249,12 +501,10 @@ public class DispatchGenerator extends ServiceableGenerator
         }
     }
     
-    private void _setContextInRequestAttributes(Map<String, Object> contextAsMap)
+    private void _setContextInRequestAttributes(Request request, Map<String, Object> contextAsMap)
     {
         if (contextAsMap != null)
         {
-            Request request = ObjectModelHelper.getRequest(objectModel);
-    
             for (String name : contextAsMap.keySet())
             {
                 request.setAttribute(name, contextAsMap.get(name));
@@ -494,4 +744,91 @@ public class DispatchGenerator extends ServiceableGenerator
             super.endDocument();
         }
     }
+    
+    /**
+     * Request of an independent message, with its own attributes. The other calls are delegated to the request of the dispatch generator.
+     */
+    private static class DispatchRequest extends AbstractRequestWrapper
+    {
+        private final Map<String, Object> _attributes;
+        
+        DispatchRequest(Request request, Map<String, Object> attributes)
+        {
+            super(request);
+            _attributes = new HashMap<>(attributes);
+        }
+        
+        @Override
+        public synchronized Object getAttribute(String name)
+        {
+            return _attributes.get(name);
+        }
+        
+        @Override
+        public synchronized Enumeration<String> getAttributeNames()
+        {
+            return Collections.enumeration(new ArrayList<>(_attributes.keySet()));
+        }
+        
+        @Override
+        public synchronized void setAttribute(String name, Object value)
+        {
+            if (value == null)
+            {
+                _attributes.remove(name);
+            }
+            else
+            {
+                _attributes.put(name, value);
+            }
+        }
+        
+        @Override
+        public synchronized void removeAttribute(String name)
+        {
+            _attributes.remove(name);
+        }
+    }
+    
+    /**
+     * Environment of an independent message: the environment of the dispatch generator, with the request of the message.
+     */
+    private static class DispatchEnvironment extends AbstractEnvironment
+    {
+        private final Environment _parent;
+        
+        DispatchEnvironment(Environment parent, Request request) throws MalformedURLException
+        {
+            super(parent.getURI(), parent.getView(), ObjectModelHelper.getContext(parent.getObjectModel()).getRealPath("/"), parent.getAction());
+            _parent = parent;
+            
+            objectModel.putAll(parent.getObjectModel());
+            objectModel.put(ObjectModelHelper.REQUEST_OBJECT, request);
+        }
+        
+        public String getContentType()
+        {
+            return _parent.getContentType();
+        }
+        
+        public boolean isExternal()
+        {
+            return false;
+        }
+        
+        public void redirect(boolean sessionmode, String url) throws IOException
+        {
+            _parent.redirect(sessionmode, url);
+        }
+        
+        public void setContentLength(int length)
+        {
+            // The responses are buffered
+        }
+        
+        public void setContentType(String mimeType)
+        {
+            // The responses are buffered
+        }
+    }
 }
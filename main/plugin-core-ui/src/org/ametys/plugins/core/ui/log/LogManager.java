@@ -23,7 +23,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
 
 import org.apache.avalon.framework.component.Component;
 import org.apache.avalon.framework.context.Context;
@@ -91,7 +90,7 @@ public class LogManager implements Component, Contextualizable
 
         MemoryAppender memoryAppender = (MemoryAppender) appender;
         
-        SortedSet<MemoryLogRecord> recentEvents = memoryAppender.getRecentEvents(timeDelimiter);
+        List<MemoryLogRecord> recentEvents = memoryAppender.getRecentEvents(timeDelimiter);
         
         List<Map<String, Object>> events = new ArrayList<>();
         
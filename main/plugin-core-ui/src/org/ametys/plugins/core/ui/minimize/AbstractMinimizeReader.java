@@ -16,9 +16,22 @@
 
 package org.ametys.plugins.core.ui.minimize;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.avalon.framework.service.ServiceException;
 import org.apache.avalon.framework.service.ServiceManager;
@@ -28,21 +41,37 @@ import org.apache.cocoon.environment.ObjectModelHelper;
 import org.apache.cocoon.environment.Response;
 import org.apache.cocoon.reading.ServiceableReader;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.excalibur.source.SourceResolver;
 import org.apache.excalibur.source.SourceValidity;
 import org.apache.excalibur.source.impl.validity.NOPValidity;
 import org.xml.sax.SAXException;
 
 import org.ametys.plugins.core.ui.minimize.MinimizeTransformer.FileData;
+import org.ametys.runtime.util.AmetysHomeHelper;
 
 /**
  * This generator generates a single file to load all ui items files.
- * Can generates a list of imports of directly intergrates all files.
+ * Can generates a list of imports of directly intergrates all files.<br>
+ * The source is the hash computed by the {@link MinimizeTransformer}, which changes with the files: the bundles are built once,
+ * stored on disk with their gzipped variant, and can be cached forever by the clients.
  */
 public abstract class AbstractMinimizeReader extends ServiceableReader implements CacheableProcessingComponent
 {
+    /** The bundles which were not used for this time are removed from the disk cache */
+    private static final long __CACHE_FILE_TTL = TimeUnit.DAYS.toMillis(30);
+    
+    /** Suffix of the files being written */
+    private static final String __TMP_SUFFIX = ".tmp";
+    
+    /** True when the old bundles were removed */
+    private static final AtomicBoolean __CACHE_PURGED = new AtomicBoolean();
+    
     /** The source resolver */
     protected SourceResolver _resolver;
+    
+    /** True if the bundle is sent gzipped */
+    protected boolean _gzip;
 
     @Override
     public void service(ServiceManager smanager) throws ServiceException
@@ -54,7 +83,7 @@ public abstract class AbstractMinimizeReader extends ServiceableReader implement
     @Override
     public Serializable getKey()
     {
-        return source;
+        return _gzip ? source + ";gzip" : source;
     }
 
     @Override
@@ -74,27 +103,149 @@ public abstract class AbstractMinimizeReader extends ServiceableReader implement
     {
         super.setup(res, obj, src, par);
         Response response = ObjectModelHelper.getResponse(objectModel);
-        response.setDateHeader("Expires", System.currentTimeMillis() + 365 * 24 * 60 * 60 * 1000);
+        response.setDateHeader("Expires", System.currentTimeMillis() + 365L * 24 * 60 * 60 * 1000);
+        response.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+        response.setHeader("Vary", "Accept-Encoding");
+        
+        _gzip = StringUtils.containsIgnoreCase(ObjectModelHelper.getRequest(objectModel).getHeader("Accept-Encoding"), "gzip");
+        if (_gzip)
+        {
+            // Set here rather than in generate, which is not called when the pipeline cache serves the bundle
+            response.setHeader("Content-Encoding", "gzip");
+        }
     }
 
     @Override
     public void generate() throws IOException, SAXException, ProcessingException
     {
-        StringBuffer sb = new StringBuffer("");
-
+        try
+        {
+            File bundleFile = _getBundleFile(_gzip);
+            if (bundleFile != null)
+            {
+                try (InputStream is = new FileInputStream(bundleFile))
+                {
+                    // Built before, possibly before a restart
+                    bundleFile.setLastModified(System.currentTimeMillis());
+                    IOUtils.copy(is, out);
+                    return;
+                }
+                catch (FileNotFoundException e)
+                {
+                    // Not built yet
+                }
+            }
+            
+            byte[] bundle = _buildBundle().getBytes(StandardCharsets.UTF_8);
+            byte[] gzippedBundle = _gzip(bundle);
+            
+            _storeBundle(bundle, false);
+            _storeBundle(gzippedBundle, true);
+            
+            out.write(_gzip ? gzippedBundle : bundle);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+        }
+    }
+    
+    /**
+     * Build the bundle from the files registered by the {@link MinimizeTransformer}
+     * @return The bundle
+     */
+    protected String _buildBundle()
+    {
         List<FileData> files = MinimizeTransformer.getFilesForHash(source);
         if (files == null) 
         {
             throw new IllegalStateException("There is no list of file to minimize for hashcode '" + source + "'");
         }
         
+        String contextPath = ObjectModelHelper.getRequest(objectModel).getContextPath();
+        
+        StringBuilder sb = new StringBuilder();
         for (FileData file : files)
         {
-            sb.append(_handleFile(file, ObjectModelHelper.getRequest(objectModel).getContextPath()));
+            sb.append(_handleFile(file, contextPath));
+        }
+        
+        return sb.toString();
+    }
+    
+    private byte[] _gzip(byte[] bundle) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(bundle.length / 4);
+        try (OutputStream gzos = new GZIPOutputStream(bos))
+        {
+            gzos.write(bundle);
+        }
+        return bos.toByteArray();
+    }
+    
+    /**
+     * Get the file of the bundle in the disk cache
+     * @param gzipped true for the gzipped variant
+     * @return The file, or null if the source is not a valid hash
+     */
+    private File _getBundleFile(boolean gzipped)
+    {
+        if (!source.matches("[0-9a-f]+"))
+        {
+            return null;
+        }
+        
+        File directory = new File(AmetysHomeHelper.getAmetysHomeData(), "cache" + File.separator + "minimized-resources");
+        if (__CACHE_PURGED.compareAndSet(false, true))
+        {
+            directory.mkdirs();
+            
+            long now = System.currentTimeMillis();
+            File[] files = directory.listFiles();
+            for (File file : files != null ? files : new File[0])
+            {
+                if (file.lastModified() < now - __CACHE_FILE_TTL || (file.getName().endsWith(__TMP_SUFFIX) && file.lastModified() < now - 60000))
+                {
+                    file.delete();
+                }
+            }
+        }
+        
+        String extension = StringUtils.substringAfter(StringUtils.substringBefore(getMimeType(), ";"), "/");
+        return new File(directory, source + "." + extension + (gzipped ? ".gz" : ""));
+    }
+    
+    private void _storeBundle(byte[] bundle, boolean gzipped)
+    {
+        File bundleFile = _getBundleFile(gzipped);
+        if (bundleFile == null)
+        {
+            return;
+        }
+        
+        File tmpFile = null;
+        try
+        {
+            // The bundle is written in a temporary file, so that it is never read partially
+            tmpFile = File.createTempFile(bundleFile.getName(), __TMP_SUFFIX, bundleFile.getParentFile());
+            try (OutputStream os = new FileOutputStream(tmpFile))
+            {
+                os.write(bundle);
+            }
+            
+            Files.move(tmpFile.toPath(), bundleFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            getLogger().warn("Unable to store the minimized resource " + bundleFile.getName() + " on disk", e);
+        }
+        finally
+        {
+            if (tmpFile != null)
+            {
+                tmpFile.delete();
+            }
         }
-
-        IOUtils.write(sb.toString(), out);
-        IOUtils.closeQuietly(out);
     }
 
     /**
@@ -22,13 +22,18 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URI;
+import java.util.Locale;
 
+import org.apache.cocoon.i18n.I18nUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.excalibur.source.Source;
 import org.mozilla.javascript.EvaluatorException;
 
+import org.ametys.core.cocoon.I18nTextResourceHandler;
 import org.ametys.plugins.core.ui.minimize.MinimizeTransformer.FileData;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
 
 /**
@@ -37,6 +42,12 @@ import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
  */
 public class MinimizeJSReader extends AbstractMinimizeReader
 {
+    /** The minimized files, by uri, locale and content, shared by the bundles. Bounded to about 32M characters. */
+    private static final Cache<String, String> __MINIMIZED_FILES = CacheBuilder.newBuilder()
+            .maximumWeight(32 * 1024 * 1024)
+            .weigher((String key, String value) -> value.length())
+            .build();
+    
     @Override
     public String getMimeType()
     {
@@ -45,6 +56,39 @@ public class MinimizeJSReader extends AbstractMinimizeReader
 
     @Override
     protected String _handleFile(FileData file, String contextPath)
+    {
+        // The files may be translated, so they are shared between the bundles of the same locale only
+        String contentHash = file.getContentHash();
+        String key = contentHash != null ? file.getUri() + "#" + _getLocale() + "#" + contentHash : null;
+        
+        String minimizedFile = key != null ? __MINIMIZED_FILES.getIfPresent(key) : null;
+        if (minimizedFile == null)
+        {
+            minimizedFile = _minimizeFile(file);
+            if (key != null && minimizedFile != null)
+            {
+                __MINIMIZED_FILES.put(key, minimizedFile);
+            }
+        }
+        
+        return minimizedFile != null ? minimizedFile : "/** ERROR while minimizing " + file.getUri() + "*/";
+    }
+    
+    /**
+     * Get the locale of the files, as determined by the {@link I18nTextResourceHandler}
+     * @return The language of the locale
+     */
+    private String _getLocale()
+    {
+        return I18nUtils.findLocale(objectModel, "locale", null, Locale.getDefault(), true).getLanguage();
+    }
+    
+    /**
+     * Minimize a file
+     * @param file The file
+     * @return The minimized file, or null if it cannot be minimized
+     */
+    private String _minimizeFile(FileData file)
     {
         StringBuffer sb = new StringBuffer();
         
@@ -90,7 +134,7 @@ public class MinimizeJSReader extends AbstractMinimizeReader
             {
                 getLogger().error("Cannot minimize JS for file '" + file + "'.", e);
             }
-            sb.append("/** ERROR " + e.getMessage() + "*/");
+            return null;
         }
         finally
         {
@@ -18,11 +18,11 @@ package org.ametys.plugins.core.ui.minimize;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -32,6 +32,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -49,11 +50,14 @@ import org.apache.cocoon.components.ContextHelper;
 import org.apache.cocoon.environment.Request;
 import org.apache.cocoon.transformation.ServiceableTransformer;
 import org.apache.cocoon.xml.AttributesImpl;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceResolver;
+import org.apache.excalibur.source.SourceValidity;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
@@ -69,8 +73,11 @@ public class MinimizeTransformer extends ServiceableTransformer implements Conte
     private static final Pattern IMPORT_WITHOUT_MEDIA_PATTERN = Pattern.compile("^@import\\b\\s*(?:(?:url)?\\(?\\s*[\"']?)([^)\"']*)[\"']?\\)?\\s*;?$", Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
     private static final Pattern EXTERNAL_URL = Pattern.compile("^(http[s]?://[^/]+)(/.*)?$");
     
-    /* Hash cache */
-    private static Map<String, List<FileData>> _hashCache = new HashMap<>();
+    /* Hash cache, shared by all the transformers and readers */
+    private static Map<String, List<FileData>> _hashCache = new ConcurrentHashMap<>();
+    
+    /* Hashes of the content of the files, with the validity of the source they were computed from */
+    private static Map<String, ContentHash> _contentHashCache = new ConcurrentHashMap<>();
 
     /* Cocoon Source Resolver */
     private SourceResolver _resolver;
@@ -85,7 +92,7 @@ public class MinimizeTransformer extends ServiceableTransformer implements Conte
     private String _currentContextPath;
     
     /* Dependencies cache */
-    private Map<String, Long> _dependenciesCacheValidity;
+    private Map<String, String> _dependenciesCacheValidity;
     private Map<String, List<String>> _dependenciesCache;
 
     /* Current queue being minified */
@@ -399,59 +406,108 @@ public class MinimizeTransformer extends ServiceableTransformer implements Conte
         {
             throw new SAXException("Unable to resolve the dependencies of specified uri", e);
         }
-        long fileLastModified = resolveParameters.get(ImageResourceHandler.LAST_MODIFIED) != null ? (long) resolveParameters.get("lastModified") : -1;
-         
-        FileData fileInfos = new FileData(cssUri);
-        fileInfos.setLastModified(fileLastModified);
-        fileInfos.setMedia(media);
-        dependencies.add(fileInfos);
         
-        Long validity = _dependenciesCacheValidity.get(cssUri);
-        if (validity == null || validity != fileLastModified)
+        try
         {
-            // cache is outdated
-            List<String> dependenciesCache = new ArrayList<>();
+            long fileLastModified = resolveParameters.get(ImageResourceHandler.LAST_MODIFIED) != null ? (long) resolveParameters.get("lastModified") : -1;
             
-            if ("link".equals(tag))
+            // The modification date is unknown for some sources, and only concerns the root file of the compiled ones: the content is used instead.
+            // It is only read again when the validity of the source changed
+            SourceValidity sourceValidity = fileSource.getValidity();
+            ContentHash cachedContentHash = _contentHashCache.get(cssUri);
+            
+            String fileContent = null;
+            String contentHash;
+            if (cachedContentHash != null && cachedContentHash.isValid(sourceValidity))
+            {
+                contentHash = cachedContentHash._hash;
+            }
+            else
+            {
+                fileContent = _readContent(fileSource, cssUri, tag);
+                contentHash = fileContent != null ? DigestUtils.sha1Hex(fileContent) : null;
+                
+                if (sourceValidity != null && contentHash != null)
+                {
+                    _contentHashCache.put(cssUri, new ContentHash(contentHash, sourceValidity));
+                }
+                else
+                {
+                    _contentHashCache.remove(cssUri);
+                }
+            }
+            
+            FileData fileInfos = new FileData(cssUri);
+            fileInfos.setLastModified(fileLastModified);
+            fileInfos.setContentHash(contentHash);
+            fileInfos.setMedia(media);
+            dependencies.add(fileInfos);
+            
+            String validity = _dependenciesCacheValidity.get(cssUri);
+            if (validity == null || !validity.equals(contentHash))
             {
-                for (FileData cssDependency : _getCssFileDependencies(cssUri, fileSource, tag))
+                // cache is outdated
+                List<String> dependenciesCache = new ArrayList<>();
+                
+                if ("link".equals(tag))
                 {
-                    if (!dependenciesCache.contains(cssDependency.getUri()))
+                    if (fileContent == null)
+                    {
+                        fileContent = _readContent(fileSource, cssUri, tag);
+                    }
+                    
+                    for (FileData cssDependency : _getCssFileDependencies(cssUri, fileContent, tag))
                     {
-                        dependenciesCache.add(cssDependency.getUri());
-                        dependencies.add(cssDependency);
+                        if (!dependenciesCache.contains(cssDependency.getUri()))
+                        {
+                            dependenciesCache.add(cssDependency.getUri());
+                            dependencies.add(cssDependency);
+                        }
                     }
                 }
+                
+                _dependenciesCache.put(cssUri, dependenciesCache);
+                _dependenciesCacheValidity.put(cssUri, contentHash);
             }
-            
-            _dependenciesCache.put(cssUri, dependenciesCache);
-            _dependenciesCacheValidity.put(cssUri, fileLastModified);
-        }
-        else
-        {
-            // cache is up to date
-            for (String dependencyCached : _dependenciesCache.get(cssUri))
+            else
             {
-                dependencies.addAll(_getFileDependencies(dependencyCached, null, tag));
+                // cache is up to date
+                for (String dependencyCached : _dependenciesCache.get(cssUri))
+                {
+                    dependencies.addAll(_getFileDependencies(dependencyCached, null, tag));
+                }
             }
         }
+        finally
+        {
+            _resolver.release(fileSource);
+        }
         
         return dependencies;
     }
     
-    private List<FileData> _getCssFileDependencies(String uri, Source cssSource, String tag) throws SAXException
+    private String _readContent(Source fileSource, String cssUri, String tag) throws SAXException
     {
-        List<FileData> cssDependencies = new ArrayList<>();
-        
-        String fileContent;
-        try (InputStream is = cssSource.getInputStream())
+        try (InputStream is = fileSource.getInputStream())
         {
-            fileContent = IOUtils.toString(is);
+            return IOUtils.toString(is);
         }
         catch (IOException e)
         {
-            throw new SAXException("Unable to retrieve css file dependencies", e);
+            if ("link".equals(tag))
+            {
+                throw new SAXException("Unable to retrieve css file dependencies", e);
+            }
+            
+            // The file does not exist (yet), the minimized resource will contain an error for it
+            getLogger().debug("Unable to read the file " + cssUri + " to minimize", e);
+            return null;
         }
+    }
+    
+    private List<FileData> _getCssFileDependencies(String uri, String fileContent, String tag) throws SAXException
+    {
+        List<FileData> cssDependencies = new ArrayList<>();
         
         Matcher urlMatcher = IMPORT_WITHOUT_MEDIA_PATTERN.matcher(fileContent);
         
@@ -501,16 +557,24 @@ public class MinimizeTransformer extends ServiceableTransformer implements Conte
             }
         }
         
-        try
-        {
-            String hash = Base64.getEncoder().encodeToString((String.valueOf(hashCache.hashCode()) + _locale).getBytes("UTF-8"));
-            _hashCache.put(hash, hashCache);
-            return hash;
-        }
-        catch (UnsupportedEncodingException e)
+        // The hash changes whenever the content of a file or of one of its imports changes, so the minimized resource can be cached forever by the clients
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        for (FileData fileData : hashCache)
         {
-            throw new SAXException(e);
+            digest.update(fileData.getUri().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(fileData.getMedia()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(fileData.getContentHash()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
         }
+        digest.update(_locale.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(_currentContextPath.getBytes(StandardCharsets.UTF_8));
+        
+        String hash = Hex.encodeHexString(digest.digest());
+        _hashCache.put(hash, hashCache);
+        return hash;
     }
     
     private Set<String> _filterMediaValue(String mediaValue)
@@ -544,6 +608,31 @@ public class MinimizeTransformer extends ServiceableTransformer implements Conte
         return _hashCache.get(hash);
     }
     
+    /**
+     * The hash of the content of a file, valid as long as the source of the file is
+     */
+    private static final class ContentHash
+    {
+        final String _hash;
+        final SourceValidity _validity;
+        
+        ContentHash(String hash, SourceValidity validity)
+        {
+            _hash = hash;
+            _validity = validity;
+        }
+        
+        boolean isValid(SourceValidity currentValidity)
+        {
+            int valid = _validity.isValid();
+            if (valid == SourceValidity.UNKNOWN && currentValidity != null)
+            {
+                valid = _validity.isValid(currentValidity);
+            }
+            return valid == SourceValidity.VALID;
+        }
+    }
+    
     /**
      * The description of a file
      */
@@ -551,6 +640,7 @@ public class MinimizeTransformer extends ServiceableTransformer implements Conte
     {
         private String _uri;
         private Long _lastModified;
+        private String _contentHash;
         private String _media;
         
         /**
@@ -571,6 +661,15 @@ public class MinimizeTransformer extends ServiceableTransformer implements Conte
             this._lastModified = lastModified;
         }
 
+        /**
+         * Set the hash of the content
+         * @param contentHash the hash of the content, or null if the file cannot be read
+         */
+        public void setContentHash(String contentHash)
+        {
+            this._contentHash = contentHash;
+        }
+
         /**
          * set the medias value
          * @param media the medias to set
@@ -598,6 +697,15 @@ public class MinimizeTransformer extends ServiceableTransformer implements Conte
             return _lastModified;
         }
         
+        /**
+         * Get the hash of the file content, when the minimized resource was referenced
+         * @return the hash, or null if the file could not be read
+         */
+        public String getContentHash()
+        {
+            return _contentHash;
+        }
+        
         /**
          * Get the file medias
          * @return the medias
@@ -615,6 +723,7 @@ public class MinimizeTransformer extends ServiceableTransformer implements Conte
                 FileData fObj = (FileData) obj;
                 return StringUtils.equals(_uri, fObj._uri)
                         && (_lastModified == null ? fObj._lastModified == null : _lastModified.equals(fObj._lastModified)) 
+                        && StringUtils.equals(_contentHash, fObj._contentHash)
                         && StringUtils.equals(_media, fObj._media);
             }
             return false;
@@ -623,7 +732,7 @@ public class MinimizeTransformer extends ServiceableTransformer implements Conte
         @Override
         public int hashCode()
         {
-            return Objects.hash(_uri, _lastModified, _media);
+            return Objects.hash(_uri, _lastModified, _contentHash, _media);
         }
         
         @Override
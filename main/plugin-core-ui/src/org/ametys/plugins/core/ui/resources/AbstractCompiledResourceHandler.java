@@ -16,15 +16,29 @@
 
 package org.ametys.plugins.core.ui.resources;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.avalon.framework.component.Component;
 import org.apache.avalon.framework.parameters.Parameters;
@@ -32,7 +46,10 @@ import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.ResourceNotFoundException;
 import org.apache.cocoon.components.source.SourceUtil;
 import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.Request;
 import org.apache.cocoon.environment.SourceResolver;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -44,15 +61,26 @@ import org.xml.sax.SAXException;
 
 import org.ametys.core.cocoon.AbstractResourceHandler;
 import org.ametys.core.cocoon.ImageResourceHandler;
+import org.ametys.runtime.util.AmetysHomeHelper;
 
 /**
- * Abstract reader for resources compiled during runtime, such as SASS or LESS files compiled into CSS.
+ * Abstract reader for resources compiled during runtime, such as SASS or LESS files compiled into CSS.<br>
+ * The compiled resources are kept on disk, in the Ametys home, so that they survive restarts. They are identified by a fingerprint
+ * of the content of the resource and of all its dependencies, so a compiled resource is only reused as long as none of its files changed.
  */
 public abstract class AbstractCompiledResourceHandler extends AbstractResourceHandler implements Component
 {
-    /* Dependencies cache */
-    private static Map<String, Long> _dependenciesCacheValidity = new HashMap<>();
-    private static Map<String, List<String>> _dependenciesCache = new HashMap<>();
+    /** The compiled resources which were not used for this time are removed from the disk cache */
+    private static final long __CACHE_FILE_TTL = TimeUnit.DAYS.toMillis(30);
+    
+    /** Suffix of the files being written */
+    private static final String __TMP_SUFFIX = ".tmp";
+    
+    /** True when the old compiled resources were removed */
+    private static final AtomicBoolean __CACHE_PURGED = new AtomicBoolean();
+    
+    /* Dependencies cache, shared by all the handlers */
+    private static Map<String, DependenciesCacheEntry> _dependenciesCache = new ConcurrentHashMap<>();
     
     /** The initial source resolver */
     protected SourceResolver _sourceResolver;
@@ -88,6 +116,7 @@ public abstract class AbstractCompiledResourceHandler extends AbstractResourceHa
     public void setup(SourceResolver initalResolver, Map cocoonObjectModel, String src, Parameters par) throws IOException, ProcessingException, SAXException
     {
         _sourceResolver = initalResolver;
+        _objectModel = cocoonObjectModel;
         _uri = src;
         
         try 
@@ -116,10 +145,154 @@ public abstract class AbstractCompiledResourceHandler extends AbstractResourceHa
     @Override
     public void generateResource(OutputStream out) throws IOException, ProcessingException
     {
-        try (ByteArrayOutputStream os = new ByteArrayOutputStream())
+        String fingerprint = _getFingerprint();
+        File cacheFile = fingerprint != null ? new File(_getCacheDirectory(), fingerprint) : null;
+        
+        InputStream cachedIs = null;
+        if (cacheFile != null)
+        {
+            try
+            {
+                cachedIs = new FileInputStream(cacheFile);
+            }
+            catch (FileNotFoundException e)
+            {
+                // Not compiled yet
+            }
+        }
+        
+        if (cachedIs != null)
+        {
+            try (InputStream is = cachedIs)
+            {
+                // Keep the file in the cache as long as it is used
+                cacheFile.setLastModified(System.currentTimeMillis());
+                IOUtils.copy(is, out);
+            }
+            return;
+        }
+        
+        String compiledResource = compileResource(_inputSource);
+        if (cacheFile != null && compiledResource != null)
+        {
+            _writeCacheFile(cacheFile, compiledResource);
+        }
+        
+        IOUtils.write(compiledResource, out, "UTF-8");
+    }
+    
+    /**
+     * Get the parameters, other than the files, which influence the compilation result.
+     * By default, the context path of the request, as compiled resources may contain absolute urls.
+     * @return The parameters
+     */
+    protected String _getCompilationParameters()
+    {
+        Request request = _objectModel != null ? ObjectModelHelper.getRequest(_objectModel) : null;
+        return request != null ? request.getContextPath() : "";
+    }
+    
+    /**
+     * Computes the fingerprint of the content of the resource and of its dependencies
+     * @return The fingerprint, or null if a dependency could not be read
+     */
+    private String _getFingerprint()
+    {
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        digest.update(getClass().getName().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(_uri.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(_getCompilationParameters().getBytes(StandardCharsets.UTF_8));
+        
+        if (!_updateDigest(digest, _inputSource, _uri, new HashSet<String>()))
+        {
+            return null;
+        }
+        
+        return Hex.encodeHexString(digest.digest()) + "." + StringUtils.defaultIfEmpty(StringUtils.substringAfter(getMimeType(), "/"), "out");
+    }
+    
+    private boolean _updateDigest(MessageDigest digest, Source inputSource, String sourceUri, Set<String> knownDependencies)
+    {
+        try (InputStream is = inputSource.getInputStream())
+        {
+            digest.update((byte) 0);
+            digest.update(FilenameUtils.normalize(inputSource.getURI()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            DigestUtils.updateDigest(digest, is);
+            
+            for (String dependency : _getDependencies(inputSource, sourceUri, inputSource.getLastModified()))
+            {
+                if (dependency != null && !StringUtils.startsWith(dependency, "http://") && !StringUtils.startsWith(dependency, "https://"))
+                {
+                    String uriToResolve = _getDependencyURI(sourceUri, dependency);
+                    Source dependencySource = _sourceResolver.resolveURI(uriToResolve, null, new HashMap<String, Object>());
+                    
+                    // A dependency already included is skipped, which also stops loops (they are reported by getKey())
+                    if (knownDependencies.add(FilenameUtils.normalize(dependencySource.getURI()))
+                        && !_updateDigest(digest, dependencySource, uriToResolve, knownDependencies))
+                    {
+                        return false;
+                    }
+                }
+            }
+            
+            return true;
+        }
+        catch (IOException | URISyntaxException e)
+        {
+            getLogger().warn("Unable to read '" + sourceUri + "', the compiled resource " + _inputSource.getURI() + " will not be cached on disk", e);
+            return false;
+        }
+    }
+    
+    private File _getCacheDirectory()
+    {
+        File directory = new File(AmetysHomeHelper.getAmetysHomeData(), "cache" + File.separator + "compiled-resources");
+        
+        if (__CACHE_PURGED.compareAndSet(false, true))
+        {
+            directory.mkdirs();
+            
+            long expirationTime = System.currentTimeMillis() - __CACHE_FILE_TTL;
+            File[] files = directory.listFiles();
+            for (File file : files != null ? files : new File[0])
+            {
+                if (file.lastModified() < expirationTime || (file.getName().endsWith(__TMP_SUFFIX) && file.lastModified() < System.currentTimeMillis() - 60000))
+                {
+                    file.delete();
+                }
+            }
+        }
+        
+        return directory;
+    }
+    
+    private void _writeCacheFile(File cacheFile, String compiledResource)
+    {
+        File tmpFile = null;
+        try
+        {
+            // The resource is written in a temporary file, so that it is never read partially
+            tmpFile = File.createTempFile(cacheFile.getName(), __TMP_SUFFIX, cacheFile.getParentFile());
+            try (OutputStream os = new FileOutputStream(tmpFile))
+            {
+                IOUtils.write(compiledResource, os, "UTF-8");
+            }
+            
+            Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            getLogger().warn("Unable to store the compiled resource " + _inputSource.getURI() + " on disk", e);
+        }
+        finally
         {
-            String compiledResource = compileResource(_inputSource);
-            IOUtils.write(compiledResource, out, "UTF-8");
+            if (tmpFile != null)
+            {
+                tmpFile.delete();
+            }
         }
     }
     
@@ -227,22 +400,16 @@ public abstract class AbstractCompiledResourceHandler extends AbstractResourceHa
 
     private List<String> _getDependencies(Source inputSource, String sourceUri, long lastModified)
     {
-        Long cachedValidity = _dependenciesCacheValidity.get(sourceUri);
+        DependenciesCacheEntry entry = _dependenciesCache.get(sourceUri);
         
-        List<String> dependencies;
-        
-        if (cachedValidity == null || !cachedValidity.equals(lastModified))
-        {
-            // Cache is out of date
-            dependencies = getDependenciesList(inputSource);
-            _dependenciesCacheValidity.put(sourceUri, lastModified);
-            _dependenciesCache.put(sourceUri, dependencies);
-        }
-        else
+        if (entry == null || entry._lastModified != lastModified)
         {
-            dependencies = _dependenciesCache.get(sourceUri);
+            // Cache is out of date. The validity and the dependencies are replaced at once, so that they are always consistent
+            entry = new DependenciesCacheEntry(lastModified, Collections.unmodifiableList(getDependenciesList(inputSource)));
+            _dependenciesCache.put(sourceUri, entry);
         }
-        return dependencies;
+        
+        return entry._dependencies;
     }
 
     @Override
@@ -256,4 +423,16 @@ public abstract class AbstractCompiledResourceHandler extends AbstractResourceHa
     {
         return _inputSource.getLastModified();
     }
+    
+    private static final class DependenciesCacheEntry
+    {
+        final long _lastModified;
+        final List<String> _dependencies;
+        
+        DependenciesCacheEntry(long lastModified, List<String> dependencies)
+        {
+            _lastModified = lastModified;
+            _dependencies = dependencies;
+        }
+    }
 }
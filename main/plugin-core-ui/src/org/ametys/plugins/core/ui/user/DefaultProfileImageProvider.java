@@ -19,6 +19,9 @@ import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
@@ -47,6 +50,7 @@ import org.apache.cocoon.environment.Request;
 import org.apache.cocoon.util.HashUtil;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.excalibur.source.Source;
 import org.xml.sax.SAXException;
@@ -113,6 +117,9 @@ public class DefaultProfileImageProvider extends SafeProfileImageProvider implem
     
     /** JSON Utils */
     protected JSONUtils _jsonUtils;
+    
+    /** The cache of the generated images */
+    protected ProfileImageCache _profileImageCache;
 
     private Context _context;
     
@@ -123,6 +130,7 @@ public class DefaultProfileImageProvider extends SafeProfileImageProvider implem
         _uploadManager = (UploadManager) smanager.lookup(UploadManager.ROLE);
         _userPreferencesManager = (UserPreferencesManager) smanager.lookup(UserPreferencesManager.ROLE); 
         _jsonUtils = (JSONUtils) smanager.lookup(JSONUtils.ROLE);
+        _profileImageCache = (ProfileImageCache) smanager.lookup(ProfileImageCache.ROLE);
     }
     
     public void contextualize(Context context) throws ContextException
@@ -843,24 +851,49 @@ public class DefaultProfileImageProvider extends SafeProfileImageProvider implem
      */
     protected InputStream _addImageBackground(UserIdentity user, InputStream is) throws IOException
     {
-        BufferedImage image = ImageIO.read(is);
+        byte[] imageBytes = IOUtils.toByteArray(is);
         Source bgSource = null;
         try
         {
             bgSource = _getInitialsBackgroundSource(user);
-            BufferedImage background = null;
+            Source backgroundSource = bgSource;
+            
+            // The composed image only depends on the initial image and on the background
+            String key = ProfileImageCache.getKey(imageBytes, backgroundSource.getURI());
+            ProfileImageCache.ImageWriter writer = os -> 
+            {
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBytes));
+                BufferedImage background = null;
+                
+                try (InputStream backgroundIs = backgroundSource.getInputStream())
+                {
+                    background = ImageIO.read(backgroundIs);
+                    Graphics backgroundGraphics = background.getGraphics();
+                    backgroundGraphics.drawImage(image, 0, 0, null);
+                }
+                
+                ImageIO.write(background, "png", os);
+            };
             
-            try (InputStream backgroundIs = bgSource.getInputStream())
+            File file = _profileImageCache.get(key);
+            if (file == null)
             {
-                background = ImageIO.read(backgroundIs);
-                Graphics backgroundGraphics = background.getGraphics();
-                backgroundGraphics.drawImage(image, 0, 0, null);
+                file = _profileImageCache.put(key, writer);
             }
             
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream())
+            try
+            {
+                return new FileInputStream(file);
+            }
+            catch (FileNotFoundException e)
             {
-                ImageIO.write(background, "png", baos);
-                return new ByteArrayInputStream(baos.toByteArray());
+                // The image was evicted from the cache by a concurrent request: generate it again, without caching it
+                getLogger().debug("The cached profile image " + key + " was removed, it will be generated again", e);
+                try (ByteArrayOutputStream os = new ByteArrayOutputStream())
+                {
+                    writer.write(os);
+                    return new ByteArrayInputStream(os.toByteArray());
+                }
             }
         }
         finally
@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.plugins.core.ui.user;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.avalon.framework.activity.Initializable;
+import org.apache.avalon.framework.component.Component;
+import org.apache.avalon.framework.configuration.Configurable;
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
+import org.apache.avalon.framework.logger.AbstractLogEnabled;
+import org.apache.avalon.framework.thread.ThreadSafe;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import org.ametys.runtime.util.AmetysHomeHelper;
+
+/**
+ * Disk cache for the generated profile images (thumbnails, initials with their background...), stored in the Ametys home.<br>
+ * The images are addressed by a hash of their source and of the parameters used to generate them,
+ * so an entry never has to be invalidated: a new source image simply leads to a new entry.
+ * The cache is bounded in size, the least recently used images being removed first.
+ */
+public class ProfileImageCache extends AbstractLogEnabled implements Component, ThreadSafe, Configurable, Initializable
+{
+    /** Avalon role */
+    public static final String ROLE = ProfileImageCache.class.getName();
+    
+    /** The default maximum size of the cache, in MB */
+    private static final long __DEFAULT_MAX_SIZE = 50;
+    
+    /** Suffix of the files being written */
+    private static final String __TMP_SUFFIX = ".tmp";
+    
+    /** The cache directory */
+    protected File _directory;
+    
+    /** The maximum size of the cache, in bytes */
+    protected long _maxSize;
+    
+    /** The size of the cached files, by name, in access order */
+    private final LinkedHashMap<String, Long> _files = new LinkedHashMap<>(16, 0.75f, true);
+    
+    /** The size of all the cached files, in bytes */
+    private long _totalSize;
+    
+    /**
+     * Writes an image to the cache
+     */
+    @FunctionalInterface
+    public interface ImageWriter
+    {
+        /**
+         * Write the image
+         * @param os The stream to write to
+         * @throws IOException if an error occurs while generating or writing the image
+         */
+        public void write(OutputStream os) throws IOException;
+    }
+    
+    @Override
+    public void configure(Configuration configuration) throws ConfigurationException
+    {
+        _maxSize = configuration.getChild("max-size").getValueAsLong(__DEFAULT_MAX_SIZE) * 1024 * 1024;
+    }
+    
+    @Override
+    public void initialize() throws Exception
+    {
+        _directory = new File(AmetysHomeHelper.getAmetysHomeData(), "user-profiles" + File.separator + "images-cache");
+        _directory.mkdirs();
+        
+        File[] files = _directory.listFiles();
+        if (files != null)
+        {
+            // Restore the access order, approximated by the creation order
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            
+            for (File file : files)
+            {
+                if (file.getName().endsWith(__TMP_SUFFIX))
+                {
+                    // Interrupted write
+                    file.delete();
+                }
+                else if (file.isFile())
+                {
+                    _files.put(file.getName(), file.length());
+                    _totalSize += file.length();
+                }
+            }
+        }
+        
+        synchronized (this)
+        {
+            _evict();
+        }
+    }
+    
+    /**
+     * Computes the key of an image
+     * @param source The source of the image
+     * @param parameters The parameters used to generate the image from its source
+     * @return The key
+     */
+    public static String getKey(byte[] source, Object... parameters)
+    {
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        digest.update(source);
+        for (Object parameter : parameters)
+        {
+            digest.update((byte) 0);
+            digest.update(String.valueOf(parameter).getBytes(StandardCharsets.UTF_8));
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+    
+    /**
+     * Get a cached image
+     * @param key The key of the image
+     * @return The file of the image, or null if it is not cached
+     */
+    public synchronized File get(String key)
+    {
+        Long size = _files.get(key);
+        if (size == null)
+        {
+            return null;
+        }
+        
+        File file = new File(_directory, key);
+        if (!file.isFile())
+        {
+            // Removed from the disk
+            _files.remove(key);
+            _totalSize -= size;
+            return null;
+        }
+        
+        return file;
+    }
+    
+    /**
+     * Generate an image and put it in the cache
+     * @param key The key of the image
+     * @param writer The writer generating the image
+     * @return The file of the image
+     * @throws IOException if an error occurs while generating or writing the image
+     */
+    public File put(String key, ImageWriter writer) throws IOException
+    {
+        File file = new File(_directory, key);
+        
+        // The image is written in a temporary file, so that it is never read partially
+        File tmpFile = File.createTempFile(key, __TMP_SUFFIX, _directory);
+        try
+        {
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmpFile)))
+            {
+                writer.write(os);
+            }
+            
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            tmpFile.delete();
+        }
+        
+        synchronized (this)
+        {
+            Long previousSize = _files.put(key, file.length());
+            if (previousSize != null)
+            {
+                _totalSize -= previousSize;
+            }
+            _totalSize += file.length();
+            
+            _evict();
+        }
+        
+        return file;
+    }
+    
+    /**
+     * Remove the least recently used images until the cache size is below its maximum.
+     * The most recent image is always kept.
+     */
+    private void _evict()
+    {
+        Iterator<Map.Entry<String, Long>> it = _files.entrySet().iterator();
+        while (_totalSize > _maxSize && _files.size() > 1 && it.hasNext())
+        {
+            Map.Entry<String, Long> entry = it.next();
+            it.remove();
+            _totalSize -= entry.getValue();
+            
+            File file = new File(_directory, entry.getKey());
+            if (!file.delete() && file.exists() && getLogger().isWarnEnabled())
+            {
+                getLogger().warn("Unable to remove the cached profile image " + file);
+            }
+        }
+    }
+}
@@ -15,17 +15,25 @@
  */
 package org.ametys.plugins.core.ui.user;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.util.Arrays;
 import java.util.Collection;
 
+import javax.servlet.http.HttpServletResponse;
+
 import org.apache.avalon.framework.service.ServiceException;
 import org.apache.avalon.framework.service.ServiceManager;
 import org.apache.cocoon.ProcessingException;
 import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.Request;
 import org.apache.cocoon.environment.Response;
+import org.apache.cocoon.environment.http.HttpEnvironment;
 import org.apache.cocoon.reading.ServiceableReader;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
@@ -48,6 +56,9 @@ public class ProfileImageReader extends ServiceableReader
     /** Current user provider */
     protected CurrentUserProvider _currentUserProvider;
     
+    /** The cache of the generated images */
+    protected ProfileImageCache _profileImageCache;
+    
     /** User profile image provider */
     private ProfileImageProvider _profileImageProvider;
     
@@ -56,6 +67,7 @@ public class ProfileImageReader extends ServiceableReader
     {
         super.service(serviceManager);
         _currentUserProvider = (CurrentUserProvider) serviceManager.lookup(CurrentUserProvider.ROLE);
+        _profileImageCache = (ProfileImageCache) serviceManager.lookup(ProfileImageCache.ROLE);
     }
     
     private ProfileImageProvider getProfileImageProvider()
@@ -141,7 +153,7 @@ public class ProfileImageReader extends ServiceableReader
             
             if (size > 0 || maxSize > 0)
             {
-                ImageHelper.generateThumbnail(is, out, format, size, size, maxSize, maxSize);
+                _readThumbnail(response, is, format, size, maxSize);
             }
             else
             {
@@ -155,4 +167,72 @@ public class ProfileImageReader extends ServiceableReader
             }
         }
     }
+    
+    /**
+     * Read the thumbnail of an image, from the cache if it was already generated
+     * @param response The response
+     * @param is The input stream of the source image
+     * @param format The image format
+     * @param size The desired size
+     * @param maxSize The max size
+     * @throws IOException If an I/O error occurs while manipulating streams
+     */
+    protected void _readThumbnail(Response response, InputStream is, String format, int size, int maxSize) throws IOException
+    {
+        byte[] source = IOUtils.toByteArray(is);
+        String key = ProfileImageCache.getKey(source, format, size, maxSize);
+        
+        // The key changes with the source image, so it is a strong validator
+        String etag = "\"" + key + "\"";
+        response.setHeader("ETag", etag);
+        
+        Request request = ObjectModelHelper.getRequest(objectModel);
+        HttpServletResponse httpResponse = (HttpServletResponse) objectModel.get(HttpEnvironment.HTTP_RESPONSE_OBJECT);
+        if (httpResponse != null && etag.equals(request.getHeader("If-None-Match")))
+        {
+            httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        
+        FileInputStream thumbnailIs = null;
+        File file = null;
+        try
+        {
+            file = _profileImageCache.get(key);
+            if (file == null)
+            {
+                file = _profileImageCache.put(key, os -> ImageHelper.generateThumbnail(new ByteArrayInputStream(source), os, format, size, size, maxSize, maxSize));
+            }
+            
+            thumbnailIs = new FileInputStream(file);
+        }
+        catch (FileNotFoundException e)
+        {
+            // The image was removed from the cache in the meantime
+            getLogger().debug("The cached profile image " + key + " was removed, it will be generated again", e);
+        }
+        catch (IOException e)
+        {
+            getLogger().warn("Unable to cache the profile image " + key + ", it will be generated again", e);
+        }
+        
+        if (thumbnailIs != null)
+        {
+            try (FileInputStream cachedIs = thumbnailIs)
+            {
+                // The file may be evicted from the cache in the meantime: its length is read from the opened file, which remains readable
+                response.setHeader("Content-Length", Long.toString(cachedIs.getChannel().size()));
+                long lastModified = file.lastModified();
+                if (lastModified > 0)
+                {
+                    response.setDateHeader("Last-Modified", lastModified);
+                }
+                
+                IOUtils.copy(cachedIs, out);
+            }
+            return;
+        }
+        
+        ImageHelper.generateThumbnail(new ByteArrayInputStream(source), out, format, size, size, maxSize, maxSize);
+    }
 }
@@ -18,7 +18,6 @@ package org.ametys.core.captcha;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -42,7 +41,6 @@ import nl.captcha.text.renderer.DefaultWordRenderer;
 import org.apache.avalon.framework.service.ServiceException;
 import org.apache.avalon.framework.service.ServiceManager;
 import org.apache.avalon.framework.service.Serviceable;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.config.RequestConfig;
@@ -248,14 +246,12 @@ public final class CaptchaHelper implements Serviceable
                         return false;
                     }
                     
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    Map<String, Object> jsonObject;
                     try (InputStream is = httpResponse.getEntity().getContent())
                     {
-                        IOUtils.copy(is, bos);
+                        jsonObject = _jsonUtils.convertJsonToMap(is);
                     }
                     
-                    Map<String, Object> jsonObject = _jsonUtils.convertJsonToMap(bos.toString());
-                    
                     return jsonObject.containsKey("success") && (Boolean) jsonObject.get("success");
                 }
             }
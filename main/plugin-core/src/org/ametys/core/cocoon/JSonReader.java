@@ -28,7 +28,8 @@ import org.xml.sax.SAXException;
 import org.ametys.core.util.JSONUtils;
 
 /**
- * Serialize as json
+ * Serialize as json.<br>
+ * The object is written incrementally when it is (or contains) a {@link org.ametys.core.util.JSONStreamWriter} or an {@link java.util.Iterator}.
  */
 public class JSonReader extends ServiceableReader
 {
@@ -19,7 +19,6 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Map;
 
 import javax.sql.DataSource;
 
@@ -28,7 +27,6 @@ import org.apache.avalon.framework.component.Component;
 import org.apache.avalon.framework.service.ServiceException;
 import org.apache.avalon.framework.service.ServiceManager;
 import org.apache.avalon.framework.service.Serviceable;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -216,24 +214,42 @@ public final class ConnectionHelper implements Component, Serviceable, Disposabl
     }
     
     /**
-     * Determine the database type
+     * Determine the database type.<br>
+     * The type is computed once for each url, so this can be called for each query.
      * @param jdbcURL The jdbc url used to connect to the database
-     * @return The database type id or null if unknown
+     * @return The database type id or empty string if unknown
      */
     public static String getDatabaseType(String jdbcURL)
     {
-        Map<String, DataSourceDefinition> dataSourceDefinitions = getSQLDataSourceManager().getDataSourceDefinitions(true, true, false);
-        for (DataSourceDefinition definition : dataSourceDefinitions.values())
+        return getSQLDataSourceManager().getDatabaseType(jdbcURL);
+    }
+    
+    /**
+     * Limits the number of rows returned by a query, without any offset.<br>
+     * This is typically used for keyset pagination, where the query starts after the last row of the previous page.<br>
+     * The query is not modified if the database type is unknown: the statement must then be limited with {@link java.sql.Statement#setMaxRows(int)},
+     * which is also a safe default whatever the database.
+     * @param sql The query, with its ORDER BY clause
+     * @param limit The maximum number of rows
+     * @param dbType The database type
+     * @return The query limited to the given number of rows, or the query itself if the database type is unknown
+     */
+    public static String limitQuery(String sql, int limit, String dbType)
+    {
+        if (DATABASE_MYSQL.equals(dbType) || DATABASE_POSTGRES.equals(dbType) || DATABASE_HSQLDB.equals(dbType))
         {
-            // Get the definition url without jdbc parameters (e.g. internal-db have ;create=true)
-            String url = StringUtils.substringBefore(definition.getParameters().get("url"), ";");
-            if (StringUtils.equals(url, jdbcURL))
-            {
-                return definition.getParameters().get("dbtype");
-            }
+            return sql + " LIMIT " + limit;
+        }
+        else if (DATABASE_ORACLE.equals(dbType))
+        {
+            return "SELECT * FROM (" + sql + ") WHERE ROWNUM <= " + limit;
+        }
+        else if (DATABASE_DERBY.equals(dbType))
+        {
+            return sql + " FETCH FIRST " + limit + " ROWS ONLY";
         }
         
-        return DATABASE_UNKNOWN;
+        return sql;
     }
     
     /**
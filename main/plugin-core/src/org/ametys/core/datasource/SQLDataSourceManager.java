@@ -21,6 +21,7 @@ import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sql.DataSource;
 
@@ -32,7 +33,7 @@ import org.apache.commons.dbcp2.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp2.PoolableConnection;
 import org.apache.commons.dbcp2.PoolableConnectionFactory;
 import org.apache.commons.dbcp2.PoolingDataSource;
-import org.apache.commons.pool2.ObjectPool;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 
 import org.ametys.core.datasource.dbtype.SQLDatabaseType;
@@ -45,7 +46,10 @@ import org.ametys.runtime.util.AmetysHomeHelper;
 
 /**
  * This component handles SQL data sources. 
- * It is associated with the configuration file $AMETYS_HOME/config/datasources-sql.xml 
+ * It is associated with the configuration file $AMETYS_HOME/config/datasources-sql.xml <br>
+ * Each data source has its own pool of connections, which can be tuned with the optional parameters <code>pool-max-size</code>,
+ * <code>pool-max-idle</code>, <code>pool-min-idle</code>, <code>pool-max-wait</code>, <code>pool-validation-interval</code>
+ * and <code>pool-statement-cache-size</code>. Without them, the pool is unbounded and each connection is validated when it is borrowed.
  */
 public class SQLDataSourceManager extends AbstractDataSourceManager implements Disposable
 {
@@ -61,6 +65,26 @@ public class SQLDataSourceManager extends AbstractDataSourceManager implements D
     /** Name of parameter for user's password */
     public static final String PARAM_DATABASE_PASSWORD = "password";
     
+    /** Name of parameter for the maximum number of connections of the pool, negative for no limit (the default) */
+    public static final String PARAM_POOL_MAX_SIZE = "pool-max-size";
+    /** Name of parameter for the maximum number of idle connections of the pool */
+    public static final String PARAM_POOL_MAX_IDLE = "pool-max-idle";
+    /** Name of parameter for the minimum number of idle connections of the pool */
+    public static final String PARAM_POOL_MIN_IDLE = "pool-min-idle";
+    /** Name of parameter for the maximum time in milliseconds to wait for a connection when the pool is exhausted, negative to wait indefinitely (the default) */
+    public static final String PARAM_POOL_MAX_WAIT = "pool-max-wait";
+    /** Name of parameter for the period in milliseconds of the validation of the idle connections, instead of validating the connections each time they are borrowed. 0 (the default) to validate them when borrowed. */
+    public static final String PARAM_POOL_VALIDATION_INTERVAL = "pool-validation-interval";
+    /** Name of parameter for the number of prepared statements cached by connection. 0 to disable the prepared statements pooling. */
+    public static final String PARAM_POOL_STATEMENT_CACHE_SIZE = "pool-statement-cache-size";
+    
+    private static final int __DEFAULT_POOL_MAX_SIZE = -1;
+    private static final int __DEFAULT_POOL_MAX_IDLE = 10;
+    private static final int __DEFAULT_POOL_MIN_IDLE = 2;
+    private static final long __DEFAULT_POOL_MAX_WAIT = -1;
+    private static final long __DEFAULT_POOL_VALIDATION_INTERVAL = 0;
+    private static final int __DEFAULT_POOL_STATEMENT_CACHE_SIZE = 0;
+    
     /** The id of the internal DataSource */
     public static final String SQL_DATASOURCE_PREFIX = "SQL-";
     
@@ -73,7 +97,10 @@ public class SQLDataSourceManager extends AbstractDataSourceManager implements D
     private static String __filename;
 
     private Map<String, DataSource> _sqlDataSources;
-    private Map<String, ObjectPool> _pools;
+    private Map<String, GenericObjectPool<PoolableConnection>> _pools;
+    
+    /** The database types, by JDBC url without its parameters. Filled on demand and emptied each time a data source is created or removed. */
+    private Map<String, String> _databaseTypes = new ConcurrentHashMap<>();
     
     private DataSourceDefinition _internalDataSource;
 
@@ -138,7 +165,7 @@ public class SQLDataSourceManager extends AbstractDataSourceManager implements D
     public void initialize() throws Exception
     {
         _sqlDataSources = new HashMap<>();
-        _pools = new HashMap<>();
+        _pools = new ConcurrentHashMap<>();
         
         // Add the internal and not editable DB
         _internalDataSource = getInternalDataSourceDefinition();
@@ -316,9 +343,42 @@ public class SQLDataSourceManager extends AbstractDataSourceManager implements D
         createDataSource(dataSource);
     }
     
+    /**
+     * Determine the type of the database of a JDBC url.<br>
+     * The type is looked up among the data source definitions once for each url.
+     * @param jdbcURL The JDBC url used to connect to the database
+     * @return The database type id or {@link ConnectionHelper#DATABASE_UNKNOWN} if unknown
+     */
+    public String getDatabaseType(String jdbcURL)
+    {
+        if (jdbcURL == null)
+        {
+            return ConnectionHelper.DATABASE_UNKNOWN;
+        }
+        
+        return _databaseTypes.computeIfAbsent(jdbcURL, this::_computeDatabaseType);
+    }
+    
+    private String _computeDatabaseType(String jdbcURL)
+    {
+        for (DataSourceDefinition definition : getDataSourceDefinitions(true, true, false).values())
+        {
+            // Get the definition url without jdbc parameters (e.g. internal-db have ;create=true)
+            String url = StringUtils.substringBefore(definition.getParameters().get(PARAM_DATABASE_URL), ";");
+            if (StringUtils.equals(url, jdbcURL))
+            {
+                return StringUtils.defaultString(definition.getParameters().get(PARAM_DATABASE_TYPE), ConnectionHelper.DATABASE_UNKNOWN);
+            }
+        }
+        
+        return ConnectionHelper.DATABASE_UNKNOWN;
+    }
+    
     @Override
     protected void createDataSource(DataSourceDefinition dataSourceDef)
     {
+        _databaseTypes.clear();
+        
         Map<String, String> parameters = dataSourceDef.getParameters();
         
         String url = parameters.get(PARAM_DATABASE_URL);
@@ -336,18 +396,39 @@ public class SQLDataSourceManager extends AbstractDataSourceManager implements D
         PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory, null);
         
         GenericObjectPool<PoolableConnection> connectionPool = new GenericObjectPool<>(poolableConnectionFactory);
-        connectionPool.setMaxTotal(-1);
-        connectionPool.setMaxIdle(10);
-        connectionPool.setMinIdle(2);
-        connectionPool.setTestOnBorrow(true);
+        connectionPool.setMaxTotal((int) _getPoolParameter(parameters, PARAM_POOL_MAX_SIZE, __DEFAULT_POOL_MAX_SIZE));
+        connectionPool.setMaxIdle((int) _getPoolParameter(parameters, PARAM_POOL_MAX_IDLE, __DEFAULT_POOL_MAX_IDLE));
+        connectionPool.setMinIdle((int) _getPoolParameter(parameters, PARAM_POOL_MIN_IDLE, __DEFAULT_POOL_MIN_IDLE));
+        connectionPool.setMaxWaitMillis(_getPoolParameter(parameters, PARAM_POOL_MAX_WAIT, __DEFAULT_POOL_MAX_WAIT));
         connectionPool.setTestOnReturn(false);
         connectionPool.setTestWhileIdle(true);
-        connectionPool.setTimeBetweenEvictionRunsMillis(1000 * 60 * 30);
+        
+        long validationInterval = _getPoolParameter(parameters, PARAM_POOL_VALIDATION_INTERVAL, __DEFAULT_POOL_VALIDATION_INTERVAL);
+        if (validationInterval > 0)
+        {
+            // The idle connections are all validated periodically, rather than one query before each borrow.
+            // Connections which failed with a fatal SQL error are still discarded when returned.
+            connectionPool.setTestOnBorrow(false);
+            connectionPool.setTimeBetweenEvictionRunsMillis(validationInterval);
+            connectionPool.setNumTestsPerEvictionRun(-1);
+        }
+        else
+        {
+            connectionPool.setTestOnBorrow(true);
+            connectionPool.setTimeBetweenEvictionRunsMillis(1000 * 60 * 30);
+        }
         
         poolableConnectionFactory.setPool(connectionPool);
         poolableConnectionFactory.setValidationQuery(sqlDbType.getValidationQuery());
         poolableConnectionFactory.setDefaultAutoCommit(true);
         poolableConnectionFactory.setDefaultReadOnly(false);
+        
+        int statementCacheSize = (int) _getPoolParameter(parameters, PARAM_POOL_STATEMENT_CACHE_SIZE, __DEFAULT_POOL_STATEMENT_CACHE_SIZE);
+        if (statementCacheSize > 0)
+        {
+            poolableConnectionFactory.setPoolStatements(true);
+            poolableConnectionFactory.setMaxOpenPrepatedStatements(statementCacheSize);
+        }
                  
         PoolingDataSource<PoolableConnection> dataSource = new PoolingDataSource<>(connectionPool);
         
@@ -364,11 +445,50 @@ public class SQLDataSourceManager extends AbstractDataSourceManager implements D
         _sqlDataSources.put(id, dataSource);
     }
     
+    private long _getPoolParameter(Map<String, String> parameters, String name, long defaultValue)
+    {
+        String value = parameters.get(name);
+        if (StringUtils.isBlank(value))
+        {
+            return defaultValue;
+        }
+        
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("The value '" + value + "' of the data source parameter '" + name + "' is not a valid number", e);
+        }
+    }
+    
+    /**
+     * Get the current state of the connection pools
+     * @return the state of each pool, by data source id
+     */
+    public Map<String, PoolStatus> getPoolsStatus()
+    {
+        Map<String, PoolStatus> status = new LinkedHashMap<>();
+        
+        Map<String, GenericObjectPool<PoolableConnection>> pools = _pools;
+        if (pools != null)
+        {
+            for (Map.Entry<String, GenericObjectPool<PoolableConnection>> entry : pools.entrySet())
+            {
+                status.put(entry.getKey(), new PoolStatus(entry.getValue()));
+            }
+        }
+        
+        return status;
+    }
+    
     @Override
     protected void deleteDataSource(DataSourceDefinition dataSource)
     {
         _sqlDataSources.remove(dataSource.getId());
         _disposePool(dataSource.getId());
+        _databaseTypes.clear();
     }
     
     @Override
@@ -401,4 +521,88 @@ public class SQLDataSourceManager extends AbstractDataSourceManager implements D
         
         _pools.remove(id);
     }
+    
+    /**
+     * Snapshot of the state of a connection pool
+     */
+    public static class PoolStatus
+    {
+        private final int _active;
+        private final int _idle;
+        private final int _waiters;
+        private final int _maxSize;
+        private final long _meanBorrowWaitTime;
+        private final long _maxBorrowWaitTime;
+        
+        PoolStatus(GenericObjectPool<PoolableConnection> pool)
+        {
+            _active = pool.getNumActive();
+            _idle = pool.getNumIdle();
+            _waiters = pool.getNumWaiters();
+            _maxSize = pool.getMaxTotal();
+            _meanBorrowWaitTime = pool.getMeanBorrowWaitTimeMillis();
+            _maxBorrowWaitTime = pool.getMaxBorrowWaitTimeMillis();
+        }
+        
+        /**
+         * Gets the number of connections currently borrowed
+         * @return the number of active connections
+         */
+        public int getActive()
+        {
+            return _active;
+        }
+        
+        /**
+         * Gets the number of connections available in the pool
+         * @return the number of idle connections
+         */
+        public int getIdle()
+        {
+            return _idle;
+        }
+        
+        /**
+         * Gets the number of threads waiting for a connection
+         * @return the number of waiters
+         */
+        public int getWaiters()
+        {
+            return _waiters;
+        }
+        
+        /**
+         * Gets the maximum number of connections
+         * @return the maximum size of the pool, negative for no limit
+         */
+        public int getMaxSize()
+        {
+            return _maxSize;
+        }
+        
+        /**
+         * Gets the mean time to borrow a connection, over the last borrows
+         * @return the mean borrow time in milliseconds
+         */
+        public long getMeanBorrowWaitTime()
+        {
+            return _meanBorrowWaitTime;
+        }
+        
+        /**
+         * Gets the maximum time to borrow a connection since the pool was created
+         * @return the maximum borrow time in milliseconds
+         */
+        public long getMaxBorrowWaitTime()
+        {
+            return _maxBorrowWaitTime;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "active=" + _active + ", idle=" + _idle + ", waiters=" + _waiters + ", max=" + _maxSize
+                    + ", meanBorrowWait=" + _meanBorrowWaitTime + "ms, maxBorrowWait=" + _maxBorrowWaitTime + "ms";
+        }
+    }
 }
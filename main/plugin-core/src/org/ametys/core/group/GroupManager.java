@@ -16,32 +16,73 @@
 package org.ametys.core.group;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.avalon.framework.activity.Disposable;
+import org.apache.avalon.framework.activity.Initializable;
 import org.apache.avalon.framework.component.Component;
+import org.apache.avalon.framework.configuration.Configurable;
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
 import org.apache.avalon.framework.service.ServiceException;
 import org.apache.avalon.framework.service.ServiceManager;
 import org.apache.avalon.framework.service.Serviceable;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import org.ametys.core.group.directory.GroupDirectory;
 import org.ametys.core.user.UserIdentity;
 import org.ametys.runtime.plugin.component.AbstractLogEnabled;
 
 /**
- * Component for getting group list.
+ * Component for getting group list.<br>
+ * The groups a user is in are cached (per group directory), as they are needed for each right check.
+ * The cache can be configured with <code>&lt;cache max-size="..." ttl="..." refresh="..." preload="true|false"/&gt;</code>:
+ * the maximum number of users, the time to live of the memberships in seconds, the delay in seconds after which memberships are
+ * refreshed in the background when accessed (0 to disable), and whether the memberships of all the groups are loaded at startup.
+ * The cache is invalidated by the {@link GroupMembershipCacheObserver} when groups are modified.
  */
-public class GroupManager extends AbstractLogEnabled implements Component, Serviceable
+public class GroupManager extends AbstractLogEnabled implements Component, Serviceable, Configurable, Initializable, Disposable
 {
     /** Avalon Role */
     public static final String ROLE = GroupManager.class.getName();
     
+    /** The default maximum number of users in the membership cache */
+    private static final long __DEFAULT_CACHE_MAX_SIZE = 10000;
+    /** The default time to live in seconds of the memberships */
+    private static final long __DEFAULT_CACHE_TTL = 600;
+    /** The default delay in seconds after which the memberships are refreshed */
+    private static final long __DEFAULT_CACHE_REFRESH = 300;
+    
     /** The DAO for group directories */
     protected GroupDirectoryDAO _groupDirectoryDAO;
     /** The helper for the associations group directory/context */
     protected GroupDirectoryContextHelper _directoryContextHelper;
     
+    /** The cache of the groups a user is in, by group directory */
+    private LoadingCache<UserIdentity, Map<GroupDirectory, Set<String>>> _membershipCache;
+    /** The executor for refreshing the memberships in background */
+    private ExecutorService _refreshExecutor;
+    
+    private long _cacheMaxSize;
+    private long _cacheTtl;
+    private long _cacheRefresh;
+    private boolean _cachePreload;
+    
     @Override
     public void service(ServiceManager manager) throws ServiceException
     {
@@ -49,6 +90,65 @@ public class GroupManager extends AbstractLogEnabled implements Component, Servi
         _directoryContextHelper = (GroupDirectoryContextHelper) manager.lookup(GroupDirectoryContextHelper.ROLE);
     }
     
+    @Override
+    public void configure(Configuration configuration) throws ConfigurationException
+    {
+        Configuration cacheConfiguration = configuration.getChild("cache");
+        _cacheMaxSize = cacheConfiguration.getAttributeAsLong("max-size", __DEFAULT_CACHE_MAX_SIZE);
+        _cacheTtl = cacheConfiguration.getAttributeAsLong("ttl", __DEFAULT_CACHE_TTL);
+        _cacheRefresh = cacheConfiguration.getAttributeAsLong("refresh", __DEFAULT_CACHE_REFRESH);
+        _cachePreload = cacheConfiguration.getAttributeAsBoolean("preload", false);
+    }
+    
+    @Override
+    public void initialize() throws Exception
+    {
+        _refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("ametys-group-membership-%d").setDaemon(true).build());
+        
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .maximumSize(_cacheMaxSize)
+                .expireAfterWrite(_cacheTtl, TimeUnit.SECONDS);
+        if (_cacheRefresh > 0 && _cacheRefresh < _cacheTtl)
+        {
+            builder.refreshAfterWrite(_cacheRefresh, TimeUnit.SECONDS);
+        }
+        
+        _membershipCache = builder.build(new CacheLoader<UserIdentity, Map<GroupDirectory, Set<String>>>()
+        {
+            @Override
+            public Map<GroupDirectory, Set<String>> load(UserIdentity user)
+            {
+                Map<GroupDirectory, Set<String>> groupsByDirectory = new ConcurrentHashMap<>();
+                for (GroupDirectory groupDirectory : _groupDirectoryDAO.getGroupDirectories())
+                {
+                    groupsByDirectory.put(groupDirectory, getUserGroups(groupDirectory, user.getLogin(), user.getPopulationId()));
+                }
+                return groupsByDirectory;
+            }
+            
+            @Override
+            public ListenableFuture<Map<GroupDirectory, Set<String>>> reload(UserIdentity user, Map<GroupDirectory, Set<String>> oldValue)
+            {
+                // Refresh in background: the old memberships are returned meanwhile
+                ListenableFutureTask<Map<GroupDirectory, Set<String>>> task = ListenableFutureTask.create(() -> load(user));
+                _refreshExecutor.execute(task);
+                return task;
+            }
+        });
+        
+        if (_cachePreload)
+        {
+            _refreshExecutor.execute(this::preloadUserGroups);
+        }
+    }
+    
+    @Override
+    public void dispose()
+    {
+        _refreshExecutor.shutdownNow();
+        _membershipCache.invalidateAll();
+    }
+    
     // ------------------------------
     //    GET A PARTICULAR GROUP
     // ------------------------------
@@ -183,15 +283,27 @@ public class GroupManager extends AbstractLogEnabled implements Component, Servi
      */
     public Set<GroupIdentity> getUserGroups(String login, String populationId)
     {
+        Map<GroupDirectory, Set<String>> groupsByDirectory = _membershipCache.getUnchecked(new UserIdentity(login, populationId));
+        
+        List<GroupDirectory> groupDirectories = _groupDirectoryDAO.getGroupDirectories();
+        
         Set<GroupIdentity> result = new HashSet<>();
-        for (GroupDirectory groupDirectory : _groupDirectoryDAO.getGroupDirectories())
+        for (GroupDirectory groupDirectory : groupDirectories)
         {
-            for (String groupId : getUserGroups(groupDirectory, login, populationId))
+            // The group directories may have been modified since the memberships were cached
+            Set<String> groupIds = groupsByDirectory.computeIfAbsent(groupDirectory, gd -> getUserGroups(gd, login, populationId));
+            for (String groupId : groupIds)
             {
                 result.add(new GroupIdentity(groupId, groupDirectory.getId()));
             }
         }
         
+        if (groupsByDirectory.size() > groupDirectories.size())
+        {
+            // Forget the memberships of the group directories which do not exist anymore
+            groupsByDirectory.keySet().retainAll(groupDirectories);
+        }
+        
         return result;
     }
     
@@ -226,5 +338,77 @@ public class GroupManager extends AbstractLogEnabled implements Component, Servi
             return Collections.emptySet();
         }
     }
-
+    
+    // ------------------------------
+    //    MEMBERSHIP CACHE
+    // ------------------------------
+    
+    /**
+     * Loads in the cache the memberships of the users of all the groups of all the group directories.<br>
+     * Users who are not in any group are not loaded, their memberships will be computed on first access.
+     */
+    public void preloadUserGroups()
+    {
+        List<GroupDirectory> groupDirectories = _groupDirectoryDAO.getGroupDirectories();
+        
+        Map<UserIdentity, Map<GroupDirectory, Set<String>>> memberships = new HashMap<>();
+        for (GroupDirectory groupDirectory : groupDirectories)
+        {
+            for (Group group : getGroups(groupDirectory))
+            {
+                for (UserIdentity user : group.getUsers())
+                {
+                    memberships.computeIfAbsent(user, u -> new HashMap<>())
+                               .computeIfAbsent(groupDirectory, gd -> new HashSet<>())
+                               .add(group.getIdentity().getId());
+                }
+            }
+        }
+        
+        for (Map.Entry<UserIdentity, Map<GroupDirectory, Set<String>>> entry : memberships.entrySet())
+        {
+            Map<GroupDirectory, Set<String>> groupsByDirectory = new ConcurrentHashMap<>();
+            for (GroupDirectory groupDirectory : groupDirectories)
+            {
+                // The user is in no group of the directories it does not appear in
+                groupsByDirectory.put(groupDirectory, entry.getValue().getOrDefault(groupDirectory, Collections.emptySet()));
+            }
+            _membershipCache.put(entry.getKey(), groupsByDirectory);
+        }
+        
+        getLogger().info("Memberships of {} users loaded in cache", memberships.size());
+    }
+    
+    /**
+     * Removes all the cached memberships
+     */
+    public void clearCaches()
+    {
+        _membershipCache.invalidateAll();
+    }
+    
+    /**
+     * Removes the cached memberships of a user
+     * @param user The user
+     */
+    public void clearCachesForUser(UserIdentity user)
+    {
+        _membershipCache.invalidate(user);
+    }
+    
+    /**
+     * Removes the cached memberships which depend on a group: the ones of the users who were in the group and the ones of its current users
+     * @param groupIdentity The group
+     */
+    public void clearCachesForGroup(GroupIdentity groupIdentity)
+    {
+        _membershipCache.asMap().entrySet().removeIf(entry -> entry.getValue().entrySet().stream()
+                .anyMatch(groups -> groups.getKey().getId().equals(groupIdentity.getDirectoryId()) && groups.getValue().contains(groupIdentity.getId())));
+        
+        Group group = getGroup(groupIdentity);
+        if (group != null)
+        {
+            _membershipCache.invalidateAll(group.getUsers());
+        }
+    }
 }
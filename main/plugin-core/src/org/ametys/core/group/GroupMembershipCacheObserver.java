@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.core.group;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.avalon.framework.service.ServiceException;
+import org.apache.avalon.framework.service.ServiceManager;
+import org.apache.avalon.framework.service.Serviceable;
+
+import org.ametys.core.ObservationConstants;
+import org.ametys.core.observation.Event;
+import org.ametys.core.observation.Observer;
+import org.ametys.core.user.UserIdentity;
+
+/**
+ * This observer invalidates the memberships cached by the {@link GroupManager} when groups or users are modified.<br>
+ * It has the maximum priority, so that the memberships are up-to-date when the other observers (such as the ones invalidating the right results) run.
+ */
+public class GroupMembershipCacheObserver implements Serviceable, Observer
+{
+    private static final Set<String> __SUPPORTED_EVENT_IDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            ObservationConstants.EVENT_GROUP_ADDED,
+            ObservationConstants.EVENT_GROUP_UPDATED,
+            ObservationConstants.EVENT_GROUP_DELETED,
+            ObservationConstants.EVENT_USER_DELETED)));
+    
+    private GroupManager _groupManager;
+    
+    @Override
+    public void service(ServiceManager manager) throws ServiceException
+    {
+        _groupManager = (GroupManager) manager.lookup(GroupManager.ROLE);
+    }
+    
+    @Override
+    public boolean supports(Event event)
+    {
+        return __SUPPORTED_EVENT_IDS.contains(event.getId());
+    }
+    
+    @Override
+    public Set<String> getSupportedEventIds()
+    {
+        return __SUPPORTED_EVENT_IDS;
+    }
+    
+    @Override
+    public int getPriority(Event event)
+    {
+        return MAX_PRIORITY;
+    }
+    
+    @Override
+    public void observe(Event event, Map<String, Object> transientVars) throws Exception
+    {
+        Map<String, Object> arguments = event.getArguments();
+        
+        if (event.getId().equals(ObservationConstants.EVENT_USER_DELETED))
+        {
+            _groupManager.clearCachesForUser((UserIdentity) arguments.get(ObservationConstants.ARGS_USER));
+        }
+        else
+        {
+            _groupManager.clearCachesForGroup((GroupIdentity) arguments.get(ObservationConstants.ARGS_GROUP));
+        }
+    }
+}
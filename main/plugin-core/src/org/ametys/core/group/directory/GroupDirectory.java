@@ -20,6 +20,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.ametys.core.group.Group;
+import org.ametys.core.util.ResultPage;
 import org.ametys.runtime.i18n.I18nizableText;
 
 /**
@@ -101,6 +102,22 @@ public interface GroupDirectory
      */
     public List<Map<String, Object>> groups2JSON(int count, int offset, Map parameters);
     
+    /**
+     * Get a page of groups.<br>
+     * Contrary to {@link #groups2JSON(int, int, Map)}, implementations should make the cost of a page independent of its position,
+     * by continuing the search where the previous page stopped. The default implementation relies on offsets.
+     * @param count The maximum number of groups in the page. Must be positive.
+     * @param continuationToken The token of the previous page, see {@link ResultPage#getContinuationToken()}. Null to get the first page.
+     * @param parameters Parameters for saxing group list differently, see implementation.
+     * @return The page of groups as json objects
+     */
+    public default ResultPage<Map<String, Object>> groups2JSONPage(int count, String continuationToken, Map parameters)
+    {
+        int offset = ResultPage.getOffset(continuationToken);
+        List<Map<String, Object>> groups = groups2JSON(count, offset, parameters);
+        return new ResultPage<>(groups, groups.size() < count ? null : ResultPage.offsetToken(offset + groups.size()));
+    }
+    
     /**
      * Get group
      * @param id The group's id
@@ -22,16 +22,23 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.avalon.framework.activity.Disposable;
+import org.apache.avalon.framework.activity.Initializable;
 import org.apache.avalon.framework.component.Component;
+import org.apache.avalon.framework.configuration.Configurable;
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
 import org.apache.avalon.framework.context.ContextException;
 import org.apache.avalon.framework.context.Contextualizable;
 import org.apache.avalon.framework.logger.AbstractLogEnabled;
@@ -46,26 +53,58 @@ import org.slf4j.LoggerFactory;
 import org.ametys.core.engine.BackgroundEngineHelper;
 
 /**
- * Manager for dispatching {@link Event} instances to {@link Observer}s.
+ * Manager for dispatching {@link Event} instances to {@link Observer}s.<br>
+ * Asynchronous observers are run by thread pools which can be configured with
+ * <code>&lt;async parallel-threads="..." queue-size="..." overflow-policy="block|discard" drain-timeout="..."/&gt;</code>:
+ * the number of threads for parallelizable observers (10 per processor by default), the maximum number of pending tasks of each pool,
+ * what to do when a queue is full (wait for a free slot, or discard the task with an error log), and the time in seconds to wait
+ * for the pending tasks on dispose.<br>
+ * With the 'block' policy, a parallelizable task which cannot be queued is run by the notifying thread itself when this thread is an asynchronous observer thread
+ * (waiting for room in a queue that this thread is supposed to empty would never end), or when no room was freed after a few seconds.
+ * Non-parallelizable tasks are never run by the notifying thread, as they must not run concurrently: the notifying thread waits for room in the queue,
+ * unless it is the thread of the non-parallelizable observers itself, in which case the task is discarded.
  */
-public class ObservationManager extends AbstractLogEnabled implements Component, Serviceable, Contextualizable, Disposable
+public class ObservationManager extends AbstractLogEnabled implements Component, Serviceable, Contextualizable, Configurable, Initializable, Disposable
 {
     /** Avalon ROLE. */
     public static final String ROLE = ObservationManager.class.getName();
     
     private static final Logger __ALL_EVENTS_LOGGER = LoggerFactory.getLogger("org.ametys.cms.observation.AllEvents");
     
+    /** The default maximum number of pending asynchronous tasks by pool */
+    private static final int __DEFAULT_QUEUE_SIZE = 10000;
+    
+    /** The default time in seconds to wait for pending asynchronous tasks on dispose */
+    private static final long __DEFAULT_DRAIN_TIMEOUT = 30;
+    
+    /** The time in seconds to wait for room in a full queue before running the task in the notifying thread */
+    private static final long __OVERFLOW_TIMEOUT = 10;
+    
+    /** True in the threads of the asynchronous observers */
+    private static final ThreadLocal<Boolean> __ASYNC_OBSERVE_THREAD = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    
+    /** True while the non-parallelizable observers are observing */
+    private static final ThreadLocal<Boolean> __NON_PARALLEL_OBSERVE = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    
     /**
      * The executor service managing the single thread pool. This threads is
      * used to run non-parallelizable observers.
      */
-    private static ExecutorService __SINGLE_THREAD_EXECUTOR;
+    private ThreadPoolExecutor _singleThreadExecutor;
     
     /**
      * The executor service managing the thread pool of asynchronous observers
      * allowed to run in parallel.
      */
-    private static ExecutorService __PARALLEL_THREAD_EXECUTOR;
+    private ThreadPoolExecutor _parallelThreadExecutor;
+    
+    /** The metrics of the asynchronous observers, by observer */
+    private final Map<String, AsyncObserverMetrics> _asyncMetrics = new ConcurrentHashMap<>();
+    
+    private int _parallelThreads;
+    private int _queueSize;
+    private boolean _discardOnOverflow;
+    private long _drainTimeout;
     
     /** Cocoon context */
     protected Context _context;
@@ -76,6 +115,9 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
     private ObserverExtensionPoint _observerExtPt;
     private Collection<Observer> _registeredObservers = new ArrayList<>();
     
+    /** The observers which may support an event, by event id, in the order of the extension point */
+    private final Map<String, List<Observer>> _routingTable = new ConcurrentHashMap<>();
+    
     @Override
     public void service(ServiceManager manager) throws ServiceException
     {
@@ -89,6 +131,80 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
         _context = (org.apache.cocoon.environment.Context) context.get(Constants.CONTEXT_ENVIRONMENT_CONTEXT);
     }
     
+    @Override
+    public void configure(Configuration configuration) throws ConfigurationException
+    {
+        Configuration asyncConfiguration = configuration.getChild("async");
+        
+        // 10 threads per core by default
+        _parallelThreads = asyncConfiguration.getAttributeAsInteger("parallel-threads", 10 * Runtime.getRuntime().availableProcessors());
+        _queueSize = asyncConfiguration.getAttributeAsInteger("queue-size", __DEFAULT_QUEUE_SIZE);
+        _drainTimeout = asyncConfiguration.getAttributeAsLong("drain-timeout", __DEFAULT_DRAIN_TIMEOUT);
+        
+        String overflowPolicy = asyncConfiguration.getAttribute("overflow-policy", "block");
+        if (!"block".equals(overflowPolicy) && !"discard".equals(overflowPolicy))
+        {
+            throw new ConfigurationException("Invalid overflow policy '" + overflowPolicy + "', 'block' or 'discard' was expected", asyncConfiguration);
+        }
+        _discardOnOverflow = "discard".equals(overflowPolicy);
+    }
+    
+    @Override
+    public void initialize() throws Exception
+    {
+        AsyncObserveThreadFactory threadFactory = new AsyncObserveThreadFactory();
+        RejectedExecutionHandler overflowHandler = new OverflowHandler();
+        
+        _singleThreadExecutor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(_queueSize), threadFactory, overflowHandler);
+        _singleThreadExecutor.allowCoreThreadTimeOut(true);
+        
+        // Core size = max size, as threads above the core size are only created when the queue is full
+        _parallelThreadExecutor = new ThreadPoolExecutor(_parallelThreads, _parallelThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(_queueSize), threadFactory, overflowHandler);
+        _parallelThreadExecutor.allowCoreThreadTimeOut(true);
+        
+        // Route the events declared by the observers once for all
+        for (String observerId : _observerExtPt.getExtensionsIds())
+        {
+            Set<String> eventIds = _observerExtPt.getExtension(observerId).getSupportedEventIds();
+            if (eventIds != null)
+            {
+                for (String eventId : eventIds)
+                {
+                    _getCandidateObservers(eventId);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Gets the observers which may support an event, i.e. the ones which declared this event id or which did not declare any event id
+     * @param eventId The event id
+     * @return The candidate observers, in the order of the extension point
+     */
+    private List<Observer> _getCandidateObservers(String eventId)
+    {
+        return _routingTable.computeIfAbsent(eventId, id -> 
+        {
+            List<Observer> observers = new ArrayList<>();
+            for (String observerId : _observerExtPt.getExtensionsIds())
+            {
+                Observer observer = _observerExtPt.getExtension(observerId);
+                Set<String> eventIds = observer.getSupportedEventIds();
+                if (eventIds == null || eventIds.contains(id))
+                {
+                    observers.add(observer);
+                }
+            }
+            
+            if (getLogger().isDebugEnabled())
+            {
+                getLogger().debug("Candidate observers for event '" + id + "': " + observers);
+            }
+            
+            return Collections.unmodifiableList(observers);
+        });
+    }
+    
     /**
      * Notify of a event which will be dispatch to registered
      * observers.
@@ -110,11 +226,9 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
             
             List<Observer> supportedObservers = new ArrayList<>();
             
-            // Retrieve supported observers
-            for (String observerId : _observerExtPt.getExtensionsIds())
+            // Retrieve supported observers among the candidates for this event
+            for (Observer observer : _getCandidateObservers(event.getId()))
             {
-                Observer observer = _observerExtPt.getExtension(observerId);
-                
                 if (getLogger().isDebugEnabled())
                 {
                     getLogger().debug("Checking support for event: " + event + " and observer: " + observer);
@@ -132,15 +246,10 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
             }
             
             // Order observers (0 is first, Integer.MAX_INT is last)
-            Collections.sort(supportedObservers, new Comparator<Observer>()
+            if (supportedObservers.size() > 1)
             {
-                @Override
-                public int compare(Observer o1, Observer o2)
-                {
-                    return new Integer(o1.getPriority(event)).compareTo(new Integer(o2.getPriority(event)));
-                }
-        
-            });
+                supportedObservers.sort(Comparator.comparingInt(observer -> observer.getPriority(event)));
+            }
             
             // Observes the event and prepares the asynchronous observes.
             _observesEvent(event, supportedObservers);
@@ -219,31 +328,65 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
      */
     private void _asyncObserve(Collection<AsyncObserver> parallelObservers, List<AsyncObserver> nonParallelObservers, Event event, Map<String, Object> transientVars)
     {
-        if (__SINGLE_THREAD_EXECUTOR == null)
-        {
-            AsyncObserveThreadFactory threadFactory = new AsyncObserveThreadFactory();
-            
-            __SINGLE_THREAD_EXECUTOR = Executors.newSingleThreadExecutor(threadFactory);
-            
-            // 10 threads per core
-            __PARALLEL_THREAD_EXECUTOR = new ThreadPoolExecutor(0, 10 * Runtime.getRuntime().availableProcessors(), 60L, TimeUnit.MILLISECONDS,
-                    new LinkedBlockingQueue<Runnable>(), threadFactory);
-        }
-        
         if (!parallelObservers.isEmpty())
         {
             for (AsyncObserver observer :  parallelObservers)
             {
-                __PARALLEL_THREAD_EXECUTOR.execute(new ParallelAsyncObserve(observer, event, transientVars, getLogger(), __ALL_EVENTS_LOGGER));
+                _execute(_parallelThreadExecutor, new ParallelAsyncObserve(observer, event, transientVars, getLogger(), __ALL_EVENTS_LOGGER));
             }
         }
         
         if (!nonParallelObservers.isEmpty())
         {
-            __SINGLE_THREAD_EXECUTOR.execute(new NonParallelAsyncObserve(nonParallelObservers, event, transientVars, getLogger(), __ALL_EVENTS_LOGGER));
+            _execute(_singleThreadExecutor, new NonParallelAsyncObserve(nonParallelObservers, event, transientVars, getLogger(), __ALL_EVENTS_LOGGER));
         }
     }
     
+    private void _execute(ThreadPoolExecutor executor, AbstractAsyncObserve task)
+    {
+        for (AsyncObserver observer : task._getObservers())
+        {
+            _getMetrics(observer).queued();
+        }
+        
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The task will never be run
+            for (AsyncObserver observer : task._getObservers())
+            {
+                _getMetrics(observer).rejected();
+            }
+            throw e;
+        }
+    }
+    
+    private AsyncObserverMetrics _getMetrics(Observer observer)
+    {
+        return _asyncMetrics.computeIfAbsent(observer.getClass().getName(), k -> new AsyncObserverMetrics());
+    }
+    
+    /**
+     * Gets the metrics of the asynchronous observers
+     * @return the metrics, by observer class name
+     */
+    public Map<String, AsyncObserverMetrics> getAsyncObserversMetrics()
+    {
+        return Collections.unmodifiableMap(_asyncMetrics);
+    }
+    
+    /**
+     * Gets the number of asynchronous tasks waiting for a thread
+     * @return the number of pending tasks
+     */
+    public int getAsyncQueueSize()
+    {
+        return _parallelThreadExecutor.getQueue().size() + _singleThreadExecutor.getQueue().size();
+    }
+    
     /**
      * Runnable to be used for asynchronous calls 
      */
@@ -254,6 +397,8 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
         protected final Map<String, Object> _transientVars;
         protected final org.apache.avalon.framework.logger.Logger _logger;
         protected final Logger _allEventLogger;
+        /** The time when the task was queued */
+        protected final long _queuedTime;
         
         AbstractAsyncObserve(Event event, Map<String, Object> transientVars, org.apache.avalon.framework.logger.Logger logger, Logger allEventLogger)
         {
@@ -261,6 +406,7 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
             _transientVars = transientVars;
             _logger = logger;
             _allEventLogger = allEventLogger;
+            _queuedTime = System.currentTimeMillis();
         }
         
         public void run()
@@ -295,6 +441,35 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
          * @throws Exception on error
          */
         protected abstract void _observe() throws Exception;
+        
+        /**
+         * Observes the event with an observer, recording its metrics
+         * @param observer The observer
+         * @throws Exception on error
+         */
+        protected void _observe(AsyncObserver observer) throws Exception
+        {
+            AsyncObserverMetrics metrics = _getMetrics(observer);
+            long start = System.currentTimeMillis();
+            metrics.started(start - _queuedTime);
+            
+            boolean success = false;
+            try
+            {
+                observer.observe(_event, _transientVars);
+                success = true;
+            }
+            finally
+            {
+                metrics.ended(System.currentTimeMillis() - start, success);
+            }
+        }
+        
+        /**
+         * Gets the observers handled by this task
+         * @return the observers
+         */
+        protected abstract Collection<AsyncObserver> _getObservers();
     }
     
     /**
@@ -322,7 +497,13 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
                 _allEventLogger.debug("Observing the asynchronous observer: " + _observer + " for event: " + _event + ".");
             }
             
-            _observer.observe(_event, _transientVars);
+            _observe(_observer);
+        }
+        
+        @Override
+        protected Collection<AsyncObserver> _getObservers()
+        {
+            return Collections.singleton(_observer);
         }
     }
     
@@ -342,20 +523,34 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
         @Override
         protected void _observe() throws Exception
         {
-            for (AsyncObserver observer : _observers)
+            __NON_PARALLEL_OBSERVE.set(Boolean.TRUE);
+            try
             {
-                if (_logger.isDebugEnabled())
-                {
-                    _logger.debug("Observing the asynchronous observer: " + observer + " for event: " + _event + ".");
-                }
-                if (_allEventLogger.isDebugEnabled())
+                for (AsyncObserver observer : _observers)
                 {
-                    _allEventLogger.debug("Observing the asynchronous observer: " + observer + " for event: " + _event + ".");
+                    if (_logger.isDebugEnabled())
+                    {
+                        _logger.debug("Observing the asynchronous observer: " + observer + " for event: " + _event + ".");
+                    }
+                    if (_allEventLogger.isDebugEnabled())
+                    {
+                        _allEventLogger.debug("Observing the asynchronous observer: " + observer + " for event: " + _event + ".");
+                    }
+                    
+                    _observe(observer);
                 }
-                
-                observer.observe(_event, _transientVars);
+            }
+            finally
+            {
+                __NON_PARALLEL_OBSERVE.set(Boolean.FALSE);
             }
         }
+        
+        @Override
+        protected Collection<AsyncObserver> _getObservers()
+        {
+            return _observers;
+        }
     }
     
     /**
@@ -377,7 +572,11 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
         
         public Thread newThread(Runnable r)
         {
-            Thread thread = _defaultThreadFactory.newThread(r);
+            Thread thread = _defaultThreadFactory.newThread(() -> 
+            {
+                __ASYNC_OBSERVE_THREAD.set(Boolean.TRUE);
+                r.run();
+            });
             thread.setName(String.format(_nameFormat, _count.getAndIncrement()));
             thread.setDaemon(true);
             
@@ -385,24 +584,259 @@ public class ObservationManager extends AbstractLogEnabled implements Component,
         }
     }
     
-    @Override
-    public void dispose()
+    /**
+     * Handles the tasks which cannot be queued, because the queue is full
+     */
+    class OverflowHandler implements RejectedExecutionHandler
     {
-        if (__SINGLE_THREAD_EXECUTOR != null)
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown())
+            {
+                throw new RejectedExecutionException("The observation manager is disposed");
+            }
+            
+            AbstractAsyncObserve task = (AbstractAsyncObserve) r;
+            if (_discardOnOverflow || executor == _singleThreadExecutor && __NON_PARALLEL_OBSERVE.get())
+            {
+                // Discarded by configuration, or the non-parallelizable observers would wait for their own thread to empty the queue
+                _discard(task);
+            }
+            else if (executor == _singleThreadExecutor)
+            {
+                // The non-parallelizable observers must not be run concurrently by the notifying thread: wait for some room in the queue
+                _waitForRoom(task, executor);
+            }
+            else if (__ASYNC_OBSERVE_THREAD.get())
+            {
+                // An observer is notifying: this thread may be the one which should empty the queue, do not wait for it
+                getLogger().warn("Too many pending asynchronous observers, the observers " + task._getObservers() + " will observe the event " + task._event + " in the notifying thread");
+                r.run();
+            }
+            else
+            {
+                // Wait for some room in the queue, so that the producers of events are slowed down
+                boolean queued;
+                try
+                {
+                    queued = executor.getQueue().offer(r, __OVERFLOW_TIMEOUT, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for room in the queue of asynchronous observers", e);
+                }
+                
+                if (!queued)
+                {
+                    getLogger().warn("Too many pending asynchronous observers, the observers " + task._getObservers() + " will observe the event " + task._event + " in the notifying thread");
+                    r.run();
+                }
+                else if (executor.isShutdown() && executor.remove(r))
+                {
+                    // Disposed while waiting, the task will never be run
+                    throw new RejectedExecutionException("The observation manager is disposed");
+                }
+            }
+        }
+        
+        private void _discard(AbstractAsyncObserve task)
+        {
+            getLogger().error("Too many pending asynchronous observers, the observers " + task._getObservers() + " will not observe the event " + task._event);
+            for (AsyncObserver observer : task._getObservers())
+            {
+                _getMetrics(observer).discarded();
+            }
+        }
+        
+        private void _waitForRoom(AbstractAsyncObserve task, ThreadPoolExecutor executor)
+        {
+            try
+            {
+                while (!executor.getQueue().offer(task, __OVERFLOW_TIMEOUT, TimeUnit.SECONDS))
+                {
+                    if (executor.isShutdown())
+                    {
+                        throw new RejectedExecutionException("The observation manager is disposed");
+                    }
+                    getLogger().warn("Too many pending asynchronous observers, still waiting to queue the observers " + task._getObservers() + " for the event " + task._event);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the queue of asynchronous observers", e);
+            }
+            
+            if (executor.isShutdown() && executor.remove(task))
+            {
+                // Disposed while waiting, the task will never be run
+                throw new RejectedExecutionException("The observation manager is disposed");
+            }
+        }
+    }
+    
+    /**
+     * Metrics of an asynchronous observer
+     */
+    public static class AsyncObserverMetrics
+    {
+        private final AtomicLong _pending = new AtomicLong();
+        private final AtomicLong _processed = new AtomicLong();
+        private final AtomicLong _failed = new AtomicLong();
+        private final AtomicLong _discarded = new AtomicLong();
+        private final AtomicLong _totalWaitTime = new AtomicLong();
+        private final AtomicLong _totalProcessingTime = new AtomicLong();
+        private final AtomicLong _maxProcessingTime = new AtomicLong();
+        
+        void queued()
+        {
+            _pending.incrementAndGet();
+        }
+        
+        void rejected()
+        {
+            _pending.decrementAndGet();
+        }
+        
+        void discarded()
+        {
+            _pending.decrementAndGet();
+            _discarded.incrementAndGet();
+        }
+        
+        void started(long waitTime)
+        {
+            _pending.decrementAndGet();
+            _totalWaitTime.addAndGet(waitTime);
+        }
+        
+        void ended(long processingTime, boolean success)
+        {
+            _processed.incrementAndGet();
+            if (!success)
+            {
+                _failed.incrementAndGet();
+            }
+            _totalProcessingTime.addAndGet(processingTime);
+            _maxProcessingTime.accumulateAndGet(processingTime, Math::max);
+        }
+        
+        /**
+         * Gets the number of events waiting to be observed
+         * @return the number of pending events
+         */
+        public long getPending()
+        {
+            return _pending.get();
+        }
+        
+        /**
+         * Gets the number of observed events, including failures
+         * @return the number of observed events
+         */
+        public long getProcessed()
+        {
+            return _processed.get();
+        }
+        
+        /**
+         * Gets the number of events whose observation failed
+         * @return the number of failures
+         */
+        public long getFailed()
+        {
+            return _failed.get();
+        }
+        
+        /**
+         * Gets the number of events discarded because the queue was full
+         * @return the number of discarded events
+         */
+        public long getDiscarded()
+        {
+            return _discarded.get();
+        }
+        
+        /**
+         * Gets the average time an event waited before being observed
+         * @return the average wait time in milliseconds
+         */
+        public long getAverageWaitTime()
         {
-            __SINGLE_THREAD_EXECUTOR.shutdownNow();
-            __SINGLE_THREAD_EXECUTOR = null;
+            long processed = _processed.get();
+            return processed > 0 ? _totalWaitTime.get() / processed : 0;
         }
-        if (__PARALLEL_THREAD_EXECUTOR != null)
+        
+        /**
+         * Gets the average time of the observation of an event
+         * @return the average processing time in milliseconds
+         */
+        public long getAverageProcessingTime()
         {
-            __PARALLEL_THREAD_EXECUTOR.shutdownNow();
-            __PARALLEL_THREAD_EXECUTOR = null;
+            long processed = _processed.get();
+            return processed > 0 ? _totalProcessingTime.get() / processed : 0;
+        }
+        
+        /**
+         * Gets the maximum time of the observation of an event
+         * @return the maximum processing time in milliseconds
+         */
+        public long getMaxProcessingTime()
+        {
+            return _maxProcessingTime.get();
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "pending=" + getPending() + ", processed=" + getProcessed() + ", failed=" + getFailed() + ", discarded=" + getDiscarded()
+                    + ", avgWait=" + getAverageWaitTime() + "ms, avgProcessing=" + getAverageProcessingTime() + "ms, maxProcessing=" + getMaxProcessingTime() + "ms";
+        }
+    }
+    
+    @Override
+    public void dispose()
+    {
+        // Let the pending asynchronous observers end, up to the drain timeout
+        _drain(_parallelThreadExecutor);
+        _drain(_singleThreadExecutor);
+        _parallelThreadExecutor = null;
+        _singleThreadExecutor = null;
+        
+        if (getLogger().isInfoEnabled() && !_asyncMetrics.isEmpty())
+        {
+            getLogger().info("Asynchronous observers metrics: " + _asyncMetrics);
         }
         
         _context = null;
         _manager = null;
     }
-
+    
+    private void _drain(ThreadPoolExecutor executor)
+    {
+        if (executor == null)
+        {
+            return;
+        }
+        
+        executor.shutdown();
+        try
+        {
+            if (!executor.awaitTermination(_drainTimeout, TimeUnit.SECONDS))
+            {
+                List<Runnable> abandonedTasks = executor.shutdownNow();
+                getLogger().warn(abandonedTasks.size() + " asynchronous observations were abandoned on dispose");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
     /**
      * Registers an {@link Observer}.
      * @param observer the {@link Observer}.
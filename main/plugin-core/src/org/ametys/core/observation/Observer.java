@@ -16,6 +16,7 @@
 package org.ametys.core.observation;
 
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Observer for consuming events.
@@ -34,6 +35,16 @@ public interface Observer
      */
     boolean supports(Event event);
     
+    /**
+     * Gets the identifiers of the events this observer may support.<br>
+     * The {@link ObservationManager} only calls {@link #supports(Event)} for these events, and does not consider this observer at all for the others.
+     * @return the identifiers of the events which may be supported, or <code>null</code> if any event may be supported.
+     */
+    default Set<String> getSupportedEventIds()
+    {
+        return null;
+    }
+    
     /**
      * Retrieves the priority to observe this event.<br>
      * This can be used to process a supported event before others observers.
@@ -15,6 +15,8 @@
  */
 package org.ametys.core.right;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -152,6 +154,26 @@ public interface AccessController
      */
     public Map<String, AccessResultContext> getPermissions(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds, Object object);
     
+    /**
+     * Gets the permissions for a user on several objects at once.<br>
+     * The default implementation calls {@link #getPermissions(UserIdentity, Set, Set, Object)} for each object, but implementations should
+     * override it when they are able to retrieve the permissions of all the objects at once.
+     * @param user The user. Cannot be null.
+     * @param userGroups The groups the user belongs to
+     * @param profileIds The ids of the profiles of the user
+     * @param objects The context objects to check the access. They all have to be supported by this access controller.
+     * @return for each object, the kind of access (through an {@link AccessResultContext} object) the user has for each profile
+     */
+    public default Map<Object, Map<String, AccessResultContext>> getPermissionsByObject(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds, Collection<?> objects)
+    {
+        Map<Object, Map<String, AccessResultContext>> permissions = new HashMap<>();
+        for (Object object : objects)
+        {
+            permissions.put(object, getPermissions(user, userGroups, profileIds, object));
+        }
+        return permissions;
+    }
+    
     /**
      * Gets the kind of access a user has on an object for all profiles
      * @param user The user. Cannot be null.
@@ -169,6 +191,23 @@ public interface AccessController
      */
     public AccessResult getPermissionForAnonymous(Set<String> profileIds, Object object);
     
+    /**
+     * Gets the permissions for Anonymous only on several objects at once, according to the given profiles.<br>
+     * The default implementation calls {@link #getPermissionForAnonymous(Set, Object)} for each object.
+     * @param profileIds The ids of the profiles
+     * @param objects The objects. They all have to be supported by this access controller.
+     * @return the permission for Anonymous only by object
+     */
+    public default Map<Object, AccessResult> getPermissionForAnonymousByObject(Set<String> profileIds, Collection<?> objects)
+    {
+        Map<Object, AccessResult> permissions = new HashMap<>();
+        for (Object object : objects)
+        {
+            permissions.put(object, getPermissionForAnonymous(profileIds, object));
+        }
+        return permissions;
+    }
+    
     /**
      * Gets the permission for any connected user only on an object, according to the given profiles.
      * @param profileIds The ids of the profiles
@@ -199,4 +238,16 @@ public interface AccessController
      * @return true if this accessc controller supports the given object
      */
     public boolean isSupported(Object object);
+    
+    /**
+     * Determines if the permissions given by this access controller can be kept in cache by the {@link RightManager} across requests.<br>
+     * This is only the case when they only depend on the profile assignments, whose modifications are notified by the {@link org.ametys.core.ObservationConstants#EVENT_ACL_UPDATED} event.
+     * Otherwise (permissions depending on the date, on the request, on an external system...), the results are only cached for the current request,
+     * unless the access controller calls {@link RightManager#clearCaches()} each time its permissions change.
+     * @return true if the permissions can be cached across requests
+     */
+    public default boolean isCacheable()
+    {
+        return false;
+    }
 }
@@ -0,0 +1,398 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.core.right;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.ametys.core.group.GroupIdentity;
+import org.ametys.core.right.AccessController.AccessResult;
+import org.ametys.core.right.AccessController.AccessResultContext;
+import org.ametys.core.user.UserIdentity;
+
+/**
+ * The profile assignments (allowed and denied) of a single object context, for anonymous, any connected user, users and groups.<br>
+ * Once filled, the permissions on the context can be computed in memory, following the precedence rules
+ * ANONYMOUS_ALLOWED &gt; USER_DENIED &gt; USER_ALLOWED &gt; GROUP_DENIED &gt; GROUP_ALLOWED &gt; ANY_CONNECTED_DENIED &gt; ANY_CONNECTED_ALLOWED &gt; ANONYMOUS_DENIED.
+ */
+public class ContextProfileAssignments
+{
+    private final Set<String> _allowedAnonymous = new HashSet<>();
+    private final Set<String> _deniedAnonymous = new HashSet<>();
+    private final Set<String> _allowedAnyConnected = new HashSet<>();
+    private final Set<String> _deniedAnyConnected = new HashSet<>();
+    private final Map<UserIdentity, Set<String>> _allowedUsers = new HashMap<>();
+    private final Map<UserIdentity, Set<String>> _deniedUsers = new HashMap<>();
+    private final Map<GroupIdentity, Set<String>> _allowedGroups = new HashMap<>();
+    private final Map<GroupIdentity, Set<String>> _deniedGroups = new HashMap<>();
+    
+    /**
+     * Creates empty assignments
+     */
+    public ContextProfileAssignments()
+    {
+        // Nothing
+    }
+    
+    /**
+     * Creates a copy of some assignments
+     * @param assignments The assignments to copy
+     */
+    public ContextProfileAssignments(ContextProfileAssignments assignments)
+    {
+        _allowedAnonymous.addAll(assignments._allowedAnonymous);
+        _deniedAnonymous.addAll(assignments._deniedAnonymous);
+        _allowedAnyConnected.addAll(assignments._allowedAnyConnected);
+        _deniedAnyConnected.addAll(assignments._deniedAnyConnected);
+        _copy(assignments._allowedUsers, _allowedUsers);
+        _copy(assignments._deniedUsers, _deniedUsers);
+        _copy(assignments._allowedGroups, _allowedGroups);
+        _copy(assignments._deniedGroups, _deniedGroups);
+    }
+    
+    private <T> void _copy(Map<T, Set<String>> from, Map<T, Set<String>> to)
+    {
+        for (Map.Entry<T, Set<String>> entry : from.entrySet())
+        {
+            to.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+    }
+    
+    /**
+     * Adds allowed profiles for anonymous
+     * @param profileIds The ids of the profiles
+     */
+    public void addAllowedProfilesForAnonymous(Collection<String> profileIds)
+    {
+        _allowedAnonymous.addAll(profileIds);
+    }
+    
+    /**
+     * Adds denied profiles for anonymous
+     * @param profileIds The ids of the profiles
+     */
+    public void addDeniedProfilesForAnonymous(Collection<String> profileIds)
+    {
+        _deniedAnonymous.addAll(profileIds);
+    }
+    
+    /**
+     * Adds allowed profiles for any connected user
+     * @param profileIds The ids of the profiles
+     */
+    public void addAllowedProfilesForAnyConnectedUser(Collection<String> profileIds)
+    {
+        _allowedAnyConnected.addAll(profileIds);
+    }
+    
+    /**
+     * Adds denied profiles for any connected user
+     * @param profileIds The ids of the profiles
+     */
+    public void addDeniedProfilesForAnyConnectedUser(Collection<String> profileIds)
+    {
+        _deniedAnyConnected.addAll(profileIds);
+    }
+    
+    /**
+     * Adds allowed profiles for a user
+     * @param user The user
+     * @param profileIds The ids of the profiles
+     */
+    public void addAllowedProfilesForUser(UserIdentity user, Collection<String> profileIds)
+    {
+        _add(_allowedUsers, user, profileIds);
+    }
+    
+    /**
+     * Adds denied profiles for a user
+     * @param user The user
+     * @param profileIds The ids of the profiles
+     */
+    public void addDeniedProfilesForUser(UserIdentity user, Collection<String> profileIds)
+    {
+        _add(_deniedUsers, user, profileIds);
+    }
+    
+    /**
+     * Adds allowed profiles for a group
+     * @param group The group
+     * @param profileIds The ids of the profiles
+     */
+    public void addAllowedProfilesForGroup(GroupIdentity group, Collection<String> profileIds)
+    {
+        _add(_allowedGroups, group, profileIds);
+    }
+    
+    /**
+     * Adds denied profiles for a group
+     * @param group The group
+     * @param profileIds The ids of the profiles
+     */
+    public void addDeniedProfilesForGroup(GroupIdentity group, Collection<String> profileIds)
+    {
+        _add(_deniedGroups, group, profileIds);
+    }
+    
+    private <T> void _add(Map<T, Set<String>> assignments, T key, Collection<String> profileIds)
+    {
+        if (!profileIds.isEmpty())
+        {
+            assignments.computeIfAbsent(key, k -> new HashSet<>()).addAll(profileIds);
+        }
+    }
+    
+    /**
+     * Removes a profile from all the assignments
+     * @param profileId The id of the profile
+     */
+    public void removeProfile(String profileId)
+    {
+        _allowedAnonymous.remove(profileId);
+        _deniedAnonymous.remove(profileId);
+        _allowedAnyConnected.remove(profileId);
+        _deniedAnyConnected.remove(profileId);
+        _remove(_allowedUsers, profileId);
+        _remove(_deniedUsers, profileId);
+        _remove(_allowedGroups, profileId);
+        _remove(_deniedGroups, profileId);
+    }
+    
+    private <T> void _remove(Map<T, Set<String>> assignments, String profileId)
+    {
+        assignments.values().forEach(profiles -> profiles.remove(profileId));
+        assignments.values().removeIf(Set::isEmpty);
+    }
+    
+    /**
+     * Removes all the assignments of a user
+     * @param user The user
+     */
+    public void removeUser(UserIdentity user)
+    {
+        _allowedUsers.remove(user);
+        _deniedUsers.remove(user);
+    }
+    
+    /**
+     * Removes all the assignments of a group
+     * @param group The group
+     */
+    public void removeGroup(GroupIdentity group)
+    {
+        _allowedGroups.remove(group);
+        _deniedGroups.remove(group);
+    }
+    
+    /**
+     * Tests if there is no assignment at all
+     * @return true if there is no assignment
+     */
+    public boolean isEmpty()
+    {
+        return _allowedAnonymous.isEmpty() && _deniedAnonymous.isEmpty() && _allowedAnyConnected.isEmpty() && _deniedAnyConnected.isEmpty()
+                && _allowedUsers.isEmpty() && _deniedUsers.isEmpty() && _allowedGroups.isEmpty() && _deniedGroups.isEmpty();
+    }
+    
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(_allowedAnonymous, _deniedAnonymous, _allowedAnyConnected, _deniedAnyConnected, _allowedUsers, _deniedUsers, _allowedGroups, _deniedGroups);
+    }
+    
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass())
+        {
+            return false;
+        }
+        
+        ContextProfileAssignments other = (ContextProfileAssignments) obj;
+        return _allowedAnonymous.equals(other._allowedAnonymous)
+                && _deniedAnonymous.equals(other._deniedAnonymous)
+                && _allowedAnyConnected.equals(other._allowedAnyConnected)
+                && _deniedAnyConnected.equals(other._deniedAnyConnected)
+                && _allowedUsers.equals(other._allowedUsers)
+                && _deniedUsers.equals(other._deniedUsers)
+                && _allowedGroups.equals(other._allowedGroups)
+                && _deniedGroups.equals(other._deniedGroups);
+    }
+    
+    /**
+     * Gets the allowed profiles for anonymous
+     * @return the ids of the profiles (read-only)
+     */
+    public Set<String> getAllowedProfilesForAnonymous()
+    {
+        return Collections.unmodifiableSet(_allowedAnonymous);
+    }
+    
+    /**
+     * Gets the denied profiles for anonymous
+     * @return the ids of the profiles (read-only)
+     */
+    public Set<String> getDeniedProfilesForAnonymous()
+    {
+        return Collections.unmodifiableSet(_deniedAnonymous);
+    }
+    
+    /**
+     * Gets the allowed profiles for any connected user
+     * @return the ids of the profiles (read-only)
+     */
+    public Set<String> getAllowedProfilesForAnyConnectedUser()
+    {
+        return Collections.unmodifiableSet(_allowedAnyConnected);
+    }
+    
+    /**
+     * Gets the denied profiles for any connected user
+     * @return the ids of the profiles (read-only)
+     */
+    public Set<String> getDeniedProfilesForAnyConnectedUser()
+    {
+        return Collections.unmodifiableSet(_deniedAnyConnected);
+    }
+    
+    /**
+     * Gets the allowed profiles by user
+     * @return the ids of the profiles by user (read-only)
+     */
+    public Map<UserIdentity, Set<String>> getAllowedProfilesForUsers()
+    {
+        return Collections.unmodifiableMap(_allowedUsers);
+    }
+    
+    /**
+     * Gets the denied profiles by user
+     * @return the ids of the profiles by user (read-only)
+     */
+    public Map<UserIdentity, Set<String>> getDeniedProfilesForUsers()
+    {
+        return Collections.unmodifiableMap(_deniedUsers);
+    }
+    
+    /**
+     * Gets the allowed profiles by group
+     * @return the ids of the profiles by group (read-only)
+     */
+    public Map<GroupIdentity, Set<String>> getAllowedProfilesForGroups()
+    {
+        return Collections.unmodifiableMap(_allowedGroups);
+    }
+    
+    /**
+     * Gets the denied profiles by group
+     * @return the ids of the profiles by group (read-only)
+     */
+    public Map<GroupIdentity, Set<String>> getDeniedProfilesForGroups()
+    {
+        return Collections.unmodifiableMap(_deniedGroups);
+    }
+    
+    /**
+     * Gets the permissions a user has on this context, given some groups and profiles
+     * @param user The user
+     * @param userGroups The groups
+     * @param profileIds The ids of the profiles
+     * @return the permissions by profile. Profiles for which no access could be determined are {@link AccessResult#UNKNOWN}
+     */
+    public Map<String, AccessResultContext> getPermissions(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds)
+    {
+        Set<String> allowedProfilesForUser = _allowedUsers.getOrDefault(user, Collections.emptySet());
+        Set<String> deniedProfilesForUser = _deniedUsers.getOrDefault(user, Collections.emptySet());
+        
+        Map<String, AccessResultContext> results = new HashMap<>();
+        for (String profileId : profileIds)
+        {
+            results.put(profileId, _getPermission(allowedProfilesForUser, deniedProfilesForUser, userGroups, profileId));
+        }
+        
+        return results;
+    }
+    
+    private AccessResultContext _getPermission(Set<String> allowedProfilesForUser, Set<String> deniedProfilesForUser, Set<GroupIdentity> userGroups, String profileId)
+    {
+        // A profile both allowed and denied for anonymous is not considered as allowed for anonymous
+        if (_allowedAnonymous.contains(profileId) && !_deniedAnonymous.contains(profileId))
+        {
+            return new AccessResultContext(AccessResult.ANONYMOUS_ALLOWED, null);
+        }
+        if (deniedProfilesForUser.contains(profileId))
+        {
+            return new AccessResultContext(AccessResult.USER_DENIED, null);
+        }
+        if (allowedProfilesForUser.contains(profileId))
+        {
+            return new AccessResultContext(AccessResult.USER_ALLOWED, null);
+        }
+        
+        Set<GroupIdentity> deniedGroups = _getGroups(_deniedGroups, userGroups, profileId);
+        if (!deniedGroups.isEmpty())
+        {
+            return new AccessResultContext(AccessResult.GROUP_DENIED, deniedGroups);
+        }
+        Set<GroupIdentity> allowedGroups = _getGroups(_allowedGroups, userGroups, profileId);
+        if (!allowedGroups.isEmpty())
+        {
+            return new AccessResultContext(AccessResult.GROUP_ALLOWED, allowedGroups);
+        }
+        
+        if (_deniedAnyConnected.contains(profileId))
+        {
+            return new AccessResultContext(AccessResult.ANY_CONNECTED_DENIED, null);
+        }
+        if (_allowedAnyConnected.contains(profileId))
+        {
+            return new AccessResultContext(AccessResult.ANY_CONNECTED_ALLOWED, null);
+        }
+        if (_deniedAnonymous.contains(profileId))
+        {
+            return new AccessResultContext(AccessResult.ANONYMOUS_DENIED, null);
+        }
+        
+        return new AccessResultContext(AccessResult.UNKNOWN, null);
+    }
+    
+    private Set<GroupIdentity> _getGroups(Map<GroupIdentity, Set<String>> assignments, Set<GroupIdentity> userGroups, String profileId)
+    {
+        Set<GroupIdentity> groups = new HashSet<>();
+        if (userGroups == null || assignments.isEmpty())
+        {
+            return groups;
+        }
+        
+        for (GroupIdentity userGroup : userGroups)
+        {
+            Set<String> profiles = assignments.get(userGroup);
+            if (profiles != null && profiles.contains(profileId))
+            {
+                groups.add(userGroup);
+            }
+        }
+        return groups;
+    }
+}
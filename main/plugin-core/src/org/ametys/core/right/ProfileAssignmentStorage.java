@@ -15,10 +15,13 @@
  */
 package org.ametys.core.right;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
 import org.ametys.core.group.GroupIdentity;
+import org.ametys.core.right.AccessController.AccessResultContext;
 import org.ametys.core.user.UserIdentity;
 
 /**
@@ -44,6 +47,63 @@ public interface ProfileAssignmentStorage
      */
     public boolean hasPermission(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds);
     
+    /* ----------- */
+    /* PERMISSIONS */
+    /* ----------- */
+    
+    /**
+     * Gets the permissions a user has, given some groups and profiles, on an object.<br>
+     * The default implementation gathers all the assignments of the object through the other methods of this storage, then computes the permissions in memory.
+     * Storages able to retrieve all the assignments of an object at once should override it.
+     * @param user The user
+     * @param userGroups The groups
+     * @param profileIds The ids of the profiles
+     * @param object The object
+     * @return the permissions by profile on the object. Profiles for which no access could be determined are {@link AccessController.AccessResult#UNKNOWN}
+     */
+    public default Map<String, AccessResultContext> getPermissions(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds, Object object)
+    {
+        ContextProfileAssignments assignments = new ContextProfileAssignments();
+        
+        assignments.addAllowedProfilesForAnonymous(getAllowedProfilesForAnonymous(object));
+        assignments.addDeniedProfilesForAnonymous(getDeniedProfilesForAnonymous(object));
+        assignments.addAllowedProfilesForAnyConnectedUser(getAllowedProfilesForAnyConnectedUser(object));
+        assignments.addDeniedProfilesForAnyConnectedUser(getDeniedProfilesForAnyConnectedUser(object));
+        
+        if (user != null)
+        {
+            assignments.addAllowedProfilesForUser(user, getAllowedProfilesForUser(user, object));
+            assignments.addDeniedProfilesForUser(user, getDeniedProfilesForUser(user, object));
+        }
+        
+        if (!userGroups.isEmpty())
+        {
+            getAllowedProfilesForGroups(object).forEach(assignments::addAllowedProfilesForGroup);
+            getDeniedProfilesForGroups(object).forEach(assignments::addDeniedProfilesForGroup);
+        }
+        
+        return assignments.getPermissions(user, userGroups, profileIds);
+    }
+    
+    /**
+     * Gets the permissions a user has, given some groups and profiles, on several objects at once.<br>
+     * The default implementation calls {@link #getPermissions(UserIdentity, Set, Set, Object)} for each object.
+     * @param user The user
+     * @param userGroups The groups
+     * @param profileIds The ids of the profiles
+     * @param objects The objects, all supported by this storage
+     * @return the permissions by profile, for each object
+     */
+    public default Map<Object, Map<String, AccessResultContext>> getPermissionsByObject(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds, Collection<?> objects)
+    {
+        Map<Object, Map<String, AccessResultContext>> permissions = new HashMap<>();
+        for (Object object : objects)
+        {
+            permissions.put(object, getPermissions(user, userGroups, profileIds, object));
+        }
+        return permissions;
+    }
+    
     /* --------------------------------------- */
     /* ALLOWED PROFILES FOR ANY CONNECTED USER */
     /* --------------------------------------- */
@@ -15,13 +15,16 @@
  */
 package org.ametys.core.right;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -59,231 +62,64 @@ public class ProfileAssignmentStorageExtensionPoint extends AbstractThreadSafeCo
     {
         getLogger().debug("Try to determine permissions for user '{}' and groups {} on context {} for profiles [{}]", user, userGroups, object, profileIds);
         
-        Map<String, AccessResultContext> results = new HashMap<>();
-        Collection<String> unknownProfiles = new HashSet<>(profileIds);
-        
-        // 1) First initialize the access results with the allowed profiles for Anonymous
-        _fillAllowedProfilesForAnonymous(results, user, userGroups, unknownProfiles, object);
-        
-        if (results.size() == profileIds.size())
-        {
-            // Stop process here if access were determined for all profiles
-            return results;
-        }
-        
-        // 2) Add to access results the denied profiles for user (among the still undetermined profiles)
-        unknownProfiles = CollectionUtils.removeAll(unknownProfiles, results.keySet());
-        _fillDeniedProfilesForUser(results, user, userGroups, unknownProfiles, object);
-        
-        if (results.size() == profileIds.size())
-        {
-            // Stop process here if access were determined for all profiles
-            return results;
-        }
-        
-        // 3) Add to access results the allowed profiles for user (among the still undetermined profiles)
-        unknownProfiles = CollectionUtils.removeAll(unknownProfiles, results.keySet());
-        _fillAllowedProfilesForUser(results, user, userGroups, unknownProfiles, object);
-        
-        if (results.size() == profileIds.size())
-        {
-            // Stop process here if access were determined for all profiles
-            return results;
-        }
-        
-        // 4) Add to access results the denied profiles for group (among the still undetermined profiles)
-        unknownProfiles = CollectionUtils.removeAll(unknownProfiles, results.keySet());
-        _fillDeniedProfilesForGroups(results, user, userGroups, unknownProfiles, object);
+        Map<String, AccessResultContext> results = _getFirstProfileAssignmentStorage(object)
+                .map(pas -> pas.getPermissions(user, userGroups, profileIds, object))
+                .orElseGet(() -> _getUnknownPermissions(profileIds));
         
-        if (results.size() == profileIds.size())
+        if (getLogger().isDebugEnabled())
         {
-            // Stop process here if access were determined for all profiles
-            return results;
-        }
-        
-        // 5) Add to access results the allowed profiles for group (among the still undetermined profiles)
-        unknownProfiles = CollectionUtils.removeAll(unknownProfiles, results.keySet());
-        _fillAllowedProfilesForGroups(results, user, userGroups, unknownProfiles, object);
-        
-        if (results.size() == profileIds.size())
-        {
-            // Stop process here if access were determined for all profiles
-            return results;
-        }
-        
-        // 6) Add to access results the denied profiles for any connected user (among the still undetermined profiles)
-        unknownProfiles = CollectionUtils.removeAll(unknownProfiles, results.keySet());
-        _fillDeniedProfilesAnyConnectedUser(results, user, userGroups, unknownProfiles, object);
-        
-        if (results.size() == profileIds.size())
-        {
-            // Stop process here if access were determined for all profiles
-            return results;
-        }
-        
-        // 7) Add to access results the allowed profiles for any connected user (among the still undetermined profiles)
-        unknownProfiles = CollectionUtils.removeAll(unknownProfiles, results.keySet());
-        _fillAllowedProfilesAnyConnectedUser(results, user, userGroups, unknownProfiles, object);
-        
-        if (results.size() == profileIds.size())
-        {
-            // Stop process here if access were determined for all profiles
-            return results;
-        }
-        
-        // 8) Add to access results the denied profiles for any connected user (among the still undetermined profiles)
-        unknownProfiles = CollectionUtils.removeAll(unknownProfiles, results.keySet());
-        _fillDeniedProfilesForAnonymous(results, user, userGroups, unknownProfiles, object);
-        
-        if (results.size() == profileIds.size())
-        {
-            // Stop process here if access were determined for all profiles
-            return results;
-        }
-        
-        // 9) Finally, add to access results the profiles for which no access could be determined
-        unknownProfiles = CollectionUtils.removeAll(unknownProfiles, results.keySet());
-        for (String profileId : (Collection<String>) CollectionUtils.removeAll(profileIds, results.keySet()))
-        {
-            _logResult(user, userGroups, profileId, object, AccessResult.UNKNOWN);
-            results.put(profileId, new AccessResultContext(AccessResult.UNKNOWN, null));
+            results.forEach((profileId, result) -> _logResult(user, userGroups, profileId, object, result.getResult()));
         }
         
         return results;
     }
     
-    private void _fillAllowedProfilesForAnonymous (Map<String, AccessResultContext> results, UserIdentity user, Set<GroupIdentity> userGroups, Collection<String> profileIds, Object object)
-    {
-        Set<String> allowedProfilesForAnonymous = getAllowedProfilesForAnonymous(object);
-        for (String profileId : (Collection<String>) CollectionUtils.retainAll(profileIds, allowedProfilesForAnonymous))
-        {
-            if (!results.containsKey(profileId))
-            {
-                _logResult(user, userGroups, profileId, object, AccessResult.ANONYMOUS_ALLOWED);
-                results.put(profileId, new AccessResultContext(AccessResult.ANONYMOUS_ALLOWED, null));
-            }
-        }
-    }
-    
-    private void _fillDeniedProfilesForAnonymous (Map<String, AccessResultContext> results, UserIdentity user, Set<GroupIdentity> userGroups, Collection<String> profileIds, Object object)
-    {
-        Set<String> deniedProfilesForAnonymous = getDeniedProfilesForAnonymous(object);
-        for (String profileId : (Collection<String>) CollectionUtils.retainAll(profileIds, deniedProfilesForAnonymous))
-        {
-            if (!results.containsKey(profileId))
-            {
-                _logResult(user, userGroups, profileId, object, AccessResult.ANONYMOUS_DENIED);
-                results.put(profileId, new AccessResultContext(AccessResult.ANONYMOUS_DENIED, null));
-            }
-        }
-    }
-    
-    private void _fillDeniedProfilesForUser (Map<String, AccessResultContext> results, UserIdentity user, Set<GroupIdentity> userGroups, Collection<String> profileIds, Object object)
-    {
-        Set<String> deniedProfilesForUser = getDeniedProfilesForUser(object, user);
-        for (String profileId : (Collection<String>) CollectionUtils.retainAll(profileIds, deniedProfilesForUser))
-        {
-            if (!results.containsKey(profileId))
-            {
-                _logResult(user, userGroups, profileId, object, AccessResult.USER_DENIED);
-                results.put(profileId, new AccessResultContext(AccessResult.USER_DENIED, null));
-            }
-        }
-    }
-    
-    private void _fillAllowedProfilesForUser (Map<String, AccessResultContext> results, UserIdentity user, Set<GroupIdentity> userGroups, Collection<String> profileIds, Object object)
-    {
-        Set<String> allowedProfilesForUser = getAllowedProfilesForUser(object, user);
-        for (String profileId : (Collection<String>) CollectionUtils.retainAll(profileIds, allowedProfilesForUser))
-        {
-            if (!results.containsKey(profileId))
-            {
-                _logResult(user, userGroups, profileId, object, AccessResult.USER_ALLOWED);
-                results.put(profileId, new AccessResultContext(AccessResult.USER_ALLOWED, null));
-            }
-        }
-    }
-    
-    private void _fillDeniedProfilesAnyConnectedUser (Map<String, AccessResultContext> results, UserIdentity user, Set<GroupIdentity> userGroups, Collection<String> profileIds, Object object)
-    {
-        Set<String> deniedProfilesForAnyConnectedUser = getDeniedProfilesForAnyConnectedUser(object);
-        for (String profileId : (Collection<String>) CollectionUtils.retainAll(profileIds, deniedProfilesForAnyConnectedUser))
-        {
-            if (!results.containsKey(profileId))
-            {
-                _logResult(user, userGroups, profileId, object, AccessResult.ANY_CONNECTED_DENIED);
-                results.put(profileId, new AccessResultContext(AccessResult.ANY_CONNECTED_DENIED, null));
-            }
-        }
-    }
-    
-    private void _fillAllowedProfilesAnyConnectedUser(Map<String, AccessResultContext> results, UserIdentity user, Set<GroupIdentity> userGroups, Collection<String> profileIds, Object object)
+    /**
+     * Gets the permissions a user has, given some groups and profiles, on several objects at once.<br>
+     * The objects supported by a same storage are evaluated together, which allows the storage to retrieve their assignments in a single query. 
+     * @param user The user
+     * @param userGroups The groups
+     * @param profileIds The ids of the profiles
+     * @param objects The objects
+     * @return the permissions a user has, given some groups and profiles, for each object
+     */
+    public Map<Object, Map<String, AccessResultContext>> getPermissionsByObject(UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds, Collection<?> objects)
     {
-        Set<String> allowedProfilesForAnyConnectedUser = getAllowedProfilesForAnyConnectedUser(object);
-        for (String profileId : (Collection<String>) CollectionUtils.retainAll(profileIds, allowedProfilesForAnyConnectedUser))
+        getLogger().debug("Try to determine permissions for user '{}' and groups {} on contexts {} for profiles [{}]", user, userGroups, objects, profileIds);
+        
+        Map<Object, Map<String, AccessResultContext>> results = new HashMap<>();
+        
+        // Group the objects by the storage handling them
+        Map<ProfileAssignmentStorage, List<Object>> objectsByStorage = new LinkedHashMap<>();
+        for (Object object : objects)
         {
-            if (!results.containsKey(profileId))
+            Optional<ProfileAssignmentStorage> pas = _getFirstProfileAssignmentStorage(object);
+            if (pas.isPresent())
             {
-                _logResult(user, userGroups, profileId, object, AccessResult.ANY_CONNECTED_ALLOWED);
-                results.put(profileId, new AccessResultContext(AccessResult.ANY_CONNECTED_ALLOWED, null));
+                objectsByStorage.computeIfAbsent(pas.get(), k -> new ArrayList<>()).add(object);
             }
-        }
-    }
-    
-    private void _fillDeniedProfilesForGroups (Map<String, AccessResultContext> results, UserIdentity user, Set<GroupIdentity> userGroups, Collection<String> profileIds, Object object)
-    {
-        Map<String, Set<GroupIdentity>> deniedGroups = new HashMap<>();
-        for (GroupIdentity userGroup : userGroups)
-        {
-            Set<String> deniedProfilesForGroup = getDeniedProfilesForGroup(object, userGroup);
-            for (String profileId : (Collection<String>) CollectionUtils.retainAll(profileIds, deniedProfilesForGroup))
+            else
             {
-                if (!results.containsKey(profileId))
-                {
-                    if (!deniedGroups.containsKey(profileId))
-                    {
-                        deniedGroups.put(profileId, new HashSet<>());
-                    }
-                    deniedGroups.get(profileId).add(userGroup);
-                }
+                results.put(object, _getUnknownPermissions(profileIds));
             }
         }
-        if (deniedGroups.size() > 0)
+        
+        for (Entry<ProfileAssignmentStorage, List<Object>> entry : objectsByStorage.entrySet())
         {
-            for (String profileId : deniedGroups.keySet())
-            {
-                _logResult(user, userGroups, profileId, object, AccessResult.GROUP_DENIED);
-                results.put(profileId, new AccessResultContext(AccessResult.GROUP_DENIED, deniedGroups.get(profileId)));
-            }
+            results.putAll(entry.getKey().getPermissionsByObject(user, userGroups, profileIds, entry.getValue()));
         }
+        
+        return results;
     }
     
-    private void _fillAllowedProfilesForGroups (Map<String, AccessResultContext> results, UserIdentity user, Set<GroupIdentity> userGroups, Collection<String> profileIds, Object object)
+    private Map<String, AccessResultContext> _getUnknownPermissions(Set<String> profileIds)
     {
-        Map<String, Set<GroupIdentity>> allowedGroups = new HashMap<>();
-        for (GroupIdentity userGroup : userGroups)
-        {
-            Set<String> allowedProfilesForGroup = getAllowedProfilesForGroup(object, userGroup);
-            for (String profileId : (Collection<String>) CollectionUtils.retainAll(profileIds, allowedProfilesForGroup))
-            {
-                if (!results.containsKey(profileId))
-                {
-                    if (!allowedGroups.containsKey(profileId))
-                    {
-                        allowedGroups.put(profileId, new HashSet<>());
-                    }
-                    allowedGroups.get(profileId).add(userGroup);
-                }
-            }
-        }
-        if (allowedGroups.size() > 0)
+        Map<String, AccessResultContext> results = new HashMap<>();
+        for (String profileId : profileIds)
         {
-            for (String profileId : allowedGroups.keySet())
-            {
-                _logResult(user, userGroups, profileId, object, AccessResult.GROUP_ALLOWED);
-                results.put(profileId, new AccessResultContext(AccessResult.GROUP_ALLOWED, allowedGroups.get(profileId)));
-            }
+            results.put(profileId, new AccessResultContext(AccessResult.UNKNOWN, null));
         }
+        return results;
     }
     
     private void _logResult(UserIdentity user, Set<GroupIdentity> userGroups, String profileId, Object object, AccessResult result)
@@ -15,7 +15,11 @@
  */
 package org.ametys.core.right;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.avalon.framework.service.ServiceException;
 import org.apache.avalon.framework.service.ServiceManager;
@@ -28,31 +32,45 @@ import org.ametys.core.observation.Observer;
 import org.ametys.core.user.UserIdentity;
 
 /**
- * This observer listens for events which may have an impact on the storage of assignments
- *
+ * This observer listens for events which may have an impact on the storage of assignments,
+ * and invalidates the right results cached by the {@link RightManager} accordingly.
  */
 public class ProfileAssignmentStorageObserver implements Serviceable, Observer
 {
+    private static final Set<String> __SUPPORTED_EVENT_IDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            ObservationConstants.EVENT_PROFILE_DELETED,
+            ObservationConstants.EVENT_USER_DELETED,
+            ObservationConstants.EVENT_GROUP_DELETED,
+            ObservationConstants.EVENT_GROUP_UPDATED,
+            ObservationConstants.EVENT_ACL_UPDATED)));
+    
     private ProfileAssignmentStorageExtensionPoint _profileAssignmentStorageEP;
+    private RightManager _rightManager;
 
     @Override
     public void service(ServiceManager manager) throws ServiceException
     {
         _profileAssignmentStorageEP = (ProfileAssignmentStorageExtensionPoint) manager.lookup(ProfileAssignmentStorageExtensionPoint.ROLE);
+        _rightManager = (RightManager) manager.lookup(RightManager.ROLE);
     }
     
     @Override
     public boolean supports(Event event)
     {
-        return event.getId().equals(ObservationConstants.EVENT_PROFILE_DELETED)
-                || event.getId().equals(ObservationConstants.EVENT_USER_DELETED)
-                || event.getId().equals(ObservationConstants.EVENT_GROUP_DELETED);
+        return __SUPPORTED_EVENT_IDS.contains(event.getId());
+    }
+    
+    @Override
+    public Set<String> getSupportedEventIds()
+    {
+        return __SUPPORTED_EVENT_IDS;
     }
 
     @Override
     public int getPriority(Event event)
     {
-        return MAX_PRIORITY;
+        // After the GroupMembershipCacheObserver, so that right results are not computed again with outdated memberships
+        return MAX_PRIORITY + 1;
     }
 
     @Override
@@ -72,6 +90,14 @@ public class ProfileAssignmentStorageObserver implements Serviceable, Observer
         {
             _onGroupRemoved(event);
         }
+        else if (id.equals(ObservationConstants.EVENT_GROUP_UPDATED))
+        {
+            _onGroupUpdated(event);
+        }
+        else if (id.equals(ObservationConstants.EVENT_ACL_UPDATED))
+        {
+            _onAclUpdated(event);
+        }
     }
     
     private void _onProfileRemoved (Event event)
@@ -84,6 +110,8 @@ public class ProfileAssignmentStorageObserver implements Serviceable, Observer
             .filter(pas -> pas instanceof ModifiableProfileAssignmentStorage)
             .map(ModifiableProfileAssignmentStorage.class::cast)
             .forEach(pas -> pas.removeProfile(profile.getId()));
+        
+        _rightManager.clearCachesForProfile(profile.getId());
     }
     
     private void _onUserRemoved (Event event)
@@ -96,6 +124,8 @@ public class ProfileAssignmentStorageObserver implements Serviceable, Observer
             .filter(pas -> pas instanceof ModifiableProfileAssignmentStorage)
             .map(ModifiableProfileAssignmentStorage.class::cast)
             .forEach(pas -> pas.removeUser(user));
+        
+        _rightManager.clearCachesForUser(user);
     }
     
     private void _onGroupRemoved (Event event)
@@ -108,5 +138,22 @@ public class ProfileAssignmentStorageObserver implements Serviceable, Observer
             .filter(pas -> pas instanceof ModifiableProfileAssignmentStorage)
             .map(ModifiableProfileAssignmentStorage.class::cast)
             .forEach(pas -> pas.removeGroup(group));
+        
+        _rightManager.clearCachesForGroup(group);
+    }
+    
+    private void _onGroupUpdated (Event event)
+    {
+        Map<String, Object> arguments = event.getArguments();
+        
+        // The members of the group may have changed
+        GroupIdentity group = (GroupIdentity) arguments.get(ObservationConstants.ARGS_GROUP);
+        _rightManager.clearCachesForGroup(group);
+    }
+    
+    private void _onAclUpdated (Event event)
+    {
+        // The results on the descendants of the context may also have changed
+        _rightManager.clearCaches();
     }
 }
@@ -16,19 +16,25 @@
 package org.ametys.core.right;
 
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
-import javax.servlet.http.HttpServletRequest;
-
 import org.apache.avalon.framework.activity.Initializable;
 import org.apache.avalon.framework.component.Component;
 import org.apache.avalon.framework.configuration.Configurable;
@@ -48,6 +54,10 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.excalibur.source.Source;
 import org.apache.excalibur.source.SourceResolver;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.ametys.core.group.Group;
 import org.ametys.core.group.GroupDirectoryDAO;
 import org.ametys.core.group.GroupIdentity;
 import org.ametys.core.group.GroupManager;
@@ -60,14 +70,12 @@ import org.ametys.core.user.population.PopulationContextHelper;
 import org.ametys.core.user.population.UserPopulationDAO;
 import org.ametys.runtime.i18n.I18nizableText;
 import org.ametys.runtime.plugin.component.AbstractLogEnabled;
-import org.ametys.runtime.request.RequestListener;
-import org.ametys.runtime.request.RequestListenerManager;
 import org.ametys.runtime.workspaces.admin.authentication.AdminAuthenticateAction;
 
 /**
  * Abstraction for testing a right associated with a resource and a user from a single source.
  */
-public class RightManager extends AbstractLogEnabled implements Serviceable, Configurable, Initializable, RequestListener, ThreadSafe, Component, Contextualizable
+public class RightManager extends AbstractLogEnabled implements Serviceable, Configurable, Initializable, ThreadSafe, Component, Contextualizable
 {
     /** For avalon service manager */
     public static final String ROLE = RightManager.class.getName();
@@ -75,6 +83,11 @@ public class RightManager extends AbstractLogEnabled implements Serviceable, Con
     /** The id of the READER profile */
     public static final String READER_PROFILE_ID = "READER";
     
+    /** The default maximum number of right results kept in cache */
+    private static final long __DEFAULT_CACHE_MAX_SIZE = 100000;
+    /** The default time to live (in seconds) of a right result in cache */
+    private static final long __DEFAULT_CACHE_TTL = 600;
+    
     /** Avalon ServiceManager */
     protected ServiceManager _manager;
     /** Avalon SourceResolver */
@@ -100,29 +113,32 @@ public class RightManager extends AbstractLogEnabled implements Serviceable, Con
     /** The rights DAO */
     protected RightProfilesDAO _profilesDAO;
     
+    /** The request attribute holding the right results which cannot be shared by all requests */
+    private static final String __REQUEST_CACHE_ATTRIBUTE = RightManager.class.getName() + "$cache";
+    
     /**
-     * This first cache is for right result on non-null contexts when calling {@link #hasRight(UserIdentity, String, Object)}
+     * The cache of right results, shared by all requests.
      * 
-     * { UserIdentity : {[ProfileIds] : { Context : RightResult
-     *                             }
-     *                  }
-     * }
+     * The key is the triple (UserIdentity, [ProfileIds], Context), where the context is null when calling {@link #hasRight(UserIdentity, String, Object)} on a null object.
+     * We are caching the set of profiles instead of right id because many rights belong to the exact same profiles.
      * 
-     * We are caching the set of profiles instead of right id because many rights belong to the exact same profiles
-     */
-    private final ThreadLocal<Map<UserIdentity, Map<Set<String>, Map<Object, RightResult>>>> _cacheTL = new ThreadLocal<>();
-    
-    /**
-     * This second cache is for right result on null contexts when calling {@link #hasRight(UserIdentity, String, Object)}
+     * Only the results on stable contexts (null, strings, numbers...) given by cacheable access controllers are shared, so that the cache does not retain
+     * objects bound to a request or a session (such as repository objects). The other results are cached in the current request only.
      * 
-     * { UserIdentity : {[ProfileIds] : RightResult
-     *                  }
-     * }
+     * Each entry also remembers the groups which were used to compute it, so that it can be precisely invalidated when a group is modified.
+     * As access controllers may consult the assignments of other contexts than the checked one (the ancestors of a hierarchy for instance),
+     * any modification of the assignments invalidates all the entries.
      * 
-     * We are caching the set of profiles instead of right id because many rights belong to the exact same profiles
+     * The invalidations are local: the other nodes of a cluster are not notified, and only see the modifications once their entries expire (see the cache ttl).
      */
-    private final ThreadLocal<Map<UserIdentity, Map<Set<String>, RightResult>>> _cache2TL = new ThreadLocal<>();
-
+    private Cache<RightCacheKey, RightCacheEntry> _cache;
+    
+    /** Incremented at each invalidation, so that results computed concurrently with an invalidation are not put in cache */
+    private final AtomicLong _cacheGeneration = new AtomicLong();
+    
+    private long _cacheMaxSize;
+    private long _cacheTtl;
+    
     private Context _context;
     
     /**
@@ -191,13 +207,19 @@ public class RightManager extends AbstractLogEnabled implements Serviceable, Con
     @Override
     public void initialize() throws Exception
     {
-        RequestListenerManager rlm = (RequestListenerManager) _manager.lookup(RequestListenerManager.ROLE);
-        rlm.registerListener(this);
+        _cache = CacheBuilder.newBuilder()
+                .maximumSize(_cacheMaxSize)
+                .expireAfterWrite(_cacheTtl, TimeUnit.SECONDS)
+                .build();
     }
     
     @Override
     public void configure(Configuration configuration) throws ConfigurationException
     {
+        Configuration cacheConfiguration = configuration.getChild("cache");
+        _cacheMaxSize = cacheConfiguration.getAttributeAsLong("max-size", __DEFAULT_CACHE_MAX_SIZE);
+        _cacheTtl = cacheConfiguration.getAttributeAsLong("ttl", __DEFAULT_CACHE_TTL);
+        
         Configuration rightsConfiguration = configuration.getChild("rights");
 
         String externalFile = rightsConfiguration.getAttribute("config", null);
@@ -313,37 +335,120 @@ public class RightManager extends AbstractLogEnabled implements Serviceable, Con
         return rightResult;
     }
     
-    private RightResult _hasRight(UserIdentity userIdentity, Set<String> profileIds, Object object)
+    /**
+     * Checks a permission for the current logged user, on several objects (or contexts) at once.
+     * @param rightId The name of the right to check. Cannot be null.
+     * @param objects The objects to check the right. Cannot be null.
+     * @return the {@link RightResult} by object
+     * @throws RightsException if an error occurs.
+     */
+    public Map<Object, RightResult> currentUserHasRights(String rightId, Collection<?> objects) throws RightsException
     {
-        if (object == null)
+        return hasRights(_currentUserProvider.getUser(), rightId, objects);
+    }
+    
+    /**
+     * Checks a permission for a user, on several objects (or contexts) at once.<br>
+     * This is equivalent to calling {@link #hasRight(UserIdentity, String, Object)} for each object, but the groups of the user, the profiles
+     * and the access controllers are only resolved once for all the objects.
+     * @param userIdentity The user identity. Cannot be null.
+     * @param rightId The name of the right to check. Cannot be null.
+     * @param objects The objects to check the right. Cannot be null.
+     * @return the {@link RightResult} by object
+     * @throws RightsException if an error occurs.
+     */
+    public Map<Object, RightResult> hasRights(UserIdentity userIdentity, String rightId, Collection<?> objects) throws RightsException
+    {
+        getLogger().debug("Try to determine if user '{}' has the right '{}' on the object contexts {}", userIdentity, rightId, objects);
+        
+        Map<Object, RightResult> results = new HashMap<>();
+        
+        // Retrieve all profiles containing the right rightId
+        Set<String> profileIds = _getProfileDAO().getProfilesWithRight(rightId);
+        
+        Set<Object> objectsToCompute = new LinkedHashSet<>();
+        for (Object object : objects)
         {
-            // Try to retrieve in second cache (the one which manages null context)
-            RightResult cacheResult = _hasRightResultInSecondCache(userIdentity, profileIds);
-            if (cacheResult != null)
+            if (object == null || object instanceof String && StringUtils.equals((String) object, AdminAuthenticateAction.ADMIN_RIGHT_CONTEXT) && StringUtils.equals(userIdentity.getPopulationId(), UserPopulationDAO.ADMIN_POPULATION_ID))
             {
-                getLogger().debug("Find entry in cache2 for [{}, {}] => {}", userIdentity, profileIds, cacheResult);
-                return cacheResult;
+                // Special cases
+                results.put(object, hasRight(userIdentity, rightId, object));
             }
             else
             {
-                getLogger().debug("Did not find entry in cache for [{}, {}, {}]", userIdentity, profileIds, object);
+                RightCacheEntry cacheEntry = _getFromCache(new RightCacheKey(userIdentity, profileIds, object));
+                if (cacheEntry != null)
+                {
+                    results.put(object, cacheEntry._result);
+                }
+                else
+                {
+                    objectsToCompute.add(object);
+                }
             }
         }
+        
+        if (objectsToCompute.isEmpty())
+        {
+            return results;
+        }
+        
+        long generation = _cacheGeneration.get();
+        
+        // Retrieve groups the user belongs to
+        Set<GroupIdentity> groups = _getGroups(userIdentity);
+        
+        // Get the objects to check
+        Map<Object, Set<Object>> convertedObjects = new HashMap<>();
+        Set<Object> allConvertedObjects = new HashSet<>();
+        for (Object object : objectsToCompute)
+        {
+            Set<Object> objectsToCheck = _getConvertedObjects(object);
+            convertedObjects.put(object, objectsToCheck);
+            allConvertedObjects.addAll(objectsToCheck);
+        }
+        
+        // Retrieve the AccessResults of all the objects at once
+        Set<Object> volatileObjects = new HashSet<>();
+        Map<Object, Set<AccessResult>> accessResults = _getAccessResultsByObject(userIdentity, groups, profileIds, allConvertedObjects, volatileObjects);
+        
+        for (Object object : objectsToCompute)
+        {
+            Set<Object> objectsToCheck = convertedObjects.get(object);
+            
+            // Compute access
+            Set<AccessResult> objectAccessResults = objectsToCheck.stream()
+                    .flatMap(obj -> accessResults.get(obj).stream())
+                    .collect(Collectors.toSet());
+            AccessResult access = _computeAccess(objectAccessResults);
+            
+            RightResult rightResult = _computeRight(access);
+            boolean cacheable = Collections.disjoint(objectsToCheck, volatileObjects);
+            _putInCache(new RightCacheKey(userIdentity, profileIds, object), new RightCacheEntry(rightResult, groups, generation), cacheable);
+            
+            results.put(object, rightResult);
+        }
+        
+        return results;
+    }
+    
+    private RightResult _hasRight(UserIdentity userIdentity, Set<String> profileIds, Object object)
+    {
+        RightCacheKey key = new RightCacheKey(userIdentity, profileIds, object);
+        
+        RightCacheEntry cacheEntry = _getFromCache(key);
+        if (cacheEntry != null)
+        {
+            getLogger().debug("Find entry in cache for [{}, {}, {}] => {}", userIdentity, profileIds, object, cacheEntry._result);
+            return cacheEntry._result;
+        }
         else
         {
-            // Try to retrieve in first cache (the one which manages non-null contexts)
-            RightResult cacheResult = _hasRightResultInFirstCache(userIdentity, profileIds, object);
-            if (cacheResult != null)
-            {
-                getLogger().debug("Find entry in cache for [{}, {}, {}] => {}", userIdentity, profileIds, object, cacheResult);
-                return cacheResult;
-            }
-            else
-            {
-                getLogger().debug("Did not find entry in cache for [{}, {}, {}]", userIdentity, profileIds, object);
-            }
+            getLogger().debug("Did not find entry in cache for [{}, {}, {}]", userIdentity, profileIds, object);
         }
         
+        long generation = _cacheGeneration.get();
+        
         // Retrieve groups the user belongs to
         Set<GroupIdentity> groups = _getGroups(userIdentity);
         
@@ -354,7 +459,7 @@ public class RightManager extends AbstractLogEnabled implements Serviceable, Con
             RightResult rightResult = hasPermission ? RightResult.RIGHT_ALLOW : RightResult.RIGHT_UNKNOWN;
             
             getLogger().debug("Right result found for [{}, {}] => {}", userIdentity, profileIds, rightResult);
-            _putInSecondCache(userIdentity, profileIds, rightResult);
+            _putInCache(key, new RightCacheEntry(rightResult, groups, generation), true);
             return rightResult;
         }
         
@@ -362,105 +467,96 @@ public class RightManager extends AbstractLogEnabled implements Serviceable, Con
         Set<Object> objects = _getConvertedObjects(object);
         
         // Retrieve the set of AccessResult
-        Set<AccessResult> accessResults = _getAccessResults(userIdentity, groups, profileIds, objects);
+        Set<Object> volatileObjects = new HashSet<>();
+        Set<AccessResult> accessResults = _getAccessResults(userIdentity, groups, profileIds, objects, volatileObjects);
         
         // Compute access
         AccessResult access = _computeAccess(accessResults);
         
         RightResult rightResult = _computeRight(access);
-        _putInFirstCache(userIdentity, profileIds, object, rightResult);
+        _putInCache(key, new RightCacheEntry(rightResult, groups, generation), volatileObjects.isEmpty());
         
         return rightResult;
     }
     
-    private RightResult _hasRightResultInFirstCache(UserIdentity userIdentity, Set<String> profileIds, Object object)
+    private RightCacheEntry _getFromCache(RightCacheKey key)
     {
-        Map<UserIdentity, Map<Set<String>, Map<Object, RightResult>>> mapCache = _cacheTL.get();
-        if (mapCache == null)
+        RightCacheEntry entry = _cache.getIfPresent(key);
+        if (entry != null)
         {
-            mapCache = new HashMap<>();
-            _cacheTL.set(mapCache);
+            return entry;
         }
         
-        if (mapCache.containsKey(userIdentity))
-        {
-            Map<Set<String>, Map<Object, RightResult>> mapRight = mapCache.get(userIdentity);
-            if (mapRight.containsKey(profileIds))
-            {
-                Map<Object, RightResult> mapContext = mapRight.get(profileIds);
-                if (mapContext.containsKey(object))
-                {
-                    return mapContext.get(object);
-                }
-            }
-        }
-        return null;
+        Map<RightCacheKey, RightCacheEntry> requestCache = _getRequestCache(false);
+        entry = requestCache != null ? requestCache.get(key) : null;
+        
+        // The request cache cannot be precisely invalidated: ignore the entries computed before any invalidation
+        return entry != null && entry._generation == _cacheGeneration.get() ? entry : null;
     }
     
-    private void _putInFirstCache(UserIdentity userIdentity, Set<String> profileIds, Object object, RightResult rightResult)
+    /**
+     * Puts a right result in cache
+     * @param key The key
+     * @param entry The right result
+     * @param cacheable false if the result was given by an access controller which is not cacheable
+     */
+    private void _putInCache(RightCacheKey key, RightCacheEntry entry, boolean cacheable)
     {
-        Map<UserIdentity, Map<Set<String>, Map<Object, RightResult>>> mapCache = _cacheTL.get();
-        
-        if (mapCache.containsKey(userIdentity))
+        if (cacheable && _isStableContext(key._object))
         {
-            Map<Set<String>, Map<Object, RightResult>> mapRight = mapCache.get(userIdentity);
-            if (mapRight.containsKey(profileIds))
-            {
-                Map<Object, RightResult> mapContext = mapRight.get(profileIds);
-                mapContext.put(object, rightResult);
-            }
-            else
+            _cache.put(key, entry);
+            
+            if (entry._generation != _cacheGeneration.get())
             {
-                Map<Object, RightResult> mapContext = new HashMap<>();
-                mapContext.put(object, rightResult);
-                mapRight.put(profileIds, mapContext);
+                // An invalidation occurred while computing the result, which may then be outdated
+                _cache.invalidate(key);
             }
         }
         else
         {
-            Map<Set<String>, Map<Object, RightResult>> mapRight = new HashMap<>();
-            Map<Object, RightResult> mapContext = new HashMap<>();
-            mapContext.put(object, rightResult);
-            mapRight.put(profileIds, mapContext);
-            mapCache.put(userIdentity, mapRight);
+            Map<RightCacheKey, RightCacheEntry> requestCache = _getRequestCache(true);
+            if (requestCache != null)
+            {
+                requestCache.put(key, entry);
+            }
         }
     }
     
-    private RightResult _hasRightResultInSecondCache(UserIdentity userIdentity, Set<String> profileIds)
+    /**
+     * Determines if a context can be kept in the cache shared by all requests, i.e. if it is an immutable value which does not retain other objects.
+     * @param object The context
+     * @return true if the context is stable
+     */
+    private boolean _isStableContext(Object object)
     {
-        Map<UserIdentity, Map<Set<String>, RightResult>> mapCache = _cache2TL.get();
-        if (mapCache == null)
+        return object == null || object instanceof String || object instanceof Number || object instanceof Boolean || object instanceof Enum;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private Map<RightCacheKey, RightCacheEntry> _getRequestCache(boolean create)
+    {
+        Request request = null;
+        try
         {
-            mapCache = new HashMap<>();
-            _cache2TL.set(mapCache);
+            request = ContextHelper.getRequest(_context);
         }
-        
-        if (mapCache.containsKey(userIdentity))
+        catch (Exception e)
         {
-            Map<Set<String>, RightResult> mapRight = mapCache.get(userIdentity);
-            if (mapRight.containsKey(profileIds))
-            {
-                return mapRight.get(profileIds);
-            }
+            // ignore, there's simply no current request
         }
-        return null;
-    }
-    
-    private void _putInSecondCache(UserIdentity userIdentity, Set<String> profileIds, RightResult rightResult)
-    {
-        Map<UserIdentity, Map<Set<String>, RightResult>> mapCache = _cache2TL.get();
         
-        if (mapCache.containsKey(userIdentity))
+        if (request == null)
         {
-            Map<Set<String>, RightResult> mapRight = mapCache.get(userIdentity);
-            mapRight.put(profileIds, rightResult);
+            return null;
         }
-        else
+        
+        Map<RightCacheKey, RightCacheEntry> requestCache = (Map<RightCacheKey, RightCacheEntry>) request.getAttribute(__REQUEST_CACHE_ATTRIBUTE);
+        if (requestCache == null && create)
         {
-            Map<Set<String>, RightResult> mapRight = new HashMap<>();
-            mapRight.put(profileIds, rightResult);
-            mapCache.put(userIdentity, mapRight);
+            requestCache = new ConcurrentHashMap<>();
+            request.setAttribute(__REQUEST_CACHE_ATTRIBUTE, requestCache);
         }
+        return requestCache;
     }
     
     private Set<Object> _getConvertedObjects(Object object)
@@ -474,36 +570,71 @@ public class RightManager extends AbstractLogEnabled implements Serviceable, Con
         return objects;
     }
     
-    private Set<AccessResult> _getAccessResults(UserIdentity userIdentity, Set<GroupIdentity> groups, Set<String> profileIds, Set<Object> objects)
+    private Set<AccessResult> _getAccessResults(UserIdentity userIdentity, Set<GroupIdentity> groups, Set<String> profileIds, Set<Object> objects, Set<Object> volatileObjects)
     {
-        Set<AccessResult> accessResults = new HashSet<>();
+        return _getAccessResultsByObject(userIdentity, groups, profileIds, objects, volatileObjects).values().stream()
+                .flatMap(Set::stream)
+                .collect(Collectors.toSet());
+    }
+    
+    /**
+     * Gets the access results on each object, asking each access controller only once for all the objects it supports
+     * @param userIdentity The user. Can be null for anonymous.
+     * @param groups The groups of the user
+     * @param profileIds The ids of the profiles
+     * @param objects The objects
+     * @param volatileObjects The set to fill with the objects supported by access controllers which are not cacheable
+     * @return the set of access results by object
+     */
+    private Map<Object, Set<AccessResult>> _getAccessResultsByObject(UserIdentity userIdentity, Set<GroupIdentity> groups, Set<String> profileIds, Set<Object> objects, Set<Object> volatileObjects)
+    {
+        Map<Object, Set<AccessResult>> accessResults = new HashMap<>();
         for (Object obj : objects)
         {
-            for (String controllerId : _accessControllerEP.getExtensionsIds())
+            accessResults.put(obj, new HashSet<>());
+        }
+        
+        for (String controllerId : _accessControllerEP.getExtensionsIds())
+        {
+            AccessController accessController = _accessControllerEP.getExtension(controllerId);
+            
+            List<Object> supportedObjects = new ArrayList<>();
+            for (Object obj : objects)
             {
-                AccessController accessController = _accessControllerEP.getExtension(controllerId);
                 if (accessController.isSupported(obj))
                 {
-                    if (userIdentity == null)
-                    {
-                        // Get permission for anonymous user
-                        accessResults.add(accessController.getPermissionForAnonymous(profileIds, obj));
-                    }
-                    else
-                    {
-                        // Add all the AccessResult from the AccessResultContexts, ignoring the profile ids they come from
-                        accessResults.addAll(accessController.getPermissions(userIdentity, groups, profileIds, obj)
-                                                                .values().stream()
-                                                                .map(AccessResultContext::getResult)
-                                                                .collect(Collectors.toSet()));
-                    }
-                    
+                    supportedObjects.add(obj);
                 }
                 else
                 {
-                    accessResults.add(AccessResult.UNKNOWN);
+                    accessResults.get(obj).add(AccessResult.UNKNOWN);
                 }
             }
+            
+            if (supportedObjects.isEmpty())
+            {
+                continue;
+            }
+            
+            if (!accessController.isCacheable())
+            {
+                volatileObjects.addAll(supportedObjects);
+            }
+            
+            if (userIdentity == null)
+            {
+                // Get permission for anonymous user
+                accessController.getPermissionForAnonymousByObject(profileIds, supportedObjects)
+                        .forEach((obj, result) -> accessResults.get(obj).add(result));
+            }
+            else
+            {
+                // Add all the AccessResult from the AccessResultContexts, ignoring the profile ids they come from
+                accessController.getPermissionsByObject(userIdentity, groups, profileIds, supportedObjects)
+                        .forEach((obj, permissions) -> permissions.values().stream()
+                                                                .map(AccessResultContext::getResult)
+                                                                .forEach(accessResults.get(obj)::add));
+            }
         }
         
         return accessResults;
@@ -897,23 +1028,56 @@ public class RightManager extends AbstractLogEnabled implements Serviceable, Con
                 .collect(Collectors.toSet());
     }
 
-    @Override
-    public void requestStarted(HttpServletRequest req)
+    /* ------------- */
+    /* CACHE CONTROL */
+    /* ------------- */
+    
+    /**
+     * Removes all the right results from cache.<br>
+     * This is called when assignments are modified, whatever the context: the result on a context may depend on the assignments of other contexts
+     * (its ancestors for a hierarchical access controller), which cannot be known here.<br>
+     * This has to be called when assignments are modified by any other mean than the events handled by {@link ProfileAssignmentStorageObserver}.
+     */
+    public void clearCaches()
     {
-        // empty
+        _cacheGeneration.incrementAndGet();
+        _cache.invalidateAll();
     }
-
-    @Override
-    public void requestEnded(HttpServletRequest req)
+    
+    /**
+     * Removes from cache the right results of the given user.
+     * @param userIdentity The user identity
+     */
+    public void clearCachesForUser(UserIdentity userIdentity)
     {
-        if (_cacheTL.get() != null)
-        {
-            _cacheTL.set(null);
-        }
-        if (_cache2TL.get() != null)
-        {
-            _cache2TL.set(null);
-        }
+        _invalidate(entry -> Objects.equals(entry.getKey()._user, userIdentity));
+    }
+    
+    /**
+     * Removes from cache the right results which depend on the given group, i.e. the results of the users being or having been members of this group.
+     * @param groupIdentity The group identity
+     */
+    public void clearCachesForGroup(GroupIdentity groupIdentity)
+    {
+        Group group = _groupManager.getGroup(groupIdentity);
+        Set<UserIdentity> members = group != null ? group.getUsers() : Collections.emptySet();
+        
+        _invalidate(entry -> entry.getValue()._groups.contains(groupIdentity) || members.contains(entry.getKey()._user));
+    }
+    
+    /**
+     * Removes from cache the right results which depend on the given profile.
+     * @param profileId The profile id
+     */
+    public void clearCachesForProfile(String profileId)
+    {
+        _invalidate(entry -> entry.getKey()._profileIds.contains(profileId));
+    }
+    
+    private void _invalidate(Predicate<Entry<RightCacheKey, RightCacheEntry>> predicate)
+    {
+        _cacheGeneration.incrementAndGet();
+        _cache.asMap().entrySet().removeIf(predicate);
     }
     
     private Set<GroupIdentity> _getGroups(UserIdentity user)
@@ -928,4 +1092,54 @@ public class RightManager extends AbstractLogEnabled implements Serviceable, Con
             return userGroups;
         }
     }
+    
+    private static final class RightCacheKey
+    {
+        final UserIdentity _user;
+        final Set<String> _profileIds;
+        final Object _object;
+        
+        RightCacheKey(UserIdentity user, Set<String> profileIds, Object object)
+        {
+            _user = user;
+            _profileIds = profileIds;
+            _object = object;
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof RightCacheKey))
+            {
+                return false;
+            }
+            
+            RightCacheKey other = (RightCacheKey) obj;
+            return Objects.equals(_user, other._user) && Objects.equals(_profileIds, other._profileIds) && Objects.equals(_object, other._object);
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(_user, _profileIds, _object);
+        }
+    }
+    
+    private static final class RightCacheEntry
+    {
+        final RightResult _result;
+        final Set<GroupIdentity> _groups;
+        final long _generation;
+        
+        RightCacheEntry(RightResult result, Set<GroupIdentity> groups, long generation)
+        {
+            _result = result;
+            _groups = groups;
+            _generation = generation;
+        }
+    }
 }
@@ -18,8 +18,11 @@ package org.ametys.core.user;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.apache.avalon.framework.component.Component;
@@ -187,32 +190,59 @@ public class UserManager extends AbstractLogEnabled implements Component, Servic
      */
     public List<User> getUsers(List<UserPopulation> userPopulations, int count, int offset, Map<String, Object> parameters)
     {
-        List<User> users = new ArrayList<>();
+        List<UserDirectory> userDirectories = new ArrayList<>();
         for (UserPopulation userPopulation : userPopulations)
         {
-            for (User user : getUsers(userPopulation, -1, 0, parameters))
-            {
-                if (!users.contains(user))
-                {
-                    users.add(user);
-                }
-            }
+            userDirectories.addAll(userPopulation.getUserDirectories());
         }
         
+        return _getUsers(userDirectories, count, offset, parameters);
+    }
+    
+    /**
+     * Get a page of the users of some directories, in the order of the directories, without duplicates.<br>
+     * The users are read page by page from each directory, and only until the requested page is complete,
+     * so that getting the first pages does not load the whole directories.
+     * @param userDirectories The user directories
+     * @param count The limit of users to retrieve
+     * @param offset The number of result to ignore before starting to collect users. 
+     * @param parameters A map of additional parameters, see implementation.
+     * @return The list of retrieved {@link User}
+     */
+    protected List<User> _getUsers(List<UserDirectory> userDirectories, int count, int offset, Map<String, Object> parameters)
+    {
         int boundedCount = count >= 0 ? count : Integer.MAX_VALUE;
         int boundedOffset = offset >= 0 ? offset : 0;
-        int toIndex;
-        if (boundedOffset + boundedCount >= 0)
-        {
-            toIndex = Math.min(boundedOffset + boundedCount, users.size());
-        }
-        else
+        
+        // Ask each directory for a page large enough to fill the requested one if there is no duplicate
+        int pageSize = count >= 0 && boundedOffset + boundedCount >= 0 ? Math.max(boundedOffset + boundedCount, 1) : -1;
+        
+        List<User> users = new ArrayList<>();
+        Set<User> knownUsers = new HashSet<>();
+        int skippedUsers = 0;
+        
+        Iterator<UserDirectory> userDirectoriesIt = userDirectories.iterator();
+        while (users.size() < boundedCount && userDirectoriesIt.hasNext())
         {
-            // particular case where count was initially negative (to say "no limit") and we set it to Integer.MAX_VALUE
-            // so if the offset is strictly positive, the sum overflows
-            toIndex = users.size();
+            Iterator<User> usersIt = new PagedUsersIterator(userDirectoriesIt.next(), pageSize, parameters);
+            while (users.size() < boundedCount && usersIt.hasNext())
+            {
+                User user = usersIt.next();
+                if (knownUsers.add(user))
+                {
+                    if (skippedUsers < boundedOffset)
+                    {
+                        skippedUsers++;
+                    }
+                    else
+                    {
+                        users.add(user);
+                    }
+                }
+            }
         }
-        return users.subList(boundedOffset, toIndex);
+        
+        return users;
     }
     
     /**
@@ -272,33 +302,7 @@ public class UserManager extends AbstractLogEnabled implements Component, Servic
      */
     public Collection<User> getUsers(UserPopulation userPopulation, int count, int offset, Map<String, Object> parameters)
     {
-        List<User> users = new ArrayList<>();
-        
-        for (UserDirectory ud : userPopulation.getUserDirectories())
-        {
-            for (User user : ud.getUsers(-1, 0, parameters))
-            {
-                if (!users.contains(user))
-                {
-                    users.add(user);
-                }
-            }
-        }
-        
-        int boundedCount = count >= 0 ? count : Integer.MAX_VALUE;
-        int boundedOffset = offset >= 0 ? offset : 0;
-        int toIndex;
-        if (boundedOffset + boundedCount >= 0)
-        {
-            toIndex = Math.min(boundedOffset + boundedCount, users.size());
-        }
-        else
-        {
-            // particular case where count was initially negative (to say "no limit") and we set it to Integer.MAX_VALUE
-            // so if the offset is strictly positive, the sum overflows
-            toIndex = users.size();
-        }
-        return users.subList(boundedOffset, toIndex);
+        return _getUsers(userPopulation.getUserDirectories(), count, offset, parameters);
     }
     
     /**
@@ -449,4 +453,67 @@ public class UserManager extends AbstractLogEnabled implements Component, Servic
         }
         return null;
     }
+    
+    /**
+     * Iterates over the users of a directory, reading them page by page.<br>
+     * The reading stops at the first empty or incomplete page, or when a page starts with the same user as the previous one,
+     * so that a directory ignoring the offset or the count does not loop forever.
+     */
+    private static class PagedUsersIterator implements Iterator<User>
+    {
+        private final UserDirectory _userDirectory;
+        private final int _pageSize;
+        private final Map<String, Object> _parameters;
+        
+        private Iterator<User> _page = Collections.emptyIterator();
+        private int _offset;
+        private boolean _lastPage;
+        private User _firstUserOfPage;
+        
+        /**
+         * Creates an iterator
+         * @param userDirectory The user directory
+         * @param pageSize The number of users to read at once, or -1 to read all of them at once
+         * @param parameters A map of additional parameters for the directory
+         */
+        PagedUsersIterator(UserDirectory userDirectory, int pageSize, Map<String, Object> parameters)
+        {
+            _userDirectory = userDirectory;
+            _pageSize = pageSize;
+            _parameters = parameters;
+        }
+        
+        @Override
+        public boolean hasNext()
+        {
+            if (!_page.hasNext() && !_lastPage)
+            {
+                List<User> users = _userDirectory.getUsers(_pageSize, _offset, _parameters);
+                User firstUser = users.isEmpty() ? null : users.get(0);
+                if (firstUser != null && firstUser.equals(_firstUserOfPage))
+                {
+                    // The directory ignored the offset and returned the previous page again
+                    users = Collections.emptyList();
+                }
+                
+                _page = users.iterator();
+                _offset += users.size();
+                _firstUserOfPage = firstUser;
+                _lastPage = _pageSize <= 0 || users.size() != _pageSize;
+            }
+            
+            return _page.hasNext();
+        }
+        
+        @Override
+        public User next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            
+            return _page.next();
+        }
+    }
 }
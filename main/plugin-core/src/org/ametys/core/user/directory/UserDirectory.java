@@ -20,6 +20,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.ametys.core.user.User;
+import org.ametys.core.util.ResultPage;
 
 /**
  * Abstraction for getting users list and verify the presence of a particular user.
@@ -45,7 +46,8 @@ public interface UserDirectory
     public Collection<User> getUsers();
     
     /**
-     * Get a list of users from a directory given the parameters
+     * Get a list of users from a directory given the parameters.<br>
+     * The users must be returned in a stable order, so that successive calls with increasing offsets neither skip nor repeat users.
      * @param count The limit of users to retrieve
      * @param offset The number of result to ignore before starting to collect users. 
      * @param parameters A map of additional parameters, see implementation.
@@ -53,6 +55,22 @@ public interface UserDirectory
      */
     public List<User> getUsers(int count, int offset, Map<String, Object> parameters);
     
+    /**
+     * Get a page of users from a directory given the parameters.<br>
+     * Contrary to {@link #getUsers(int, int, Map)}, implementations should make the cost of a page independent of its position,
+     * by continuing the search where the previous page stopped. The default implementation relies on offsets.
+     * @param count The maximum number of users in the page. Must be positive.
+     * @param continuationToken The token of the previous page, see {@link ResultPage#getContinuationToken()}. Null to get the first page.
+     * @param parameters A map of additional parameters, see implementation.
+     * @return The page of users
+     */
+    public default ResultPage<User> getUsersPage(int count, String continuationToken, Map<String, Object> parameters)
+    {
+        int offset = ResultPage.getOffset(continuationToken);
+        List<User> users = getUsers(count, offset, parameters);
+        return new ResultPage<>(users, users.size() < count ? null : ResultPage.offsetToken(offset + users.size()));
+    }
+    
     /**
      * Get a particular user by his login.
      * @param login Login of the user to get. Cannot be null.
@@ -17,13 +17,21 @@ package org.ametys.core.userpref;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
+import org.apache.avalon.framework.activity.Disposable;
 import org.apache.avalon.framework.activity.Initializable;
 import org.apache.avalon.framework.component.Component;
 import org.apache.avalon.framework.configuration.Configurable;
@@ -36,13 +44,24 @@ import org.apache.avalon.framework.service.Serviceable;
 import org.apache.avalon.framework.thread.ThreadSafe;
 import org.apache.commons.lang.StringUtils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import org.ametys.core.user.UserIdentity;
 import org.ametys.runtime.parameter.ParameterHelper;
+import org.ametys.runtime.parameter.ParameterHelper.ParameterType;
 
 /**
- * Component handling user preference values retrieval and storage.
+ * Component handling user preference values retrieval and storage.<br>
+ * The values read from the cacheable storages are kept in a bounded cache, per storage, user and context.
+ * When a write-behind delay is configured, the values set in cacheable storages are written asynchronously after this delay,
+ * so that successive modifications of the same preferences are coalesced into a single write.<br>
+ * The loading of the values in the cache, their invalidation and the writes behind are serialized by a lock per storage, user and context,
+ * so that values loaded before a modification are never cached after it, and that removed values are never written back.
  */
-public class UserPreferencesManager extends AbstractLogEnabled implements ThreadSafe, Component, Serviceable, Configurable, Initializable
+public class UserPreferencesManager extends AbstractLogEnabled implements ThreadSafe, Component, Serviceable, Configurable, Initializable, Disposable
 {
     
     /** The avalon role. */
@@ -60,6 +79,26 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
     /** The avalon service manager. */
     protected ServiceManager _serviceManager;
     
+    /** The maximum number of cached preference sets, 0 to disable the cache */
+    protected long _cacheMaxSize;
+    
+    /** The time to live of the cached preference sets in seconds */
+    protected long _cacheTimeToLive;
+    
+    /** The delay in milliseconds before writing the modified preferences, 0 to write them immediately */
+    protected long _writeBehindDelay;
+    
+    /** The cached preference values */
+    private Cache<PrefsKey, Map<String, String>> _cache;
+    
+    /** The preference values waiting to be written */
+    private final Map<PrefsKey, Map<String, String>> _pendingWrites = new ConcurrentHashMap<>();
+    
+    /** The locks of the preference values, by key */
+    private final Striped<Lock> _locks = Striped.lock(64);
+    
+    private volatile ScheduledExecutorService _writeBehindExecutor;
+    
     @Override
     public void service(ServiceManager manager) throws ServiceException
     {
@@ -71,12 +110,54 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
     public void configure(Configuration configuration) throws ConfigurationException
     {
         _defaultStorageRole = configuration.getChild("default-storage-role").getValue();
+        
+        Configuration cacheConf = configuration.getChild("cache");
+        _cacheMaxSize = cacheConf.getAttributeAsLong("max-size", 10000);
+        _cacheTimeToLive = cacheConf.getAttributeAsLong("ttl", 300);
+        _writeBehindDelay = configuration.getChild("write-behind").getAttributeAsLong("delay", 0);
     }
     
     @Override
     public void initialize() throws Exception
     {
-        _storageManagers = new HashMap<>();
+        _storageManagers = new ConcurrentHashMap<>();
+        
+        _cache = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(_cacheMaxSize, 0))
+                .expireAfterWrite(_cacheTimeToLive, TimeUnit.SECONDS)
+                .build();
+        
+        if (_writeBehindDelay > 0)
+        {
+            _writeBehindExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("ametys-userpref-write-behind-%d").setDaemon(true).build());
+        }
+    }
+    
+    @Override
+    public void dispose()
+    {
+        if (_writeBehindExecutor != null)
+        {
+            _writeBehindExecutor.shutdownNow();
+            _writeBehindExecutor = null;
+        }
+        
+        // Write the pending preferences before leaving
+        for (PrefsKey key : new ArrayList<>(_pendingWrites.keySet()))
+        {
+            _flush(key);
+        }
+        
+        _cache.invalidateAll();
+    }
+    
+    /**
+     * Removes all the cached preference values, e.g. after the storages were modified without going through this manager.
+     * The values waiting to be written are kept.
+     */
+    public void clearCache()
+    {
+        _cache.invalidateAll();
     }
     
     /**
@@ -96,9 +177,7 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
         
         for (String storageRole : storageRoles)
         {
-            UserPreferencesStorage storageManager = getStorageManager(storageRole);
-            
-            preferences.putAll(storageManager.getUnTypedUserPrefs(user, storageContext, contextVars));
+            preferences.putAll(_getStorageUserPrefs(storageRole, user, storageContext, contextVars));
         }
         
         return preferences;
@@ -186,7 +265,21 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
         {
             UserPreferencesStorage storageManager = getStorageManager(storageRole);
             
-            storageManager.removeUserPreferences(user, storageContext, contextVars);
+            PrefsKey key = new PrefsKey(storageRole, user, storageContext, contextVars);
+            
+            // Wait for a write behind in progress, so that it does not write the values again after their removal
+            Lock lock = _locks.get(key);
+            lock.lock();
+            try
+            {
+                _pendingWrites.remove(key);
+                storageManager.removeUserPreferences(user, storageContext, contextVars);
+            }
+            finally
+            {
+                _cache.invalidate(key);
+                lock.unlock();
+            }
         }
     }
     
@@ -210,9 +303,28 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
             {
                 // Retrieve the right storage manager.
                 UserPreferencesStorage storageManager = getStorageManager(managerRole);
+                PrefsKey key = new PrefsKey(managerRole, user, storageContext, contextVars);
                 
-                // Call set on the storage manager.
-                storageManager.setUserPreferences(user, storageContext, contextVars, storagePrefValues);
+                if (_writeBehindExecutor != null && storageManager.isCacheable())
+                {
+                    // The values will be read from the pending writes until they are written
+                    if (_pendingWrites.put(key, storagePrefValues) == null)
+                    {
+                        _scheduleFlush(key);
+                    }
+                }
+                else
+                {
+                    try
+                    {
+                        // Call set on the storage manager.
+                        storageManager.setUserPreferences(user, storageContext, contextVars, storagePrefValues);
+                    }
+                    finally
+                    {
+                        _invalidate(key);
+                    }
+                }
             }
         }
     }
@@ -228,9 +340,15 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
      */
     public String getUserPreferenceAsString(UserIdentity user, String storageContext, Map<String, String> contextVars, String id) throws UserPreferencesException
     {
-        UserPreferencesStorage storageManager = getStorageManager(contextVars, id);
+        String storageRole = _getStorageRole(contextVars, id);
+        UserPreferencesStorage storageManager = getStorageManager(storageRole);
+        if (!storageManager.isCacheable())
+        {
+            return storageManager.getUserPreferenceAsString(user, storageContext, contextVars, id);
+        }
         
-        return storageManager.getUserPreferenceAsString(user, storageContext, contextVars, id);
+        String value = _getStorageUserPrefs(storageRole, user, storageContext, contextVars).get(id);
+        return value;
     }
     
     /**
@@ -244,9 +362,15 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
      */
     public Long getUserPreferenceAsLong(UserIdentity user, String storageContext, Map<String, String> contextVars, String id) throws UserPreferencesException
     {
-        UserPreferencesStorage storageManager = getStorageManager(contextVars, id);
+        String storageRole = _getStorageRole(contextVars, id);
+        UserPreferencesStorage storageManager = getStorageManager(storageRole);
+        if (!storageManager.isCacheable())
+        {
+            return storageManager.getUserPreferenceAsLong(user, storageContext, contextVars, id);
+        }
         
-        return storageManager.getUserPreferenceAsLong(user, storageContext, contextVars, id);
+        String value = _getStorageUserPrefs(storageRole, user, storageContext, contextVars).get(id);
+        return value != null ? (Long) ParameterHelper.castValue(value, ParameterType.LONG) : null;
     }
     
     /**
@@ -260,9 +384,15 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
      */
     public Date getUserPreferenceAsDate(UserIdentity user, String storageContext, Map<String, String> contextVars, String id) throws UserPreferencesException
     {
-        UserPreferencesStorage storageManager = getStorageManager(contextVars, id);
+        String storageRole = _getStorageRole(contextVars, id);
+        UserPreferencesStorage storageManager = getStorageManager(storageRole);
+        if (!storageManager.isCacheable())
+        {
+            return storageManager.getUserPreferenceAsDate(user, storageContext, contextVars, id);
+        }
         
-        return storageManager.getUserPreferenceAsDate(user, storageContext, contextVars, id);
+        String value = _getStorageUserPrefs(storageRole, user, storageContext, contextVars).get(id);
+        return value != null ? (Date) ParameterHelper.castValue(value, ParameterType.DATE) : null;
     }
     
     /**
@@ -276,9 +406,15 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
      */
     public Boolean getUserPreferenceAsBoolean(UserIdentity user, String storageContext, Map<String, String> contextVars, String id) throws UserPreferencesException
     {
-        UserPreferencesStorage storageManager = getStorageManager(contextVars, id);
+        String storageRole = _getStorageRole(contextVars, id);
+        UserPreferencesStorage storageManager = getStorageManager(storageRole);
+        if (!storageManager.isCacheable())
+        {
+            return storageManager.getUserPreferenceAsBoolean(user, storageContext, contextVars, id);
+        }
         
-        return storageManager.getUserPreferenceAsBoolean(user, storageContext, contextVars, id);
+        String value = _getStorageUserPrefs(storageRole, user, storageContext, contextVars).get(id);
+        return value != null ? (Boolean) ParameterHelper.castValue(value, ParameterType.BOOLEAN) : null;
     }
     
     /**
@@ -292,9 +428,15 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
      */
     public Double getUserPreferenceAsDouble(UserIdentity user, String storageContext, Map<String, String> contextVars, String id) throws UserPreferencesException
     {
-        UserPreferencesStorage storageManager = getStorageManager(contextVars, id);
+        String storageRole = _getStorageRole(contextVars, id);
+        UserPreferencesStorage storageManager = getStorageManager(storageRole);
+        if (!storageManager.isCacheable())
+        {
+            return storageManager.getUserPreferenceAsDouble(user, storageContext, contextVars, id);
+        }
         
-        return storageManager.getUserPreferenceAsDouble(user, storageContext, contextVars, id);
+        String value = _getStorageUserPrefs(storageRole, user, storageContext, contextVars).get(id);
+        return value != null ? (Double) ParameterHelper.castValue(value, ParameterType.DOUBLE) : null;
     }
     
     /**
@@ -430,6 +572,11 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
      * @throws UserPreferencesException if an error occurs looking up the storage manager.
      */
     protected UserPreferencesStorage getStorageManager(Map<String, String> contextVars, String id) throws UserPreferencesException
+    {
+        return getStorageManager(_getStorageRole(contextVars, id));
+    }
+    
+    private String _getStorageRole(Map<String, String> contextVars, String id)
     {
         String storageManagerRole = _defaultStorageRole;
         
@@ -440,7 +587,126 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
             storageManagerRole = preference.getManagerRole();
         }
         
-        return getStorageManager(storageManagerRole);
+        return storageManagerRole;
+    }
+    
+    /**
+     * Get the preference values of a storage, from the pending writes, the cache or the storage itself.
+     * @param storageRole the storage component role.
+     * @param user the user.
+     * @param storageContext the preferences context.
+     * @param contextVars the context variables.
+     * @return the unmodifiable preference values of this storage.
+     * @throws UserPreferencesException if an error occurs getting the preferences.
+     */
+    private Map<String, String> _getStorageUserPrefs(String storageRole, UserIdentity user, String storageContext, Map<String, String> contextVars) throws UserPreferencesException
+    {
+        UserPreferencesStorage storageManager = getStorageManager(storageRole);
+        if (!storageManager.isCacheable())
+        {
+            return storageManager.getUnTypedUserPrefs(user, storageContext, contextVars);
+        }
+        
+        PrefsKey key = new PrefsKey(storageRole, user, storageContext, contextVars);
+        
+        Map<String, String> pendingValues = _pendingWrites.get(key);
+        if (pendingValues != null)
+        {
+            return Collections.unmodifiableMap(pendingValues);
+        }
+        
+        Map<String, String> values = _cache.getIfPresent(key);
+        if (values != null)
+        {
+            return values;
+        }
+        
+        // The values are loaded and cached under the lock: an invalidation waits for them to be cached, then removes them
+        Lock lock = _locks.get(key);
+        lock.lock();
+        try
+        {
+            // The values may have been loaded by another thread meanwhile
+            values = _cache.getIfPresent(key);
+            if (values == null)
+            {
+                values = Collections.unmodifiableMap(new HashMap<>(storageManager.getUnTypedUserPrefs(user, storageContext, contextVars)));
+                _cache.put(key, values);
+            }
+            return values;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void _invalidate(PrefsKey key)
+    {
+        Lock lock = _locks.get(key);
+        lock.lock();
+        try
+        {
+            _cache.invalidate(key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private void _scheduleFlush(PrefsKey key)
+    {
+        ScheduledExecutorService executor = _writeBehindExecutor;
+        if (executor != null && !executor.isShutdown())
+        {
+            executor.schedule(() -> _flush(key), _writeBehindDelay, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            _flush(key);
+        }
+    }
+    
+    /**
+     * Write the pending preference values of a storage
+     * @param key the key of the pending values
+     */
+    private void _flush(PrefsKey key)
+    {
+        Lock lock = _locks.get(key);
+        lock.lock();
+        try
+        {
+            // The values may have been removed while this write was scheduled
+            Map<String, String> values = _pendingWrites.get(key);
+            if (values == null)
+            {
+                return;
+            }
+            
+            try
+            {
+                UserPreferencesStorage storageManager = getStorageManager(key._storageRole);
+                storageManager.setUserPreferences(key._user, key._storageContext, key._contextVars, new HashMap<>(values));
+            }
+            catch (Exception e)
+            {
+                getLogger().error("Unable to write the preferences of user '" + key._user + "' in context '" + key._storageContext + "'", e);
+            }
+            
+            _cache.invalidate(key);
+            
+            if (!_pendingWrites.remove(key, values))
+            {
+                // The values were modified during the write
+                _scheduleFlush(key);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
     
     /**
@@ -470,4 +736,48 @@ public class UserPreferencesManager extends AbstractLogEnabled implements Thread
         return typedValues;
     }
     
+    /**
+     * Key of the preference values of a storage for a user and a context
+     */
+    private static final class PrefsKey
+    {
+        final String _storageRole;
+        final UserIdentity _user;
+        final String _storageContext;
+        final Map<String, String> _contextVars;
+        
+        PrefsKey(String storageRole, UserIdentity user, String storageContext, Map<String, String> contextVars)
+        {
+            _storageRole = storageRole;
+            _user = user;
+            _storageContext = storageContext;
+            _contextVars = contextVars != null ? new HashMap<>(contextVars) : Collections.emptyMap();
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(_storageRole, _user, _storageContext, _contextVars);
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof PrefsKey))
+            {
+                return false;
+            }
+            
+            PrefsKey other = (PrefsKey) obj;
+            return Objects.equals(_storageRole, other._storageRole)
+                    && Objects.equals(_user, other._user)
+                    && Objects.equals(_storageContext, other._storageContext)
+                    && _contextVars.equals(other._contextVars);
+        }
+    }
+    
 }
@@ -109,4 +109,14 @@ public interface UserPreferencesStorage
      * @throws UserPreferencesException if an error occurred
      */
     public Double getUserPreferenceAsDouble(UserIdentity user, String storageContext, Map<String, String> contextVars, String id) throws UserPreferencesException;
+    
+    /**
+     * Determines if the preference values read from this storage can be cached by the {@link UserPreferencesManager}.<br>
+     * Only a storage whose values are never modified without going through the {@link UserPreferencesManager} should return true.
+     * @return true if the values can be cached. False by default.
+     */
+    public default boolean isCacheable()
+    {
+        return false;
+    }
 }
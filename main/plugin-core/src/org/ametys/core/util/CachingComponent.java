@@ -15,71 +15,188 @@
  */
 package org.ametys.core.util;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.avalon.framework.activity.Initializable;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import org.ametys.runtime.plugin.component.AbstractLogEnabled;
 
 /**
- * Simple memory cache with a thread clearing the cache every day.
+ * Memory cache, bounded in size (least recently used entries are evicted first) and in time (each entry has its own time to live).<br>
+ * A <code>null</code> object can be cached, to remember that an object does not exist (e.g. an unknown login): such negative entries
+ * have their own, shorter, time to live. Use {@link #getEntryFromCache(String)} to distinguish them from a missing entry.<br>
+ * Expired entries of all the caching components are purged by a single shared thread.
  * @param <T> the type of objects cached by this component.
  */
 public class CachingComponent<T> extends AbstractLogEnabled implements Initializable
 {
-    private Map<String, T> _objects = new HashMap<>();
+    /** The default maximum number of entries */
+    protected static final long DEFAULT_CACHE_MAX_SIZE = 10000;
+    /** The default time to live of an entry in milliseconds: one day */
+    protected static final long DEFAULT_CACHE_TTL = 1000 * 60 * 60 * 24;
+    /** The default time to live of a negative entry in milliseconds: five minutes */
+    protected static final long DEFAULT_NEGATIVE_CACHE_TTL = 1000 * 60 * 5;
+    
+    /** The period in minutes of the purge of the expired entries */
+    private static final long __PURGE_PERIOD = 10;
+    
+    /** The caching components whose expired entries are purged by the scheduler */
+    private static final Set<CachingComponent<?>> __CACHING_COMPONENTS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<CachingComponent<?>, Boolean>()));
+    
+    /** The scheduler shared by all the caching components, lazily started */
+    private static ScheduledExecutorService __scheduler;
+    
+    private volatile Cache<String, CacheEntry<T>> _objects;
     
     public void initialize() throws Exception
     {
         if (isCacheEnabled())
         {
-            Timer timer = new Timer("CachingComponent", true);
-            
-            long period = 1000 * 60 * 60 * 24; // one day
-            timer.scheduleAtFixedRate(new TimerTask()
+            _getCache();
+            _registerForPurge(this);
+        }
+    }
+    
+    private static synchronized void _registerForPurge(CachingComponent<?> cachingComponent)
+    {
+        __CACHING_COMPONENTS.add(cachingComponent);
+        
+        if (__scheduler == null)
+        {
+            __scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("CachingComponent").setDaemon(true).build());
+            __scheduler.scheduleWithFixedDelay(CachingComponent::_purgeAll, __PURGE_PERIOD, __PURGE_PERIOD, TimeUnit.MINUTES);
+        }
+    }
+    
+    private static void _purgeAll()
+    {
+        CachingComponent<?>[] cachingComponents;
+        synchronized (__CACHING_COMPONENTS)
+        {
+            cachingComponents = __CACHING_COMPONENTS.toArray(new CachingComponent<?>[0]);
+        }
+        
+        for (CachingComponent<?> cachingComponent : cachingComponents)
+        {
+            try
+            {
+                cachingComponent.purgeCache();
+            }
+            catch (RuntimeException e)
+            {
+                cachingComponent.getLogger().error("Unable to purge the cache", e);
+            }
+        }
+    }
+    
+    private Cache<String, CacheEntry<T>> _getCache()
+    {
+        if (_objects == null)
+        {
+            synchronized (this)
             {
-                @Override
-                public void run()
+                if (_objects == null)
                 {
-                    clearCache();
+                    // Expiration is handled per entry, see CacheEntry
+                    _objects = CacheBuilder.newBuilder()
+                            .maximumSize(getCacheMaxSize())
+                            .recordStats()
+                            .build();
                 }
-            }, period, period);
+            }
         }
+        return _objects;
     }
     
     /**
-     * Returns an object from the cache, correspondong to the specified key, or null if none.
+     * Returns an object from the cache, correspondong to the specified key, or null if none.<br>
+     * A null object may also be a negative entry: use {@link #getEntryFromCache(String)} to distinguish the two cases.
      * @param key the object's key.
      * @return the object from cache.
      */
     protected T getObjectFromCache(String key)
     {
-        T object = _objects.get(key);
+        CacheEntry<T> entry = getEntryFromCache(key);
+        return entry != null ? entry.getObject() : null;
+    }
+    
+    /**
+     * Returns the cache entry corresponding to the specified key, in a single lookup.
+     * @param key the object's key.
+     * @return the entry, whose object is null for a negative entry, or null if nothing is cached for the key.
+     */
+    protected CacheEntry<T> getEntryFromCache(String key)
+    {
+        CacheEntry<T> entry = _getEntry(key);
         
         if (getLogger().isDebugEnabled())
         {
-            getLogger().debug("Getting object" + object + "from cache for key " + key);
+            getLogger().debug("Getting " + (entry != null ? "object " + entry.getObject() : "no object") + " from cache for key " + key);
+        }
+        
+        return entry;
+    }
+    
+    /**
+     * Tests if an object is cached for the specified key. The cached object may be null (negative caching).
+     * @param key the object's key.
+     * @return true if an object, possibly null, is cached for the key.
+     * @deprecated the entry may expire before a subsequent call to {@link #getObjectFromCache(String)}, use {@link #getEntryFromCache(String)} instead.
+     */
+    @Deprecated
+    protected boolean isObjectInCache(String key)
+    {
+        return _getEntry(key) != null;
+    }
+    
+    private CacheEntry<T> _getEntry(String key)
+    {
+        Cache<String, CacheEntry<T>> cache = _getCache();
+        CacheEntry<T> entry = cache.getIfPresent(key);
+        
+        if (entry != null && entry.isExpired(System.currentTimeMillis()))
+        {
+            cache.asMap().remove(key, entry);
+            return null;
         }
         
-        return object;
+        return entry;
     }
     
     /**
      * Adds a key/object pair in the cache.
      * @param key the object's key.
-     * @param object the object to be cached.
+     * @param object the object to be cached. Can be null to remember that there is no object for this key.
      */
     protected void addObjectInCache(String key, T object)
+    {
+        addObjectInCache(key, object, object != null ? getCacheTimeToLive() : getNegativeCacheTimeToLive());
+    }
+    
+    /**
+     * Adds a key/object pair in the cache, with a specific time to live.
+     * @param key the object's key.
+     * @param object the object to be cached. Can be null to remember that there is no object for this key.
+     * @param timeToLive the time to live of the entry in milliseconds.
+     */
+    protected void addObjectInCache(String key, T object, long timeToLive)
     {
         if (getLogger().isDebugEnabled())
         {
-            getLogger().debug("Adding object " + object + "in cache for key " + key);
+            getLogger().debug("Adding object " + object + " in cache for key " + key);
         }
         
-        _objects.put(key, object);
+        _getCache().put(key, new CacheEntry<>(object, System.currentTimeMillis() + timeToLive));
     }
     
     /**
@@ -93,7 +210,7 @@ public class CachingComponent<T> extends AbstractLogEnabled implements Initializ
             getLogger().debug("Removing object in cache for key " + key);
         }
         
-        _objects.remove(key);
+        _getCache().invalidate(key);
     }
     
     /**
@@ -106,7 +223,35 @@ public class CachingComponent<T> extends AbstractLogEnabled implements Initializ
             getLogger().debug("Clearing cache");
         }
         
-        _objects.clear();
+        _getCache().invalidateAll();
+    }
+    
+    /**
+     * Removes the expired entries from the cache.
+     */
+    protected void purgeCache()
+    {
+        Cache<String, CacheEntry<T>> cache = _objects;
+        if (cache != null)
+        {
+            long now = System.currentTimeMillis();
+            cache.asMap().values().removeIf(entry -> entry.isExpired(now));
+            cache.cleanUp();
+            
+            if (getLogger().isDebugEnabled())
+            {
+                getLogger().debug("Cache purged, " + cache.size() + " entries remaining. " + cache.stats());
+            }
+        }
+    }
+    
+    /**
+     * Gets the statistics of the cache: hits, misses, evictions...
+     * @return the statistics of the cache
+     */
+    public CacheStats getCacheStats()
+    {
+        return _getCache().stats();
     }
     
     /**
@@ -117,4 +262,61 @@ public class CachingComponent<T> extends AbstractLogEnabled implements Initializ
     {
         return true;
     }
+    
+    /**
+     * Returns the maximum number of entries in the cache. When reached, the least recently used entries are evicted.
+     * @return the maximum number of entries.
+     */
+    protected long getCacheMaxSize()
+    {
+        return DEFAULT_CACHE_MAX_SIZE;
+    }
+    
+    /**
+     * Returns the time to live of the entries in the cache.
+     * @return the time to live in milliseconds.
+     */
+    protected long getCacheTimeToLive()
+    {
+        return DEFAULT_CACHE_TTL;
+    }
+    
+    /**
+     * Returns the time to live of the negative entries (null objects) in the cache.
+     * @return the time to live in milliseconds.
+     */
+    protected long getNegativeCacheTimeToLive()
+    {
+        return DEFAULT_NEGATIVE_CACHE_TTL;
+    }
+    
+    /**
+     * An entry of the cache
+     * @param <T> the type of the cached object
+     */
+    protected static final class CacheEntry<T>
+    {
+        final T _object;
+        final long _expirationTime;
+        
+        CacheEntry(T object, long expirationTime)
+        {
+            _object = object;
+            _expirationTime = expirationTime;
+        }
+        
+        /**
+         * Gets the cached object
+         * @return the object, null for a negative entry
+         */
+        public T getObject()
+        {
+            return _object;
+        }
+        
+        boolean isExpired(long now)
+        {
+            return now >= _expirationTime;
+        }
+    }
 }
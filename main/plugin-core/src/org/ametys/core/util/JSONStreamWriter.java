@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.core.util;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes a JSON value directly to the generator, when the object is serialized by {@link JSONUtils}.<br>
+ * Return it instead of a {@link java.util.Map} or a {@link java.util.List} to avoid building the whole tree in memory before serializing it,
+ * e.g. for long lists of users. It can also be a value of a map or of a list.
+ */
+@FunctionalInterface
+public interface JSONStreamWriter
+{
+    /**
+     * Write exactly one JSON value (object, array, string...).
+     * Other objects can be written with {@link JsonGenerator#writeObject(Object)}.
+     * @param generator The generator
+     * @throws IOException if an error occurs while writing
+     */
+    public void write(JsonGenerator generator) throws IOException;
+}
@@ -17,9 +17,8 @@
 package org.ametys.core.util;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -33,25 +32,27 @@ import org.apache.avalon.framework.service.ServiceManager;
 import org.apache.avalon.framework.service.Serviceable;
 import org.apache.avalon.framework.thread.ThreadSafe;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.commons.lang.StringUtils;
 
-import com.fasterxml.jackson.core.JsonEncoding;
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.Version;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 
 /**
- * JSON helper
+ * JSON helper.<br>
+ * Besides maps, lists and beans, the objects to convert to JSON can be {@link JSONStreamWriter}s or {@link java.util.Iterator}s:
+ * they are written incrementally, without building the whole tree first.
  */
 public class JSONUtils implements Component, ThreadSafe, Serviceable, Initializable
 {
     /** The avalon role */
     public static final String ROLE = JSONUtils.class.getName();
     
-    private JsonFactory _jsonFactory = new JsonFactory();
+    /** The mapper, whose factory recycles the parsing and writing buffers */
     private ObjectMapper _objectMapper = new ObjectMapper();
 
     private I18nizableTextSerializer _i18nizableTextSerializer;
@@ -68,6 +69,7 @@ public class JSONUtils implements Component, ThreadSafe, Serviceable, Initializa
         // Register new serializer for I18nizableText
         SimpleModule i18nModule = new SimpleModule("AmetysI18nModule", new Version(1, 0, 0, null, null, null));
         i18nModule.addSerializer(_i18nizableTextSerializer);
+        i18nModule.addSerializer(new JSONStreamWriterSerializer());
         _objectMapper.registerModule(i18nModule);
     }
     
@@ -82,8 +84,7 @@ public class JSONUtils implements Component, ThreadSafe, Serviceable, Initializa
         {
             if (StringUtils.isNotBlank(jsonString)) 
             {
-                JsonParser jParser = _jsonFactory.createParser(new StringReader(jsonString));
-                Map<String, Object> map = _objectMapper.readValue(jParser, LinkedHashMap.class);
+                Map<String, Object> map = _objectMapper.readValue(jsonString, LinkedHashMap.class);
                 return map;
             } 
             else 
@@ -97,6 +98,25 @@ public class JSONUtils implements Component, ThreadSafe, Serviceable, Initializa
         }
     }
     
+    /**
+     * Parse a JSON stream to a {@link Map} object. The bytes are parsed directly, without decoding them to a string first.
+     * The stream is not closed.
+     * @param is the stream to parse, encoded in UTF-8, UTF-16 or UTF-32
+     * @return object the infos as a Map.
+     */
+    public Map<String, Object> convertJsonToMap(InputStream is)
+    {
+        try 
+        {
+            Map<String, Object> map = _objectMapper.readValue(new CloseShieldInputStream(is), LinkedHashMap.class);
+            return map != null ? map : Collections.emptyMap();
+        } 
+        catch (Exception e) 
+        {
+            throw new IllegalArgumentException("The json stream can not be parsed as a Map.", e);
+        }
+    }
+    
     /**
      * Parse a JSON string to a {@link List} object.
      * @param jsonString the string to parse.
@@ -108,8 +128,7 @@ public class JSONUtils implements Component, ThreadSafe, Serviceable, Initializa
         {
             if (StringUtils.isNotBlank(jsonString)) 
             {
-                JsonParser jParser = _jsonFactory.createParser(new StringReader(jsonString));
-                List<Object> list = _objectMapper.readValue(jParser, ArrayList.class);
+                List<Object> list = _objectMapper.readValue(jsonString, ArrayList.class);
                 return list;
             }
             else
@@ -134,8 +153,7 @@ public class JSONUtils implements Component, ThreadSafe, Serviceable, Initializa
         {
             if (StringUtils.isNotBlank(jsonString)) 
             {
-                JsonParser jParser = _jsonFactory.createParser(new StringReader(jsonString));
-                Object[] array = _objectMapper.readValue(jParser, Object[].class);
+                Object[] array = _objectMapper.readValue(jsonString, Object[].class);
                 return array;
             }
             else
@@ -160,8 +178,7 @@ public class JSONUtils implements Component, ThreadSafe, Serviceable, Initializa
         {
             if (StringUtils.isNotBlank(jsonString)) 
             {
-                JsonParser jParser = _jsonFactory.createParser(new StringReader(jsonString));
-                String[] array = _objectMapper.readValue(jParser, String[].class);
+                String[] array = _objectMapper.readValue(jsonString, String[].class);
                 return array;
             }
             else
@@ -185,15 +202,16 @@ public class JSONUtils implements Component, ThreadSafe, Serviceable, Initializa
     {
         try
         {
-            JsonGenerator jsonGenerator = _jsonFactory.createGenerator(out, JsonEncoding.UTF8);
-            _objectMapper.writeValue(jsonGenerator, parameters);
-            
-            IOUtils.closeQuietly(out);
+            _objectMapper.writeValue(out, parameters);
         }
         catch (IOException e)
         {
             throw new IllegalArgumentException("The object can not be converted to json string", e);
         }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+        }
     }
     
     /**
@@ -205,16 +223,28 @@ public class JSONUtils implements Component, ThreadSafe, Serviceable, Initializa
     {
         try
         {
-            StringWriter writer = new StringWriter();
-            
-            JsonGenerator jsonGenerator = _jsonFactory.createGenerator(writer);
-            _objectMapper.writeValue(jsonGenerator, parameters);
-            
-            return writer.toString();
+            return _objectMapper.writeValueAsString(parameters);
         }
         catch (IOException e)
         {
             throw new IllegalArgumentException("The object can not be converted to json string", e);
         }
     }
+    
+    /**
+     * Serializer calling the {@link JSONStreamWriter}s
+     */
+    private static class JSONStreamWriterSerializer extends StdSerializer<JSONStreamWriter>
+    {
+        JSONStreamWriterSerializer()
+        {
+            super(JSONStreamWriter.class);
+        }
+        
+        @Override
+        public void serialize(JSONStreamWriter value, JsonGenerator jgen, SerializerProvider provider) throws IOException
+        {
+            value.write(jgen);
+        }
+    }
 }
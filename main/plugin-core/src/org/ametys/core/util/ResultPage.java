@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.core.util;
+
+import java.util.List;
+
+/**
+ * A page of results, with an opaque token to get the next page.<br>
+ * The token is only meaningful for the component which returned the page.
+ * @param <T> The type of the results
+ */
+public class ResultPage<T>
+{
+    private final List<T> _results;
+    private final String _continuationToken;
+    
+    /**
+     * Creates a page
+     * @param results The results of the page
+     * @param continuationToken The token to get the next page, or null if this is the last page
+     */
+    public ResultPage(List<T> results, String continuationToken)
+    {
+        _results = results;
+        _continuationToken = continuationToken;
+    }
+    
+    /**
+     * Get the results of the page
+     * @return The results
+     */
+    public List<T> getResults()
+    {
+        return _results;
+    }
+    
+    /**
+     * Get the token to get the next page
+     * @return The token, or null if this is the last page
+     */
+    public String getContinuationToken()
+    {
+        return _continuationToken;
+    }
+    
+    /**
+     * Test if there is a page after this one
+     * @return true if there is a next page
+     */
+    public boolean hasNext()
+    {
+        return _continuationToken != null;
+    }
+    
+    /**
+     * Get the offset encoded in a token created by {@link #offsetToken(int)}
+     * @param continuationToken The token. Can be null for the first page.
+     * @return The offset, 0 for the first page
+     * @throws IllegalArgumentException if the token is not an offset token
+     */
+    public static int getOffset(String continuationToken)
+    {
+        if (continuationToken == null)
+        {
+            return 0;
+        }
+        
+        try
+        {
+            return Integer.parseInt(continuationToken);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid continuation token '" + continuationToken + "'", e);
+        }
+    }
+    
+    /**
+     * Creates a token which simply encodes the offset of the next page, for components which cannot do better
+     * @param offset The offset of the next page
+     * @return The token
+     */
+    public static String offsetToken(int offset)
+    {
+        return Integer.toString(offset);
+    }
+}
@@ -17,9 +17,17 @@ package org.ametys.core.util.ldap;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.naming.Context;
@@ -34,28 +42,49 @@ import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.PagedResultsControl;
 import javax.naming.ldap.PagedResultsResponseControl;
 
+import org.apache.avalon.framework.activity.Disposable;
 import org.apache.avalon.framework.configuration.Configuration;
 import org.apache.avalon.framework.configuration.ConfigurationException;
 import org.apache.avalon.framework.service.ServiceException;
 import org.apache.avalon.framework.service.ServiceManager;
 import org.apache.avalon.framework.service.Serviceable;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import org.ametys.core.datasource.AbstractDataSourceManager.DataSourceDefinition;
 import org.ametys.core.datasource.LDAPDataSourceManager;
 import org.ametys.core.datasource.UnknownDataSourceException;
 import org.ametys.core.util.CachingComponent;
+import org.ametys.core.util.ResultPage;
 import org.ametys.runtime.config.Config;
 
 /**
- * This abstract class contains all basic for a ldap connection using config parameters
+ * This abstract class contains all basic for a ldap connection using config parameters.<br>
+ * Each paged search waiting for its next page keeps a LDAP connection open: their number is bounded, the oldest one being abandoned when the limit is reached,
+ * and the unused ones are abandoned after a few minutes by a thread shared by all the connectors.
  */
-public abstract class AbstractLDAPConnector extends CachingComponent<Object> implements Serviceable
+public abstract class AbstractLDAPConnector extends CachingComponent<Object> implements Serviceable, Disposable
 {
     /** The default LDAP search page size */
     protected static final int __DEFAULT_PAGE_SIZE = 1000;
     
     // Check filter look
     private static final Pattern __FILTER = Pattern.compile("\\s*\\(.*\\)\\s*");
+    
+    /** The time in milliseconds after which an unused paged search is abandoned */
+    private static final long __PAGED_SEARCH_TIMEOUT = 5 * 60 * 1000;
+    
+    /** The maximum number of paged searches waiting for their next page, by connector */
+    private static final int __MAX_PAGED_SEARCHES = 50;
+    
+    /** The period in seconds of the check for the expired paged searches */
+    private static final long __PAGED_SEARCH_CHECK_PERIOD = 60;
+    
+    /** The connectors having paged searches waiting for their next page */
+    private static final Set<AbstractLDAPConnector> __CONNECTORS_WITH_PAGED_SEARCHES = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<AbstractLDAPConnector, Boolean>()));
+    
+    /** The scheduler abandoning the expired paged searches of all the connectors, lazily started */
+    private static ScheduledExecutorService __pagedSearchScheduler;
 
     /** URL connection to the ldap server. */
     protected String _ldapUrl; 
@@ -76,6 +105,9 @@ public abstract class AbstractLDAPConnector extends CachingComponent<Object> imp
     
     /** Indicates if the LDAP server supports paging feature. */
     protected boolean _pagingSupported;
+    
+    /** The paged searches waiting for their next page, by continuation token */
+    private final Map<String, PagedSearch> _pagedSearches = new ConcurrentHashMap<>();
 
     /** The LDAP data source manager */
     private LDAPDataSourceManager _ldapDataSourceManager;
@@ -115,6 +147,17 @@ public abstract class AbstractLDAPConnector extends CachingComponent<Object> imp
         _ldapDataSourceManager = (LDAPDataSourceManager) serviceManager.lookup(LDAPDataSourceManager.ROLE); 
     }
     
+    @Override
+    public void dispose()
+    {
+        __CONNECTORS_WITH_PAGED_SEARCHES.remove(this);
+        
+        for (String continuationToken : new ArrayList<>(_pagedSearches.keySet()))
+        {
+            _abandonSearch(continuationToken);
+        }
+    }
+    
     /**
      * Get the filter from configuration key and check it
      * @param configuration The configuration
@@ -339,7 +382,6 @@ public abstract class AbstractLDAPConnector extends CachingComponent<Object> imp
      */
     protected List<SearchResult> _search(int pageSize, String name, String filter, SearchControls searchControls)
     {
-        getLogger().error("Je passe dans ma nouvelle méthode");
         List<SearchResult> allResults = new ArrayList<>();
         
         LdapContext context = null;
@@ -416,4 +458,190 @@ public abstract class AbstractLDAPConnector extends CachingComponent<Object> imp
         
         return allResults;
     }
+    
+    /**
+     * Executes a page of a LDAP search. The LDAP connection and the paged results cookie are kept between the pages,
+     * so that the server continues the search where it stopped instead of starting it again.<br>
+     * The LDAP server must support paging, see {@link #isPagingSupported()}.
+     * @param pageSize The number of entries in a page
+     * @param continuationToken The token of the previous page, see {@link ResultPage#getContinuationToken()}. Null to start the search.
+     * @param name the name of the context or object to search
+     * @param filter the filter expression to use for the search
+     * @param filterArgs the arguments to substitute for the variables in the filter expression
+     * @param searchControls the search controls that control the search.
+     * @param controls additional request controls, such as sort controls. Can be empty.
+     * @return The page of results of the LDAP search
+     * @throws IllegalArgumentException if the token is unknown or expired
+     */
+    protected ResultPage<SearchResult> _searchPage(int pageSize, String continuationToken, String name, String filter, Object[] filterArgs, SearchControls searchControls, Control[] controls)
+    {
+        _abandonExpiredSearches();
+        
+        PagedSearch pagedSearch = null;
+        if (continuationToken != null)
+        {
+            // Remove the search while it is used, so that it is never used by two threads at the same time
+            pagedSearch = _pagedSearches.remove(continuationToken);
+            if (pagedSearch == null)
+            {
+                throw new IllegalArgumentException("The LDAP search '" + continuationToken + "' is unknown or expired");
+            }
+        }
+        
+        List<SearchResult> results = new ArrayList<>();
+        NamingEnumeration<SearchResult> tmpResults = null;
+        boolean keepContext = false;
+        
+        try
+        {
+            if (pagedSearch == null)
+            {
+                pagedSearch = new PagedSearch(new InitialLdapContext(_getContextEnv(), null));
+            }
+            
+            Control[] requestControls = new Control[controls.length + 1];
+            requestControls[0] = new PagedResultsControl(pageSize, pagedSearch._cookie, Control.CRITICAL);
+            System.arraycopy(controls, 0, requestControls, 1, controls.length);
+            pagedSearch._context.setRequestControls(requestControls);
+            
+            tmpResults = pagedSearch._context.search(name, filter, filterArgs, searchControls);
+            while (tmpResults.hasMoreElements())
+            {
+                results.add(tmpResults.nextElement());
+            }
+            
+            pagedSearch._cookie = null;
+            Control[] responseControls = pagedSearch._context.getResponseControls();
+            if (responseControls != null)
+            {
+                for (Control control : responseControls)
+                {
+                    if (control instanceof PagedResultsResponseControl)
+                    {
+                        pagedSearch._cookie = ((PagedResultsResponseControl) control).getCookie();
+                    }
+                }
+            }
+            
+            String nextToken = null;
+            if (pagedSearch._cookie != null && pagedSearch._cookie.length > 0)
+            {
+                if (_pagedSearches.size() >= __MAX_PAGED_SEARCHES)
+                {
+                    _abandonOldestSearch();
+                }
+                
+                nextToken = UUID.randomUUID().toString();
+                pagedSearch._lastAccess = System.currentTimeMillis();
+                _pagedSearches.put(nextToken, pagedSearch);
+                keepContext = true;
+                
+                _registerPagedSearches(this);
+            }
+            
+            return new ResultPage<>(results, nextToken);
+        }
+        catch (NamingException | IOException e)
+        {
+            getLogger().error("Error communication with ldap server", e);
+            return new ResultPage<>(results, null);
+        }
+        finally
+        {
+            _cleanup(keepContext || pagedSearch == null ? null : pagedSearch._context, tmpResults);
+        }
+    }
+    
+    private static synchronized void _registerPagedSearches(AbstractLDAPConnector connector)
+    {
+        __CONNECTORS_WITH_PAGED_SEARCHES.add(connector);
+        
+        if (__pagedSearchScheduler == null)
+        {
+            __pagedSearchScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("LDAPPagedSearches").setDaemon(true).build());
+            __pagedSearchScheduler.scheduleWithFixedDelay(AbstractLDAPConnector::_abandonAllExpiredSearches, __PAGED_SEARCH_CHECK_PERIOD, __PAGED_SEARCH_CHECK_PERIOD, TimeUnit.SECONDS);
+        }
+    }
+    
+    private static void _abandonAllExpiredSearches()
+    {
+        AbstractLDAPConnector[] connectors;
+        synchronized (__CONNECTORS_WITH_PAGED_SEARCHES)
+        {
+            connectors = __CONNECTORS_WITH_PAGED_SEARCHES.toArray(new AbstractLDAPConnector[0]);
+        }
+        
+        for (AbstractLDAPConnector connector : connectors)
+        {
+            try
+            {
+                connector._abandonExpiredSearches();
+            }
+            catch (RuntimeException e)
+            {
+                connector.getLogger().error("Unable to abandon the expired LDAP searches", e);
+            }
+        }
+    }
+    
+    private void _abandonExpiredSearches()
+    {
+        long expirationTime = System.currentTimeMillis() - __PAGED_SEARCH_TIMEOUT;
+        
+        for (Map.Entry<String, PagedSearch> entry : _pagedSearches.entrySet())
+        {
+            PagedSearch pagedSearch = entry.getValue();
+            
+            // The search may have been taken by a thread asking for its next page meanwhile
+            if (pagedSearch._lastAccess < expirationTime && _pagedSearches.remove(entry.getKey(), pagedSearch))
+            {
+                _cleanup(pagedSearch._context, null);
+            }
+        }
+    }
+    
+    private void _abandonOldestSearch()
+    {
+        String oldestToken = null;
+        long oldestAccess = Long.MAX_VALUE;
+        for (Map.Entry<String, PagedSearch> entry : _pagedSearches.entrySet())
+        {
+            if (entry.getValue()._lastAccess < oldestAccess)
+            {
+                oldestToken = entry.getKey();
+                oldestAccess = entry.getValue()._lastAccess;
+            }
+        }
+        
+        if (oldestToken != null)
+        {
+            getLogger().warn("Too many LDAP paged searches waiting for their next page, the oldest one is abandoned");
+            _abandonSearch(oldestToken);
+        }
+    }
+    
+    private void _abandonSearch(String continuationToken)
+    {
+        // The search may have been taken by a thread asking for its next page meanwhile
+        PagedSearch pagedSearch = _pagedSearches.remove(continuationToken);
+        if (pagedSearch != null)
+        {
+            _cleanup(pagedSearch._context, null);
+        }
+    }
+    
+    /**
+     * A LDAP paged search waiting for its next page
+     */
+    private static final class PagedSearch
+    {
+        final LdapContext _context;
+        byte[] _cookie;
+        long _lastAccess;
+        
+        PagedSearch(LdapContext context)
+        {
+            _context = context;
+        }
+    }
 }
@@ -99,9 +99,10 @@ public final class SendMailHelper extends AbstractLogEnabled implements Disposab
      */
     public static void sendMail(String subject, String htmlBody, String textBody, String recipient, String sender) throws MessagingException
     {
-        String smtpHost = Config.getInstance().getValueAsString("smtp.mail.host");
-        long smtpPort = Config.getInstance().getValueAsLong("smtp.mail.port");
-        String securityProtocol = Config.getInstance().getValueAsString("smtp.mail.security.protocol");
+        Config config = Config.getInstance();
+        String smtpHost = config.getValueAsString("smtp.mail.host");
+        long smtpPort = config.getValueAsLong("smtp.mail.port");
+        String securityProtocol = config.getValueAsString("smtp.mail.security.protocol");
 
         sendMail(subject, htmlBody, textBody, recipient, sender, smtpHost, smtpPort, securityProtocol, false);
     }
@@ -207,9 +208,10 @@ public final class SendMailHelper extends AbstractLogEnabled implements Disposab
      */
     public static void sendMail(String subject, String htmlBody, String textBody, Collection<File> attachments, String recipient, String sender, List<String> cc, List<String> bcc, boolean deliveryReceipt, boolean readReceipt, boolean async) throws MessagingException, IOException
     {
-        String smtpHost = Config.getInstance().getValueAsString("smtp.mail.host");
-        long smtpPort = Config.getInstance().getValueAsLong("smtp.mail.port");
-        String protocol = Config.getInstance().getValueAsString("smtp.mail.security.protocol");
+        Config config = Config.getInstance();
+        String smtpHost = config.getValueAsString("smtp.mail.host");
+        long smtpPort = config.getValueAsLong("smtp.mail.port");
+        String protocol = config.getValueAsString("smtp.mail.security.protocol");
         
         sendMail(subject, htmlBody, textBody, attachments, recipient, sender, cc, bcc, deliveryReceipt, readReceipt, smtpHost, smtpPort, protocol, null, null, async);
     }
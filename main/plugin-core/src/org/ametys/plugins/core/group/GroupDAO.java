@@ -35,6 +35,7 @@ import org.ametys.core.group.directory.ModifiableGroupDirectory;
 import org.ametys.core.ui.Callable;
 import org.ametys.core.user.CurrentUserProvider;
 import org.ametys.core.user.UserIdentity;
+import org.ametys.core.util.ResultPage;
 
 /**
  * DAO for manipulating {@link Group}
@@ -374,6 +375,32 @@ public class GroupDAO extends AbstractLogEnabled implements Serviceable, Compone
         return null;
     }
     
+    /**
+     * Search a page of groups in a group directory.<br>
+     * To scroll the groups, call this method again with the continuation token of the previous page: the directory continues its search
+     * where it stopped, so that getting a page does not depend on its position.
+     * @param groupDirectoryId The id of the group directory
+     * @param count The maximum number of groups in the page
+     * @param continuationToken The continuation token returned with the previous page. Null to get the first page.
+     * @param pattern The pattern to match. Can be null or empty.
+     * @return The groups' information, and the continuation token to get the next page (null if this is the last page)
+     */
+    @Callable
+    public Map<String, Object> searchGroups(String groupDirectoryId, int count, String continuationToken, String pattern)
+    {
+        GroupDirectory groupDirectory = _groupDirectoryDAO.getGroupDirectory(groupDirectoryId);
+        
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("pattern", pattern);
+        
+        ResultPage<Map<String, Object>> page = groupDirectory.groups2JSONPage(count, continuationToken, parameters);
+        
+        Map<String, Object> result = new HashMap<>();
+        result.put("groups", page.getResults());
+        result.put("continuationToken", page.getContinuationToken());
+        return result;
+    }
+    
     /**
      * Checks if the group is modifiable
      * @param groupDirectoryId The id of the group directory
@@ -51,6 +51,8 @@ import org.ametys.core.user.directory.ModifiableUserDirectory;
 import org.ametys.core.user.directory.UserDirectory;
 import org.ametys.core.user.population.UserPopulation;
 import org.ametys.core.user.population.UserPopulationDAO;
+import org.ametys.core.util.JSONStreamWriter;
+import org.ametys.core.util.ResultPage;
 import org.ametys.runtime.authentication.AccessDeniedException;
 import org.ametys.runtime.i18n.I18nizableText;
 import org.ametys.runtime.parameter.Enumerator;
@@ -110,6 +112,44 @@ public class UserDAO extends AbstractLogEnabled implements Component, Contextual
         return _userHelper.user2json(_userManager.getUser(populationId, login), true);
     }
     
+    /**
+     * Search a page of users in a user directory.<br>
+     * To scroll the users, call this method again with the continuation token of the previous page: the directory continues its search
+     * where it stopped, so that getting a page does not depend on its position.
+     * @param populationId The id of the population
+     * @param userDirectoryId The id of the user directory in the population
+     * @param count The maximum number of users in the page
+     * @param continuationToken The continuation token returned with the previous page. Null to get the first page.
+     * @param pattern The pattern to match. Can be null or empty.
+     * @return The users' information, and the continuation token to get the next page (null if this is the last page)
+     */
+    @Callable
+    public Map<String, Object> searchUsers(String populationId, String userDirectoryId, int count, String continuationToken, String pattern)
+    {
+        UserDirectory userDirectory = _userPopulationDAO.getUserPopulation(populationId).getUserDirectory(userDirectoryId);
+        
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("pattern", pattern);
+        
+        ResultPage<User> page = userDirectory.getUsersPage(count, continuationToken, parameters);
+        
+        // Each user is converted while being written, instead of building all of them first
+        JSONStreamWriter users = generator -> 
+        {
+            generator.writeStartArray();
+            for (User user : page.getResults())
+            {
+                generator.writeObject(_userHelper.user2json(user, true));
+            }
+            generator.writeEndArray();
+        };
+        
+        Map<String, Object> result = new HashMap<>();
+        result.put("users", users);
+        result.put("continuationToken", page.getContinuationToken());
+        return result;
+    }
+    
     /**
      * Checks if the user is modifiable
      * @param login The users's login
@@ -83,4 +83,10 @@ public class TestAccessController implements AccessController, Component, Servic
     {
         return object instanceof String;
     }
+    
+    @Override
+    public boolean isCacheable()
+    {
+        return true;
+    }
 }
@@ -0,0 +1,39 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.test.rights;
+
+import org.apache.commons.lang3.StringUtils;
+
+import org.ametys.plugins.core.impl.right.AbstractHierarchicalAccessController;
+
+/**
+ * Hierarchical access controller for test purposes, handling the string objects under <code>/test/</code>.<br>
+ * The parent of <code>/test/a/b</code> is <code>/test/a</code>, whose parent is <code>/test</code>.
+ */
+public class TestHierarchicalAccessController extends AbstractHierarchicalAccessController<String>
+{
+    @Override
+    public boolean isSupported(Object object)
+    {
+        return object instanceof String && ((String) object).startsWith("/test/");
+    }
+    
+    @Override
+    protected String _getParent(String object)
+    {
+        return object.lastIndexOf('/') > 0 ? StringUtils.substringBeforeLast(object, "/") : null;
+    }
+}
@@ -15,6 +15,7 @@
  */
 package org.ametys.runtime.test.rights.storage.assignments;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -23,6 +24,8 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.ametys.core.group.GroupIdentity;
+import org.ametys.core.right.AccessController.AccessResult;
+import org.ametys.core.right.AccessController.AccessResultContext;
 import org.ametys.core.right.ModifiableProfileAssignmentStorage;
 import org.ametys.core.right.ProfileAssignmentStorage;
 import org.ametys.core.right.ProfileAssignmentStorageExtensionPoint;
@@ -210,6 +213,121 @@ public abstract class AbstractProfileAssignmentStorageTestCase extends AbstractR
         
     }
     
+    /**
+     * Tests the precedence rules of the {@link ProfileAssignmentStorage#getPermissions(UserIdentity, Set, Set, Object)} method:
+     * ANONYMOUS_ALLOWED &gt; USER_DENIED &gt; USER_ALLOWED &gt; GROUP_DENIED &gt; GROUP_ALLOWED &gt; ANY_CONNECTED_DENIED &gt; ANY_CONNECTED_ALLOWED &gt; ANONYMOUS_DENIED
+     */
+    public void testGetPermissions()
+    {
+        Object test1 = _getTest1();
+        
+        String profile1 = "1";
+        String profile2 = "2";
+        Set<String> profiles = Stream.of(profile1, profile2).collect(Collectors.toSet());
+        
+        UserIdentity user1 = new UserIdentity("user1", "foo");
+        UserIdentity user2 = new UserIdentity("user2", "bar");
+        
+        GroupIdentity group1 = new GroupIdentity("group1", "foofoo");
+        GroupIdentity group2 = new GroupIdentity("group2", "barbar");
+        Set<GroupIdentity> userGroups = Stream.of(group1, group2).collect(Collectors.toSet()); // Let's assume for this test that user1 belongs to group1 and group2
+        
+        // test initially empty
+        _assertPermission(AccessResult.UNKNOWN, null, user1, userGroups, profiles, test1, profile1);
+        
+        if (_profileAssignmentStorage instanceof ModifiableProfileAssignmentStorage)
+        {
+            ModifiableProfileAssignmentStorage mProfileAssignmentStorage = (ModifiableProfileAssignmentStorage) _profileAssignmentStorage;
+            
+            mProfileAssignmentStorage.addDeniedProfilesForAnonymous(test1, Collections.singleton(profile1));
+            _assertPermission(AccessResult.ANONYMOUS_DENIED, null, user1, userGroups, profiles, test1, profile1);
+            
+            mProfileAssignmentStorage.addAllowedProfilesForAnyConnectedUser(test1, Collections.singleton(profile1));
+            _assertPermission(AccessResult.ANY_CONNECTED_ALLOWED, null, user1, userGroups, profiles, test1, profile1);
+            
+            mProfileAssignmentStorage.addDeniedProfilesForAnyConnectedUser(test1, Collections.singleton(profile1));
+            _assertPermission(AccessResult.ANY_CONNECTED_DENIED, null, user1, userGroups, profiles, test1, profile1);
+            
+            mProfileAssignmentStorage.addAllowedGroups(Collections.singleton(group1), test1, profile1);
+            _assertPermission(AccessResult.GROUP_ALLOWED, Collections.singleton(group1), user1, userGroups, profiles, test1, profile1);
+            
+            mProfileAssignmentStorage.addDeniedGroups(Collections.singleton(group2), test1, profile1);
+            _assertPermission(AccessResult.GROUP_DENIED, Collections.singleton(group2), user1, userGroups, profiles, test1, profile1);
+            
+            mProfileAssignmentStorage.addAllowedUsers(Collections.singleton(user1), test1, profile1);
+            _assertPermission(AccessResult.USER_ALLOWED, null, user1, userGroups, profiles, test1, profile1);
+            
+            mProfileAssignmentStorage.addDeniedUsers(Collections.singleton(user1), test1, profile1);
+            _assertPermission(AccessResult.USER_DENIED, null, user1, userGroups, profiles, test1, profile1);
+            
+            // A profile both allowed and denied for anonymous is not allowed for anonymous
+            mProfileAssignmentStorage.addAllowedProfilesForAnonymous(test1, Collections.singleton(profile1));
+            _assertPermission(AccessResult.USER_DENIED, null, user1, userGroups, profiles, test1, profile1);
+            
+            mProfileAssignmentStorage.removeDeniedProfilesForAnonymous(test1, Collections.singleton(profile1));
+            _assertPermission(AccessResult.ANONYMOUS_ALLOWED, null, user1, userGroups, profiles, test1, profile1);
+            
+            // The assignments of the user and its groups do not apply to another user
+            mProfileAssignmentStorage.removeAllowedProfilesForAnonymous(test1, Collections.singleton(profile1));
+            _assertPermission(AccessResult.ANY_CONNECTED_DENIED, null, user2, Collections.emptySet(), profiles, test1, profile1);
+            
+            // Nothing was assigned for the other profile
+            _assertPermission(AccessResult.UNKNOWN, null, user1, userGroups, profiles, test1, profile2);
+        }
+    }
+    
+    /**
+     * Tests the {@link ProfileAssignmentStorage#getPermissionsByObject(UserIdentity, Set, Set, java.util.Collection)} method gives the same results
+     * as {@link ProfileAssignmentStorage#getPermissions(UserIdentity, Set, Set, Object)} on each object
+     */
+    public void testGetPermissionsByObject()
+    {
+        Object test1 = _getTest1();
+        Object test2 = _getTest2();
+        
+        String profile1 = "1";
+        String profile2 = "2";
+        Set<String> profiles = Stream.of(profile1, profile2).collect(Collectors.toSet());
+        
+        UserIdentity user1 = new UserIdentity("user1", "foo");
+        GroupIdentity group1 = new GroupIdentity("group1", "foofoo");
+        GroupIdentity group2 = new GroupIdentity("group2", "barbar");
+        Set<GroupIdentity> userGroups = Stream.of(group1, group2).collect(Collectors.toSet());
+        
+        if (_profileAssignmentStorage instanceof ModifiableProfileAssignmentStorage)
+        {
+            ModifiableProfileAssignmentStorage mProfileAssignmentStorage = (ModifiableProfileAssignmentStorage) _profileAssignmentStorage;
+            
+            mProfileAssignmentStorage.addAllowedUsers(Collections.singleton(user1), test1, profile1);
+            mProfileAssignmentStorage.addDeniedGroups(Collections.singleton(group2), test1, profile2);
+            mProfileAssignmentStorage.addAllowedGroups(Collections.singleton(group1), test2, profile1);
+            mProfileAssignmentStorage.addDeniedProfilesForAnyConnectedUser(test2, Collections.singleton(profile2));
+        }
+        
+        Map<Object, Map<String, AccessResultContext>> permissionsByObject = _profileAssignmentStorage.getPermissionsByObject(user1, userGroups, profiles, Arrays.asList(test1, test2));
+        assertEquals(2, permissionsByObject.size());
+        assertEquals(_profileAssignmentStorage.getPermissions(user1, userGroups, profiles, test1), permissionsByObject.get(test1));
+        assertEquals(_profileAssignmentStorage.getPermissions(user1, userGroups, profiles, test2), permissionsByObject.get(test2));
+        
+        if (_profileAssignmentStorage instanceof ModifiableProfileAssignmentStorage)
+        {
+            assertEquals(AccessResult.USER_ALLOWED, permissionsByObject.get(test1).get(profile1).getResult());
+            assertEquals(AccessResult.GROUP_DENIED, permissionsByObject.get(test1).get(profile2).getResult());
+            assertEquals(AccessResult.GROUP_ALLOWED, permissionsByObject.get(test2).get(profile1).getResult());
+            assertEquals(AccessResult.ANY_CONNECTED_DENIED, permissionsByObject.get(test2).get(profile2).getResult());
+        }
+    }
+    
+    private void _assertPermission(AccessResult expectedResult, Set<GroupIdentity> expectedGroups, UserIdentity user, Set<GroupIdentity> userGroups, Set<String> profileIds, Object object, String profileId)
+    {
+        Map<String, AccessResultContext> permissions = _profileAssignmentStorage.getPermissions(user, userGroups, profileIds, object);
+        assertEquals(profileIds, permissions.keySet());
+        
+        AccessResultContext permission = permissions.get(profileId);
+        assertEquals(expectedResult, permission.getResult());
+        assertEquals(expectedGroups, permission.getGroups());
+    }
+    
     /**
      * Tests the allowed profiles for any connected user 
      */
@@ -0,0 +1 @@
+var cacheKeyLabel = "{{i18n plugin.test:TEST}}";
\ No newline at end of file
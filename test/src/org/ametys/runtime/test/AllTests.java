@@ -15,17 +15,22 @@
  */
 package org.ametys.runtime.test;
 
+import org.ametys.runtime.test.administrator.jvmstatus.RequestAdmissionControllerTestCase;
 import org.ametys.runtime.test.administrator.jvmstatus.RequestCountListenerTestCase;
 import org.ametys.runtime.test.administrator.jvmstatus.SessionCountListenerTestCase;
 import org.ametys.runtime.test.cocoon.XHTMLSerializerTestCase;
 import org.ametys.runtime.test.groups.jdbc.AllGroupsTestSuite;
 import org.ametys.runtime.test.groups.ldap.GroupDrivenLdapGroupsTestCase;
 import org.ametys.runtime.test.groups.ldap.UserDrivenLdapGroupsTestCase;
+import org.ametys.runtime.test.log.ExpiringRingBufferTestCase;
 import org.ametys.runtime.test.minimize.MinimizeTransformerTestCase;
 import org.ametys.runtime.test.observers.ObserversTestCase;
 import org.ametys.runtime.test.plugins.PluginsTestCase;
+import org.ametys.runtime.test.request.ConcurrencyLimiterTestCase;
+import org.ametys.runtime.test.request.LatencyHistogramTestCase;
 import org.ametys.runtime.test.resources.CompiledResourceReaderTestCase;
 import org.ametys.runtime.test.rights.AllRightsTestSuite;
+import org.ametys.runtime.test.ui.DispatchGeneratorTestCase;
 import org.ametys.runtime.test.ui.StaticUIItemFactoryTestCase;
 import org.ametys.runtime.test.userpref.AllUserPreferencesTestSuite;
 import org.ametys.runtime.test.users.jdbc.AllJdbcUsersTestSuite;
@@ -67,7 +72,11 @@ public final class AllTests
         suite.addTestSuite(PluginsTestCase.class);
         
         suite.addTestSuite(RequestCountListenerTestCase.class);
+        suite.addTestSuite(RequestAdmissionControllerTestCase.class);
         suite.addTestSuite(SessionCountListenerTestCase.class);
+        suite.addTestSuite(ExpiringRingBufferTestCase.class);
+        suite.addTestSuite(LatencyHistogramTestCase.class);
+        suite.addTestSuite(ConcurrencyLimiterTestCase.class);
         
         suite.addTestSuite(XHTMLSerializerTestCase.class);
         
@@ -86,6 +95,7 @@ public final class AllTests
         suite.addTest(AllUserPreferencesTestSuite.suite());
         
         suite.addTestSuite(StaticUIItemFactoryTestCase.class);
+        suite.addTestSuite(DispatchGeneratorTestCase.class);
 
         suite.addTestSuite(DateConversionTestCase.class);
         suite.addTestSuite(JSONTestCase.class);
@@ -15,9 +15,18 @@
  */
 package org.ametys.runtime.test;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.avalon.framework.context.DefaultContext;
 import org.apache.cocoon.Constants;
@@ -172,4 +181,109 @@ public class ConfigManagerTestCase extends AbstractRuntimeTestCase
             _cocoon.dispose();
         }
     }
+    
+    /**
+     * Test the typed accessors of the config values
+     * @throws Exception if an error occurs
+     */
+    public void testTypedValues() throws Exception
+    {
+        _cocoon = _startApplication("test/environments/runtimes/runtime02.xml", "test/environments/configs/config1.xml", "test/environments/webapp1");
+        try
+        {
+            SQLDataSourceManager.setFilename("test/environments/datasources/datasource-mysql.xml");
+            
+            Map<String, Object> environmentInformation = _cocoon._enterEnvironment();
+    
+            try
+            {
+                Config config = Config.getInstance();
+                
+                // Declared parameters, typed once
+                assertEquals(Long.valueOf(4), config.getValueAsLong("param4"));
+                assertEquals(4, config.getValueAsLong("param4", 7));
+                assertEquals(Boolean.FALSE, config.getValueAsBoolean("runtime.mode.dev"));
+                assertFalse(config.getValueAsBoolean("runtime.mode.dev", true));
+                
+                // Values read with another type than the declared one are cast for each call
+                assertEquals(Double.valueOf(4), config.getValueAsDouble("param4"));
+                assertNull(config.getValueAsLong("param2"));
+                assertEquals(7, config.getValueAsLong("param2", 7));
+                
+                // Parameters not valued
+                assertNull(config.getValueAsString("unknown"));
+                assertNull(config.getValueAsLong("unknown"));
+                assertNull(config.getValueAsDate("unknown"));
+                assertEquals(7, config.getValueAsLong("unknown", 7));
+                assertTrue(config.getValueAsBoolean("unknown", true));
+                assertEquals(7.5, config.getValueAsDouble("unknown", 7.5), 0);
+            }
+            finally
+            {
+                _cocoon._leaveEnvironment(environmentInformation);
+            }
+        }
+        finally
+        {
+            _cocoon.dispose();
+        }
+    }
+    
+    /**
+     * Test the reload of the config file, and the notification of the change listeners
+     * @throws Exception if an error occurs
+     */
+    public void testReload() throws Exception
+    {
+        File configFile = File.createTempFile("config", ".xml");
+        configFile.deleteOnExit();
+        Files.copy(new File("test/environments/configs/config1.xml").toPath(), configFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        
+        _cocoon = _startApplication("test/environments/runtimes/runtime02.xml", configFile.getAbsolutePath(), "test/environments/webapp1");
+        try
+        {
+            SQLDataSourceManager.setFilename("test/environments/datasources/datasource-mysql.xml");
+            
+            Map<String, Object> environmentInformation = _cocoon._enterEnvironment();
+    
+            try
+            {
+                List<Set<String>> changes = Collections.synchronizedList(new ArrayList<>());
+                Config.addChangeListener(changes::add);
+                
+                // Make sure the next call checks the file, so that the following one is throttled
+                Thread.sleep(1100);
+                assertEquals(4, Config.getInstance().getValueAsLong("param4").longValue());
+                
+                String content = new String(Files.readAllBytes(configFile.toPath()), StandardCharsets.UTF_8);
+                content = content.replace("<param4>4</param4>", "<param4>5</param4>").replace("<param2>param2</param2>", "");
+                long lastModified = configFile.lastModified();
+                Files.write(configFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+                configFile.setLastModified(lastModified + 2000);
+                
+                // The file is not checked again before the delay
+                assertEquals(4, Config.getInstance().getValueAsLong("param4").longValue());
+                assertTrue(changes.isEmpty());
+                
+                Thread.sleep(1100);
+                assertEquals(5, Config.getInstance().getValueAsLong("param4").longValue());
+                assertNull(Config.getInstance().getValueAsString("param2"));
+                assertEquals(1, changes.size());
+                assertEquals(new HashSet<>(Arrays.asList("param2", "param4")), changes.get(0));
+                
+                // Nothing changed, no reload
+                Thread.sleep(1100);
+                Config.getInstance();
+                assertEquals(1, changes.size());
+            }
+            finally
+            {
+                _cocoon._leaveEnvironment(environmentInformation);
+            }
+        }
+        finally
+        {
+            _cocoon.dispose();
+        }
+    }
 }
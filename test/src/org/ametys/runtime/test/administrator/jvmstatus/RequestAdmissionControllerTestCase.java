@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2009 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.test.administrator.jvmstatus;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+import junit.framework.TestCase;
+
+import org.ametys.runtime.request.ConcurrencyLimiter;
+import org.ametys.runtime.request.RequestAdmissionController;
+
+/**
+ * Test the classes of requests of the {@link RequestAdmissionController}.
+ */
+public class RequestAdmissionControllerTestCase extends TestCase
+{
+    /**
+     * Create the test case.
+     * @param name the test case name.
+     */
+    public RequestAdmissionControllerTestCase(String name)
+    {
+        super(name);
+    }
+    
+    @Override
+    protected void tearDown() throws Exception
+    {
+        // Back to the default configuration, disabled
+        RequestAdmissionController.configure(_getConfig(Collections.emptyMap()));
+        
+        super.tearDown();
+    }
+    
+    /**
+     * Test the class of the URIs
+     * @throws Exception if an error occurs.
+     */
+    public void testGetLimiter() throws Exception
+    {
+        RequestAdmissionController.configure(_getConfig(Collections.emptyMap()));
+        
+        _assertClass(RequestAdmissionController.ADMIN_CLASS, "_admin");
+        _assertClass(RequestAdmissionController.ADMIN_CLASS, "_admin/");
+        _assertClass(RequestAdmissionController.ADMIN_CLASS, "_admin/index.html");
+        _assertClass(RequestAdmissionController.ADMIN_CLASS, "_admin/plugins/core/resources/js/Ametys.js");
+        
+        _assertClass(RequestAdmissionController.RESOURCES_CLASS, "plugins/core/resources/js/Ametys.js");
+        _assertClass(RequestAdmissionController.RESOURCES_CLASS, "_plugins/core/resources/img/logo.png");
+        _assertClass(RequestAdmissionController.RESOURCES_CLASS, "site/plugins/web/resources/css/main.css");
+        _assertClass(RequestAdmissionController.RESOURCES_CLASS, "site/fr/_plugins/web/resources/css/main.css");
+        
+        _assertClass(RequestAdmissionController.DEFAULT_CLASS, "");
+        _assertClass(RequestAdmissionController.DEFAULT_CLASS, "index.html");
+        _assertClass(RequestAdmissionController.DEFAULT_CLASS, "_administrator/index.html");
+        _assertClass(RequestAdmissionController.DEFAULT_CLASS, "site/_admin/index.html");
+        _assertClass(RequestAdmissionController.DEFAULT_CLASS, "plugins/core/service/list.xml");
+        _assertClass(RequestAdmissionController.DEFAULT_CLASS, "plugins/core/resources");
+        _assertClass(RequestAdmissionController.DEFAULT_CLASS, "myplugins/core/resources/js/Ametys.js");
+        _assertClass(RequestAdmissionController.DEFAULT_CLASS, "plugins/resources/js/Ametys.js");
+    }
+    
+    /**
+     * Test the configuration from the servlet init parameters
+     * @throws Exception if an error occurs.
+     */
+    public void testConfigure() throws Exception
+    {
+        RequestAdmissionController.configure(_getConfig(Collections.emptyMap()));
+        assertFalse(RequestAdmissionController.isEnabled());
+        assertEquals(1000, RequestAdmissionController.getQueueTimeout());
+        assertEquals(5, RequestAdmissionController.getRetryAfter());
+        assertEquals(3, RequestAdmissionController.getLimiters().size());
+        assertEquals(20, RequestAdmissionController.getLimiter("_admin").getLimit());
+        
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("admission-control", "true");
+        parameters.put("admission-control.queue-timeout", "500");
+        parameters.put("admission-control.retry-after", "10");
+        parameters.put("admission-control.admin.max", "3");
+        parameters.put("admission-control.default.max", "wrong");
+        RequestAdmissionController.configure(_getConfig(parameters));
+        
+        assertTrue(RequestAdmissionController.isEnabled());
+        assertEquals(500, RequestAdmissionController.getQueueTimeout());
+        assertEquals(10, RequestAdmissionController.getRetryAfter());
+        assertEquals(3, RequestAdmissionController.getLimiter("_admin").getLimit());
+        
+        // Wrong values fall back to the defaults
+        assertEquals(100, RequestAdmissionController.getLimiter("index.html").getLimit());
+    }
+    
+    private void _assertClass(String expectedClass, String uri)
+    {
+        ConcurrencyLimiter limiter = RequestAdmissionController.getLimiter(uri);
+        assertNotNull("No limiter for '" + uri + "'", limiter);
+        assertEquals("Wrong class for '" + uri + "'", expectedClass, limiter.getName());
+    }
+    
+    private ServletConfig _getConfig(Map<String, String> parameters)
+    {
+        return new ServletConfig()
+        {
+            @Override
+            public String getServletName()
+            {
+                return "test";
+            }
+            
+            @Override
+            public ServletContext getServletContext()
+            {
+                return null;
+            }
+            
+            @Override
+            public String getInitParameter(String name)
+            {
+                return parameters.get(name);
+            }
+            
+            @Override
+            public Enumeration<String> getInitParameterNames()
+            {
+                return Collections.enumeration(parameters.keySet());
+            }
+        };
+    }
+}
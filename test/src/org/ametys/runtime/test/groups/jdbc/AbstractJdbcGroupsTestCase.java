@@ -23,7 +23,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -315,6 +317,39 @@ public abstract class AbstractJdbcGroupsTestCase extends AbstractJDBCTestCase
         assertNotSame(group1.getIdentity().getId(), group2.getIdentity().getId());
     }
     
+    /**
+     * Test the search pattern matches the wildcards of the LIKE operator literally
+     * @throws Exception if an error occurs
+     */
+    public void testSearchPattern() throws Exception
+    {
+        ModifiableGroupDirectory groupDirectory = (ModifiableGroupDirectory) _groupDirectory;
+        
+        groupDirectory.add("100% group");
+        groupDirectory.add("1000 group");
+        groupDirectory.add("my_group");
+        groupDirectory.add("my-group");
+        groupDirectory.add("group!");
+        
+        assertEquals(Collections.singleton("100% group"), _getLabels("0%"));
+        assertEquals(Collections.singleton("my_group"), _getLabels("y_g"));
+        assertEquals(Collections.singleton("group!"), _getLabels("p!"));
+        assertEquals(new HashSet<>(Arrays.asList("my-group", "my_group")), _getLabels("my"));
+    }
+    
+    private Set<String> _getLabels(String pattern)
+    {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("pattern", pattern);
+        
+        Set<String> labels = new HashSet<>();
+        for (Map<String, Object> group : _groupDirectory.groups2JSONPage(10, null, parameters).getResults())
+        {
+            labels.add((String) group.get("label"));
+        }
+        return labels;
+    }
+    
     /**
      * Test the update of a user incorrectly
      * @throws Exception if an error occurs
@@ -0,0 +1,245 @@
+/*
+ *  Copyright 2009 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.test.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.ametys.runtime.log.ExpiringRingBuffer;
+
+/**
+ * Test {@link ExpiringRingBuffer}
+ */
+public class ExpiringRingBufferTestCase extends TestCase
+{
+    private static final long __ONE_HOUR = 60 * 60 * 1000;
+    
+    /**
+     * Create the test case.
+     * @param name the test case name.
+     */
+    public ExpiringRingBufferTestCase(String name)
+    {
+        super(name);
+    }
+    
+    /**
+     * Test the capacity is rounded to a power of two
+     */
+    public void testCapacity()
+    {
+        assertEquals(8, _createBuffer(5, __ONE_HOUR, Long.MAX_VALUE).getCapacity());
+        assertEquals(8, _createBuffer(8, __ONE_HOUR, Long.MAX_VALUE).getCapacity());
+        assertEquals(2, _createBuffer(1, __ONE_HOUR, Long.MAX_VALUE).getCapacity());
+    }
+    
+    /**
+     * Test the oldest objects are overwritten when the buffer is full
+     */
+    public void testWraparound()
+    {
+        ExpiringRingBuffer<Item> buffer = _createBuffer(4, __ONE_HOUR, Long.MAX_VALUE);
+        long now = System.currentTimeMillis();
+        
+        for (int i = 0; i < 10; i++)
+        {
+            buffer.put(new Item(i, now + i, 10));
+        }
+        
+        assertEquals(_ids(6, 7, 8, 9), _ids(buffer.getRange(0, Long.MAX_VALUE)));
+        assertEquals(40, buffer.getSize());
+        
+        // The range is computed on the time of the objects
+        assertEquals(_ids(7, 8), _ids(buffer.getRange(now + 7, now + 9)));
+        assertEquals(_ids(), _ids(buffer.getRange(now, now + 6)));
+        assertEquals(_ids(), _ids(buffer.getRange(now + 10, Long.MAX_VALUE)));
+        
+        buffer.clear();
+        assertEquals(_ids(), _ids(buffer.getRange(0, Long.MAX_VALUE)));
+        assertEquals(0, buffer.getSize());
+    }
+    
+    /**
+     * Test the oldest objects are evicted when the maximum size is exceeded
+     */
+    public void testMaxSize()
+    {
+        ExpiringRingBuffer<Item> buffer = _createBuffer(16, __ONE_HOUR, 30);
+        long now = System.currentTimeMillis();
+        
+        for (int i = 0; i < 5; i++)
+        {
+            buffer.put(new Item(i, now, 10));
+        }
+        assertEquals(_ids(2, 3, 4), _ids(buffer.getRange(0, Long.MAX_VALUE)));
+        assertEquals(30, buffer.getSize());
+        
+        // A big object evicts several small ones
+        buffer.put(new Item(5, now, 25));
+        assertEquals(_ids(5), _ids(buffer.getRange(0, Long.MAX_VALUE)));
+        assertEquals(25, buffer.getSize());
+    }
+    
+    /**
+     * Test the objects older than the time to live are dropped
+     */
+    public void testExpiry()
+    {
+        ExpiringRingBuffer<Item> buffer = _createBuffer(16, 1000, Long.MAX_VALUE);
+        long now = System.currentTimeMillis();
+        
+        buffer.put(new Item(0, now - 5000, 10));
+        buffer.put(new Item(1, now - 3000, 10));
+        buffer.put(new Item(2, now, 10));
+        buffer.put(new Item(3, now + 1, 10));
+        
+        assertEquals(_ids(2, 3), _ids(buffer.getRange(0, Long.MAX_VALUE)));
+        
+        // The expired objects were released
+        assertEquals(20, buffer.getSize());
+    }
+    
+    /**
+     * Test the objects put slightly out of order by concurrent writers are found
+     */
+    public void testDisorder()
+    {
+        ExpiringRingBuffer<Item> buffer = _createBuffer(16, __ONE_HOUR, Long.MAX_VALUE);
+        long now = System.currentTimeMillis();
+        
+        buffer.put(new Item(0, now, 10));
+        buffer.put(new Item(1, now + 20, 10));
+        buffer.put(new Item(2, now + 10, 10));
+        buffer.put(new Item(3, now + 30, 10));
+        
+        assertEquals(_ids(1, 2, 3), _ids(buffer.getRange(now + 10, Long.MAX_VALUE)));
+        assertEquals(_ids(2), _ids(buffer.getRange(now + 5, now + 15)));
+    }
+    
+    /**
+     * Test concurrent writes and reads
+     * @throws Exception if an error occurs
+     */
+    public void testConcurrentPutAndGetRange() throws Exception
+    {
+        final int writerCount = 4;
+        final int putCount = 20000;
+        final ExpiringRingBuffer<Item> buffer = _createBuffer(256, __ONE_HOUR, Long.MAX_VALUE);
+        final long start = System.currentTimeMillis();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < writerCount; i++)
+        {
+            final int writer = i;
+            writers.add(new Thread(() ->
+            {
+                for (int j = 0; j < putCount; j++)
+                {
+                    buffer.put(new Item(writer * putCount + j, System.currentTimeMillis(), 10));
+                }
+            }));
+        }
+        
+        Thread reader = new Thread(() ->
+        {
+            try
+            {
+                while (writing.get())
+                {
+                    long from = System.currentTimeMillis() - 5;
+                    List<Item> items = buffer.getRange(from, Long.MAX_VALUE);
+                    
+                    assertTrue(items.size() <= buffer.getCapacity());
+                    for (Item item : items)
+                    {
+                        assertNotNull(item);
+                        assertTrue(item._time >= from);
+                    }
+                }
+            }
+            catch (Throwable e)
+            {
+                error.set(e);
+            }
+        });
+        
+        reader.start();
+        for (Thread writer : writers)
+        {
+            writer.start();
+        }
+        for (Thread writer : writers)
+        {
+            writer.join();
+        }
+        writing.set(false);
+        reader.join();
+        
+        if (error.get() != null)
+        {
+            throw new AssertionError("Error while reading the buffer", error.get());
+        }
+        
+        List<Item> items = buffer.getRange(start, Long.MAX_VALUE);
+        assertEquals(buffer.getCapacity(), items.size());
+        assertEquals(buffer.getCapacity() * 10L, buffer.getSize());
+    }
+    
+    private ExpiringRingBuffer<Item> _createBuffer(int capacity, long timeToLive, long maxSize)
+    {
+        return new ExpiringRingBuffer<>(capacity, timeToLive, maxSize, item -> item._time, item -> item._size);
+    }
+    
+    private List<Integer> _ids(List<Item> items)
+    {
+        List<Integer> ids = new ArrayList<>();
+        for (Item item : items)
+        {
+            ids.add(item._id);
+        }
+        return ids;
+    }
+    
+    private List<Integer> _ids(Integer... ids)
+    {
+        List<Integer> list = new ArrayList<>();
+        for (Integer id : ids)
+        {
+            list.add(id);
+        }
+        return list;
+    }
+    
+    private static final class Item
+    {
+        final int _id;
+        final long _time;
+        final int _size;
+        
+        Item(int id, long time, int size)
+        {
+            _id = id;
+            _time = time;
+            _size = size;
+        }
+    }
+}
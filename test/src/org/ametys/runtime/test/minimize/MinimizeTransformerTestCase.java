@@ -182,6 +182,78 @@ public class MinimizeTransformerTestCase extends AbstractRuntimeTestCase
         }
     }
 
+    /**
+     * Test that the hash of the minimized resources changes with the locale and with the imports of the compiled files,
+     * even if the modification date of the imported file is unknown
+     * @throws Exception If an error occurs
+     */
+    public void testMinimizeTransformerCacheKey() throws Exception
+    {
+        CocoonWrapper cocoon = _startApplication("test/environments/runtimes/runtime01.xml", "test/environments/configs/config1.xml", "test/environments/webapp2");
+
+        Map<String, Object> environmentInformation = _cocoon._enterEnvironment();
+        
+        _resolver = (SourceResolver) Init.getPluginServiceManager().lookup(SourceResolver.ROLE);
+        _assertLocaleCacheKey("cache-key-js-test.html");
+        _assertImportCacheKey("cache-key-css-test.html", "cache-key.scss", "cache-key-imported.scss");
+        
+        _cocoon._leaveEnvironment(environmentInformation);
+        cocoon.dispose();
+    }
+    
+    private void _assertLocaleCacheKey(String htmlFile) throws Exception
+    {
+        String hashEn = _getHashFromSourceFile(htmlFile + "?locale=en");
+        String hashFr = _getHashFromSourceFile(htmlFile + "?locale=fr");
+        assertFalse("Hash must change with the locale of the translated files", hashEn.equals(hashFr));
+        assertEquals("Hash must not change when there is no modifications", hashEn, _getHashFromSourceFile(htmlFile + "?locale=en"));
+        
+        // The minimized files are shared by the bundles: the translation of the first bundle must not be used by the second one
+        String contentEn = _getMinimized(hashEn + ".js?locale=en");
+        String contentFr = _getMinimized(hashFr + ".js?locale=fr");
+        assertTrue("The minimized resource is not translated: " + contentEn, contentEn.contains("\"english\""));
+        assertTrue("The minimized resource is not translated: " + contentFr, contentFr.contains("\"fran\u00e7ais\""));
+    }
+    
+    private void _assertImportCacheKey(String htmlFile, String fileToCreate, String importToModify) throws Exception
+    {
+        File file = new File("test/environments/webapp2/plugins/test/resources/css/minimize/" + fileToCreate);
+        File importedFile = new File("test/environments/webapp2/plugins/test/resources/css/minimize/" + importToModify);
+        try
+        {
+            Files.write(file.toPath(), Arrays.asList("@import 'plugin:test://resources/css/minimize/" + importToModify + "';", "", "div.key { color: #000001; }"), Charset.forName("UTF-8"));
+            Files.write(importedFile.toPath(), Arrays.asList("div.imported { color: #000002; }"), Charset.forName("UTF-8"));
+            
+            String hash = _getHashFromSourceFile(htmlFile);
+            assertTrue("The imported file is not minimized", _getMinimized(hash + ".css").contains("#000002"));
+            
+            // Only the imported file is modified: the compiled file keeps its modification date
+            long lastModified = file.lastModified();
+            Files.write(importedFile.toPath(), Arrays.asList("div.imported { color: #000003; }"), Charset.forName("UTF-8"), StandardOpenOption.TRUNCATE_EXISTING);
+            importedFile.setLastModified(importedFile.lastModified() + 10000);
+            assertEquals("The compiled file was modified", lastModified, file.lastModified());
+            
+            String hashModified = _getHashFromSourceFile(htmlFile);
+            assertFalse("Hash must change when an imported file is modified", hash.equals(hashModified));
+            
+            String content = _getMinimized(hashModified + ".css");
+            assertTrue("The modified imported file is not minimized: " + content, content.contains("#000003"));
+            
+            assertEquals("Hash must not change when there is no modifications", hashModified, _getHashFromSourceFile(htmlFile));
+        }
+        finally
+        {
+            file.delete();
+            importedFile.delete();
+        }
+    }
+    
+    private String _getMinimized(String hashedFile) throws MalformedURLException, IOException, SourceNotFoundException
+    {
+        Source source = _resolver.resolveURI("cocoon://_plugins/test/resources-minimized/" + hashedFile);
+        return IOUtils.toString(source.getInputStream(), "UTF-8");
+    }
+
     private void _assertMinimizedEquals(String hashedFile, String expected) throws MalformedURLException, IOException, SourceNotFoundException
     {
         Source source = _resolver.resolveURI("cocoon://_plugins/test/resources-minimized/" + hashedFile);
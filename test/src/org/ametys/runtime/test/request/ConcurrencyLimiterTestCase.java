@@ -0,0 +1,206 @@
+/*
+ *  Copyright 2009 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.test.request;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.ametys.runtime.request.ConcurrencyLimiter;
+
+/**
+ * Test {@link ConcurrencyLimiter}
+ */
+public class ConcurrencyLimiterTestCase extends TestCase
+{
+    /** The latency threshold of the tested limiters */
+    private static final long __THRESHOLD = 100;
+    
+    /**
+     * Create the test case.
+     * @param name the test case name.
+     */
+    public ConcurrencyLimiterTestCase(String name)
+    {
+        super(name);
+    }
+    
+    /**
+     * Test the admission of the requests under the limit, and the rejection of the next ones without waiting
+     * @throws Exception if an error occurs.
+     */
+    public void testAdmit() throws Exception
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 2, __THRESHOLD, 10);
+        
+        assertTrue(limiter.acquire(0));
+        assertTrue(limiter.acquire(0));
+        assertFalse(limiter.acquire(0));
+        
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(2, limiter.getAdmitted());
+        assertEquals(0, limiter.getQueued());
+        assertEquals(1, limiter.getRejected());
+        
+        limiter.release(10);
+        assertEquals(1, limiter.getInFlight());
+        assertTrue(limiter.acquire(0));
+    }
+    
+    /**
+     * Test that a waiting request is admitted when a slot is released
+     * @throws Exception if an error occurs.
+     */
+    public void testQueue() throws Exception
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, __THRESHOLD, 10);
+        assertTrue(limiter.acquire(0));
+        
+        AtomicBoolean admitted = new AtomicBoolean();
+        Thread thread = new Thread(() -> admitted.set(limiter.acquire(10000)));
+        thread.start();
+        _waitForQueued(limiter, 1);
+        
+        limiter.release(10);
+        thread.join(5000);
+        
+        assertTrue(admitted.get());
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(2, limiter.getAdmitted());
+        assertEquals(1, limiter.getQueued());
+        assertEquals(0, limiter.getRejected());
+    }
+    
+    /**
+     * Test that a waiting request is rejected when no slot is released in time
+     * @throws Exception if an error occurs.
+     */
+    public void testTimeout() throws Exception
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, __THRESHOLD, 10);
+        assertTrue(limiter.acquire(0));
+        
+        long start = System.currentTimeMillis();
+        assertFalse(limiter.acquire(200));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(1, limiter.getQueued());
+        assertEquals(1, limiter.getRejected());
+    }
+    
+    /**
+     * Test that the requests are rejected immediately when too many requests are waiting
+     * @throws Exception if an error occurs.
+     */
+    public void testReject() throws Exception
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, __THRESHOLD, 1);
+        assertTrue(limiter.acquire(0));
+        
+        AtomicBoolean admitted = new AtomicBoolean();
+        Thread thread = new Thread(() -> admitted.set(limiter.acquire(10000)));
+        thread.start();
+        _waitForQueued(limiter, 1);
+        
+        long start = System.currentTimeMillis();
+        assertFalse(limiter.acquire(10000));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, limiter.getQueued());
+        assertEquals(1, limiter.getRejected());
+        
+        limiter.release(10);
+        thread.join(5000);
+        assertTrue(admitted.get());
+    }
+    
+    /**
+     * Test the decrease of the limit when the requests are slow, down to the minimum
+     * @throws Exception if an error occurs.
+     */
+    public void testDecrease() throws Exception
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 2, 10, __THRESHOLD, 10);
+        
+        // Not enough slow requests yet
+        _process(limiter, 19, __THRESHOLD * 5);
+        assertEquals(10, limiter.getLimit());
+        
+        _process(limiter, 1, __THRESHOLD * 5);
+        assertEquals(9, limiter.getLimit());
+        
+        // The requests running during the decrease do not decrease the limit again
+        _process(limiter, 5, __THRESHOLD * 5);
+        assertEquals(9, limiter.getLimit());
+        
+        int limit = limiter.getLimit();
+        while (limit > 2)
+        {
+            Thread.sleep(__THRESHOLD + 50);
+            _process(limiter, 1, __THRESHOLD * 5);
+            
+            assertTrue(limiter.getLimit() < limit);
+            limit = limiter.getLimit();
+        }
+        
+        Thread.sleep(__THRESHOLD + 50);
+        _process(limiter, 1, __THRESHOLD * 5);
+        assertEquals(2, limiter.getLimit());
+    }
+    
+    /**
+     * Test the increase of the limit when the requests are fast again, up to the maximum
+     * @throws Exception if an error occurs.
+     */
+    public void testIncrease() throws Exception
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 10, __THRESHOLD, 10);
+        _process(limiter, 20, __THRESHOLD * 5);
+        assertEquals(9, limiter.getLimit());
+        
+        // A slow request which does not decrease the limit does not prevent it from growing
+        _process(limiter, 5, 10);
+        _process(limiter, 1, __THRESHOLD * 5);
+        assertEquals(9, limiter.getLimit());
+        _process(limiter, 4, 10);
+        assertEquals(10, limiter.getLimit());
+        
+        _process(limiter, 50, 10);
+        assertEquals(10, limiter.getLimit());
+    }
+    
+    private void _process(ConcurrencyLimiter limiter, int count, long time)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            assertTrue(limiter.acquire(0));
+            limiter.release(time);
+        }
+    }
+    
+    private void _waitForQueued(ConcurrencyLimiter limiter, int queued) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (limiter.getQueued() < queued)
+        {
+            if (System.currentTimeMillis() > deadline)
+            {
+                fail("The request did not wait for a slot");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
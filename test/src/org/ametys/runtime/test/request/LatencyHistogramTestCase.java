@@ -0,0 +1,249 @@
+/*
+ *  Copyright 2009 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.test.request;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.ametys.runtime.request.LatencyHistogram;
+
+/**
+ * Test {@link LatencyHistogram}
+ */
+public class LatencyHistogramTestCase extends TestCase
+{
+    /** The highest duration of the last bucket */
+    private static final long __LAST_BUCKET_VALUE = (1L << 24) - 1;
+    
+    /**
+     * Create the test case.
+     * @param name the test case name.
+     */
+    public LatencyHistogramTestCase(String name)
+    {
+        super(name);
+    }
+    
+    /**
+     * Test that the shortest durations are recorded exactly
+     * @throws Exception if an error occurs.
+     */
+    public void testSmallValues() throws Exception
+    {
+        for (long value = 0; value < 8; value++)
+        {
+            int bucket = _getBucket(value);
+            assertEquals(value, bucket);
+            assertEquals(value, _getHighestValue(bucket));
+        }
+        
+        // Negative durations are recorded as 0
+        assertEquals(0, _getBucket(-5));
+    }
+    
+    /**
+     * Test that the buckets are ordered, and that the relative error is bounded
+     * @throws Exception if an error occurs.
+     */
+    public void testBuckets() throws Exception
+    {
+        List<Long> values = new ArrayList<>();
+        for (long value = 0; value < __LAST_BUCKET_VALUE; value += Math.max(1, value / 64))
+        {
+            values.add(value);
+        }
+        for (int exponent = 3; exponent < 24; exponent++)
+        {
+            values.add((1L << exponent) - 1);
+            values.add(1L << exponent);
+            values.add((1L << exponent) + 1);
+        }
+        values.sort(null);
+        
+        int previousBucket = 0;
+        for (long value : values)
+        {
+            int bucket = _getBucket(value);
+            long highestValue = _getHighestValue(bucket);
+            
+            assertTrue("Buckets are not ordered at " + value, bucket >= previousBucket);
+            assertTrue("Value " + value + " above its bucket " + highestValue, highestValue >= value);
+            assertTrue("Value " + value + " too far from its bucket " + highestValue, highestValue - value <= value / 8);
+            if (bucket > 0)
+            {
+                assertTrue("Value " + value + " in the previous bucket", _getHighestValue(bucket - 1) < value);
+            }
+            
+            previousBucket = bucket;
+        }
+        
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, _getBucket(__LAST_BUCKET_VALUE));
+    }
+    
+    /**
+     * Test the durations longer than the last bucket
+     * @throws Exception if an error occurs.
+     */
+    public void testOverflow() throws Exception
+    {
+        assertEquals(__LAST_BUCKET_VALUE, _getHighestValue(LatencyHistogram.BUCKET_COUNT - 1));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, _getBucket(1L << 24));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, _getBucket(1L << 40));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, _getBucket(Long.MAX_VALUE));
+        
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(1L << 30);
+        
+        assertEquals(1L << 30, histogram.getMaxTime());
+        assertEquals(10, histogram.getPercentile(50));
+        
+        // The actual maximum is known, but not from the counts only
+        assertEquals(1L << 30, histogram.getPercentile(100));
+        assertEquals(__LAST_BUCKET_VALUE, LatencyHistogram.getPercentile(histogram.getBucketCounts(), 100));
+    }
+    
+    /**
+     * Test the percentiles and the statistics of the recorded durations
+     * @throws Exception if an error occurs.
+     */
+    public void testPercentiles() throws Exception
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getAverageTime());
+        
+        for (long value = 1; value <= 100; value++)
+        {
+            histogram.record(value);
+        }
+        
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getTotalTime());
+        assertEquals(50, histogram.getAverageTime());
+        assertEquals(100, histogram.getMaxTime());
+        
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(_getHighestValue(_getBucket(50)), histogram.getPercentile(50));
+        assertEquals(_getHighestValue(_getBucket(95)), histogram.getPercentile(95));
+        
+        // Never above the actual maximum
+        assertEquals(100, histogram.getPercentile(100));
+    }
+    
+    /**
+     * Test the percentiles over a period, computed from the difference of the bucket counts
+     * @throws Exception if an error occurs.
+     */
+    public void testPercentilesOnDeltas() throws Exception
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 1000; i++)
+        {
+            histogram.record(1000);
+        }
+        
+        long[] before = histogram.getBucketCounts();
+        
+        for (int i = 0; i < 100; i++)
+        {
+            histogram.record(10);
+        }
+        
+        long[] after = histogram.getBucketCounts();
+        long[] deltas = new long[after.length];
+        for (int i = 0; i < after.length; i++)
+        {
+            deltas[i] = after[i] - before[i];
+        }
+        
+        // Only the durations of the period are taken into account
+        assertEquals(10, LatencyHistogram.getPercentile(deltas, 50));
+        assertEquals(10, LatencyHistogram.getPercentile(deltas, 99));
+        assertEquals(1000, histogram.getPercentile(50));
+        
+        // No request during the period
+        assertEquals(0, LatencyHistogram.getPercentile(new long[LatencyHistogram.BUCKET_COUNT], 50));
+    }
+    
+    /**
+     * Test the recording from several threads
+     * @throws Exception if an error occurs.
+     */
+    public void testConcurrentRecord() throws Exception
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+        {
+            long value = i * 100;
+            threads.add(new Thread(() ->
+            {
+                for (int j = 0; j < 10000; j++)
+                {
+                    histogram.record(value);
+                }
+            }));
+        }
+        
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        
+        long total = 0;
+        for (long count : histogram.getBucketCounts())
+        {
+            total += count;
+        }
+        
+        assertEquals(80000, histogram.getCount());
+        assertEquals(80000, total);
+        assertEquals(10000L * (0 + 100 + 200 + 300 + 400 + 500 + 600 + 700), histogram.getTotalTime());
+        assertEquals(700, histogram.getMaxTime());
+    }
+    
+    private int _getBucket(long value)
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(value);
+        
+        long[] counts = histogram.getBucketCounts();
+        for (int i = 0; i < counts.length; i++)
+        {
+            if (counts[i] > 0)
+            {
+                return i;
+            }
+        }
+        
+        throw new IllegalStateException("The value " + value + " was not recorded");
+    }
+    
+    private long _getHighestValue(int bucket)
+    {
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        counts[bucket] = 1;
+        return LatencyHistogram.getPercentile(counts, 100);
+    }
+}
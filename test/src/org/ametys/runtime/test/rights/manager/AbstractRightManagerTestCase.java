@@ -20,6 +20,7 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,12 +31,16 @@ import org.apache.cocoon.environment.ObjectModelHelper;
 import org.apache.cocoon.environment.Request;
 import org.apache.commons.io.IOUtils;
 
+import org.ametys.core.ObservationConstants;
 import org.ametys.core.group.Group;
 import org.ametys.core.group.GroupDirectoryDAO;
 import org.ametys.core.group.directory.GroupDirectory;
+import org.ametys.core.observation.Event;
+import org.ametys.core.observation.ObservationManager;
 import org.ametys.core.right.Profile;
 import org.ametys.core.right.ProfileAssignmentStorageExtensionPoint;
 import org.ametys.core.right.RightManager;
+import org.ametys.core.right.RightManager.RightResult;
 import org.ametys.core.right.RightProfilesDAO;
 import org.ametys.core.user.UserIdentity;
 import org.ametys.runtime.test.AbstractJDBCTestCase;
@@ -49,6 +54,7 @@ public abstract class AbstractRightManagerTestCase extends AbstractJDBCTestCase
     private RightManager _rightManager;
     private ProfileAssignmentStorageExtensionPoint _profileAssignmentStorageEP;
     private RightProfilesDAO _profilesDAO;
+    private ObservationManager _observationManager;
     
     /**
      * Provide the scripts to run to populate the database.
@@ -90,6 +96,7 @@ public abstract class AbstractRightManagerTestCase extends AbstractJDBCTestCase
         _rightManager = (RightManager) Init.getPluginServiceManager().lookup(RightManager.ROLE);
         _profileAssignmentStorageEP = (ProfileAssignmentStorageExtensionPoint) Init.getPluginServiceManager().lookup(ProfileAssignmentStorageExtensionPoint.ROLE);
         _profilesDAO = (RightProfilesDAO) Init.getPluginServiceManager().lookup(RightProfilesDAO.ROLE);
+        _observationManager = (ObservationManager) Init.getPluginServiceManager().lookup(ObservationManager.ROLE);
     }
     
     @Override
@@ -310,6 +317,64 @@ public abstract class AbstractRightManagerTestCase extends AbstractJDBCTestCase
         assertEquals(0, rights.size());
     }
     
+    /**
+     * Test that the cached right results on a context are invalidated when the assignments of its parent context are modified
+     * @throws Exception if an error occurs
+     */
+    public void testParentContextModification() throws Exception
+    {
+        _setDatabase(Arrays.asList(getPopulateScripts()));
+        
+        UserIdentity test = new UserIdentity("test", "population");
+        
+        for (Profile profile : _profilesDAO.getProfiles())
+        {
+            if (!RightManager.READER_PROFILE_ID.equals(profile.getId()))
+            {
+                _profilesDAO.deleteProfile(profile);
+            }
+        }
+        
+        Profile profile = _profilesDAO.addProfile("MyProfil");
+        _profilesDAO.addRight(profile, "right1");
+        
+        // Nothing on the parent
+        assertEquals(RightResult.RIGHT_UNKNOWN, _rightManager.hasRight(test, "right1", "/test/child"));
+        assertEquals(RightResult.RIGHT_UNKNOWN, _rightManager.hasRights(test, "right1", Arrays.asList("/test/child/grandchild")).get("/test/child/grandchild"));
+        
+        // Allowed on the parent: the results on the descendants are computed again
+        _profileAssignmentStorageEP.allowProfileToUser(test, profile.getId(), "/test");
+        _notifyAclUpdated("/test");
+        assertEquals(RightResult.RIGHT_ALLOW, _rightManager.hasRight(test, "right1", "/test/child"));
+        assertEquals(RightResult.RIGHT_ALLOW, _rightManager.hasRights(test, "right1", Arrays.asList("/test/child/grandchild")).get("/test/child/grandchild"));
+        
+        // Revoked on the parent
+        _profileAssignmentStorageEP.removeAllowedProfileFromUser(test, profile.getId(), "/test");
+        _notifyAclUpdated("/test");
+        assertEquals(RightResult.RIGHT_UNKNOWN, _rightManager.hasRight(test, "right1", "/test/child"));
+        assertEquals(RightResult.RIGHT_UNKNOWN, _rightManager.hasRights(test, "right1", Arrays.asList("/test/child/grandchild")).get("/test/child/grandchild"));
+        
+        // Denied on the parent
+        _profileAssignmentStorageEP.allowProfileToUser(test, profile.getId(), "/test");
+        _notifyAclUpdated("/test");
+        assertEquals(RightResult.RIGHT_ALLOW, _rightManager.hasRight(test, "right1", "/test/child"));
+        _profileAssignmentStorageEP.removeAllowedProfileFromUser(test, profile.getId(), "/test");
+        _profileAssignmentStorageEP.denyProfileToUser(test, profile.getId(), "/test");
+        _notifyAclUpdated("/test");
+        assertEquals(RightResult.RIGHT_DENY, _rightManager.hasRight(test, "right1", "/test/child"));
+        
+        _profileAssignmentStorageEP.removeDeniedProfileFromUser(test, profile.getId(), "/test");
+        _notifyAclUpdated("/test");
+        assertEquals(RightResult.RIGHT_UNKNOWN, _rightManager.hasRight(test, "right1", "/test/child"));
+    }
+    
+    private void _notifyAclUpdated(Object context)
+    {
+        Map<String, Object> eventParams = new HashMap<>();
+        eventParams.put(ObservationConstants.ARGS_ACL_CONTEXT, context);
+        _observationManager.notify(new Event(ObservationConstants.EVENT_ACL_UPDATED, null, eventParams));
+    }
+    
     private GroupDirectory _createGroupDirectory() throws Exception
     {
         GroupDirectoryDAO groupDirectoryDAO = (GroupDirectoryDAO) Init.getPluginServiceManager().lookup(GroupDirectoryDAO.ROLE);
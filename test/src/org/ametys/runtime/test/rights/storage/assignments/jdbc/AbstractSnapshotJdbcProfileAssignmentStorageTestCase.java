@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2016 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.test.rights.storage.assignments.jdbc;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.ametys.core.right.ModifiableProfileAssignmentStorage;
+import org.ametys.core.right.Profile;
+import org.ametys.core.right.ProfileAssignmentStorageExtensionPoint;
+import org.ametys.core.right.RightManager;
+import org.ametys.core.right.RightManager.RightResult;
+import org.ametys.core.right.RightProfilesDAO;
+import org.ametys.core.user.UserIdentity;
+import org.ametys.plugins.core.impl.right.SnapshotJdbcProfileAssignmentStorage;
+import org.ametys.runtime.test.Init;
+
+/**
+ * Common test class for testing the {@link SnapshotJdbcProfileAssignmentStorage} 
+ */
+public abstract class AbstractSnapshotJdbcProfileAssignmentStorageTestCase extends AbstractJdbcProfileAssignmentStorageTestCase
+{
+    @Override
+    protected String _getExtensionId()
+    {
+        return "profile.assignment.test.SnapshotJdbcProfileAssignmentStorage";
+    }
+    
+    @Override
+    public void testSupport()
+    {
+        assertFalse(_profileAssignmentStorage.isSupported(""));
+        assertFalse(_profileAssignmentStorage.isSupported("/test"));
+        assertTrue(_profileAssignmentStorage.isSupported("/snapshot"));
+        assertFalse(_profileAssignmentStorage.isSupported(new Object()));
+    }
+    
+    /**
+     * Tests the modifications made in database by other means are seen after the refresh interval
+     * @throws Exception if an error occurs
+     */
+    public void testRefresh() throws Exception
+    {
+        ProfileAssignmentStorageExtensionPoint profileAssignmentStorageEP = (ProfileAssignmentStorageExtensionPoint) Init.getPluginServiceManager().lookup(ProfileAssignmentStorageExtensionPoint.ROLE);
+        
+        // Another storage on the same tables, as another node of a cluster would do
+        ModifiableProfileAssignmentStorage otherStorage = (ModifiableProfileAssignmentStorage) profileAssignmentStorageEP.getExtension("profile.assignment.test.JdbcProfileAssignmentStorage1");
+        
+        UserIdentity user = new UserIdentity("user1", "foo");
+        Set<UserIdentity> users = Collections.singleton(user);
+        
+        ((SnapshotJdbcProfileAssignmentStorage) _profileAssignmentStorage).refresh();
+        otherStorage.addAllowedUsers(users, "/snapshot", "1");
+        
+        // not seen before the refresh interval
+        assertTrue(_profileAssignmentStorage.getAllowedUsers("/snapshot", "1").isEmpty());
+        
+        Thread.sleep(2100);
+        
+        // the outdated snapshot is reloaded on first access
+        assertEquals(users, _profileAssignmentStorage.getAllowedUsers("/snapshot", "1"));
+        
+        // forced reload
+        otherStorage.removeAllowedUsers(users, "/snapshot", "1");
+        ((SnapshotJdbcProfileAssignmentStorage) _profileAssignmentStorage).refresh();
+        assertTrue(_profileAssignmentStorage.getAllowedUsers("/snapshot", "1").isEmpty());
+    }
+    
+    /**
+     * Tests the anonymous and any connected user assignments are read from the snapshot
+     * @throws Exception if an error occurs
+     */
+    public void testAnonymousAndAnyConnectedAssignments() throws Exception
+    {
+        ModifiableProfileAssignmentStorage storage = (ModifiableProfileAssignmentStorage) _profileAssignmentStorage;
+        
+        assertFalse(storage.isAnonymousAllowed("/snapshot", "1"));
+        assertFalse(storage.isAnyConnectedUserDenied("/snapshot", "2"));
+        
+        storage.addAllowedProfilesForAnonymous("/snapshot", Collections.singleton("1"));
+        storage.addDeniedProfilesForAnyConnectedUser("/snapshot", Collections.singleton("2"));
+        
+        assertTrue(storage.isAnonymousAllowed("/snapshot", "1"));
+        assertFalse(storage.isAnonymousDenied("/snapshot", "1"));
+        assertFalse(storage.isAnonymousAllowed("/snapshot", "2"));
+        assertTrue(storage.isAnyConnectedUserDenied("/snapshot", "2"));
+        assertFalse(storage.isAnyConnectedUserAllowed("/snapshot", "2"));
+        
+        storage.removeAllowedProfilesForAnonymous("/snapshot", Collections.singleton("1"));
+        storage.removeDeniedProfilesForAnyConnectedUser("/snapshot", Collections.singleton("2"));
+        
+        assertFalse(storage.isAnonymousAllowed("/snapshot", "1"));
+        assertFalse(storage.isAnyConnectedUserDenied("/snapshot", "2"));
+    }
+    
+    /**
+     * Tests the results of the {@link RightManager} are invalidated when the assignments are modified through the snapshot
+     * @throws Exception if an error occurs
+     */
+    public void testRightManagerCache() throws Exception
+    {
+        RightManager rightManager = (RightManager) Init.getPluginServiceManager().lookup(RightManager.ROLE);
+        RightProfilesDAO profilesDAO = (RightProfilesDAO) Init.getPluginServiceManager().lookup(RightProfilesDAO.ROLE);
+        ModifiableProfileAssignmentStorage storage = (ModifiableProfileAssignmentStorage) _profileAssignmentStorage;
+        
+        Profile profile = profilesDAO.addProfile("Snapshot profile");
+        profilesDAO.addRight(profile, "right1");
+        
+        UserIdentity user = new UserIdentity("user1", "foo");
+        Set<UserIdentity> users = Collections.singleton(user);
+        
+        assertEquals(RightResult.RIGHT_UNKNOWN, rightManager.hasRight(user, "right1", "/snapshot"));
+        
+        storage.addAllowedUsers(users, "/snapshot", profile.getId());
+        assertEquals(RightResult.RIGHT_ALLOW, rightManager.hasRight(user, "right1", "/snapshot"));
+        
+        storage.addDeniedUsers(users, "/snapshot", profile.getId());
+        assertEquals(RightResult.RIGHT_DENY, rightManager.hasRight(user, "right1", "/snapshot"));
+        
+        storage.removeDeniedUsers(users, "/snapshot", profile.getId());
+        storage.removeAllowedUsers(users, "/snapshot", profile.getId());
+        assertEquals(RightResult.RIGHT_UNKNOWN, rightManager.hasRight(user, "right1", "/snapshot"));
+        
+        profilesDAO.deleteProfile(profile);
+    }
+}
@@ -42,6 +42,11 @@ public final class AllJdbcProfileAssignmentStorageTestSuite extends TestSuite
         suite.addTestSuite(OracleProfileAssignmentStorageTestCase.class);
         suite.addTestSuite(DerbyProfileAssignmentStorageTestCase.class);
         suite.addTestSuite(HsqlProfileAssignmentStorageTestCase.class);
+        suite.addTestSuite(MysqlSnapshotProfileAssignmentStorageTestCase.class);
+        suite.addTestSuite(PostgresSnapshotProfileAssignmentStorageTestCase.class);
+        suite.addTestSuite(OracleSnapshotProfileAssignmentStorageTestCase.class);
+        suite.addTestSuite(DerbySnapshotProfileAssignmentStorageTestCase.class);
+        suite.addTestSuite(HsqlSnapshotProfileAssignmentStorageTestCase.class);
         //$JUnit-END$
         
         return suite;
@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2009 Anyware Services
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.ametys.runtime.test.ui;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.cocoon.ProcessingException;
+import org.apache.cocoon.environment.ObjectModelHelper;
+import org.apache.cocoon.environment.Request;
+import org.apache.cocoon.generation.AbstractGenerator;
+import org.apache.cocoon.xml.AttributesImpl;
+import org.apache.cocoon.xml.XMLUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import org.ametys.core.ui.dispatcher.DispatchGenerator;
+import org.ametys.runtime.test.AbstractRuntimeTestCase;
+
+/**
+ * Test the {@link DispatchGenerator}
+ */
+public class DispatchGeneratorTestCase extends AbstractRuntimeTestCase
+{
+    private static final String __ATTRIBUTE = "dispatch-test";
+    private static final String __CONTEXT_ATTRIBUTE = "dispatch-test-context";
+    private static final int __MESSAGES = 8;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        _startApplication("test/environments/runtimes/runtime01.xml", "test/environments/configs/config1.xml", "test/environments/webapp2");
+    }
+    
+    @Override
+    protected void tearDown() throws Exception
+    {
+        _cocoon.dispose();
+        super.tearDown();
+    }
+    
+    /**
+     * Test that the independent messages, dispatched concurrently, do not see the request attributes set by each other
+     * @throws Exception if an error occurs
+     */
+    public void testParallelAttributesIsolation() throws Exception
+    {
+        StringBuilder content = new StringBuilder("{");
+        for (int i = 0; i < __MESSAGES; i++)
+        {
+            content.append(i > 0 ? "," : "");
+            content.append("\"" + i + "\": {\"pluginOrWorkspace\": \"test\", \"url\": \"dispatch/attribute.xml\", \"responseType\": \"xml\", \"independent\": true, \"parameters\": {\"value\": \"" + i + "\"}}");
+        }
+        content.append("}");
+        
+        Map<String, String> requestParameters = new HashMap<>();
+        requestParameters.put("content", content.toString());
+        requestParameters.put("context.parameters", "{\"" + __CONTEXT_ATTRIBUTE + "\": \"context\"}");
+        
+        Map<String, Object> requestAttributes = new HashMap<>();
+        requestAttributes.put(__ATTRIBUTE, "parent");
+        
+        ResponsesHandler handler = new ResponsesHandler();
+        _cocoon.processURI("_plugins/test/dispatch.xml", handler, requestParameters, requestAttributes, null);
+        
+        assertEquals("All the messages must be answered", __MESSAGES, handler._responses.size());
+        for (int i = 0; i < __MESSAGES; i++)
+        {
+            Map<String, String> response = handler._responses.get(String.valueOf(i));
+            assertNotNull("No response for the message " + i, response);
+            assertEquals("The message " + i + " failed", "200", response.get("code"));
+            assertEquals("The message " + i + " must see the original attributes only", "parent", response.get("before"));
+            assertEquals("The message " + i + " must see its context", "context", response.get("context"));
+            assertEquals("The message " + i + " must not see the attributes set by the others", String.valueOf(i), response.get("after"));
+        }
+        
+        assertEquals("The attributes of the messages must not be set in the current request", "parent", requestAttributes.get(__ATTRIBUTE));
+    }
+    
+    /**
+     * Generates the value of a request attribute before and after setting it, with some time for the concurrent requests to set theirs
+     */
+    public static class RequestAttributeGenerator extends AbstractGenerator
+    {
+        @Override
+        public void generate() throws IOException, SAXException, ProcessingException
+        {
+            Request request = ObjectModelHelper.getRequest(objectModel);
+            
+            AttributesImpl attrs = new AttributesImpl();
+            attrs.addCDATAAttribute("before", String.valueOf(request.getAttribute(__ATTRIBUTE)));
+            attrs.addCDATAAttribute("context", String.valueOf(request.getAttribute(__CONTEXT_ATTRIBUTE)));
+            
+            request.setAttribute(__ATTRIBUTE, request.getParameter("value"));
+            try
+            {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException e)
+            {
+                throw new ProcessingException(e);
+            }
+            attrs.addCDATAAttribute("after", String.valueOf(request.getAttribute(__ATTRIBUTE)));
+            
+            contentHandler.startDocument();
+            XMLUtils.createElement(contentHandler, "attribute", attrs);
+            contentHandler.endDocument();
+        }
+    }
+    
+    private static class ResponsesHandler extends DefaultHandler
+    {
+        Map<String, Map<String, String>> _responses = new HashMap<>();
+        private Map<String, String> _currentResponse;
+        
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException
+        {
+            if ("response".equals(localName))
+            {
+                _currentResponse = new HashMap<>();
+                _currentResponse.put("code", attributes.getValue("code"));
+                _responses.put(attributes.getValue("id"), _currentResponse);
+            }
+            else if ("attribute".equals(localName) && _currentResponse != null)
+            {
+                for (String name : new String[] {"before", "context", "after"})
+                {
+                    _currentResponse.put(name, attributes.getValue(name));
+                }
+            }
+        }
+    }
+}
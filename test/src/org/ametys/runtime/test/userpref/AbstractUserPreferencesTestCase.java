@@ -21,12 +21,18 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.avalon.framework.configuration.DefaultConfiguration;
+import org.apache.cocoon.util.log.SLF4JLoggerAdapter;
 import org.joda.time.format.ISODateTimeFormat;
+import org.slf4j.LoggerFactory;
 
 import org.ametys.core.user.UserIdentity;
 import org.ametys.core.userpref.UserPreferencesExtensionPoint;
 import org.ametys.core.userpref.UserPreferencesManager;
+import org.ametys.plugins.core.impl.userpref.JdbcXmlUserPreferencesStorage;
 import org.ametys.runtime.test.AbstractJDBCTestCase;
 import org.ametys.runtime.test.Init;
 
@@ -208,4 +214,207 @@ public abstract class AbstractUserPreferencesTestCase extends AbstractJDBCTestCa
         assertEquals(0, _userPrefs.getUnTypedUserPrefs(userIdentity, "/all", contextVars).size());
     }
     
+    /**
+     * Check the cached values are invalidated by the modifications
+     * @throws Exception if an error occurs
+     */
+    public void testCacheInvalidation() throws Exception
+    {
+        UserIdentity userIdentity = new UserIdentity("user", "population");
+        Map<String, String> contextVars = Collections.emptyMap();
+        
+        _setDatabase(Arrays.asList(getPopulateScripts()));
+        
+        // Read the values a first time, so that they are cached
+        assertEquals("one", _userPrefs.getUserPreferenceAsString(userIdentity, "/one", contextVars, "pref1"));
+        
+        _userPrefs.setUserPreferences(userIdentity, "/one", contextVars, Collections.singletonMap("pref1", "modified"));
+        assertEquals("modified", _userPrefs.getUserPreferenceAsString(userIdentity, "/one", contextVars, "pref1"));
+        assertEquals(1, _userPrefs.getUnTypedUserPrefs(userIdentity, "/one", contextVars).size());
+        
+        _userPrefs.removeUserPreference(userIdentity, "/one", contextVars, "pref1");
+        assertNull(_userPrefs.getUserPreferenceAsString(userIdentity, "/one", contextVars, "pref1"));
+        
+        _userPrefs.setUserPreferences(userIdentity, "/two", contextVars, Collections.singletonMap("pref1", "modified"));
+        assertEquals("modified", _userPrefs.getUserPreferenceAsString(userIdentity, "/two", contextVars, "pref1"));
+        
+        _userPrefs.removeAllUserPreferences(userIdentity, "/two", contextVars);
+        assertEquals(0, _userPrefs.getUnTypedUserPrefs(userIdentity, "/two", contextVars).size());
+        
+        // The other contexts are not affected
+        assertEquals(6, _userPrefs.getUnTypedUserPrefs(userIdentity, "/all", contextVars).size());
+    }
+    
+    /**
+     * Check the values read while they are modified are not cached after the last modification
+     * @throws Exception if an error occurs
+     */
+    public void testConcurrentReadsAndWrites() throws Exception
+    {
+        UserIdentity userIdentity = new UserIdentity("user", "foo");
+        Map<String, String> contextVars = Collections.emptyMap();
+        
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++)
+        {
+            readers[i] = new Thread(() -> 
+            {
+                try
+                {
+                    while (writing.get())
+                    {
+                        _userPrefs.getUnTypedUserPrefs(userIdentity, "/all", contextVars);
+                    }
+                }
+                catch (Throwable e)
+                {
+                    error.compareAndSet(null, e);
+                }
+            });
+            readers[i].start();
+        }
+        
+        try
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                _userPrefs.setUserPreferences(userIdentity, "/all", contextVars, Collections.singletonMap("pref1", String.valueOf(i)));
+            }
+        }
+        finally
+        {
+            writing.set(false);
+            for (Thread reader : readers)
+            {
+                reader.join();
+            }
+        }
+        
+        assertNull(error.get());
+        assertEquals("99", _userPrefs.getUserPreferenceAsString(userIdentity, "/all", contextVars, "pref1"));
+    }
+    
+    /**
+     * Check the preferences written in the binary format are read back, whatever the configured format is
+     * @throws Exception if an error occurs
+     */
+    public void testBinaryFormat() throws Exception
+    {
+        UserIdentity userIdentity = new UserIdentity("user", "foo");
+        Map<String, String> contextVars = Collections.emptyMap();
+        
+        JdbcXmlUserPreferencesStorage binaryStorage = _createStorage(JdbcXmlUserPreferencesStorage.FORMAT_BINARY);
+        JdbcXmlUserPreferencesStorage xmlStorage = _createStorage(JdbcXmlUserPreferencesStorage.FORMAT_XML);
+        
+        Map<String, String> prefsToSet = new HashMap<>();
+        prefsToSet.put("pref1", "one");
+        prefsToSet.put("accents", "\u00e9t\u00e9 <&> \"quoted\"");
+        prefsToSet.put("empty", "");
+        prefsToSet.put("long", "27");
+        prefsToSet.put("double", "3.14");
+        prefsToSet.put("date", "1987-10-09T00:00:00.000+02:00");
+        prefsToSet.put("boolean", "true");
+        
+        binaryStorage.setUserPreferences(userIdentity, "/binary", contextVars, prefsToSet);
+        
+        assertEquals(prefsToSet, binaryStorage.getUnTypedUserPrefs(userIdentity, "/binary", contextVars));
+        
+        // The header is detected by the storage configured with the XML format
+        assertEquals(prefsToSet, xmlStorage.getUnTypedUserPrefs(userIdentity, "/binary", contextVars));
+        
+        Date date = ISODateTimeFormat.dateTime().parseDateTime("1987-10-09T00:00:00.000+02:00").toDate();
+        
+        assertEquals("one", binaryStorage.getUserPreferenceAsString(userIdentity, "/binary", contextVars, "pref1"));
+        assertEquals(27L, binaryStorage.getUserPreferenceAsLong(userIdentity, "/binary", contextVars, "long").longValue());
+        assertEquals(3.14, binaryStorage.getUserPreferenceAsDouble(userIdentity, "/binary", contextVars, "double").doubleValue());
+        assertEquals(date, binaryStorage.getUserPreferenceAsDate(userIdentity, "/binary", contextVars, "date"));
+        assertEquals(true, binaryStorage.getUserPreferenceAsBoolean(userIdentity, "/binary", contextVars, "boolean").booleanValue());
+        assertNull(binaryStorage.getUserPreferenceAsString(userIdentity, "/binary", contextVars, "nopref"));
+    }
+    
+    /**
+     * Check the preferences stored as XML are read by a storage configured with the binary format
+     * @throws Exception if an error occurs
+     */
+    public void testLegacyXml() throws Exception
+    {
+        UserIdentity userIdentity = new UserIdentity("user", "population");
+        Map<String, String> contextVars = Collections.emptyMap();
+        
+        _setDatabase(Arrays.asList(getPopulateScripts()));
+        
+        JdbcXmlUserPreferencesStorage binaryStorage = _createStorage(JdbcXmlUserPreferencesStorage.FORMAT_BINARY);
+        
+        Map<String, String> prefs = binaryStorage.getUnTypedUserPrefs(userIdentity, "/all", contextVars);
+        assertEquals(6, prefs.size());
+        assertEquals("one", prefs.get("pref1"));
+        assertEquals("27", prefs.get("long"));
+        assertEquals("true", prefs.get("boolean"));
+        
+        // Written back in the binary format, with the same values
+        binaryStorage.setUserPreferences(userIdentity, "/all", contextVars, prefs);
+        assertEquals(prefs, _createStorage(JdbcXmlUserPreferencesStorage.FORMAT_XML).getUnTypedUserPrefs(userIdentity, "/all", contextVars));
+    }
+    
+    /**
+     * Check the conversion of all the stored preferences
+     * @throws Exception if an error occurs
+     */
+    public void testMigrateData() throws Exception
+    {
+        UserIdentity userIdentity = new UserIdentity("user", "population");
+        Map<String, String> contextVars = Collections.emptyMap();
+        
+        _setDatabase(Arrays.asList(getPopulateScripts()));
+        
+        JdbcXmlUserPreferencesStorage binaryStorage = _createStorage(JdbcXmlUserPreferencesStorage.FORMAT_BINARY);
+        JdbcXmlUserPreferencesStorage xmlStorage = _createStorage(JdbcXmlUserPreferencesStorage.FORMAT_XML);
+        
+        Map<String, String> allPrefs = xmlStorage.getUnTypedUserPrefs(userIdentity, "/all", contextVars);
+        Map<String, String> twoPrefs = xmlStorage.getUnTypedUserPrefs(userIdentity, "/two", contextVars);
+        
+        // Already in the XML format
+        assertEquals(0, xmlStorage.migrateData());
+        
+        int count = binaryStorage.migrateData();
+        assertTrue(count >= 3);
+        
+        // Already converted
+        assertEquals(0, binaryStorage.migrateData());
+        
+        assertEquals(allPrefs, binaryStorage.getUnTypedUserPrefs(userIdentity, "/all", contextVars));
+        assertEquals(twoPrefs, xmlStorage.getUnTypedUserPrefs(userIdentity, "/two", contextVars));
+        
+        // The manager does not serve stale cached values
+        assertEquals(allPrefs, _userPrefs.getUnTypedUserPrefs(userIdentity, "/all", contextVars));
+        
+        // And back to XML
+        assertEquals(count, xmlStorage.migrateData());
+        assertEquals(allPrefs, xmlStorage.getUnTypedUserPrefs(userIdentity, "/all", contextVars));
+    }
+    
+    private JdbcXmlUserPreferencesStorage _createStorage(String format) throws Exception
+    {
+        DefaultConfiguration configuration = new DefaultConfiguration("component");
+        
+        DefaultConfiguration dataSourceConfig = new DefaultConfiguration("datasource");
+        dataSourceConfig.setValue("runtime.usersprefs.datasource");
+        DefaultConfiguration tableConfig = new DefaultConfiguration("table");
+        tableConfig.setValue("UserPreferences");
+        DefaultConfiguration formatConfig = new DefaultConfiguration("format");
+        formatConfig.setValue(format);
+        
+        configuration.addChild(dataSourceConfig);
+        configuration.addChild(tableConfig);
+        configuration.addChild(formatConfig);
+        
+        JdbcXmlUserPreferencesStorage storage = new JdbcXmlUserPreferencesStorage();
+        storage.enableLogging(new SLF4JLoggerAdapter(LoggerFactory.getLogger("userpref")));
+        storage.configure(configuration);
+        storage.service(Init.getPluginServiceManager());
+        return storage;
+    }
 }